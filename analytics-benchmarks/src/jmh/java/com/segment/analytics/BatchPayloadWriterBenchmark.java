@@ -0,0 +1,113 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.SegmentIntegration.BatchPayloadWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Assembling the body of an upload from payloads that were serialized on enqueue. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchPayloadWriterBenchmark {
+    @Param({"1", "100"})
+    public int payloads;
+
+    @Param({"true", "false"})
+    public boolean gzip;
+
+    private byte[] payload;
+    private byte[] deflated;
+
+    @Setup
+    public void setUp() {
+        payload = Cartographer.INSTANCE.toJson(Payloads.track()).getBytes(SegmentIntegration.UTF_8);
+        PayloadDeflater deflater = new PayloadDeflater();
+        if (!deflater.deflate(payload, 0, payload.length)) {
+            throw new AssertionError("Payload isn't compressible.");
+        }
+        deflated = new byte[deflater.size()];
+        deflater.writeTo(deflated, 0);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        BatchPayloadWriter writer =
+                new BatchPayloadWriter(new BatchOutputStream(out, gzip))
+                        .beginObject()
+                        .beginBatchArray();
+        for (int i = 0; i < payloads; i++) {
+            writer.emitPayloadObject(payload, 0, payload.length);
+        }
+        writer.endBatchArray().endObject("writeKey").close();
+        return out.count;
+    }
+
+    /** Same as {@link #write()}, with payloads that were compressed on enqueue. */
+    @Benchmark
+    public long writeDeflated() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        BatchPayloadWriter writer =
+                new BatchPayloadWriter(new BatchOutputStream(out, gzip))
+                        .beginObject()
+                        .beginBatchArray();
+        for (int i = 0; i < payloads; i++) {
+            writer.emitDeflatedPayloadObject(deflated, 0, deflated.length);
+        }
+        writer.endBatchArray().endObject("writeKey").close();
+        return out.count;
+    }
+
+    /** Stands in for the connection, without keeping the bytes around. */
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a payload on the enqueue path as JSON and in the binary form of {@link BinaryJson}, and
+ * decoding the binary form on the upload path. The bytes per event of both forms are printed once
+ * per fork.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryJsonBenchmark {
+    private TrackPayload payload;
+    private Map<String, Boolean> bundledIntegrations;
+    private JsonEncoder encoder;
+    private BinaryJson binary;
+    private BinaryJson decoder;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = Payloads.track();
+        bundledIntegrations = Payloads.bundledIntegrations();
+        encoder = new JsonEncoder();
+        binary = new BinaryJson();
+        decoder = new BinaryJson();
+        json();
+        byte[] json = encoder.toByteArray();
+        if (!binary.encode(json, 0, json.length)) {
+            throw new IllegalStateException("Payload can't be encoded.");
+        }
+        encoded = Arrays.copyOf(binary.buffer(), binary.size());
+        decoder.decode(encoded, 0, encoded.length);
+        if (!Arrays.equals(json, Arrays.copyOf(decoder.buffer(), decoder.size()))) {
+            throw new IllegalStateException("Decoded payload differs.");
+        }
+        System.out.println(
+                "Bytes per event: " + json.length + " as JSON, " + encoded.length + " binary.");
+    }
+
+    @Benchmark
+    public int json() throws IOException {
+        encoder.reset();
+        Cartographer.INSTANCE.toJson(
+                payload, bundledIntegrations, SegmentIntegration.SEGMENT_KEY, encoder);
+        return encoder.size();
+    }
+
+    /** What enqueueing costs with the binary encoding, which starts from the JSON. */
+    @Benchmark
+    public int binary() throws IOException {
+        json();
+        binary.encode(encoder.buffer(), 0, encoder.size());
+        return binary.size();
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        decoder.decode(encoded, 0, encoded.length);
+        return decoder.size();
+    }
+}
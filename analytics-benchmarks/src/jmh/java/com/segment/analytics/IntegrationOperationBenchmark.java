@@ -0,0 +1,102 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.integrations.Integration;
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatching a track event to a device mode integration, which happens for every event and every
+ * bundled integration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntegrationOperationBenchmark {
+    private static final String KEY = "Mixpanel";
+
+    private TrackPayload payload;
+    private CountingIntegration integration;
+    private ProjectSettings settings;
+    private ProjectSettings settingsWithTrackingPlan;
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.track();
+        integration = new CountingIntegration();
+        settings = ProjectSettings.create(new LinkedHashMap<String, Object>());
+
+        Map<String, Object> eventIntegrations = new LinkedHashMap<>();
+        eventIntegrations.put(KEY, true);
+        eventIntegrations.put("Amplitude", false);
+        Map<String, Object> eventPlan = new LinkedHashMap<>();
+        eventPlan.put("enabled", true);
+        eventPlan.put("integrations", eventIntegrations);
+        Map<String, Object> trackingPlan = new LinkedHashMap<>();
+        trackingPlan.put(payload.event(), eventPlan);
+        trackingPlan.put("Order Completed", new LinkedHashMap<>(eventPlan));
+        Map<String, Object> plan = new LinkedHashMap<>();
+        plan.put("track", trackingPlan);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("plan", plan);
+        settingsWithTrackingPlan = ProjectSettings.create(map);
+    }
+
+    @Benchmark
+    public int trackWithoutTrackingPlan() {
+        IntegrationOperation.track(payload, KEY, integration, settings);
+        return integration.tracked;
+    }
+
+    @Benchmark
+    public int trackWithTrackingPlan() {
+        IntegrationOperation.track(payload, KEY, integration, settingsWithTrackingPlan);
+        return integration.tracked;
+    }
+
+    static class CountingIntegration extends Integration<Void> {
+        int tracked;
+
+        @Override
+        public void track(TrackPayload track) {
+            tracked++;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing a payload on the enqueue path, with {@link JsonEncoder} and with the {@link
+ * Cartographer} based code it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonEncoderBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TrackPayload payload;
+    private Map<String, Boolean> bundledIntegrations;
+    private JsonEncoder encoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = Payloads.track();
+        bundledIntegrations = Payloads.bundledIntegrations();
+        encoder = new JsonEncoder();
+        if (!Arrays.equals(cartographer(), encoder())) {
+            throw new IllegalStateException("Encoders disagree.");
+        }
+    }
+
+    @Benchmark
+    public byte[] cartographer() throws IOException {
+        Map<String, Object> integrations =
+                new LinkedHashMap<>(payload.integrations().size() + bundledIntegrations.size());
+        integrations.putAll(payload.integrations());
+        integrations.putAll(bundledIntegrations);
+        integrations.remove(SegmentIntegration.SEGMENT_KEY);
+        ValueMap copy = new ValueMap();
+        copy.putAll(payload);
+        copy.put("integrations", integrations);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Cartographer.INSTANCE.toJson(copy, new OutputStreamWriter(bos, UTF_8));
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encoder() throws IOException {
+        encoder.reset();
+        Cartographer.INSTANCE.toJson(
+                payload, bundledIntegrations, SegmentIntegration.SEGMENT_KEY, encoder);
+        return encoder.toByteArray();
+    }
+}
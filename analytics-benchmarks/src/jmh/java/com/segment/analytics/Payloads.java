@@ -0,0 +1,98 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Payloads shaped like the ones a typical app sends. */
+final class Payloads {
+
+    private Payloads() {
+        throw new AssertionError("No instances.");
+    }
+
+    /** A track event with a full context and a few properties. */
+    static TrackPayload track() {
+        Map<String, Object> app = new LinkedHashMap<>();
+        app.put("name", "Shop");
+        app.put("version", "3.2.1");
+        app.put("namespace", "com.example.shop");
+        app.put("build", "321");
+        Map<String, Object> device = new LinkedHashMap<>();
+        device.put("id", "9c3e8b4a-2f1d-4e5b-8a7c-6d5e4f3a2b1c");
+        device.put("manufacturer", "Google");
+        device.put("model", "Pixel 6");
+        device.put("name", "oriole");
+        Map<String, Object> os = new LinkedHashMap<>();
+        os.put("name", "Android");
+        os.put("version", "13");
+        Map<String, Object> screen = new LinkedHashMap<>();
+        screen.put("density", 2.625);
+        screen.put("width", 1080);
+        screen.put("height", 2400);
+        Map<String, Object> library = new LinkedHashMap<>();
+        library.put("name", "analytics-android");
+        library.put("version", "4.11.4");
+        Map<String, Object> context = new LinkedHashMap<>();
+        context.put("app", app);
+        context.put("device", device);
+        context.put("library", library);
+        context.put("locale", "en-US");
+        context.put("os", os);
+        context.put("screen", screen);
+        context.put("timezone", "Europe/Berlin");
+        context.put("userAgent", "Dalvik/2.1.0 (Linux; U; Android 13; Pixel 6 Build/TQ3A)");
+
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("product_id", "507f1f77bcf86cd799439011");
+        properties.put("name", "Monopoly: 3rd Edition \u2013 Spiel des Jahres");
+        properties.put("price", 18.99);
+        properties.put("quantity", 1);
+        properties.put("categories", Arrays.asList("Games", "Board Games"));
+        properties.put("gift", false);
+
+        return new TrackPayload.Builder()
+                .messageId("a161304c-498c-4830-9291-fcfb8498877b")
+                .timestamp(new Date(1500000000000L))
+                .anonymousId("2b1c9c3e-8b4a-4e5b-8a7c-6d5e4f3a")
+                .userId("user-42")
+                .event("Product Added")
+                .properties(properties)
+                .context(context)
+                .integration("Mixpanel", true)
+                .build();
+    }
+
+    /** Integrations bundled into the app, which override the ones a payload asks for. */
+    static Map<String, Boolean> bundledIntegrations() {
+        Map<String, Boolean> bundled = new LinkedHashMap<>();
+        bundled.put("Mixpanel", false);
+        bundled.put("Amplitude", false);
+        return bundled;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The disk queue operations. Writes are synchronous unless {@code maxPendingElements} enables
+ * group commit, see {@link QueueDurability}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueFileBenchmark {
+    /** Number of elements a batch reads and removes. */
+    private static final int BATCH = 100;
+
+    /** Adds an element. The queue is cleared when it reaches the production size limit. */
+    @Benchmark
+    public void add(Queue queue) throws IOException {
+        queue.queueFile.add(queue.payload);
+        if (queue.queueFile.size() >= SegmentIntegration.MAX_QUEUE_SIZE) {
+            queue.queueFile.clear();
+        }
+    }
+
+    @Benchmark
+    public int forEach(Queue queue) throws IOException {
+        return queue.queueFile.forEach(queue.reader);
+    }
+
+    @Benchmark
+    public void remove(Refilled refilled) throws IOException {
+        refilled.queue.queueFile.remove(BATCH);
+    }
+
+    /** A queue that starts out with a batch of elements. */
+    @State(Scope.Thread)
+    public static class Queue {
+        @Param({"0", "100"})
+        public int maxPendingElements;
+
+        File file;
+        QueueFile queueFile;
+        byte[] payload;
+        private final byte[] scratch = new byte[SegmentIntegration.MAX_PAYLOAD_SIZE];
+        final PayloadQueue.ElementVisitor reader =
+                new PayloadQueue.ElementVisitor() {
+                    @Override
+                    public boolean read(InputStream in, int length) throws IOException {
+                        int read = 0;
+                        while (read < length) {
+                            read += in.read(scratch, read, length - read);
+                        }
+                        return true;
+                    }
+                };
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("queue-file", null);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            queueFile = new QueueFile(file, maxPendingElements);
+            payload = Cartographer.INSTANCE.toJson(Payloads.track()).getBytes("UTF-8");
+            fill();
+        }
+
+        void fill() throws IOException {
+            while (queueFile.size() < BATCH) {
+                queueFile.add(payload);
+            }
+            queueFile.commit();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            queueFile.close();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /** Refills the queue, so every invocation finds a full batch at the head. */
+    @State(Scope.Thread)
+    public static class Refilled {
+        Queue queue;
+
+        @Setup(Level.Invocation)
+        public void fill(Queue queue) throws IOException {
+            this.queue = queue;
+            queue.fill();
+        }
+    }
+}
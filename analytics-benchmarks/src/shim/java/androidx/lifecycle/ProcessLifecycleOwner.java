@@ -0,0 +1,55 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package androidx.lifecycle;
+
+/**
+ * Stands in for the class from {@code androidx.lifecycle:lifecycle-process}, which is only
+ * published as an Android archive. Its lifecycle never changes state.
+ */
+public class ProcessLifecycleOwner implements LifecycleOwner {
+    private static final ProcessLifecycleOwner INSTANCE = new ProcessLifecycleOwner();
+
+    private final Lifecycle lifecycle =
+            new Lifecycle() {
+                @Override
+                public void addObserver(LifecycleObserver observer) {}
+
+                @Override
+                public void removeObserver(LifecycleObserver observer) {}
+
+                @Override
+                public State getCurrentState() {
+                    return State.INITIALIZED;
+                }
+            };
+
+    public static LifecycleOwner get() {
+        return INSTANCE;
+    }
+
+    @Override
+    public Lifecycle getLifecycle() {
+        return lifecycle;
+    }
+}
@@ -62,19 +62,23 @@ import com.segment.analytics.internal.NanoDate;
 import com.segment.analytics.internal.Private;
 import com.segment.analytics.internal.Utils;
 import com.segment.analytics.internal.Utils.AnalyticsNetworkExecutorService;
+import com.segment.analytics.internal.Utils.AnalyticsThreadFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import org.jetbrains.annotations.NotNull;
 
@@ -139,16 +143,25 @@ public class Analytics {
     @Private final String writeKey;
     final int flushQueueSize;
     final long flushIntervalInMillis;
+    final QueueOptions queueOptions;
     // Retrieving the advertising ID is asynchronous. This latch helps us wait to ensure the
     // advertising ID is ready.
     private final CountDownLatch advertisingIdLatch;
     private final ExecutorService analyticsExecutor;
     private final BooleanPreference optOut;
+    private final IntegrationDispatcher dispatcher;
+    private final Set<String> backgroundIntegrations;
+    // Only created if some integration runs in the background.
+    private volatile ExecutorService integrationExecutor;
+    // Only created if some integration runs on any thread.
+    private volatile ExecutorService anyIntegrationExecutor;
 
     final Map<String, Boolean> bundledIntegrations = new ConcurrentHashMap<>();
     private List<Integration.Factory> factories;
     // todo: use lightweight map implementation.
     private Map<String, Integration<?>> integrations;
+    private Map<String, Integration.ThreadMode> threadModes;
+    private boolean hasMainIntegrations;
     volatile boolean shutdown;
 
     @Private final boolean nanosecondTimestamps;
@@ -241,7 +254,10 @@ public class Analytics {
             @NonNull Lifecycle lifecycle,
             boolean nanosecondTimestamps,
             boolean useNewLifecycleMethods,
-            String defaultApiHost) {
+            String defaultApiHost,
+            QueueOptions queueOptions,
+            long dispatchBudgetMillis,
+            @NonNull Set<String> backgroundIntegrations) {
         this.application = application;
         this.networkExecutor = networkExecutor;
         this.stats = stats;
@@ -256,6 +272,7 @@ public class Analytics {
         this.writeKey = writeKey;
         this.flushQueueSize = flushQueueSize;
         this.flushIntervalInMillis = flushIntervalInMillis;
+        this.queueOptions = queueOptions;
         this.advertisingIdLatch = advertisingIdLatch;
         this.optOut = optOut;
         this.factories = factories;
@@ -267,6 +284,17 @@ public class Analytics {
         this.lifecycle = lifecycle;
         this.nanosecondTimestamps = nanosecondTimestamps;
         this.useNewLifecycleMethods = useNewLifecycleMethods;
+        this.backgroundIntegrations = backgroundIntegrations;
+        this.dispatcher =
+                new IntegrationDispatcher(
+                        HANDLER,
+                        dispatchBudgetMillis,
+                        new IntegrationDispatcher.Target() {
+                            @Override
+                            public void performRun(IntegrationOperation operation) {
+                                Analytics.this.performRun(operation);
+                            }
+                        });
 
         namespaceSharedPreferences();
 
@@ -431,13 +459,7 @@ public class Analytics {
                 new Runnable() {
                     @Override
                     public void run() {
-                        HANDLER.post(
-                                new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        performRun(operation);
-                                    }
-                                });
+                        dispatcher.dispatch(operation);
                     }
                 });
     }
@@ -764,6 +786,7 @@ public class Analytics {
         builder.anonymousId(contextCopy.traits().anonymousId());
         builder.integrations(finalOptions.integrations());
         builder.nanosecondTimestamps(nanosecondTimestamps);
+        builder.priority(finalOptions.priority());
         String cachedUserId = contextCopy.traits().userId();
         if (!builder.isUserIdSet() && !isNullOrEmpty(cachedUserId)) {
             // userId is not set, retrieve from cached traits and set for payload
@@ -795,13 +818,7 @@ public class Analytics {
         logger.verbose("Running payload %s.", payload);
         final IntegrationOperation operation =
                 IntegrationOperation.segmentEvent(payload, destinationMiddleware);
-        HANDLER.post(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        performRun(operation);
-                    }
-                });
+        dispatcher.dispatch(operation);
     }
 
     private void run(Runnable runnable) {
@@ -1020,10 +1037,15 @@ public class Analytics {
         // public,
         // we'll have to add a check similar to that of AnalyticsNetworkExecutorService below.
         analyticsExecutor.shutdown();
+        if (integrationExecutor != null) {
+            integrationExecutor.shutdown();
+        }
+        if (anyIntegrationExecutor != null) {
+            anyIntegrationExecutor.shutdown();
+        }
         if (networkExecutor instanceof AnalyticsNetworkExecutorService) {
             networkExecutor.shutdown();
         }
-        stats.shutdown();
         shutdown = true;
         synchronized (INSTANCES) {
             INSTANCES.remove(tag);
@@ -1082,6 +1104,8 @@ public class Analytics {
         private boolean collectDeviceID = Utils.DEFAULT_COLLECT_DEVICE_ID;
         private int flushQueueSize = Utils.DEFAULT_FLUSH_QUEUE_SIZE;
         private long flushIntervalInMillis = Utils.DEFAULT_FLUSH_INTERVAL;
+        private QueueDurability queueDurability = QueueDurability.everyWrite();
+        private EvictionPolicy evictionPolicy = EvictionPolicy.oldestFirst();
         private Options defaultOptions;
         private String tag;
         private LogLevel logLevel;
@@ -1099,7 +1123,12 @@ public class Analytics {
         private Crypto crypto;
         private ValueMap defaultProjectSettings = new ValueMap();
         private boolean useNewLifecycleMethods = true; // opt-out feature
+        private QueueFormat queueFormat = QueueFormat.FILE;
+        private boolean binaryQueueEncoding;
+        private boolean compressedQueue;
         private String defaultApiHost = Utils.DEFAULT_API_HOST;
+        private long dispatchBudgetMillis = IntegrationDispatcher.DEFAULT_BUDGET_MILLIS;
+        private final Set<String> backgroundIntegrations = new HashSet<>();
 
         /**
          * Start building a new {@link Analytics} instance.
@@ -1158,6 +1187,59 @@ public class Analytics {
             return this;
         }
 
+        /**
+         * Set when queued events are committed to disk. By default every event is written to disk
+         * synchronously as soon as it is queued.
+         *
+         * @see QueueDurability
+         */
+        public Builder queueDurability(QueueDurability queueDurability) {
+            this.queueDurability = assertNotNull(queueDurability, "queueDurability");
+            return this;
+        }
+
+        /**
+         * Set which events are dropped when the queue is full. By default the oldest events are
+         * dropped once 1000 events are queued.
+         *
+         * @see EvictionPolicy
+         */
+        public Builder evictionPolicy(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = assertNotNull(evictionPolicy, "evictionPolicy");
+            return this;
+        }
+
+        /**
+         * Set how long integrations may hold the main thread in a single message. Events are
+         * delivered to integrations in batches; once a batch has run for this long, the rest are
+         * delivered in a later message so the UI gets a chance to draw. Defaults to 5 milliseconds.
+         * A budget of zero delivers one event per message.
+         */
+        public Builder mainThreadDispatchBudget(long budget, TimeUnit timeUnit) {
+            if (timeUnit == null) {
+                throw new IllegalArgumentException("timeUnit must not be null.");
+            }
+            if (budget < 0) {
+                throw new IllegalArgumentException("budget must not be negative.");
+            }
+            this.dispatchBudgetMillis = timeUnit.toMillis(budget);
+            return this;
+        }
+
+        /**
+         * Run the integration with the given key on a background thread instead of the main
+         * thread. Only use this for integrations whose SDKs are safe to call from any thread.
+         * Operations are still delivered to the integration one at a time, in order. This
+         * overrides the integration's own {@link Integration#threadMode()}.
+         */
+        public Builder dispatchInBackground(String key) {
+            if (isNullOrEmpty(key)) {
+                throw new IllegalArgumentException("key must not be null or empty.");
+            }
+            backgroundIntegrations.add(key);
+            return this;
+        }
+
         /**
          * Enable or disable collection of an unique device id. This ID is generated by the DRM API.
          * {@see <a href="https://source.android.com/docs/core/media/drm">DRM API</a>}
@@ -1389,6 +1471,57 @@ public class Analytics {
             return this;
         }
 
+        /**
+         * Store the disk queue as a log of fixed-size segment files instead of a single file that
+         * grows. Uploaded events are dropped by deleting whole segments, growing the queue never
+         * copies events, and a corrupt file only loses the events in that segment. Events queued
+         * in the existing file are moved over the first time the queue is opened. Note: This is an
+         * experimental feature (and strictly opt-in)
+         */
+        public Builder experimentalSegmentedQueue() {
+            this.queueFormat = QueueFormat.SEGMENTED;
+            return this;
+        }
+
+        /**
+         * Share the disk queue between all processes of the app that use the same tag, e.g. a UI
+         * process and a {@code :sync} service that each call {@link Analytics#with(Context)}.
+         * Every process adds events to the same file under a file lock, and only one process at a
+         * time uploads them. If it dies, the next process to flush takes over. Events with {@link
+         * com.segment.analytics.integrations.BasePayload.Priority#HIGH} are still uploaded right
+         * away by the process that recorded them. Eviction policies other than the default, and
+         * storing shared contexts once, are not supported in this mode. Note: This is an
+         * experimental feature (and strictly opt-in)
+         */
+        public Builder experimentalMultiProcessQueue() {
+            this.queueFormat = QueueFormat.SHARED;
+            return this;
+        }
+
+        /**
+         * Store events on disk in a compact binary encoding instead of JSON, with common keys
+         * replaced by a byte and timestamps and UUIDs packed. Events are turned back into the same
+         * JSON when they're uploaded, and events already queued as JSON are still uploaded as they
+         * are. Note: This is an experimental feature (and strictly opt-in)
+         */
+        public Builder experimentalBinaryQueueEncoding() {
+            this.binaryQueueEncoding = true;
+            return this;
+        }
+
+        /**
+         * Compress events once when they're stored on disk, and splice them into the gzipped
+         * upload as they are instead of compressing every batch. Saves disk space and most of the
+         * work of an upload, but since events are compressed one at a time, uploads are several
+         * times larger than a batch compressed as a whole. Takes precedence over {@link
+         * #experimentalBinaryQueueEncoding()}, and has no effect before API 19. Note: This is an
+         * experimental feature (and strictly opt-in)
+         */
+        public Builder experimentalCompressedQueue() {
+            this.compressedQueue = true;
+            return this;
+        }
+
         /** Enable/Disable the use of the new Lifecycle Observer methods. Enabled by default. */
         public Builder experimentalUseNewLifecycleMethods(boolean useNewLifecycleMethods) {
             this.useNewLifecycleMethods = useNewLifecycleMethods;
@@ -1540,7 +1673,15 @@ public class Analytics {
                     lifecycle,
                     nanosecondTimestamps,
                     useNewLifecycleMethods,
-                    defaultApiHost);
+                    defaultApiHost,
+                    new QueueOptions(
+                            queueDurability,
+                            evictionPolicy,
+                            queueFormat,
+                            binaryQueueEncoding,
+                            compressedQueue),
+                    dispatchBudgetMillis,
+                    Collections.unmodifiableSet(new HashSet<>(backgroundIntegrations)));
         }
     }
 
@@ -1619,6 +1760,7 @@ public class Analytics {
         ValueMap integrationSettings = projectSettings.integrations();
 
         integrations = new LinkedHashMap<>(factories.size());
+        threadModes = new HashMap<>(factories.size());
         for (int i = 0; i < factories.size(); i++) {
             if (isNullOrEmpty(integrationSettings)) {
                 logger.debug("Integration settings are empty");
@@ -1641,24 +1783,108 @@ public class Analytics {
             } else {
                 integrations.put(key, integration);
                 bundledIntegrations.put(key, false);
+                Integration.ThreadMode threadMode = integration.threadMode();
+                if (backgroundIntegrations.contains(key)) {
+                    threadMode = Integration.ThreadMode.BACKGROUND;
+                } else if (threadMode == null) {
+                    threadMode = Integration.ThreadMode.MAIN;
+                }
+                threadModes.put(key, threadMode);
+                if (threadMode == Integration.ThreadMode.MAIN) {
+                    hasMainIntegrations = true;
+                } else if (threadMode == Integration.ThreadMode.BACKGROUND
+                        && integrationExecutor == null) {
+                    integrationExecutor =
+                            Executors.newSingleThreadExecutor(new AnalyticsThreadFactory());
+                } else if (threadMode == Integration.ThreadMode.ANY
+                        && anyIntegrationExecutor == null) {
+                    anyIntegrationExecutor =
+                            Executors.newSingleThreadExecutor(new AnalyticsThreadFactory());
+                }
             }
         }
         factories = null;
+        dispatcher.start(
+                new IntegrationDispatcher.Router() {
+                    @Override
+                    public boolean route(IntegrationOperation operation) {
+                        return Analytics.this.route(operation);
+                    }
+                });
+    }
+
+    /**
+     * Hands the given operation to integrations that don't run on the main thread, and returns
+     * whether any {@link Integration.ThreadMode#MAIN} integration still needs it. This is called on
+     * the thread that dispatched the operation, so those integrations never wait on the main
+     * thread. {@link Integration.ThreadMode#BACKGROUND} integrations are handed off to {@link
+     * #integrationExecutor} and {@link Integration.ThreadMode#ANY} integrations to {@link
+     * #anyIntegrationExecutor}. Both executors are single threaded and {@link
+     * IntegrationDispatcher} routes one operation at a time, so each integration still sees
+     * operations one at a time and in order. Once the client is shut down, operations still on
+     * their way to {@link Integration.ThreadMode#ANY} integrations are run inline instead, so
+     * events tracked right before shutting down still reach the Segment queue.
+     */
+    boolean route(final IntegrationOperation operation) {
+        for (Map.Entry<String, Integration<?>> entry : integrations.entrySet()) {
+            String key = entry.getKey();
+            switch (threadModes.get(key)) {
+                case BACKGROUND:
+                    if (!performRunOn(integrationExecutor, key, entry.getValue(), operation)) {
+                        logger.debug("Dropped %s for %s, client is shut down.", operation, key);
+                    }
+                    break;
+                case ANY:
+                    if (!performRunOn(anyIntegrationExecutor, key, entry.getValue(), operation)) {
+                        performRun(key, entry.getValue(), operation);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return hasMainIntegrations;
     }
 
-    /** Runs the given operation on all integrations. */
-    void performRun(IntegrationOperation operation) {
+    /** Runs the given operation on {@link Integration.ThreadMode#MAIN} integrations. */
+    void performRun(final IntegrationOperation operation) {
         for (Map.Entry<String, Integration<?>> entry : integrations.entrySet()) {
             String key = entry.getKey();
-            long startTime = System.nanoTime();
-            operation.run(key, entry.getValue(), projectSettings);
-            long endTime = System.nanoTime();
-            long durationInMillis = TimeUnit.NANOSECONDS.toMillis(endTime - startTime);
-            stats.dispatchIntegrationOperation(key, durationInMillis);
-            logger.debug("Ran %s on integration %s in %d ns.", operation, key, endTime - startTime);
+            if (threadModes.get(key) == Integration.ThreadMode.MAIN) {
+                performRun(key, entry.getValue(), operation);
+            }
         }
     }
 
+    /** Returns false if {@code executor} is shut down, and didn't accept the operation. */
+    private boolean performRunOn(
+            ExecutorService executor,
+            final String key,
+            final Integration<?> integration,
+            final IntegrationOperation operation) {
+        try {
+            executor.submit(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            performRun(key, integration, operation);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void performRun(
+            String key, Integration<?> integration, IntegrationOperation operation) {
+        long startTime = System.nanoTime();
+        operation.run(key, integration, projectSettings);
+        long endTime = System.nanoTime();
+        stats.recordIntegrationOperation(key, endTime - startTime);
+        logger.debug("Ran %s on integration %s in %d ns.", operation, key, endTime - startTime);
+    }
+
     @Private
     <T> void performCallback(String key, Callback<T> callback) {
         for (Map.Entry<String, Integration<?>> entry : integrations.entrySet()) {
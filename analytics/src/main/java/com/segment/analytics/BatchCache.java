@@ -0,0 +1,302 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import static com.segment.analytics.internal.Utils.closeQuietly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the encoded body of the last batch that failed to upload on disk, so that a retry can send
+ * it as is, instead of reading, decrypting and compressing the same payloads again.
+ *
+ * <p>An entry is keyed by the elements it was built from, rather than by their position in the
+ * queue, since positions aren't kept across restarts. It's only used if the head of the queue
+ * still holds the same number of elements, with the same total size and the same first and last
+ * element, and none of them was evicted or expired since. Uploads on several threads look up and
+ * update the entry, so they take turns.
+ */
+class BatchCache {
+
+    private static final int VERSION = 1;
+    /** Anything larger than this can't be a batch, and is treated as corrupt. */
+    private static final int MAX_BODY_SIZE = 2 * SegmentIntegration.MAX_BATCH_SIZE;
+
+    private final File file;
+    private final Crypto crypto;
+    /** Whether the file may exist, to avoid touching the disk when there's nothing to clear. */
+    private boolean present;
+
+    BatchCache(File file, Crypto crypto) {
+        this.file = file;
+        this.crypto = crypto;
+        this.present = file.exists();
+    }
+
+    /** Returns the entry for the head of the given queue, or null if there is none. */
+    Entry get(PayloadQueue queue) throws IOException {
+        return get(queue, null, 0);
+    }
+
+    /**
+     * Same as {@link #get(PayloadQueue)}, but also returns null if any of the entry's elements
+     * were marked as evicted, or expired by {@code now} according to {@code evictionPolicy}.
+     * Those are left out of a batch, so the cached body would upload them after all.
+     */
+    synchronized Entry get(PayloadQueue queue, EvictionPolicy evictionPolicy, long now)
+            throws IOException {
+        if (!present) {
+            return null;
+        }
+        Entry entry;
+        try {
+            entry = read();
+        } catch (IOException e) {
+            clear();
+            return null;
+        }
+        if (entry == null
+                || !entry.range.equals(
+                        rangeAt(queue, entry.range.count, evictionPolicy, now))) {
+            return null;
+        }
+        return entry;
+    }
+
+    /** Saves the body of a batch built from the given range at the head of the queue. */
+    synchronized void put(Range range, BatchOutputStream.Prefix prefix) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(
+                    crypto.encrypt(new BufferedOutputStream(new FileOutputStream(tmp))));
+            out.writeInt(VERSION);
+            out.writeInt(range.count);
+            out.writeLong(range.dataLength);
+            out.writeInt(range.firstCrc);
+            out.writeInt(range.lastCrc);
+            out.writeBoolean(prefix.gzip);
+            out.writeInt(prefix.crc);
+            out.writeLong(prefix.length);
+            out.writeInt(prefix.body.length);
+            out.write(prefix.body);
+            out.writeInt(crc(prefix.body, prefix.body.length));
+            out.close();
+            out = null;
+            present = true;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        } finally {
+            closeQuietly(out);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /** Deletes the entry, if any. */
+    synchronized void clear() {
+        if (present) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            present = file.exists();
+        }
+    }
+
+    private Entry read() throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(
+                    crypto.decrypt(new BufferedInputStream(new FileInputStream(file))));
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown batch cache version.");
+            }
+            Range range = new Range(in.readInt(), in.readLong(), in.readInt(), in.readInt());
+            boolean gzip = in.readBoolean();
+            int prefixCrc = in.readInt();
+            long prefixLength = in.readLong();
+            int bodyLength = in.readInt();
+            if (range.count <= 0 || bodyLength < 0 || bodyLength > MAX_BODY_SIZE) {
+                throw new IOException("Corrupt batch cache.");
+            }
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            if (in.readInt() != crc(body, bodyLength)) {
+                throw new IOException("Corrupt batch cache.");
+            }
+            BatchOutputStream.Prefix prefix =
+                    new BatchOutputStream.Prefix(gzip, body, prefixCrc, prefixLength);
+            return new Entry(range, prefix);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Returns the range of the first {@code count} elements, or null if there are fewer, or if
+     * one of them would be left out of a batch.
+     */
+    private Range rangeAt(
+            PayloadQueue queue,
+            final int count,
+            final EvictionPolicy evictionPolicy,
+            final long now)
+            throws IOException {
+        if (queue.size() < count) {
+            return null;
+        }
+        final RangeBuilder builder = new RangeBuilder();
+        queue.forEach(
+                new PayloadQueue.ElementVisitor() {
+                    final RecordHeader header = new RecordHeader();
+
+                    @Override
+                    public boolean read(InputStream in, int length) throws IOException {
+                        InputStream payload = header.read(in, length);
+                        if ((header.flags & RecordHeader.FLAG_EVICTED) != 0
+                                || (evictionPolicy != null
+                                        && evictionPolicy.isExpired(header, now))) {
+                            // Stops short of the count.
+                            return false;
+                        }
+                        if (builder.count == 0 || builder.count == count - 1) {
+                            builder.add(crypto.decrypt(payload), header.payloadLength, length);
+                        } else {
+                            builder.add(length);
+                        }
+                        return builder.count < count;
+                    }
+                });
+        return builder.count == count ? builder.build() : null;
+    }
+
+    static int crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /** The elements at the head of the queue that a batch was built from. */
+    static final class Range {
+        final int count;
+        /** Total size of the elements, as stored in the queue. */
+        final long dataLength;
+        /** CRC32 of the first and the last payload. */
+        final int firstCrc;
+
+        final int lastCrc;
+
+        Range(int count, long dataLength, int firstCrc, int lastCrc) {
+            this.count = count;
+            this.dataLength = dataLength;
+            this.firstCrc = firstCrc;
+            this.lastCrc = lastCrc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Range)) {
+                return false;
+            }
+            Range other = (Range) o;
+            return count == other.count
+                    && dataLength == other.dataLength
+                    && firstCrc == other.firstCrc
+                    && lastCrc == other.lastCrc;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * count + (int) dataLength) + firstCrc) + lastCrc;
+        }
+    }
+
+    /** Computes a {@link Range} from the elements of a batch, in order. */
+    static final class RangeBuilder {
+        int count;
+        private long dataLength;
+        private int firstCrc;
+        private int lastCrc;
+        private byte[] data;
+
+        /** Adds an element whose payload, after its header, is checksummed. */
+        void add(InputStream payload, int payloadLength, int length) throws IOException {
+            if (data == null || data.length < payloadLength) {
+                data = new byte[payloadLength];
+            }
+            int read = 0;
+            while (read < payloadLength) {
+                int n = payload.read(data, read, payloadLength - read);
+                if (n == -1) break;
+                read += n;
+            }
+            add(data, read, length);
+        }
+
+        /** Adds an element whose payload was read already. */
+        void add(byte[] payload, int payloadLength, int length) {
+            int crc = crc(payload, payloadLength);
+            if (count == 0) {
+                firstCrc = crc;
+            }
+            lastCrc = crc;
+            add(length);
+        }
+
+        /** Adds an element that is neither the first nor the last, or see {@link #setLast}. */
+        void add(int length) {
+            dataLength += length;
+            count++;
+        }
+
+        /** Checksums the payload of the last element, if it was added without one. */
+        void setLast(byte[] payload, int payloadLength) {
+            lastCrc = crc(payload, payloadLength);
+        }
+
+        Range build() {
+            return new Range(count, dataLength, firstCrc, lastCrc);
+        }
+    }
+
+    /** A cached batch body, and the elements it holds. */
+    static final class Entry {
+        final Range range;
+        final BatchOutputStream.Prefix prefix;
+
+        Entry(Range range, BatchOutputStream.Prefix prefix) {
+            this.range = range;
+            this.prefix = prefix;
+        }
+    }
+}
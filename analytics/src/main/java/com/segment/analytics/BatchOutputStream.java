@@ -0,0 +1,374 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The body of an upload request, gzipped unless the connection factory opted out of it.
+ *
+ * <p>Everything written between {@link #beginPrefix()} and {@link #endPrefix()} is compressed into
+ * a {@link Prefix} that ends on a block boundary, so it can be written to another request with
+ * {@link #writePrefix(Prefix)} and followed by a different ending, without compressing it again.
+ * The result is a single valid gzip member either way.
+ *
+ * <p>Payloads compressed ahead of time by {@link PayloadDeflater} are spliced into a gzipped body
+ * with {@link #writeDeflated}, without compressing them again. Small writes between them, such as
+ * the commas, are stored as they are rather than compressed, since the compressor would have to be
+ * reset first so nothing it writes refers back into data it hasn't seen.
+ */
+class BatchOutputStream extends FilterOutputStream {
+
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final int[] CRC_TABLE = new int[256];
+    /** Writes between spliced payloads up to this size are stored uncompressed. */
+    private static final int MAX_STORED_WRITE = 64;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xedb88320 ^ (c >>> 1) : c >>> 1;
+            }
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    final boolean gzip;
+    private final Deflater deflater;
+    private final byte[] buffer = new byte[8192];
+    private final CRC32 crc = new CRC32();
+    /**
+     * The checksum when resuming from a prefix. {@link CRC32} can't be seeded with an earlier
+     * value, so the few bytes after the prefix are checksummed by hand.
+     */
+    private int resumedCrc;
+
+    private boolean resumed;
+    /** Whether the deflater has input that hasn't been flushed to the output. */
+    private boolean deflaterPending;
+    /** Whether data was spliced in since the deflater was last reset. */
+    private boolean spliced;
+    private boolean started;
+    private boolean finished;
+    private long length;
+    private long bytesWritten;
+    private ByteArrayOutputStream prefix;
+
+    BatchOutputStream(OutputStream out, boolean gzip) {
+        super(out);
+        this.gzip = gzip;
+        this.deflater = gzip ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+    }
+
+    /** Starts recording the output. Must be called before anything is written. */
+    void beginPrefix() {
+        if (started) {
+            throw new IllegalStateException("Prefix must begin before anything is written.");
+        }
+        prefix = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Flushes the compressor and returns everything written since {@link #beginPrefix()}. Requires
+     * API 19, for {@link Deflater#SYNC_FLUSH}.
+     */
+    Prefix endPrefix() throws IOException {
+        if (prefix == null) {
+            throw new IllegalStateException("No prefix was begun.");
+        }
+        start();
+        if (gzip && deflaterPending) {
+            deflate(Deflater.SYNC_FLUSH);
+            deflaterPending = false;
+        }
+        Prefix result = new Prefix(gzip, prefix.toByteArray(), checksum(), length);
+        prefix = null;
+        return result;
+    }
+
+    /** Writes a prefix recorded by another stream. Must be called before anything is written. */
+    void writePrefix(Prefix prefix) throws IOException {
+        if (started) {
+            throw new IllegalStateException("Prefix must be written before anything else.");
+        }
+        if (prefix.gzip != gzip) {
+            throw new IllegalArgumentException("Prefix was recorded with another encoding.");
+        }
+        started = true;
+        out.write(prefix.body);
+        bytesWritten += prefix.body.length;
+        resumed = true;
+        resumedCrc = prefix.crc;
+        length = prefix.length;
+    }
+
+    /**
+     * Writes raw deflate blocks that end on a byte boundary, compressed from {@code
+     * uncompressedLength} bytes with the given CRC32, as if those bytes had been written. Requires
+     * a gzipped body and API 19, for {@link Deflater#SYNC_FLUSH}.
+     */
+    void writeDeflated(byte[] b, int off, int len, int crc, int uncompressedLength)
+            throws IOException {
+        if (!gzip) {
+            throw new IllegalStateException("Body isn't gzipped.");
+        }
+        if (finished) {
+            throw new IOException("Stream is closed.");
+        }
+        start();
+        if (deflaterPending) {
+            // End what was compressed so far on a byte boundary, so the blocks can follow.
+            deflate(Deflater.SYNC_FLUSH);
+            deflaterPending = false;
+        }
+        emit(b, off, len);
+        spliced = true;
+        resumedCrc = combineCrc(checksum(), crc, uncompressedLength);
+        resumed = true;
+        length += uncompressedLength;
+    }
+
+    /** Number of bytes written to the underlying stream so far, after compression. */
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream is closed.");
+        }
+        start();
+        if (resumed) {
+            resumedCrc = updateCrc(resumedCrc, b, off, len);
+        } else {
+            crc.update(b, off, len);
+        }
+        length += len;
+        if (spliced && len <= MAX_STORED_WRITE) {
+            writeStored(b, off, len);
+        } else if (gzip) {
+            resetIfSpliced();
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            deflaterPending = true;
+        } else {
+            emit(b, off, len);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            start();
+            if (gzip) {
+                resetIfSpliced();
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                int checksum = checksum();
+                byte[] trailer = new byte[8];
+                writeIntLE(trailer, 0, checksum);
+                writeIntLE(trailer, 4, (int) length);
+                out.write(trailer);
+                bytesWritten += trailer.length;
+            }
+            finished = true;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Releases the compressor without finishing the body, for a request that is dropped. Nothing
+     * more is written to the underlying stream.
+     */
+    void abandon() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            if (gzip) {
+                emit(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+        }
+    }
+
+    /** Makes sure nothing the deflater writes next refers back to bytes it hasn't seen. */
+    private void resetIfSpliced() {
+        if (spliced) {
+            deflater.reset();
+            spliced = false;
+        }
+    }
+
+    /** Writes a stored deflate block, which must start on a byte boundary. */
+    private void writeStored(byte[] b, int off, int len) throws IOException {
+        byte[] header = {
+            0, // Not the final block, stored.
+            (byte) len,
+            (byte) (len >> 8),
+            (byte) ~len,
+            (byte) (~len >> 8)
+        };
+        emit(header, 0, header.length);
+        emit(b, off, len);
+    }
+
+    private void deflate(int flush) throws IOException {
+        int count;
+        do {
+            count = flush == Deflater.NO_FLUSH
+                    ? deflater.deflate(buffer, 0, buffer.length)
+                    : deflater.deflate(buffer, 0, buffer.length, flush);
+            if (count > 0) {
+                emit(buffer, 0, count);
+            }
+        } while (count == buffer.length);
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesWritten += len;
+        if (prefix != null) {
+            prefix.write(b, off, len);
+        }
+    }
+
+    private int checksum() {
+        return resumed ? resumedCrc : (int) crc.getValue();
+    }
+
+    static int updateCrc(int crc, byte[] b, int off, int len) {
+        int c = ~crc;
+        for (int i = off; i < off + len; i++) {
+            c = CRC_TABLE[(c ^ b[i]) & 0xff] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+
+    /**
+     * Returns the CRC32 of two runs of bytes, given the CRC32 of each and the length of the second,
+     * like zlib's {@code crc32_combine}. Appending {@code length2} zero bytes to the first CRC
+     * multiplies it by x^(8 * length2) modulo the polynomial, which takes one multiplication per
+     * bit of the length with {@link #X2N_TABLE}.
+     */
+    static int combineCrc(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        // x^0, with bits reflected like the CRC.
+        int p = 1 << 31;
+        // Starts at x^8, for a byte.
+        for (int k = 3; length2 != 0; length2 >>= 1, k++) {
+            if ((length2 & 1) != 0) {
+                p = multiplyModP(X2N_TABLE[k & 31], p);
+            }
+        }
+        return multiplyModP(p, crc1) ^ crc2;
+    }
+
+    private static final int POLYNOMIAL = 0xedb88320;
+    /** x^(2^n) modulo the polynomial, for n from 0 to 31. */
+    private static final int[] X2N_TABLE = new int[32];
+
+    static {
+        int p = 1 << 30; // x^1
+        X2N_TABLE[0] = p;
+        for (int n = 1; n < 32; n++) {
+            X2N_TABLE[n] = p = multiplyModP(p, p);
+        }
+    }
+
+    /** Multiplies two polynomials modulo the CRC polynomial, with bits reflected. */
+    private static int multiplyModP(int a, int b) {
+        int m = 1 << 31;
+        int p = 0;
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0) {
+                    return p;
+                }
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+        }
+    }
+
+    private static void writeIntLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    /** The encoded start of a body, along with what's needed to finish it. */
+    static final class Prefix {
+        final boolean gzip;
+        /** The encoded bytes, including the gzip header. */
+        final byte[] body;
+        /** CRC32 of the uncompressed bytes. */
+        final int crc;
+        /** Number of uncompressed bytes. */
+        final long length;
+
+        Prefix(boolean gzip, byte[] body, int crc, long length) {
+            this.gzip = gzip;
+            this.body = body;
+            this.crc = crc;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,721 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A compact binary form of the JSON payloads kept in the disk queue. Common keys and strings are
+ * replaced with a byte from a dictionary, integers are stored as varints, and timestamps and UUIDs
+ * are packed. Separators are implied by the structure, and strings are kept exactly as they were
+ * escaped, so decoding gives back the original JSON byte for byte.
+ *
+ * <pre>
+ *   Format, a tag byte per token:
+ *     0x00 '{', 0x01 '}', 0x02 '[', 0x03 ']', 0x04 true, 0x05 false, 0x06 null
+ *     0x07 Integer    (zigzag varint)
+ *     0x08 Number     (varint length, then its text)
+ *     0x09 String     (varint length, then its escaped UTF-8 bytes, without quotes)
+ *     0x0A Key        (same as a string)
+ *     0x0B Timestamp  (1 byte fraction digits, varint yyyyMMddhhmmss, varint fraction)
+ *     0x0C UUID       (16 bytes)
+ *     0x40 + i        key i of the dictionary
+ *     0x80 + i        string i of the dictionary
+ * </pre>
+ *
+ * Only compact JSON is encoded, as written by {@link JsonEncoder}. {@link #encode} refuses anything
+ * it couldn't give back exactly, and the payload is queued as JSON instead.
+ *
+ * <p>Instances are not thread safe, and are meant to be reused by a single thread.
+ */
+class BinaryJson {
+
+    /**
+     * Decoded payloads are at most this many times larger than their encoding. Payloads that would
+     * expand more are queued as JSON.
+     */
+    static final int MAX_EXPANSION = 6;
+
+    private static final int OBJECT_START = 0x00;
+    private static final int OBJECT_END = 0x01;
+    private static final int ARRAY_START = 0x02;
+    private static final int ARRAY_END = 0x03;
+    private static final int TRUE = 0x04;
+    private static final int FALSE = 0x05;
+    private static final int NULL = 0x06;
+    private static final int INTEGER = 0x07;
+    private static final int NUMBER = 0x08;
+    private static final int STRING = 0x09;
+    private static final int KEY = 0x0A;
+    private static final int TIMESTAMP = 0x0B;
+    private static final int UUID = 0x0C;
+    private static final int DICTIONARY_KEY = 0x40;
+    private static final int DICTIONARY_STRING = 0x80;
+
+    /**
+     * Keys and strings that most payloads have. Entries are only ever appended, since queued
+     * payloads refer to them by index.
+     */
+    private static final String[] DICTIONARY = {
+        "anonymousId",
+        "messageId",
+        "timestamp",
+        "type",
+        "event",
+        "properties",
+        "context",
+        "integrations",
+        "userId",
+        "traits",
+        "name",
+        "version",
+        "channel",
+        "previousId",
+        "groupId",
+        "category",
+        "app",
+        "device",
+        "library",
+        "locale",
+        "os",
+        "screen",
+        "timezone",
+        "userAgent",
+        "network",
+        "id",
+        "manufacturer",
+        "model",
+        "build",
+        "namespace",
+        "density",
+        "width",
+        "height",
+        "ip",
+        "carrier",
+        "wifi",
+        "cellular",
+        "bluetooth",
+        "advertisingId",
+        "adTrackingEnabled",
+        "referrer",
+        "campaign",
+        "instanceId",
+        "revenue",
+        "currency",
+        "value",
+        "email",
+        "All",
+        "mobile",
+        "track",
+        "identify",
+        "group",
+        "alias",
+        "Android",
+        "analytics-android",
+        "product_id",
+        "price",
+        "quantity",
+    };
+
+    /** The dictionary as UTF-8, indexed by length to find entries quickly. */
+    private static final byte[][] ENTRIES = new byte[DICTIONARY.length][];
+
+    private static final int[][] ENTRIES_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            ENTRIES[i] = DICTIONARY[i].getBytes(SegmentIntegration.UTF_8);
+            maxLength = Math.max(maxLength, ENTRIES[i].length);
+        }
+        ENTRIES_BY_LENGTH = new int[maxLength + 1][];
+        for (int i = 0; i < ENTRIES.length; i++) {
+            int length = ENTRIES[i].length;
+            int[] bucket = ENTRIES_BY_LENGTH[length];
+            bucket = bucket == null ? new int[1] : Arrays.copyOf(bucket, bucket.length + 1);
+            bucket[bucket.length - 1] = i;
+            ENTRIES_BY_LENGTH[length] = bucket;
+        }
+    }
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private static final byte[] TRUE_TEXT = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE_TEXT = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL_TEXT = {'n', 'u', 'l', 'l'};
+
+    private static final int EXPECT_VALUE = 0;
+    private static final int EXPECT_KEY = 1;
+    private static final int EXPECT_COLON = 2;
+    private static final int EXPECT_COMMA = 3;
+
+    private byte[] buffer;
+    private int size;
+    /** Whether each open container is an object, as opposed to an array. */
+    private boolean[] objects = new boolean[16];
+    /** Where the varint read last ended. */
+    private int varintEnd;
+
+    BinaryJson() {
+        this(1024);
+    }
+
+    BinaryJson(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /** Number of bytes encoded or decoded by the last call. */
+    int size() {
+        return size;
+    }
+
+    /** Copies the result of the last call into {@code dest}, starting at {@code offset}. */
+    void writeTo(byte[] dest, int offset) {
+        System.arraycopy(buffer, 0, dest, offset, size);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /** The result of the last call, in the first {@link #size} bytes. */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Encodes the given JSON, which decodes back to the same bytes.
+     *
+     * @return false if the JSON isn't compact, or wouldn't save enough to be worth it
+     */
+    boolean encode(byte[] json, int offset, int length) {
+        size = 0;
+        int depth = 0;
+        int state = EXPECT_VALUE;
+        // Whether the container that was just opened can be closed.
+        boolean empty = false;
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            byte c = json[i];
+            switch (state) {
+                case EXPECT_COLON:
+                    if (c != ':') {
+                        return false;
+                    }
+                    state = EXPECT_VALUE;
+                    i++;
+                    continue;
+                case EXPECT_COMMA:
+                    if (c == ',' && depth > 0) {
+                        state = objects[depth - 1] ? EXPECT_KEY : EXPECT_VALUE;
+                        empty = false;
+                        i++;
+                    } else if ((c == '}' || c == ']') && depth > 0) {
+                        if (objects[--depth] != (c == '}')) {
+                            return false;
+                        }
+                        writeByte(c == '}' ? OBJECT_END : ARRAY_END);
+                        i++;
+                    } else {
+                        return false;
+                    }
+                    continue;
+                case EXPECT_KEY:
+                    if (c == '}' && empty) {
+                        depth--;
+                        writeByte(OBJECT_END);
+                        state = EXPECT_COMMA;
+                        i++;
+                    } else if (c == '"') {
+                        i = writeString(json, i, end, true);
+                        state = EXPECT_COLON;
+                    } else {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (c == ']' && empty) {
+                        depth--;
+                        writeByte(ARRAY_END);
+                        state = EXPECT_COMMA;
+                        i++;
+                        break;
+                    }
+                    if (c == '{' || c == '[') {
+                        if (depth == objects.length) {
+                            objects = Arrays.copyOf(objects, depth * 2);
+                        }
+                        objects[depth++] = c == '{';
+                        writeByte(c == '{' ? OBJECT_START : ARRAY_START);
+                        state = c == '{' ? EXPECT_KEY : EXPECT_VALUE;
+                        empty = true;
+                        i++;
+                        continue;
+                    }
+                    if (c == '"') {
+                        i = writeString(json, i, end, false);
+                    } else if (c == 't') {
+                        i = writeLiteral(json, i, end, TRUE_TEXT, TRUE);
+                    } else if (c == 'f') {
+                        i = writeLiteral(json, i, end, FALSE_TEXT, FALSE);
+                    } else if (c == 'n') {
+                        i = writeLiteral(json, i, end, NULL_TEXT, NULL);
+                    } else {
+                        i = writeNumber(json, i, end);
+                    }
+                    state = EXPECT_COMMA;
+                    break;
+            }
+            if (i < 0) {
+                return false;
+            }
+            empty = false;
+        }
+        return depth == 0 && state == EXPECT_COMMA && size * MAX_EXPANSION >= length;
+    }
+
+    /**
+     * Decodes a payload that was encoded by {@link #encode}.
+     *
+     * @throws IOException if the data isn't a valid encoding
+     */
+    void decode(byte[] data, int offset, int length) throws IOException {
+        size = 0;
+        // Whether a comma goes before the next key or value.
+        boolean afterValue = false;
+        int depth = 0;
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int tag = data[i++] & 0xff;
+            if (tag == OBJECT_END || tag == ARRAY_END) {
+                if (depth-- == 0) {
+                    throw corrupt();
+                }
+                writeByte(tag == OBJECT_END ? '}' : ']');
+                afterValue = true;
+                continue;
+            }
+            if (afterValue) {
+                writeByte(',');
+            }
+            afterValue = true;
+            if (tag >= DICTIONARY_STRING) {
+                writeQuoted(entry(tag - DICTIONARY_STRING));
+            } else if (tag >= DICTIONARY_KEY) {
+                writeQuoted(entry(tag - DICTIONARY_KEY));
+                writeByte(':');
+                afterValue = false;
+            } else {
+                switch (tag) {
+                    case OBJECT_START:
+                        writeByte('{');
+                        afterValue = false;
+                        depth++;
+                        break;
+                    case ARRAY_START:
+                        writeByte('[');
+                        afterValue = false;
+                        depth++;
+                        break;
+                    case TRUE:
+                        writeBytes(TRUE_TEXT, 0, TRUE_TEXT.length);
+                        break;
+                    case FALSE:
+                        writeBytes(FALSE_TEXT, 0, FALSE_TEXT.length);
+                        break;
+                    case NULL:
+                        writeBytes(NULL_TEXT, 0, NULL_TEXT.length);
+                        break;
+                    case INTEGER:
+                        long zigzag = readVarint(data, i, end);
+                        i = varintEnd;
+                        writeLong((zigzag >>> 1) ^ -(zigzag & 1));
+                        break;
+                    case NUMBER:
+                    case STRING:
+                    case KEY:
+                        long count = readVarint(data, i, end);
+                        i = varintEnd;
+                        if (count > end - i) {
+                            throw corrupt();
+                        }
+                        if (tag != NUMBER) {
+                            writeByte('"');
+                        }
+                        writeBytes(data, i, (int) count);
+                        i += (int) count;
+                        if (tag != NUMBER) {
+                            writeByte('"');
+                        }
+                        if (tag == KEY) {
+                            writeByte(':');
+                            afterValue = false;
+                        }
+                        break;
+                    case TIMESTAMP:
+                        i = decodeTimestamp(data, i, end);
+                        break;
+                    case UUID:
+                        i = decodeUuid(data, i, end);
+                        break;
+                    default:
+                        throw corrupt();
+                }
+            }
+        }
+        // Cut off, or ends with a key.
+        if (depth != 0 || !afterValue) {
+            throw corrupt();
+        }
+    }
+
+    /** Writes the string starting with the quote at {@code i}, returns where it ends, or -1. */
+    private int writeString(byte[] json, int i, int end, boolean key) {
+        int start = i + 1;
+        int j = start;
+        while (j < end && json[j] != '"') {
+            j += json[j] == '\\' ? 2 : 1;
+        }
+        if (j >= end) {
+            return -1;
+        }
+        int length = j - start;
+        int entry = findEntry(json, start, length);
+        if (entry >= 0) {
+            writeByte((key ? DICTIONARY_KEY : DICTIONARY_STRING) + entry);
+        } else if (key
+                || !(encodeTimestamp(json, start, length) || encodeUuid(json, start, length))) {
+            writeByte(key ? KEY : STRING);
+            writeVarint(length);
+            writeBytes(json, start, length);
+        }
+        return j + 1;
+    }
+
+    private int writeLiteral(byte[] json, int i, int end, byte[] text, int tag) {
+        if (end - i < text.length) {
+            return -1;
+        }
+        for (int k = 0; k < text.length; k++) {
+            if (json[i + k] != text[k]) {
+                return -1;
+            }
+        }
+        writeByte(tag);
+        return i + text.length;
+    }
+
+    /**
+     * Writes the number starting at {@code i}. Integers written the way {@link Long#toString}
+     * does are stored as varints, anything else as its text.
+     */
+    private int writeNumber(byte[] json, int i, int end) {
+        int j = i;
+        while (j < end && isNumberChar(json[j])) {
+            j++;
+        }
+        int length = j - i;
+        if (length == 0) {
+            return -1;
+        }
+        boolean negative = json[i] == '-';
+        int digits = negative ? length - 1 : length;
+        boolean integer = digits > 0 && digits <= 18;
+        long value = 0;
+        for (int k = negative ? i + 1 : i; k < j && integer; k++) {
+            int digit = json[k] - '0';
+            integer = digit >= 0 && digit <= 9;
+            value = value * 10 + digit;
+        }
+        // "0" is the only integer allowed to start with a zero, and "-0" isn't one.
+        int first = negative ? i + 1 : i;
+        if (integer && (json[first] != '0' || (digits == 1 && !negative))) {
+            long signed = negative ? -value : value;
+            writeByte(INTEGER);
+            writeVarint((signed << 1) ^ (signed >> 63));
+        } else {
+            writeByte(NUMBER);
+            writeVarint(length);
+            writeBytes(json, i, length);
+        }
+        return j;
+    }
+
+    private static boolean isNumberChar(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private static int findEntry(byte[] json, int start, int length) {
+        if (length >= ENTRIES_BY_LENGTH.length || ENTRIES_BY_LENGTH[length] == null) {
+            return -1;
+        }
+        for (int index : ENTRIES_BY_LENGTH[length]) {
+            byte[] entry = ENTRIES[index];
+            int k = 0;
+            while (k < length && json[start + k] == entry[k]) {
+                k++;
+            }
+            if (k == length) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] entry(int index) throws IOException {
+        if (index >= ENTRIES.length) {
+            throw corrupt();
+        }
+        return ENTRIES[index];
+    }
+
+    /** Packs a timestamp formatted as yyyy-MM-ddThh:mm:ss.fffZ, with 1 to 9 fraction digits. */
+    private boolean encodeTimestamp(byte[] json, int start, int length) {
+        int fractionDigits = length - 21;
+        if (fractionDigits < 1 || fractionDigits > 9 || json[start + length - 1] != 'Z') {
+            return false;
+        }
+        long dateTime = 0;
+        for (int k = 0; k < 19; k++) {
+            byte c = json[start + k];
+            byte separator = separatorAt(k);
+            if (separator != 0) {
+                if (c != separator) {
+                    return false;
+                }
+            } else if (c >= '0' && c <= '9') {
+                dateTime = dateTime * 10 + (c - '0');
+            } else {
+                return false;
+            }
+        }
+        if (json[start + 19] != '.') {
+            return false;
+        }
+        long fraction = 0;
+        for (int k = 20; k < 20 + fractionDigits; k++) {
+            byte c = json[start + k];
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            fraction = fraction * 10 + (c - '0');
+        }
+        writeByte(TIMESTAMP);
+        writeByte(fractionDigits);
+        writeVarint(dateTime);
+        writeVarint(fraction);
+        return true;
+    }
+
+    private int decodeTimestamp(byte[] data, int i, int end) throws IOException {
+        if (i >= end) {
+            throw corrupt();
+        }
+        int fractionDigits = data[i++];
+        if (fractionDigits < 1 || fractionDigits > 9) {
+            throw corrupt();
+        }
+        long dateTime = readVarint(data, i, end);
+        long fraction = readVarint(data, varintEnd, end);
+        i = varintEnd;
+        long fractionLimit = 1;
+        for (int k = 0; k < fractionDigits; k++) {
+            fractionLimit *= 10;
+        }
+        if (dateTime >= 100000000000000L || fraction >= fractionLimit) {
+            throw corrupt();
+        }
+        ensureCapacity(23 + fractionDigits);
+        byte[] b = buffer;
+        b[size++] = '"';
+        for (int k = 18; k >= 0; k--) {
+            byte separator = separatorAt(k);
+            if (separator != 0) {
+                b[size + k] = separator;
+            } else {
+                b[size + k] = (byte) ('0' + dateTime % 10);
+                dateTime /= 10;
+            }
+        }
+        size += 19;
+        b[size++] = '.';
+        for (int k = fractionDigits - 1; k >= 0; k--) {
+            b[size + k] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        size += fractionDigits;
+        b[size++] = 'Z';
+        b[size++] = '"';
+        return i;
+    }
+
+    /** The separator at position {@code k} of yyyy-MM-ddThh:mm:ss, or 0 for a digit. */
+    private static byte separatorAt(int k) {
+        switch (k) {
+            case 4:
+            case 7:
+                return '-';
+            case 10:
+                return 'T';
+            case 13:
+            case 16:
+                return ':';
+            default:
+                return 0;
+        }
+    }
+
+    /** Packs a UUID in lower case, as {@link java.util.UUID#toString} writes it. */
+    private boolean encodeUuid(byte[] json, int start, int length) {
+        if (length != 36) {
+            return false;
+        }
+        for (int k = 0; k < 36; k++) {
+            byte c = json[start + k];
+            if (k == 8 || k == 13 || k == 18 || k == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (hexValue(c) < 0) {
+                return false;
+            }
+        }
+        writeByte(UUID);
+        ensureCapacity(16);
+        int k = start;
+        for (int n = 0; n < 16; n++) {
+            if (json[k] == '-') {
+                k++;
+            }
+            buffer[size++] = (byte) ((hexValue(json[k]) << 4) | hexValue(json[k + 1]));
+            k += 2;
+        }
+        return true;
+    }
+
+    private int decodeUuid(byte[] data, int i, int end) throws IOException {
+        if (end - i < 16) {
+            throw corrupt();
+        }
+        ensureCapacity(38);
+        buffer[size++] = '"';
+        for (int n = 0; n < 16; n++) {
+            if (n == 4 || n == 6 || n == 8 || n == 10) {
+                buffer[size++] = '-';
+            }
+            int b = data[i++];
+            buffer[size++] = HEX[(b >> 4) & 0xf];
+            buffer[size++] = HEX[b & 0xf];
+        }
+        buffer[size++] = '"';
+        return i;
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private long readVarint(byte[] data, int i, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (i >= end) {
+                throw corrupt();
+            }
+            byte b = data[i++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                varintEnd = i;
+                return value;
+            }
+        }
+        throw corrupt();
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        for (int k = digits - 1; k >= 0; k--) {
+            buffer[size + k] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void writeQuoted(byte[] bytes) {
+        ensureCapacity(bytes.length + 2);
+        buffer[size++] = '"';
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        buffer[size++] = '"';
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int count) {
+        if (size + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+        }
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt binary payload.");
+    }
+}
@@ -122,6 +122,48 @@ public class Cartographer {
         }
     }
 
+    /**
+     * Serializes a payload into the given encoder, with its integrations overridden by {@code
+     * integrations} and without {@code excludedIntegration}. Same as serializing a copy of the
+     * payload with the integrations merged, without making the copies.
+     */
+    void toJson(
+            Map<?, ?> payload,
+            Map<String, ?> integrations,
+            String excludedIntegration,
+            JsonEncoder encoder)
+            throws IOException {
+        toJson(payload, integrations, excludedIntegration, null, encoder);
+    }
+
+    /**
+     * Same as {@link #toJson(Map, Map, String, JsonEncoder)}, but leaves out {@code omittedKey}.
+     */
+    void toJson(
+            Map<?, ?> payload,
+            Map<String, ?> integrations,
+            String excludedIntegration,
+            String omittedKey,
+            JsonEncoder encoder)
+            throws IOException {
+        if (!prettyPrint) {
+            encoder.encodePayload(payload, integrations, excludedIntegration, omittedKey);
+            return;
+        }
+        // The encoder only writes compact json.
+        Object provided = payload.get("integrations");
+        Map<Object, Object> merged = new LinkedHashMap<>();
+        if (provided instanceof Map) {
+            merged.putAll((Map<?, ?>) provided);
+        }
+        merged.putAll(integrations);
+        merged.remove(excludedIntegration);
+        Map<Object, Object> copy = new LinkedHashMap<Object, Object>(payload);
+        copy.put("integrations", merged);
+        copy.remove(omittedKey);
+        encoder.writeRaw(toJson(copy));
+    }
+
     // Decoding
 
     /** Reads the {@link JsonReader} into a {@link Map}. */
@@ -33,7 +33,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.util.zip.GZIPOutputStream;
 
 /** HTTP client which can upload payloads and fetch project settings from the Segment public API. */
 class Client {
@@ -46,11 +45,8 @@ class Client {
         final OutputStream outputStream;
         // Clients may have opted out of gzip compression via a custom connection factory.
         String contentEncoding = connection.getRequestProperty("Content-Encoding");
-        if (TextUtils.equals("gzip", contentEncoding)) {
-            outputStream = new GZIPOutputStream(connection.getOutputStream());
-        } else {
-            outputStream = connection.getOutputStream();
-        }
+        boolean gzip = TextUtils.equals("gzip", contentEncoding);
+        outputStream = new BatchOutputStream(connection.getOutputStream(), gzip);
         return new Connection(connection, null, outputStream) {
             @Override
             public void close() throws IOException {
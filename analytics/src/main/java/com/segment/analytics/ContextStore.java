@@ -0,0 +1,221 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import static com.segment.analytics.internal.Utils.closeQuietly;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the encoded {@code context} of queued payloads once per distinct value, so that payloads
+ * can be queued without it. The context is mostly the same for thousands of events, and is often
+ * the largest part of them.
+ *
+ * <p>Contexts are content-addressed, by the first 8 bytes of the SHA-1 of their JSON. Each is kept
+ * in its own file, encrypted like the payloads, and written to storage before any payload that
+ * refers to it is queued. Contexts that no queued payload refers to anymore are deleted by {@link
+ * #retainLast} and {@link #retainOnly}.
+ *
+ * <p>{@link #put} and the retain methods are only called from the dispatcher thread. {@link #get}
+ * is called by uploads, so all methods are synchronized.
+ */
+class ContextStore {
+
+    private static final int VERSION = 1;
+    /** Number of decoded contexts kept in memory for uploads. */
+    private static final int CACHE_SIZE = 8;
+
+    private final File directory;
+    private final Crypto crypto;
+    private final MessageDigest digest;
+
+    private final Map<Long, byte[]> cache =
+            new LinkedHashMap<Long, byte[]>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    /** The context stored last, to skip hashing it again for every event. */
+    private byte[] lastContext;
+
+    private long lastId;
+
+    ContextStore(File directory, Crypto crypto) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+        this.crypto = crypto;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Stores the context encoded in {@code encoder}, unless it is stored already.
+     *
+     * @return the id to look the context up with, never {@code 0}.
+     */
+    synchronized long put(JsonEncoder encoder) throws IOException {
+        if (lastContext != null && encoder.contentEquals(lastContext)) {
+            return lastId;
+        }
+        byte[] context = encoder.toByteArray();
+        byte[] hash = digest.digest(context);
+        long id = 0;
+        for (int i = 0; i < 8; i++) {
+            id = (id << 8) | (hash[i] & 0xff);
+        }
+        if (id == 0) {
+            id = 1;
+        }
+        File file = file(id);
+        if (!file.exists()) {
+            write(file, context);
+        }
+        cache.put(id, context);
+        lastContext = context;
+        lastId = id;
+        return id;
+    }
+
+    /** Returns the JSON of the context with the given id. */
+    synchronized byte[] get(long id) throws IOException {
+        byte[] context = cache.get(id);
+        if (context == null) {
+            context = read(file(id));
+            cache.put(id, context);
+        }
+        return context;
+    }
+
+    /** Deletes every context except the one stored last, once no queued payload refers to them. */
+    synchronized void retainLast() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        String last = lastContext == null ? null : name(lastId);
+        for (File file : files) {
+            if (!file.getName().equals(last)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        cache.keySet().retainAll(Collections.singleton(lastId));
+    }
+
+    /** Deletes every context that isn't one of the given ids. */
+    synchronized void retainOnly(Set<Long> ids) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> names = new HashSet<>(ids.size());
+        for (long id : ids) {
+            names.add(name(id));
+        }
+        for (File file : files) {
+            // Also deletes temporary files left over from an interrupted write.
+            if (!names.contains(file.getName())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        cache.keySet().retainAll(ids);
+        if (!ids.contains(lastId)) {
+            lastContext = null;
+            lastId = 0;
+        }
+    }
+
+    private File file(long id) {
+        return new File(directory, name(id));
+    }
+
+    private static String name(long id) {
+        return Long.toHexString(id);
+    }
+
+    /** Writes a context to storage before returning, so payloads can safely refer to it. */
+    private void write(File file, byte[] context) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(context.length + 16);
+        DataOutputStream out = new DataOutputStream(crypto.encrypt(bytes));
+        out.writeInt(VERSION);
+        out.writeInt(context.length);
+        out.write(context);
+        out.writeInt(BatchCache.crc(context, context.length));
+        out.close();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+
+    private byte[] read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(crypto.decrypt(new FileInputStream(file)));
+            int length = in.readInt() == VERSION ? in.readInt() : -1;
+            if (length < 0 || length > SegmentIntegration.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Corrupt context " + file);
+            }
+            byte[] context = new byte[length];
+            in.readFully(context);
+            if (in.readInt() != BatchCache.crc(context, length)) {
+                throw new IOException("Corrupt context " + file);
+            }
+            return context;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+}
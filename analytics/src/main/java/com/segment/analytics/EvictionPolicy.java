@@ -0,0 +1,343 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.integrations.BasePayload;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which events are dropped when the disk queue is full.
+ *
+ * <p>The queue holds up to 1000 events, and optionally up to
+ * {@link #maxQueueBytes(int)} bytes of them. When an event is queued past either limit, older
+ * events are evicted to make room for it, or the new event is dropped. By default the oldest
+ * events are evicted ({@link #oldestFirst()}). Decisions are made from metadata stored with each
+ * event, so events never have to be read, decrypted or parsed to decide.
+ *
+ * <p>Events are ranked by their priority, and then by their type: {@code identify}, {@code group}
+ * and {@code alias} events are worth more than {@code track} and {@code screen} events, and track
+ * events named by {@link #lowValue(String...)} are worth the least.
+ *
+ * <p>Evicted events that aren't at the head of the queue are marked as evicted where they are, and
+ * left out of uploads. They still take up space until the events before them are uploaded. If that
+ * makes the queue twice as large as its limits, the oldest events are removed regardless of the
+ * policy.
+ *
+ * <p>Events can also be given a maximum age, see {@link #expireAfter(long, TimeUnit)}. Events
+ * older than that are dropped instead of being uploaded, whether or not the queue is full.
+ */
+public final class EvictionPolicy {
+
+    enum Strategy {
+        OLDEST_FIRST,
+        LOWEST_VALUE_FIRST,
+        SAMPLED
+    }
+
+    /** Events ranked below {@link #VALUE_NORMAL}, see {@link #lowValue(String...)}. */
+    static final int VALUE_LOW = 0;
+
+    static final int VALUE_NORMAL = 1;
+    /** Events that describe the user, rather than something they did. */
+    static final int VALUE_HIGH = 2;
+
+    private static final EvictionPolicy OLDEST_FIRST =
+            new EvictionPolicy(
+                    Strategy.OLDEST_FIRST,
+                    0,
+                    Collections.<Integer, Integer>emptyMap(),
+                    Collections.<Integer>emptySet(),
+                    0,
+                    new long[0]);
+
+    final Strategy strategy;
+    /** Limit on the bytes stored in the queue, or {@code 0} if only the number of events is. */
+    final int maxQueueBytes;
+    /** Most events queued at once by {@link String#hashCode} of the event name. */
+    final Map<Integer, Integer> quotas;
+    /** {@link String#hashCode} of the names of low value events. */
+    final Set<Integer> lowValueEvents;
+    /** Age in milliseconds past which events expire, or {@code 0} if they don't. */
+    final long maxAgeMillis;
+    /**
+     * Maximum age in milliseconds by {@link RecordHeader#typeCode}, or {@code 0} where {@link
+     * #maxAgeMillis} applies. Never modified once the policy is created.
+     */
+    final long[] maxAgeMillisByType;
+
+    private EvictionPolicy(
+            Strategy strategy,
+            int maxQueueBytes,
+            Map<Integer, Integer> quotas,
+            Set<Integer> lowValueEvents,
+            long maxAgeMillis,
+            long[] maxAgeMillisByType) {
+        this.strategy = strategy;
+        this.maxQueueBytes = maxQueueBytes;
+        this.quotas = quotas;
+        this.lowValueEvents = lowValueEvents;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxAgeMillisByType = maxAgeMillisByType;
+    }
+
+    /** Evict the oldest events first. This is the default. */
+    public static EvictionPolicy oldestFirst() {
+        return OLDEST_FIRST;
+    }
+
+    /**
+     * Evict the events worth the least first, oldest first among those. A new event worth less
+     * than everything in the queue is dropped instead.
+     */
+    public static EvictionPolicy lowestPriorityFirst() {
+        return OLDEST_FIRST.withStrategy(Strategy.LOWEST_VALUE_FIRST);
+    }
+
+    /**
+     * Keep a random sample of the events worth the least, instead of only the oldest or newest of
+     * them. Once the queue is full, each new event that is worth the least replaces one of the
+     * queued events worth as little, picked at random, with a probability that keeps every such
+     * event since the queue filled up equally likely to be in the queue (reservoir sampling). Other
+     * events always evict one at random, and a new event worth less than everything in the queue
+     * is dropped.
+     */
+    public static EvictionPolicy sampled() {
+        return OLDEST_FIRST.withStrategy(Strategy.SAMPLED);
+    }
+
+    /**
+     * Returns a copy of this policy that also limits the bytes stored in the queue. Events are
+     * counted as stored, i.e. after they were compressed or encrypted.
+     *
+     * @throws IllegalArgumentException if maxQueueBytes is less than or equal to zero.
+     */
+    public EvictionPolicy maxQueueBytes(int maxQueueBytes) {
+        if (maxQueueBytes <= 0) {
+            throw new IllegalArgumentException("maxQueueBytes must be greater than zero.");
+        }
+        return new EvictionPolicy(
+                strategy,
+                maxQueueBytes,
+                quotas,
+                lowValueEvents,
+                maxAgeMillis,
+                maxAgeMillisByType);
+    }
+
+    /**
+     * Returns a copy of this policy that queues at most {@code maxQueued} track events with the
+     * given name at once. Past that, the oldest of them is evicted whenever another is queued,
+     * whether or not the queue is full.
+     *
+     * @throws IllegalArgumentException if the event is null or empty, or maxQueued is less than or
+     *     equal to zero.
+     */
+    public EvictionPolicy quota(String event, int maxQueued) {
+        if (event == null || event.length() == 0) {
+            throw new IllegalArgumentException("event must not be null or empty.");
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("maxQueued must be greater than zero.");
+        }
+        Map<Integer, Integer> quotas = new HashMap<>(this.quotas);
+        quotas.put(event.hashCode(), maxQueued);
+        return new EvictionPolicy(
+                strategy,
+                maxQueueBytes,
+                Collections.unmodifiableMap(quotas),
+                lowValueEvents,
+                maxAgeMillis,
+                maxAgeMillisByType);
+    }
+
+    /**
+     * Returns a copy of this policy that ranks track events with the given names below all other
+     * events of the same priority.
+     *
+     * @throws IllegalArgumentException if an event is null or empty.
+     */
+    public EvictionPolicy lowValue(String... events) {
+        Set<Integer> lowValueEvents = new HashSet<>(this.lowValueEvents);
+        for (String event : events) {
+            if (event == null || event.length() == 0) {
+                throw new IllegalArgumentException("events must not be null or empty.");
+            }
+            lowValueEvents.add(event.hashCode());
+        }
+        return new EvictionPolicy(
+                strategy,
+                maxQueueBytes,
+                quotas,
+                Collections.unmodifiableSet(lowValueEvents),
+                maxAgeMillis,
+                maxAgeMillisByType);
+    }
+
+    /**
+     * Returns a copy of this policy that drops events queued more than {@code maxAge} ago, rather
+     * than uploading them once the device is back online. Expired events at the head of the
+     * queue are removed together before each upload, and others are left out of uploads.
+     *
+     * <p>The age is measured from when the event was queued, by the device's clock. Events queued
+     * by versions of this library that didn't record when never expire.
+     *
+     * @throws IllegalArgumentException if maxAge is less than or equal to zero.
+     */
+    public EvictionPolicy expireAfter(long maxAge, TimeUnit unit) {
+        return new EvictionPolicy(
+                strategy,
+                maxQueueBytes,
+                quotas,
+                lowValueEvents,
+                toMaxAgeMillis(maxAge, unit),
+                maxAgeMillisByType);
+    }
+
+    /**
+     * Same as {@link #expireAfter(long, TimeUnit)}, but only for events of the given type. For
+     * them, this age is used instead of the one set for all events.
+     *
+     * @throws IllegalArgumentException if the type is null, or maxAge is less than or equal to
+     *     zero.
+     */
+    public EvictionPolicy expireAfter(BasePayload.Type type, long maxAge, TimeUnit unit) {
+        if (type == null) {
+            throw new IllegalArgumentException("type must not be null.");
+        }
+        int code = RecordHeader.typeCode(type);
+        long[] maxAgeMillisByType =
+                Arrays.copyOf(
+                        this.maxAgeMillisByType,
+                        Math.max(code + 1, this.maxAgeMillisByType.length));
+        maxAgeMillisByType[code] = toMaxAgeMillis(maxAge, unit);
+        return new EvictionPolicy(
+                strategy, maxQueueBytes, quotas, lowValueEvents, maxAgeMillis, maxAgeMillisByType);
+    }
+
+    private static long toMaxAgeMillis(long maxAge, TimeUnit unit) {
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("maxAge must be greater than zero.");
+        }
+        return Math.max(unit.toMillis(maxAge), 1);
+    }
+
+    private EvictionPolicy withStrategy(Strategy strategy) {
+        return new EvictionPolicy(
+                strategy, maxQueueBytes, quotas, lowValueEvents, maxAgeMillis, maxAgeMillisByType);
+    }
+
+    /** Returns the default policy, with the same expiry as this one. */
+    EvictionPolicy expiryOnly() {
+        return new EvictionPolicy(
+                Strategy.OLDEST_FIRST,
+                0,
+                OLDEST_FIRST.quotas,
+                OLDEST_FIRST.lowValueEvents,
+                maxAgeMillis,
+                maxAgeMillisByType);
+    }
+
+    /** Whether any events expire. */
+    boolean expires() {
+        if (maxAgeMillis != 0) {
+            return true;
+        }
+        for (long maxAge : maxAgeMillisByType) {
+            if (maxAge != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the event described by the given header was queued more than its maximum age
+     * before {@code now}, in milliseconds since the epoch.
+     */
+    boolean isExpired(RecordHeader header, long now) {
+        if (header.timestamp == 0) {
+            return false;
+        }
+        long maxAge =
+                header.type < maxAgeMillisByType.length ? maxAgeMillisByType[header.type] : 0;
+        if (maxAge == 0) {
+            maxAge = maxAgeMillis;
+        }
+        return maxAge != 0 && now - header.timestamp > maxAge;
+    }
+
+    /**
+     * Whether this only evicts the oldest events once the queue holds too many. Expiry doesn't
+     * count, since it is applied when uploading.
+     */
+    boolean isDefault() {
+        return strategy == Strategy.OLDEST_FIRST
+                && maxQueueBytes == 0
+                && quotas.isEmpty()
+                && lowValueEvents.isEmpty();
+    }
+
+    /**
+     * Ranks an event by what is stored in its {@link RecordHeader}. Events with a higher priority
+     * always rank higher.
+     */
+    int value(int type, int priority, int nameHash) {
+        BasePayload.Type payloadType = RecordHeader.type(type);
+        int value;
+        if (payloadType == BasePayload.Type.identify
+                || payloadType == BasePayload.Type.group
+                || payloadType == BasePayload.Type.alias) {
+            value = VALUE_HIGH;
+        } else if (nameHash != 0 && lowValueEvents.contains(nameHash)) {
+            value = VALUE_LOW;
+        } else {
+            value = VALUE_NORMAL;
+        }
+        return priority * (VALUE_HIGH + 1) + value;
+    }
+
+    @Override
+    public String toString() {
+        return "EvictionPolicy{"
+                + "strategy="
+                + strategy
+                + ", maxQueueBytes="
+                + maxQueueBytes
+                + ", quotas="
+                + quotas.size()
+                + ", lowValueEvents="
+                + lowValueEvents.size()
+                + ", maxAgeMillis="
+                + maxAgeMillis
+                + ", maxAgeMillisByType="
+                + Arrays.toString(maxAgeMillisByType)
+                + '}';
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import android.os.SystemClock;
+import java.util.Random;
+
+/**
+ * Decides when {@link SegmentIntegration} uploads queued events, from how deep the queue is, how
+ * recent uploads went, the network and whether the app is in the foreground.
+ *
+ * <ul>
+ *   <li>Nothing is scheduled while there is no connectivity, or while the queue is empty.
+ *   <li>After a failed upload, scheduled and size-triggered flushes wait for a backoff that
+ *       doubles with each consecutive failure, with jitter so that many devices that failed
+ *       together don't retry together. An explicit flush still goes through.
+ *   <li>On unmetered networks the interval and the flush queue size are halved.
+ *   <li>While uploads leave a deep queue behind, the flush queue size doubles, so that more events
+ *       are sent per request. It goes back once the queue is drained.
+ * </ul>
+ *
+ * Callers flush right away when the app goes to the background, or when the network becomes
+ * available or unmetered. Methods may be called from any thread.
+ */
+class FlushScheduler {
+
+    /** Backoff after the first failed upload. */
+    static final long MIN_BACKOFF_MILLIS = 5 * 1000;
+    /** Backoff never grows past this. */
+    static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000;
+    /** The flush queue size never grows past this, the largest one the builder accepts. */
+    static final int MAX_FLUSH_QUEUE_SIZE = 250;
+
+    private final long flushIntervalInMillis;
+    private final int flushQueueSize;
+    private final Random random;
+
+    private boolean connected;
+    private boolean unmetered;
+    private boolean backgrounded;
+    private int consecutiveFailures;
+    /** Uptime before which uploads wait, in {@link SystemClock#uptimeMillis()}. */
+    private long retryAt;
+    /** Flush queue size before adjusting for the network. */
+    private int adaptiveQueueSize;
+
+    FlushScheduler(
+            long flushIntervalInMillis,
+            int flushQueueSize,
+            boolean connected,
+            boolean unmetered,
+            Random random) {
+        this.flushIntervalInMillis = flushIntervalInMillis;
+        this.flushQueueSize = flushQueueSize;
+        this.connected = connected;
+        this.unmetered = unmetered;
+        this.random = random;
+        this.adaptiveQueueSize = flushQueueSize;
+    }
+
+    synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /** Whether a queue of the given size should be uploaded without waiting for the interval. */
+    synchronized boolean shouldFlush(int queueSize) {
+        return connected && !isBackingOff() && queueSize >= currentFlushQueueSize();
+    }
+
+    /** Whether a scheduled flush should upload a queue of the given size. */
+    synchronized boolean shouldFlushScheduled(int queueSize) {
+        return connected && !isBackingOff() && queueSize > 0;
+    }
+
+    /**
+     * Milliseconds until the next scheduled flush, or -1 if none should be scheduled for now. The
+     * caller asks again whenever something here changes, or when the queue becomes non-empty.
+     */
+    synchronized long nextFlushDelay(int queueSize) {
+        if (!connected || queueSize == 0) {
+            return -1;
+        }
+        if (isBackingOff()) {
+            return retryAt - SystemClock.uptimeMillis();
+        }
+        return currentFlushInterval();
+    }
+
+    /**
+     * Records a network change.
+     *
+     * @return whether to flush right away, because the network became usable or unmetered
+     */
+    synchronized boolean setNetwork(boolean connected, boolean unmetered) {
+        boolean flush = connected && (!this.connected || (unmetered && !this.unmetered));
+        this.connected = connected;
+        this.unmetered = unmetered;
+        return flush;
+    }
+
+    /**
+     * Records that the app came to the foreground or went to the background.
+     *
+     * @return whether to flush right away, because the app went to the background
+     */
+    synchronized boolean setBackgrounded(boolean backgrounded) {
+        boolean flush = backgrounded && !this.backgrounded;
+        this.backgrounded = backgrounded;
+        return flush;
+    }
+
+    /** Records an upload the server responded to, leaving {@code queueSize} events behind. */
+    synchronized void onUploadSucceeded(int queueSize) {
+        consecutiveFailures = 0;
+        retryAt = 0;
+        if (queueSize >= 2 * adaptiveQueueSize) {
+            adaptiveQueueSize = Math.min(2 * adaptiveQueueSize, MAX_FLUSH_QUEUE_SIZE);
+        } else if (queueSize < flushQueueSize) {
+            adaptiveQueueSize = flushQueueSize;
+        }
+    }
+
+    /** Records an upload that failed, and starts backing off. */
+    synchronized void onUploadFailed() {
+        consecutiveFailures++;
+        long backoff = MAX_BACKOFF_MILLIS;
+        if (consecutiveFailures < 32) {
+            backoff = Math.min(MIN_BACKOFF_MILLIS << (consecutiveFailures - 1), MAX_BACKOFF_MILLIS);
+        }
+        // Wait between half and all of the backoff.
+        long half = backoff / 2;
+        retryAt = SystemClock.uptimeMillis() + half + (long) (random.nextDouble() * half);
+    }
+
+    synchronized StatsSnapshot.FlushSchedule snapshot() {
+        return new StatsSnapshot.FlushSchedule(
+                !connected,
+                unmetered,
+                backgrounded,
+                consecutiveFailures,
+                isBackingOff() ? retryAt - SystemClock.uptimeMillis() : 0,
+                currentFlushQueueSize(),
+                currentFlushInterval());
+    }
+
+    private boolean isBackingOff() {
+        return retryAt > SystemClock.uptimeMillis();
+    }
+
+    private long currentFlushInterval() {
+        return unmetered ? flushIntervalInMillis / 2 : flushIntervalInMillis;
+    }
+
+    private int currentFlushQueueSize() {
+        return unmetered ? Math.max(adaptiveQueueSize / 2, 1) : adaptiveQueueSize;
+    }
+}
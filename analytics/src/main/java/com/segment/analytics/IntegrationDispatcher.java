@@ -0,0 +1,130 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers {@link IntegrationOperation}s to the main thread in batches. Operations are queued and
+ * a single message drains them, instead of posting one message per event. A drain stops once it
+ * has used up its time budget and continues in a fresh message, so that a burst of events never
+ * holds the main thread for much longer than the budget.
+ *
+ * <p>Once {@link #start} is called, operations are first given to a {@link Router}, which hands
+ * them to integrations that don't need the handler's thread, and are only queued if some
+ * integration still does.
+ */
+class IntegrationDispatcher implements Runnable {
+
+    /** Runs a single operation; called on the handler's thread. */
+    interface Target {
+        void performRun(IntegrationOperation operation);
+    }
+
+    /** Hands an operation to integrations that don't run on the handler's thread. */
+    interface Router {
+        /** Returns true if the operation still has to be run on the handler's thread. */
+        boolean route(IntegrationOperation operation);
+    }
+
+    /** Roughly a third of a 60Hz frame. */
+    static final long DEFAULT_BUDGET_MILLIS = 5;
+
+    private final Handler handler;
+    private final long budgetMillis;
+    private final Target target;
+    private final ConcurrentLinkedQueue<IntegrationOperation> pending =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private Router router;
+    // Guarded by this. Only ever set on the handler's thread, once nothing queued before the
+    // router was known is left, so that each integration still sees operations in order.
+    private boolean routing;
+
+    IntegrationDispatcher(Handler handler, long budgetMillis, Target target) {
+        this.handler = handler;
+        this.budgetMillis = budgetMillis;
+        this.target = target;
+    }
+
+    /**
+     * Routes the operation once started, and queues it if it still has to be run on the handler's
+     * thread, posting a drain message unless one is already pending.
+     */
+    void dispatch(IntegrationOperation operation) {
+        synchronized (this) {
+            if (routing && !router.route(operation)) {
+                return;
+            }
+            pending.add(operation);
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            handler.post(this);
+        }
+    }
+
+    /**
+     * Starts routing operations as they are dispatched. Must be called on the handler's thread.
+     * Operations that are already queued are routed when they are drained.
+     */
+    void start(Router router) {
+        this.router = router;
+        startRoutingIfDrained();
+    }
+
+    private void startRoutingIfDrained() {
+        synchronized (this) {
+            routing = pending.isEmpty();
+        }
+    }
+
+    @Override
+    public void run() {
+        long deadline = SystemClock.uptimeMillis() + budgetMillis;
+        try {
+            IntegrationOperation operation;
+            while ((operation = pending.poll()) != null) {
+                if (routing || router == null || router.route(operation)) {
+                    target.performRun(operation);
+                }
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    break;
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (router != null && !routing) {
+                startRoutingIfDrained();
+            }
+            // An operation may have been queued after the last poll but before the flag was
+            // cleared, in which case nobody posted for it.
+            if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+                handler.post(this);
+            }
+        }
+    }
+}
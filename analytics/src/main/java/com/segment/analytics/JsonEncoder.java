@@ -0,0 +1,369 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes maps as UTF-8 JSON straight into a reusable byte buffer. The output is byte for byte the
+ * same as a compact {@link Cartographer} writing to a UTF-8 {@link java.io.Writer}, without the
+ * intermediate writers and buffers.
+ *
+ * <p>Instances are not thread safe, and are meant to be reused by a single thread.
+ */
+class JsonEncoder {
+
+    private static final String INTEGRATIONS_KEY = "integrations";
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private byte[] buffer;
+    private int size;
+
+    JsonEncoder() {
+        this(1024);
+    }
+
+    JsonEncoder(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    /** Discards everything encoded so far, keeping the buffer. */
+    void reset() {
+        size = 0;
+    }
+
+    /** Number of bytes encoded so far. */
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /** Returns whether exactly the given bytes have been encoded so far. */
+    boolean contentEquals(byte[] bytes) {
+        if (bytes.length != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The buffer that holds everything encoded so far, in the first {@link #size} bytes. */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /** Copies everything encoded so far into {@code dest}, starting at {@code offset}. */
+    void writeTo(byte[] dest, int offset) {
+        System.arraycopy(buffer, 0, dest, offset, size);
+    }
+
+    /** Encodes the given map, like {@link Cartographer#toJson(Map)}. */
+    void encode(Map<?, ?> map) {
+        writeMap(map);
+    }
+
+    /**
+     * Encodes a payload with its integrations overridden by {@code overrides}, and without {@code
+     * excludedIntegration}. Same as copying the payload, replacing its integrations with a copy
+     * that has the overrides applied and encoding the result, without making the copies.
+     */
+    void encodePayload(Map<?, ?> payload, Map<String, ?> overrides, String excludedIntegration) {
+        encodePayload(payload, overrides, excludedIntegration, null);
+    }
+
+    /** Same as {@link #encodePayload(Map, Map, String)}, but leaves out {@code omittedKey}. */
+    void encodePayload(
+            Map<?, ?> payload,
+            Map<String, ?> overrides,
+            String excludedIntegration,
+            String omittedKey) {
+        writeByte('{');
+        boolean first = true;
+        boolean wroteIntegrations = false;
+        for (Map.Entry<?, ?> entry : payload.entrySet()) {
+            String key = String.valueOf(entry.getKey());
+            if (key.equals(omittedKey)) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(key);
+            writeByte(':');
+            Object value = entry.getValue();
+            if (INTEGRATIONS_KEY.equals(key)) {
+                Map<?, ?> integrations = value instanceof Map ? (Map<?, ?>) value : null;
+                writeIntegrations(integrations, overrides, excludedIntegration);
+                wroteIntegrations = true;
+            } else {
+                writeValue(value);
+            }
+        }
+        if (!wroteIntegrations) {
+            if (!first) {
+                writeByte(',');
+            }
+            writeString(INTEGRATIONS_KEY);
+            writeByte(':');
+            writeIntegrations(null, overrides, excludedIntegration);
+        }
+        writeByte('}');
+    }
+
+    /** Appends the given string encoded as UTF-8, without any escaping. */
+    void writeRaw(String s) {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            i = writeChar(s, i, s.charAt(i));
+        }
+    }
+
+    /** Appends the given string quoted and escaped, like a string value in a map. */
+    void encodeString(String s) {
+        writeString(s);
+    }
+
+    /**
+     * Keeps the order of the provided integrations, with overridden values in place, followed by
+     * the overrides that weren't provided. This is the order of a {@link java.util.LinkedHashMap}
+     * that the overrides are put into.
+     */
+    private void writeIntegrations(Map<?, ?> provided, Map<String, ?> overrides, String excluded) {
+        writeByte('{');
+        boolean first = true;
+        if (provided != null) {
+            for (Map.Entry<?, ?> entry : provided.entrySet()) {
+                Object key = entry.getKey();
+                if (excluded.equals(key)) {
+                    continue;
+                }
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeString(String.valueOf(key));
+                writeByte(':');
+                // noinspection SuspiciousMethodCalls
+                writeValue(overrides.containsKey(key) ? overrides.get(key) : entry.getValue());
+            }
+        }
+        for (Map.Entry<String, ?> entry : overrides.entrySet()) {
+            String key = entry.getKey();
+            if (excluded.equals(key) || (provided != null && provided.containsKey(key))) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(String.valueOf(key));
+            writeByte(':');
+            writeValue(entry.getValue());
+        }
+        writeByte('}');
+    }
+
+    private void writeMap(Map<?, ?> map) {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(String.valueOf(entry.getKey()));
+            writeByte(':');
+            writeValue(entry.getValue());
+        }
+        writeByte('}');
+    }
+
+    private void writeList(List<?> list) {
+        writeByte('[');
+        for (int i = 0, size = list.size(); i < size; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeValue(list.get(i));
+        }
+        writeByte(']');
+    }
+
+    private void writeArray(Object array) {
+        writeByte('[');
+        for (int i = 0, size = Array.getLength(array); i < size; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeValue(Array.get(array, i));
+        }
+        writeByte(']');
+    }
+
+    /** Mirrors {@code Cartographer#writeValue}. */
+    private void writeValue(Object value) {
+        if (value == null) {
+            writeRaw("null");
+        } else if (value instanceof Number) {
+            if ((value instanceof Double
+                            && (Double.isNaN((Double) value) || Double.isInfinite((Double) value)))
+                    || (value instanceof Float
+                            && (Float.isNaN((Float) value) || Float.isInfinite((Float) value)))) {
+                writeRaw("0.0");
+            } else {
+                writeRaw(value.toString());
+            }
+        } else if (value instanceof Boolean) {
+            writeRaw((Boolean) value ? "true" : "false");
+        } else if (value instanceof List) {
+            writeList((List<?>) value);
+        } else if (value instanceof Map) {
+            writeMap((Map<?, ?>) value);
+        } else if (value.getClass().isArray()) {
+            writeArray(value);
+        } else {
+            writeString(String.valueOf(value));
+        }
+    }
+
+    /** Writes a quoted string, escaped like {@link android.util.JsonWriter} does. */
+    private void writeString(String s) {
+        writeByte('"');
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    writeByte('\\');
+                    writeByte(c);
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                case '\b':
+                    writeByte('\\');
+                    writeByte('b');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                case '\f':
+                    writeByte('\\');
+                    writeByte('f');
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    writeUnicodeEscape(c);
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        writeUnicodeEscape(c);
+                    } else {
+                        i = writeChar(s, i, c);
+                    }
+                    break;
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buffer[size++] = '\\';
+        buffer[size++] = 'u';
+        buffer[size++] = HEX[(c >> 12) & 0xf];
+        buffer[size++] = HEX[(c >> 8) & 0xf];
+        buffer[size++] = HEX[(c >> 4) & 0xf];
+        buffer[size++] = HEX[c & 0xf];
+    }
+
+    /**
+     * Encodes the char at {@code i} as UTF-8, along with the next one if they form a surrogate
+     * pair. Unpaired surrogates are replaced with {@code '?'}, like {@link
+     * java.io.OutputStreamWriter} does.
+     *
+     * @return the index of the last char consumed
+     */
+    private int writeChar(String s, int i, char c) {
+        ensureCapacity(4);
+        byte[] b = buffer;
+        if (c < 0x80) {
+            b[size++] = (byte) c;
+        } else if (c < 0x800) {
+            b[size++] = (byte) (0xc0 | (c >> 6));
+            b[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (!Character.isSurrogate(c)) {
+            b[size++] = (byte) (0xe0 | (c >> 12));
+            b[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            b[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)
+                && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(++i));
+            b[size++] = (byte) (0xf0 | (codePoint >> 18));
+            b[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            b[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            b[size++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            b[size++] = '?';
+        }
+        return i;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int count) {
+        if (size + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+        }
+    }
+}
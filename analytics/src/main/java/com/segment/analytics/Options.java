@@ -23,6 +23,8 @@
  */
 package com.segment.analytics;
 
+import androidx.annotation.NonNull;
+import com.segment.analytics.integrations.BasePayload;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -42,6 +44,7 @@ public class Options {
 
     private final Map<String, Object> integrations; // passed in by the user
     private final Map<String, Object> context;
+    private volatile BasePayload.Priority priority = BasePayload.Priority.NORMAL;
 
     public Options() {
         integrations = new ConcurrentHashMap<>();
@@ -136,6 +139,34 @@ public class Options {
         return this;
     }
 
+    /**
+     * Sets how urgently this call is uploaded to Segment.
+     *
+     * <p>By default, events wait in a queue until enough of them have been collected, or until
+     * the flush interval has passed, and are then uploaded together. Events with {@link
+     * BasePayload.Priority#HIGH} go through a separate, smaller queue instead, which is uploaded
+     * as soon as an event is added to it, alongside any upload of the regular queue. Use it for
+     * the few events that have to reach the server within seconds, e.g. a purchase confirmation.
+     *
+     * <p>Events are uploaded in the order they were recorded within each queue, but not across
+     * them.
+     *
+     * @param priority The priority of this call
+     * @return This options object for chaining
+     */
+    public Options setPriority(@NonNull BasePayload.Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("priority == null");
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    /** Returns the priority of this call. */
+    public BasePayload.Priority priority() {
+        return priority;
+    }
+
     /** Returns a copy of settings for integrations. */
     public Map<String, Object> integrations() {
         return new LinkedHashMap<>(integrations);
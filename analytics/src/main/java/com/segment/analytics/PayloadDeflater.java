@@ -0,0 +1,166 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads once when they are queued, so that an upload can splice them into its gzip
+ * body as they are with {@link BatchOutputStream#writeDeflated}, instead of compressing them again.
+ *
+ * <pre>
+ *   Format:
+ *     CRC32    (4 bytes, of the uncompressed payload)
+ *     Length   (4 bytes, of the uncompressed payload)
+ *     Blocks   (raw deflate, ending with a sync flush)
+ * </pre>
+ *
+ * The payload is compressed without its opening brace, so that it can be put back with or without
+ * a {@code context} in front, see {@link SegmentIntegration.BatchPayloadWriter}. Each payload is
+ * compressed on its own, so that it refers to nothing outside itself. Needs API 19, for {@link
+ * Deflater#SYNC_FLUSH}.
+ *
+ * <p>Instances are not thread safe, and are meant to be reused by a single thread.
+ */
+class PayloadDeflater {
+
+    /** Length of the CRC32 and length that come before the blocks. */
+    static final int PREFIX_LENGTH = 8;
+
+    /**
+     * Payloads that shrink more than this are queued uncompressed, same as {@link
+     * BinaryJson#MAX_EXPANSION}.
+     */
+    static final int MAX_EXPANSION = BinaryJson.MAX_EXPANSION;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[1024];
+    private int size;
+
+    /**
+     * Compresses the given JSON object, without its opening brace.
+     *
+     * @return false if it isn't an object, or wouldn't shrink within {@link #MAX_EXPANSION}
+     */
+    boolean deflate(byte[] json, int offset, int length) {
+        if (length < 2 || json[offset] != '{') {
+            return false;
+        }
+        int start = offset + 1;
+        int count = length - 1;
+        crc.reset();
+        crc.update(json, start, count);
+        writeInt(0, (int) crc.getValue());
+        writeInt(4, count);
+        size = PREFIX_LENGTH;
+        deflater.reset();
+        deflater.setInput(json, start, count);
+        int written;
+        do {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            written = deflater.deflate(buffer, size, buffer.length - size, Deflater.SYNC_FLUSH);
+            size += written;
+            // The flush is complete once there's room left in the buffer.
+        } while (size == buffer.length);
+        return size < length && size * MAX_EXPANSION >= length;
+    }
+
+    /** Number of bytes written by the last call to {@link #deflate}. */
+    int size() {
+        return size;
+    }
+
+    void writeTo(byte[] dest, int offset) {
+        System.arraycopy(buffer, 0, dest, offset, size);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /** Returns the CRC32 of a payload compressed by {@link #deflate}. */
+    static int crc(byte[] data, int offset) {
+        return readInt(data, offset);
+    }
+
+    /** Returns the uncompressed length of a payload compressed by {@link #deflate}. */
+    static int length(byte[] data, int offset) {
+        return readInt(data, offset + 4);
+    }
+
+    /**
+     * Decompresses the blocks of a payload compressed by {@link #deflate}, for a body that isn't
+     * gzipped. Returns null if they don't decompress to the expected length.
+     */
+    static byte[] inflate(byte[] data, int offset, int length) {
+        int uncompressedLength = length(data, offset);
+        if (uncompressedLength < 0 || uncompressedLength > SegmentIntegration.MAX_PAYLOAD_SIZE) {
+            return null;
+        }
+        byte[] result = new byte[uncompressedLength];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset + PREFIX_LENGTH, length - PREFIX_LENGTH);
+            int read = 0;
+            while (read < uncompressedLength) {
+                int n = inflater.inflate(result, read, uncompressedLength - read);
+                if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != uncompressedLength) {
+                return null;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    private void writeInt(int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+}
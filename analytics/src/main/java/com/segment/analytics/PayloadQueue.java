@@ -27,7 +27,8 @@ import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 
 abstract class PayloadQueue implements Closeable {
     abstract int size();
@@ -38,6 +39,68 @@ abstract class PayloadQueue implements Closeable {
 
     abstract void forEach(ElementVisitor visitor) throws IOException;
 
+    /** Same as {@link #forEach(ElementVisitor)}, but skips the eldest {@code skip} elements. */
+    void forEach(final int skip, final ElementVisitor visitor) throws IOException {
+        if (skip == 0) {
+            forEach(visitor);
+            return;
+        }
+        forEach(
+                new ElementVisitor() {
+                    int skipped;
+
+                    @Override
+                    public boolean read(InputStream in, int length) throws IOException {
+                        if (skipped < skip) {
+                            skipped++;
+                            return true;
+                        }
+                        return visitor.read(in, length);
+                    }
+                });
+    }
+
+    /**
+     * Looks up the elements after the eldest {@code skip}, stopping before the first one that would
+     * take their data past {@code maxBytes} in total. Only this lookup holds the queue's lock, so
+     * the returned snapshot can be read slowly, e.g. straight into a network request, without
+     * holding up additions. The elements must not be removed until the snapshot has been read.
+     */
+    abstract Snapshot snapshot(int skip, int maxBytes) throws IOException;
+
+    /**
+     * Overwrites {@code count} bytes at {@code offset} within the element at {@code index},
+     * counting from the eldest, with the start of {@code data}. Elements are updated in place this
+     * way without moving any others, e.g. to mark them as evicted.
+     */
+    abstract void overwrite(int index, int offset, byte[] data, int count) throws IOException;
+
+    /**
+     * Makes sure all added elements have been written to durable storage. A no-op for queues that
+     * commit every addition, or that aren't durable to begin with.
+     */
+    void commit() throws IOException {}
+
+    /**
+     * Overwrites the data of removed elements, if removing them left it on disk. A no-op for queues
+     * that don't leave removed data behind.
+     */
+    void eraseRemoved() throws IOException {}
+
+    /**
+     * Claims the eldest elements for uploading, for queues that other processes share. Only the
+     * process holding the claim may remove elements, and it keeps the claim until {@link
+     * #releaseUploads()}, or until it dies.
+     *
+     * @return false if another process holds the claim
+     */
+    boolean claimUploads() {
+        return true;
+    }
+
+    /** Gives up the claim from {@link #claimUploads()}, so that another process can upload. */
+    void releaseUploads() {}
+
     interface ElementVisitor {
         /**
          * Called once per element.
@@ -52,6 +115,18 @@ abstract class PayloadQueue implements Closeable {
         boolean read(InputStream in, int length) throws IOException;
     }
 
+    /** A run of elements found by {@link #snapshot}. */
+    interface Snapshot {
+        /** Number of elements in the snapshot. */
+        int size();
+
+        /**
+         * Invokes the visitor once for each element in the snapshot, from eldest to most recently
+         * added, without holding the queue's lock while it runs.
+         */
+        void forEach(ElementVisitor visitor) throws IOException;
+    }
+
     static class PersistentQueue extends PayloadQueue {
         final QueueFile queueFile;
 
@@ -86,38 +161,65 @@ abstract class PayloadQueue implements Closeable {
             queueFile.forEach(visitor);
         }
 
+        @Override
+        void forEach(int skip, ElementVisitor visitor) throws IOException {
+            queueFile.forEach(skip, visitor);
+        }
+
+        @Override
+        Snapshot snapshot(int skip, int maxBytes) throws IOException {
+            return queueFile.snapshot(skip, maxBytes);
+        }
+
+        @Override
+        void overwrite(int index, int offset, byte[] data, int count) throws IOException {
+            queueFile.overwrite(index, offset, data, count);
+        }
+
+        @Override
+        void commit() throws IOException {
+            queueFile.commit();
+        }
+
+        @Override
+        void eraseRemoved() throws IOException {
+            queueFile.eraseFreeSpace();
+        }
+
         @Override
         public void close() throws IOException {
             queueFile.close();
         }
     }
 
+    /**
+     * Keeps elements in memory only. Uploads read and remove elements on other threads than the
+     * one adding them, so every method is synchronized.
+     */
     static class MemoryQueue extends PayloadQueue {
-        final LinkedList<byte[]> queue;
+        final List<byte[]> queue;
 
         MemoryQueue() {
-            this.queue = new LinkedList<>();
+            this.queue = new ArrayList<>();
         }
 
         @Override
-        int size() {
+        synchronized int size() {
             return queue.size();
         }
 
         @Override
-        void remove(int n) throws IOException {
-            for (int i = 0; i < n; i++) {
-                queue.remove();
-            }
+        synchronized void remove(int n) throws IOException {
+            queue.subList(0, Math.min(n, queue.size())).clear();
         }
 
         @Override
-        void add(byte[] data) throws IOException {
+        synchronized void add(byte[] data) throws IOException {
             queue.add(data);
         }
 
         @Override
-        void forEach(ElementVisitor visitor) throws IOException {
+        synchronized void forEach(ElementVisitor visitor) throws IOException {
             for (int i = 0; i < queue.size(); i++) {
                 byte[] data = queue.get(i);
                 boolean shouldContinue = visitor.read(new ByteArrayInputStream(data), data.length);
@@ -127,6 +229,42 @@ abstract class PayloadQueue implements Closeable {
             }
         }
 
+        @Override
+        synchronized Snapshot snapshot(int skip, int maxBytes) {
+            // Elements are only modified in place, so holding on to them is enough.
+            final List<byte[]> elements = new ArrayList<>();
+            int bytes = 0;
+            for (int i = skip; i < queue.size(); i++) {
+                byte[] data = queue.get(i);
+                bytes += data.length;
+                if (bytes > maxBytes) {
+                    break;
+                }
+                elements.add(data);
+            }
+            return new Snapshot() {
+                @Override
+                public int size() {
+                    return elements.size();
+                }
+
+                @Override
+                public void forEach(ElementVisitor visitor) throws IOException {
+                    for (byte[] data : elements) {
+                        if (!visitor.read(new ByteArrayInputStream(data), data.length)) {
+                            return;
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        synchronized void overwrite(int index, int offset, byte[] data, int count) {
+            // Snapshots hold on to the arrays, and see the change too, same as a file would.
+            System.arraycopy(data, 0, queue.get(index), offset, count);
+        }
+
         @Override
         public void close() throws IOException {
             // no-op
@@ -0,0 +1,123 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls when events queued on disk are committed to storage.
+ *
+ * <p>By default every event is written synchronously, with a header update, as soon as it is
+ * queued ({@link #everyWrite()}). This is the most durable option, but during bursts of events the
+ * disk becomes the bottleneck. The other policies use group commit: events are buffered in memory
+ * and written together with a single data write and a single header update. Events are always
+ * committed before they are uploaded, when the client is shutdown, when the system is low on
+ * memory, and once {@link #maxPendingEvents(int)} events are pending. Events that were not
+ * committed yet are lost if the process dies.
+ */
+public final class QueueDurability {
+
+    /** Default number of events that may be buffered before a commit is forced. */
+    static final int DEFAULT_MAX_PENDING_EVENTS = 50;
+
+    enum Mode {
+        EVERY_WRITE,
+        INTERVAL,
+        ON_FLUSH,
+        ON_BACKGROUND
+    }
+
+    private static final QueueDurability EVERY_WRITE =
+            new QueueDurability(Mode.EVERY_WRITE, 0, 0);
+
+    final Mode mode;
+    final long intervalInMillis;
+    final int maxPendingEvents;
+
+    private QueueDurability(Mode mode, long intervalInMillis, int maxPendingEvents) {
+        this.mode = mode;
+        this.intervalInMillis = intervalInMillis;
+        this.maxPendingEvents = maxPendingEvents;
+    }
+
+    /** Commit every event to disk as soon as it is queued. This is the default. */
+    public static QueueDurability everyWrite() {
+        return EVERY_WRITE;
+    }
+
+    /**
+     * Commit events at most {@code interval} after they are queued, or when the app goes to the
+     * background. All events queued within the window are committed together.
+     *
+     * @throws IllegalArgumentException if the interval is less than or equal to zero.
+     */
+    public static QueueDurability interval(long interval, TimeUnit timeUnit) {
+        if (timeUnit == null) {
+            throw new IllegalArgumentException("timeUnit must not be null.");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be greater than zero.");
+        }
+        return new QueueDurability(
+                Mode.INTERVAL, timeUnit.toMillis(interval), DEFAULT_MAX_PENDING_EVENTS);
+    }
+
+    /** Commit events only when they are about to be uploaded. */
+    public static QueueDurability onFlush() {
+        return new QueueDurability(Mode.ON_FLUSH, 0, DEFAULT_MAX_PENDING_EVENTS);
+    }
+
+    /** Commit events when the app goes to the background, or when they are about to be uploaded. */
+    public static QueueDurability onBackground() {
+        return new QueueDurability(Mode.ON_BACKGROUND, 0, DEFAULT_MAX_PENDING_EVENTS);
+    }
+
+    /**
+     * Returns a copy of this policy that forces a commit once {@code maxPendingEvents} events are
+     * buffered. Has no effect on {@link #everyWrite()}.
+     *
+     * @throws IllegalArgumentException if maxPendingEvents is less than or equal to zero.
+     */
+    public QueueDurability maxPendingEvents(int maxPendingEvents) {
+        if (maxPendingEvents <= 0) {
+            throw new IllegalArgumentException("maxPendingEvents must be greater than zero.");
+        }
+        if (mode == Mode.EVERY_WRITE) {
+            return this;
+        }
+        return new QueueDurability(mode, intervalInMillis, maxPendingEvents);
+    }
+
+    @Override
+    public String toString() {
+        return "QueueDurability{"
+                + "mode="
+                + mode
+                + ", intervalInMillis="
+                + intervalInMillis
+                + ", maxPendingEvents="
+                + maxPendingEvents
+                + '}';
+    }
+}
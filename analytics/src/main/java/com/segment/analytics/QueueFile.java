@@ -51,6 +51,12 @@ import java.util.logging.Logger;
  * processing. If the system crashes after {@code peek} and during processing, the element will
  * remain in the queue, to be processed when the system restarts.
  *
+ * <p>A queue may optionally be opened in <em>group commit</em> mode. Additions are then buffered in
+ * memory and written to disk together, with a single data write and a single header update, the
+ * next time {@link #commit} is called (explicitly, when the pending buffer fills up, or implicitly
+ * by any operation that reads or removes elements). Only elements that have been committed are
+ * guaranteed to survive a crash.
+ *
  * <p><strong>NOTE:</strong> The current implementation is built for file systems that support
  * atomic segment writes (like YAFFS). Most conventional file systems don't support this; if the
  * power goes out while writing a segment, the segment will contain garbage and the file will be
@@ -70,6 +76,15 @@ public class QueueFile implements Closeable {
     /** Length of header in bytes. */
     static final int HEADER_LENGTH = 16;
 
+    /**
+     * Upper bound on the bytes buffered in group commit mode before a commit is forced, regardless
+     * of the number of pending elements.
+     */
+    static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    /** Initial number of slots in the element index. Always a power of 2. */
+    private static final int INITIAL_INDEX_CAPACITY = 16;
+
     /**
      * The underlying file. Uses a ring buffer to store entries. Designed so that a modification
      * isn't committed or visible until we write the header. The header is much smaller than a
@@ -115,20 +130,87 @@ public class QueueFile implements Closeable {
     /** In-memory buffer. Big enough to hold the header. */
     private final byte[] buffer = new byte[16];
 
+    /**
+     * Maximum number of additions buffered before they are committed, or {@code 0} if every
+     * addition is written synchronously.
+     */
+    private final int maxPendingElements;
+
+    /** Additions that have not been committed yet, encoded exactly as they will be on disk. */
+    private byte[] pending;
+
+    /** Number of bytes used in {@link #pending}. */
+    private int pendingLength;
+
+    /** Number of elements in {@link #pending}. */
+    private int pendingCount;
+
+    /** Offset of the newest element within {@link #pending}. */
+    private int pendingLastOffset;
+
+    /** Number of elements ever removed, so a {@link Snapshot} can tell where its elements are. */
+    private long removedCount;
+
+    /** Bumped whenever elements are moved within the file, which makes snapshots look them up. */
+    private int moveCount;
+
+    /**
+     * Positions of the committed elements, eldest first, in a ring that starts at {@link
+     * #indexHead}. Built when the file is opened, so elements never have to be found by walking
+     * their headers on disk.
+     */
+    private int[] positions = new int[INITIAL_INDEX_CAPACITY];
+
+    /** Lengths of the committed elements, in the same slots as {@link #positions}. */
+    private int[] lengths = new int[INITIAL_INDEX_CAPACITY];
+
+    /** Slot of the eldest element in {@link #positions} and {@link #lengths}. */
+    private int indexHead;
+
+    /**
+     * Number of bytes right before the first element that held removed elements, and haven't been
+     * zeroed by {@link #eraseFreeSpace} yet.
+     */
+    private int dirtyLength;
+
     /**
      * Constructs a new queue backed by the given file. Only one instance should access a given file
      * at a time.
      */
     public QueueFile(File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Constructs a new queue backed by the given file. If {@code maxPendingElements} is positive,
+     * the queue is opened in group commit mode, and up to that many additions are buffered in
+     * memory before being committed together. Only one instance should access a given file at a
+     * time.
+     */
+    public QueueFile(File file, int maxPendingElements) throws IOException {
+        if (maxPendingElements < 0) {
+            throw new IllegalArgumentException("maxPendingElements < 0");
+        }
         if (!file.exists()) {
             initialize(file);
         }
-        raf = open(file);
-        readHeader();
+        this.maxPendingElements = maxPendingElements;
+        raf = open(file, maxPendingElements == 0);
+        try {
+            readHeader();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
     }
 
     QueueFile(RandomAccessFile raf) throws IOException {
+        this(raf, 0);
+    }
+
+    QueueFile(RandomAccessFile raf, int maxPendingElements) throws IOException {
         this.raf = raf;
+        this.maxPendingElements = maxPendingElements;
         readHeader();
     }
 
@@ -179,8 +261,122 @@ public class QueueFile implements Closeable {
                             + lastOffset
                             + ") is invalid.");
         }
+        if (elementCount < 0) {
+            throw new IOException(
+                    "File is corrupt; element count stored in header ("
+                            + elementCount
+                            + ") is invalid.");
+        }
         first = readElement(firstOffset);
         last = readElement(lastOffset);
+        buildIndex();
+    }
+
+    /**
+     * Reads the header again, for when another instance, e.g. in another process, may have changed
+     * the file since this one last did. If it only added elements, just those are indexed,
+     * otherwise the whole index is rebuilt. The caller must keep other instances out of the file
+     * until it's done with it, and snapshots taken before don't see the changes.
+     */
+    synchronized void reload() throws IOException {
+        raf.seek(0);
+        raf.readFully(buffer);
+        int fileLength = readInt(buffer, 0);
+        int elementCount = readInt(buffer, 4);
+        int firstOffset = readInt(buffer, 8);
+        int lastOffset = readInt(buffer, 12);
+        if (fileLength == this.fileLength
+                && elementCount == this.elementCount
+                && firstOffset == first.position
+                && lastOffset == last.position) {
+            return;
+        }
+        if (fileLength == this.fileLength
+                && this.elementCount > 0
+                && elementCount > this.elementCount
+                && firstOffset == first.position) {
+            // Only additions, which start right after the element that was last here.
+            int position = wrapPosition(last.position + Element.HEADER_LENGTH + last.length);
+            int lastPosition = position;
+            int i = this.elementCount;
+            for (; i < elementCount; i++) {
+                ringRead(position, buffer, 0, Element.HEADER_LENGTH);
+                int length = readInt(buffer, 0);
+                if (length < 0 || length > fileLength) {
+                    break;
+                }
+                index(i, position, length);
+                lastPosition = position;
+                position = wrapPosition(position + Element.HEADER_LENGTH + length);
+            }
+            if (i == elementCount && lastPosition == lastOffset) {
+                this.elementCount = elementCount;
+                last = readElement(lastOffset);
+                return;
+            }
+            // Not just additions after all, so read it all again.
+        }
+        // The elements that were here can't be told apart from the ones that are now.
+        removedCount += this.elementCount;
+        moveCount++;
+        indexHead = 0;
+        readHeader();
+    }
+
+    /** Walks the element headers once, and records where every element is. */
+    private void buildIndex() throws IOException {
+        int position = first.position;
+        for (int i = 0; i < elementCount; i++) {
+            ringRead(position, buffer, 0, Element.HEADER_LENGTH);
+            int length = readInt(buffer, 0);
+            if (length < 0 || length > fileLength) {
+                throw new IOException(
+                        "File is corrupt; length of element "
+                                + i
+                                + " ("
+                                + length
+                                + ") is invalid.");
+            }
+            index(i, position, length);
+            position = wrapPosition(position + Element.HEADER_LENGTH + length);
+        }
+        if (elementCount > 0 && positions[slot(elementCount - 1)] != last.position) {
+            throw new IOException(
+                    "File is corrupt; element count stored in header ("
+                            + elementCount
+                            + ") doesn't lead to the last position ("
+                            + last.position
+                            + ").");
+        }
+    }
+
+    /** Returns the slot of the {@code i}th element in the index. */
+    private int slot(int i) {
+        return (indexHead + i) & (positions.length - 1);
+    }
+
+    /**
+     * Records the position and length of the {@code i}th element, growing the index if needed. The
+     * elements before it must have been recorded already.
+     */
+    private void index(int i, int position, int length) {
+        if (i >= positions.length) {
+            int capacity = positions.length;
+            while (capacity <= i) {
+                capacity <<= 1;
+            }
+            int[] newPositions = new int[capacity];
+            int[] newLengths = new int[capacity];
+            for (int j = 0; j < i; j++) {
+                newPositions[j] = positions[slot(j)];
+                newLengths[j] = lengths[slot(j)];
+            }
+            positions = newPositions;
+            lengths = newLengths;
+            indexHead = 0;
+        }
+        positions[slot(i)] = position;
+        lengths[slot(i)] = length;
     }
 
     /**
@@ -188,6 +384,10 @@ public class QueueFile implements Closeable {
      * should not have changed yet. This only updates the state in the file. It's up to the caller
      * to update the class member variables *after* this call succeeds. Assumes segment writes are
      * atomic in the underlying file system.
+     *
+     * <p>In group commit mode the file is not opened for synchronous writes, so any data written
+     * so far is forced to storage before the header that references it, and the header itself is
+     * forced right after.
      */
     private void writeHeader(int fileLength, int elementCount, int firstPosition, int lastPosition)
             throws IOException {
@@ -195,8 +395,20 @@ public class QueueFile implements Closeable {
         writeInt(buffer, 4, elementCount);
         writeInt(buffer, 8, firstPosition);
         writeInt(buffer, 12, lastPosition);
+        if (maxPendingElements > 0) {
+            force(false);
+        }
         raf.seek(0);
         raf.write(buffer);
+        if (maxPendingElements > 0) {
+            force(false);
+        }
+    }
+
+    /** Forces writes made so far to storage. Tests override this to lose writes that weren't. */
+    @Private
+    void force(boolean metaData) throws IOException {
+        raf.getChannel().force(metaData);
     }
 
     private Element readElement(int position) throws IOException {
@@ -209,7 +421,7 @@ public class QueueFile implements Closeable {
     private static void initialize(File file) throws IOException {
         // Use a temp file so we don't leave a partially-initialized file.
         File tempFile = new File(file.getPath() + ".tmp");
-        RandomAccessFile raf = open(tempFile);
+        RandomAccessFile raf = open(tempFile, true);
         try {
             raf.setLength(INITIAL_LENGTH);
             raf.seek(0);
@@ -226,9 +438,128 @@ public class QueueFile implements Closeable {
         }
     }
 
-    /** Opens a random access file that writes synchronously. */
-    private static RandomAccessFile open(File file) throws FileNotFoundException {
-        return new RandomAccessFile(file, "rwd");
+    /** Decides which elements {@link #recover} keeps. */
+    interface ElementValidator {
+        /** Returns whether the first {@code length} bytes of {@code data} are an intact element. */
+        boolean isValid(byte[] data, int length);
+    }
+
+    /** The outcome of {@link #recover}. */
+    static final class Recovery {
+        /** Number of elements kept. */
+        final int salvaged;
+        /** Number of elements the header counted beyond those kept, 0 if it was unreadable. */
+        final int lost;
+
+        Recovery(int salvaged, int lost) {
+            this.salvaged = salvaged;
+            this.lost = lost;
+        }
+    }
+
+    /**
+     * Rebuilds a queue file that can't be opened, from the longest run of elements the validator
+     * accepts. The run starts at the first position stored in the header, and goes on for as
+     * many elements as the header counts, as long as those are plausible, or until an element
+     * is rejected. Elements are read once and copied into a new file that replaces the old one,
+     * so this takes time proportional to the file size.
+     *
+     * <p>Elements can't be empty here, since zeroes are what erased space reads as.
+     */
+    static Recovery recover(File file, ElementValidator validator) throws IOException {
+        File tempFile = new File(file.getPath() + ".recovered");
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.delete();
+        int salvaged = 0;
+        int count = -1;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // Committed together, with a handful of writes for the whole file.
+            QueueFile recovered = new QueueFile(tempFile, Integer.MAX_VALUE);
+            try {
+                byte[] header = new byte[HEADER_LENGTH];
+                long actualLength = raf.length();
+                if (actualLength >= HEADER_LENGTH) {
+                    raf.readFully(header);
+                }
+                int fileLength = readInt(header, 0);
+                count = readInt(header, 4);
+                int position = readInt(header, 8);
+                if (fileLength <= HEADER_LENGTH || fileLength > actualLength) {
+                    // Nothing else in the header can be trusted either.
+                    fileLength = (int) min(actualLength, Integer.MAX_VALUE);
+                    count = -1;
+                    position = HEADER_LENGTH;
+                }
+                int remaining = fileLength - HEADER_LENGTH;
+                if (count < 0 || count > remaining / Element.HEADER_LENGTH) {
+                    count = -1;
+                }
+                if (position < HEADER_LENGTH || position >= fileLength) {
+                    position = HEADER_LENGTH;
+                }
+                byte[] data = new byte[INITIAL_LENGTH];
+                while ((count < 0 || salvaged < count) && remaining > Element.HEADER_LENGTH) {
+                    ringRead(raf, fileLength, position, header, 0, Element.HEADER_LENGTH);
+                    int length = readInt(header, 0);
+                    if (length <= 0 || length > remaining - Element.HEADER_LENGTH) {
+                        break;
+                    }
+                    if (data.length < length) {
+                        data = new byte[Math.max(length, data.length * 2)];
+                    }
+                    ringRead(raf, fileLength, position + Element.HEADER_LENGTH, data, 0, length);
+                    if (!validator.isValid(data, length)) {
+                        break;
+                    }
+                    recovered.add(data, 0, length);
+                    salvaged++;
+                    remaining -= Element.HEADER_LENGTH + length;
+                    position += Element.HEADER_LENGTH + length;
+                    if (position >= fileLength) {
+                        position += HEADER_LENGTH - fileLength;
+                    }
+                }
+            } finally {
+                recovered.close();
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        } finally {
+            raf.close();
+        }
+        // A rename is atomic.
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Rename failed!");
+        }
+        return new Recovery(salvaged, count < 0 ? 0 : count - salvaged);
+    }
+
+    /** Same as {@link #ringRead}, for a file that isn't open as a queue. */
+    private static void ringRead(
+            RandomAccessFile raf, int fileLength, int position, byte[] buffer, int offset, int count)
+            throws IOException {
+        if (position >= fileLength) {
+            position += HEADER_LENGTH - fileLength;
+        }
+        int beforeEof = min(count, fileLength - position);
+        raf.seek(position);
+        raf.readFully(buffer, offset, beforeEof);
+        if (beforeEof < count) {
+            raf.seek(HEADER_LENGTH);
+            raf.readFully(buffer, offset + beforeEof, count - beforeEof);
+        }
+    }
+
+    /**
+     * Opens a random access file. If {@code synchronous} is false, callers are responsible for
+     * forcing writes to storage.
+     */
+    private static RandomAccessFile open(File file, boolean synchronous)
+            throws FileNotFoundException {
+        return new RandomAccessFile(file, synchronous ? "rwd" : "rw");
     }
 
     /** Wraps the position if it exceeds the end of the file. */
@@ -320,6 +651,14 @@ public class QueueFile implements Closeable {
             throw new IndexOutOfBoundsException();
         }
 
+        if (maxPendingElements > 0) {
+            addPending(data, offset, count);
+            if (pendingCount >= maxPendingElements || pendingLength >= MAX_PENDING_BYTES) {
+                commit();
+            }
+            return;
+        }
+
         expandIfNecessary(count);
 
         // Insert a new element after the current last element.
@@ -340,9 +679,79 @@ public class QueueFile implements Closeable {
         // Commit the addition. If wasEmpty, first == last.
         int firstPosition = wasEmpty ? newLast.position : first.position;
         writeHeader(fileLength, elementCount + 1, firstPosition, newLast.position);
+        index(elementCount, newLast.position, count);
         last = newLast;
         elementCount++;
         if (wasEmpty) first = last; // first element
+        dirtyLength = min(dirtyLength, remainingBytes());
+    }
+
+    /** Buffers an element in memory until the next {@link #commit}. */
+    private void addPending(byte[] data, int offset, int count) {
+        int required = pendingLength + Element.HEADER_LENGTH + count;
+        if (pending == null || required > pending.length) {
+            int newLength = pending == null ? INITIAL_LENGTH : pending.length;
+            while (newLength < required) {
+                newLength <<= 1;
+            }
+            byte[] newPending = new byte[newLength];
+            if (pending != null) {
+                System.arraycopy(pending, 0, newPending, 0, pendingLength);
+            }
+            pending = newPending;
+        }
+        writeInt(pending, pendingLength, count);
+        System.arraycopy(data, offset, pending, pendingLength + Element.HEADER_LENGTH, count);
+        pendingLastOffset = pendingLength;
+        pendingLength = required;
+        pendingCount++;
+    }
+
+    /**
+     * Writes all buffered additions to disk with a single data write and a single header update.
+     * Once this method returns, the additions will survive a crash. If an I/O exception is thrown,
+     * nothing is committed and the additions remain buffered, to be retried on the next commit.
+     * This is a no-op if the queue is not in group commit mode or nothing is pending.
+     */
+    public synchronized void commit() throws IOException {
+        if (pendingCount == 0) {
+            return;
+        }
+
+        expandIfNecessary(pendingLength - Element.HEADER_LENGTH);
+
+        boolean wasEmpty = elementCount == 0;
+        int position =
+                wasEmpty
+                        ? HEADER_LENGTH
+                        : wrapPosition(last.position + Element.HEADER_LENGTH + last.length);
+        ringWrite(position, pending, 0, pendingLength);
+
+        int lastLength = readInt(pending, pendingLastOffset);
+        Element newLast = new Element(wrapPosition(position + pendingLastOffset), lastLength);
+        int firstPosition = wasEmpty ? position : first.position;
+        writeHeader(fileLength, elementCount + pendingCount, firstPosition, newLast.position);
+        for (int i = 0, offset = 0; i < pendingCount; i++) {
+            int length = readInt(pending, offset);
+            index(elementCount + i, wrapPosition(position + offset), length);
+            offset += Element.HEADER_LENGTH + length;
+        }
+        if (wasEmpty) first = new Element(position, readInt(pending, 0));
+        last = newLast;
+        elementCount += pendingCount;
+        dirtyLength = min(dirtyLength, remainingBytes());
+
+        pendingCount = 0;
+        pendingLength = 0;
+        pendingLastOffset = 0;
+        if (pending.length > MAX_PENDING_BYTES) {
+            pending = null; // Don't hold on to an unusually large buffer.
+        }
+    }
+
+    /** Returns the number of additions that have not been committed yet. */
+    synchronized int pendingCount() {
+        return pendingCount;
     }
 
     private int usedBytes() {
@@ -370,7 +779,7 @@ public class QueueFile implements Closeable {
 
     /** Returns true if this queue contains no entries. */
     public synchronized boolean isEmpty() {
-        return elementCount == 0;
+        return elementCount + pendingCount == 0;
     }
 
     /**
@@ -402,14 +811,10 @@ public class QueueFile implements Closeable {
         int endOfLastElement = wrapPosition(last.position + Element.HEADER_LENGTH + last.length);
 
         // If the buffer is split, we need to make it contiguous
+        int count = 0;
         if (endOfLastElement <= first.position) {
-            FileChannel channel = raf.getChannel();
-            channel.position(fileLength); // destination position
-            int count = endOfLastElement - HEADER_LENGTH;
-            if (channel.transferTo(HEADER_LENGTH, count, channel) != count) {
-                throw new AssertionError("Copied insufficient number of bytes!");
-            }
-            ringErase(HEADER_LENGTH, count);
+            count = endOfLastElement - HEADER_LENGTH;
+            copy(HEADER_LENGTH, count, fileLength);
         }
 
         // Commit the expansion.
@@ -421,18 +826,49 @@ public class QueueFile implements Closeable {
             writeHeader(newLength, elementCount, first.position, last.position);
         }
 
+        // Elements that had wrapped around to the front of the file were moved to the end.
+        for (int i = 0; i < elementCount; i++) {
+            int slot = slot(i);
+            if (positions[slot] < first.position) {
+                positions[slot] += fileLength - HEADER_LENGTH;
+            }
+        }
         fileLength = newLength;
+
+        // The original copy of the wrapped data is left for eraseFreeSpace(), like removed
+        // elements are.
+        if (count > 0) {
+            moveCount++;
+            dirtyLength = first.position - HEADER_LENGTH;
+        } else if (dirtyLength > first.position - HEADER_LENGTH) {
+            // Part of it is now in the middle of the free space, so erase all of it.
+            dirtyLength = remainingBytes();
+        }
     }
 
     /** Sets the length of the file. */
     private void setLength(int newLength) throws IOException {
         // Set new file length (considered metadata) and sync it to storage.
         raf.setLength(newLength);
-        raf.getChannel().force(true);
+        force(true);
+    }
+
+    /**
+     * Copies {@code count} bytes at {@code position} to {@code target}, within the file. Tests
+     * override this to crash in the middle of the copy.
+     */
+    @Private
+    void copy(int position, int count, int target) throws IOException {
+        FileChannel channel = raf.getChannel();
+        channel.position(target);
+        if (channel.transferTo(position, count, channel) != count) {
+            throw new AssertionError("Copied insufficient number of bytes!");
+        }
     }
 
     /** Reads the eldest element. Returns null if the queue is empty. */
     public synchronized byte[] peek() throws IOException {
+        commit();
         if (isEmpty()) return null;
         int length = first.length;
         byte[] data = new byte[length];
@@ -448,16 +884,30 @@ public class QueueFile implements Closeable {
      * @return number of elements visited
      */
     public synchronized int forEach(PayloadQueue.ElementVisitor reader) throws IOException {
-        int position = first.position;
-        for (int i = 0; i < elementCount; i++) {
-            Element current = readElement(position);
+        return forEach(0, reader);
+    }
+
+    /**
+     * Same as {@link #forEach(PayloadQueue.ElementVisitor)}, but starts after the eldest {@code
+     * skip} elements without reading them.
+     *
+     * @return number of elements visited
+     */
+    public synchronized int forEach(int skip, PayloadQueue.ElementVisitor reader)
+            throws IOException {
+        commit();
+        return forEachCommitted(skip, reader);
+    }
+
+    private int forEachCommitted(int skip, PayloadQueue.ElementVisitor reader) throws IOException {
+        for (int i = skip; i < elementCount; i++) {
+            Element current = new Element(positions[slot(i)], lengths[slot(i)]);
             boolean shouldContinue = reader.read(new ElementInputStream(current), current.length);
             if (!shouldContinue) {
-                return i + 1;
+                return i - skip + 1;
             }
-            position = wrapPosition(current.position + Element.HEADER_LENGTH + current.length);
         }
-        return elementCount;
+        return Math.max(0, elementCount - skip);
     }
 
     @Private
@@ -497,9 +947,145 @@ public class QueueFile implements Closeable {
         }
     }
 
-    /** Returns the number of elements in this queue. */
+    /**
+     * Overwrites {@code count} bytes at {@code offset} within the element at {@code index},
+     * counting from the eldest, with the start of {@code data}.
+     */
+    synchronized void overwrite(int index, int offset, byte[] data, int count) throws IOException {
+        commit();
+        if (index < 0 || index >= elementCount) {
+            throw new IllegalArgumentException(
+                    "Element " + index + " isn't in a queue of " + elementCount + ".");
+        }
+        if (offset < 0 || count < 0 || offset + count > lengths[slot(index)]) {
+            throw new IllegalArgumentException("Write is outside of element " + index + ".");
+        }
+        ringWrite(positions[slot(index)] + Element.HEADER_LENGTH + offset, data, 0, count);
+    }
+
+    /**
+     * Finds the elements after the eldest {@code skip}, up to {@code maxBytes} of data in total.
+     * Only their positions and lengths are read here. The snapshot holds the lock only while it
+     * copies each chunk of data out, and looks the elements up again if they have been moved.
+     */
+    synchronized PayloadQueue.Snapshot snapshot(int skip, int maxBytes) throws IOException {
+        commit();
+        int available = Math.max(0, elementCount - skip);
+        int[] positions = new int[available];
+        int[] lengths = new int[available];
+        int count = 0;
+        int bytes = 0;
+        while (count < available) {
+            int slot = slot(skip + count);
+            bytes += this.lengths[slot];
+            if (bytes > maxBytes) {
+                break;
+            }
+            positions[count] = this.positions[slot];
+            lengths[count] = this.lengths[slot];
+            count++;
+        }
+        return new Snapshot(removedCount + skip, positions, lengths, count, moveCount);
+    }
+
+    /** Returns the position of the element with the given index, counting removed elements. */
+    private int positionOf(long index) throws IOException {
+        long offset = index - removedCount;
+        if (offset < 0 || offset >= elementCount) {
+            throw new IOException("Element " + index + " is no longer in the queue.");
+        }
+        return positions[slot((int) offset)];
+    }
+
+    /** Elements found by {@link #snapshot}, read without holding the lock over the visitor. */
+    private final class Snapshot implements PayloadQueue.Snapshot {
+        /** Index of the first element, counting every element ever removed. */
+        private final long firstIndex;
+
+        private final int[] positions;
+        private final int[] lengths;
+        private final int count;
+
+        /** The {@link #moveCount} that {@link #positions} are valid for. */
+        private int moves;
+
+        Snapshot(long firstIndex, int[] positions, int[] lengths, int count, int moves) {
+            this.firstIndex = firstIndex;
+            this.positions = positions;
+            this.lengths = lengths;
+            this.count = count;
+            this.moves = moves;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public void forEach(PayloadQueue.ElementVisitor visitor) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (!visitor.read(new SnapshotInputStream(i), lengths[i])) {
+                    return;
+                }
+            }
+        }
+
+        /** Makes sure the elements are still there, and looks them up again if they moved. */
+        private void relocate() throws IOException {
+            if (firstIndex < removedCount) {
+                throw new IOException("Element " + firstIndex + " was removed while being read.");
+            }
+            if (moves == moveCount) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                positions[i] = positionOf(firstIndex + i);
+            }
+            moves = moveCount;
+        }
+
+        private final class SnapshotInputStream extends InputStream {
+            private final int index;
+            private int offset;
+
+            SnapshotInputStream(int index) {
+                this.index = index;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if ((offset | length) < 0 || length > buffer.length - offset) {
+                    throw new ArrayIndexOutOfBoundsException();
+                }
+                int remaining = lengths[index] - this.offset;
+                if (remaining == 0) {
+                    return -1;
+                }
+                if (length > remaining) length = remaining;
+                synchronized (QueueFile.this) {
+                    relocate();
+                    ringRead(
+                            positions[index] + Element.HEADER_LENGTH + this.offset,
+                            buffer,
+                            offset,
+                            length);
+                }
+                this.offset += length;
+                return length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+        }
+    }
+
+    /** Returns the number of elements in this queue, including those not committed yet. */
     public synchronized int size() {
-        return elementCount;
+        return elementCount + pendingCount;
     }
 
     /**
@@ -517,6 +1103,7 @@ public class QueueFile implements Closeable {
      * @throws NoSuchElementException if the queue is empty
      */
     public synchronized void remove(int n) throws IOException {
+        commit();
         if (isEmpty()) {
             throw new NoSuchElementException();
         }
@@ -540,49 +1127,81 @@ public class QueueFile implements Closeable {
                             + ").");
         }
 
-        final int eraseStartPosition = first.position;
-        int eraseTotalLength = 0;
-
-        // Read the position and length of the new first element.
-        int newFirstPosition = first.position;
-        int newFirstLength = first.length;
-        for (int i = 0; i < n; i++) {
-            eraseTotalLength += Element.HEADER_LENGTH + newFirstLength;
-            newFirstPosition =
-                    wrapPosition(newFirstPosition + Element.HEADER_LENGTH + newFirstLength);
-            ringRead(newFirstPosition, buffer, 0, Element.HEADER_LENGTH);
-            newFirstLength = readInt(buffer, 0);
-        }
+        int newFirstPosition = positions[slot(n)];
+        int newFirstLength = lengths[slot(n)];
+        int removedLength =
+                newFirstPosition > first.position
+                        ? newFirstPosition - first.position
+                        : newFirstPosition - HEADER_LENGTH + fileLength - first.position;
 
         // Commit the header.
         writeHeader(fileLength, elementCount - n, newFirstPosition, last.position);
         elementCount -= n;
+        removedCount += n;
+        indexHead = slot(n);
         first = new Element(newFirstPosition, newFirstLength);
 
-        // Commit the erase.
-        ringErase(eraseStartPosition, eraseTotalLength);
+        // The removed elements are left on disk until eraseFreeSpace() is called.
+        dirtyLength += removedLength;
+    }
+
+    /**
+     * Zeroes the space that removed elements took up in the file. Removing elements only updates
+     * the header, so their data stays on disk until this is called, or it is overwritten by new
+     * elements. Call it when the queue isn't busy, if removed elements must not linger.
+     */
+    public synchronized void eraseFreeSpace() throws IOException {
+        int length = min(dirtyLength, remainingBytes());
+        if (elementCount == 0 || length == 0) {
+            dirtyLength = 0;
+            return;
+        }
+        int position = first.position - length;
+        if (position < HEADER_LENGTH) {
+            position += fileLength - HEADER_LENGTH;
+        }
+        ringErase(position, length);
+        dirtyLength = 0;
     }
 
-    /** Clears this queue. Truncates the file to the initial size. */
+    /**
+     * Clears this queue, including additions that have not been committed yet. Truncates the file
+     * to the initial size.
+     */
     public synchronized void clear() throws IOException {
         // Commit the header.
         writeHeader(INITIAL_LENGTH, 0, 0, 0);
+        pendingCount = 0;
+        pendingLength = 0;
+        pendingLastOffset = 0;
 
         // Zero out data.
         raf.seek(HEADER_LENGTH);
         raf.write(ZEROES, 0, INITIAL_LENGTH - HEADER_LENGTH);
 
+        removedCount += elementCount;
+        moveCount++;
         elementCount = 0;
+        indexHead = 0;
+        dirtyLength = 0;
+        if (positions.length > INITIAL_INDEX_CAPACITY) {
+            positions = new int[INITIAL_INDEX_CAPACITY];
+            lengths = new int[INITIAL_INDEX_CAPACITY];
+        }
         first = Element.NULL;
         last = Element.NULL;
         if (fileLength > INITIAL_LENGTH) setLength(INITIAL_LENGTH);
         fileLength = INITIAL_LENGTH;
     }
 
-    /** Closes the underlying file. */
+    /** Commits any pending additions and closes the underlying file. */
     @Override
     public synchronized void close() throws IOException {
-        raf.close();
+        try {
+            commit();
+        } finally {
+            raf.close();
+        }
     }
 
     @Override
@@ -591,11 +1210,13 @@ public class QueueFile implements Closeable {
         builder.append(getClass().getSimpleName()).append('[');
         builder.append("fileLength=").append(fileLength);
         builder.append(", size=").append(elementCount);
+        builder.append(", pending=").append(pendingCount);
         builder.append(", first=").append(first);
         builder.append(", last=").append(last);
         builder.append(", element lengths=[");
         try {
-            forEach(
+            forEachCommitted(
+                    0,
                     new PayloadQueue.ElementVisitor() {
                         boolean first = true;
 
@@ -0,0 +1,352 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * What an {@link EvictionPolicy} needs to know about each element in the disk queue, read from
+ * their {@link RecordHeader}s once and kept in memory, so picking which elements to evict never
+ * reads the queue.
+ *
+ * <p>Elements are identified by their sequence number, the number of elements removed from the
+ * head of the queue before them. The index doesn't do any I/O: {@link #evict} marks elements as
+ * evicted here and returns them, and the caller marks them in the queue. Not thread safe.
+ */
+class QueueIndex {
+    /** Returned by {@link #evict} if the new element should be dropped instead. */
+    static final int DROP = -1;
+
+    /** Flags of an element without a header, which can't be marked as evicted in place. */
+    static final int NO_HEADER = -1;
+
+    private final EvictionPolicy policy;
+    private final int maxCount;
+    private final Random random;
+
+    /** Sequence number of the first element. */
+    private long first;
+    /** Number of elements, whether they're evicted or not. */
+    private int count;
+    /** Where the first element is in the ring of arrays below. */
+    private int head;
+
+    private int[] values = new int[16];
+    private int[] nameHashes = new int[16];
+    private int[] lengths = new int[16];
+    /** Flags stored in the header of each element, or {@link #NO_HEADER}. */
+    private int[] flags = new int[16];
+
+    private boolean[] evicted = new boolean[16];
+
+    private int evictedCount;
+    private long bytes;
+    private long evictedBytes;
+
+    /** Sequence numbers of the elements evicted by the last call to {@link #evict}. */
+    private long[] victims = new long[4];
+
+    private int victimCount;
+    /**
+     * Number of elements worth {@link #sampledValue} that were offered since the queue filled up,
+     * including those it held then, see {@link EvictionPolicy#sampled()}.
+     */
+    private int sampled;
+
+    private int sampledValue = -1;
+
+    QueueIndex(EvictionPolicy policy, int maxCount, long first, Random random) {
+        this.policy = policy;
+        this.maxCount = maxCount;
+        this.first = first;
+        this.random = random;
+    }
+
+    /** Adds the element after the last one. */
+    void add(RecordHeader header, int length) {
+        if (count == values.length) {
+            values = grow(values);
+            nameHashes = grow(nameHashes);
+            lengths = grow(lengths);
+            flags = grow(flags);
+            boolean[] grown = new boolean[evicted.length * 2];
+            System.arraycopy(evicted, head, grown, 0, evicted.length - head);
+            System.arraycopy(evicted, 0, grown, evicted.length - head, head);
+            evicted = grown;
+            head = 0;
+        }
+        int slot = slot(count);
+        values[slot] = policy.value(header.type, header.priority, header.nameHash);
+        nameHashes[slot] = header.nameHash;
+        lengths[slot] = length;
+        flags[slot] = header.version == 0 ? NO_HEADER : header.flags;
+        evicted[slot] = header.version != 0 && (header.flags & RecordHeader.FLAG_EVICTED) != 0;
+        count++;
+        bytes += length;
+        if (evicted[slot]) {
+            // Marked before the index was loaded.
+            evictedCount++;
+            evictedBytes += length;
+        }
+    }
+
+    /** Returns the ring arrays in order from the first element, with twice the room. */
+    private int[] grow(int[] ring) {
+        int[] grown = new int[ring.length * 2];
+        System.arraycopy(ring, head, grown, 0, ring.length - head);
+        System.arraycopy(ring, 0, grown, ring.length - head, head);
+        return grown;
+    }
+
+    /** Forgets the elements before {@code sequence}, which were removed from the queue. */
+    void removeTo(long sequence) {
+        while (first < sequence && count > 0) {
+            if (isEvicted(head)) {
+                evictedCount--;
+                evictedBytes -= lengths[head];
+            }
+            bytes -= lengths[head];
+            head = (head + 1) & (values.length - 1);
+            count--;
+            first++;
+        }
+        first = Math.max(first, sequence);
+    }
+
+    /** Number of elements, evicted or not. */
+    int size() {
+        return count;
+    }
+
+    /** Bytes stored by all elements, evicted or not. */
+    long bytes() {
+        return bytes;
+    }
+
+    /** Number of elements that weren't evicted. */
+    int liveCount() {
+        return count - evictedCount;
+    }
+
+    /** Bytes stored by elements that weren't evicted. */
+    long liveBytes() {
+        return bytes - evictedBytes;
+    }
+
+    /** Number of evicted elements at the head of the queue, which can be removed. */
+    int evictedHead() {
+        int n = 0;
+        while (n < count && isEvicted(slot(n))) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Whether the queue holds twice as many elements or bytes as the policy allows, counting
+     * evicted ones, in which case the oldest are removed regardless of the policy.
+     */
+    boolean isOversized() {
+        return count > 2 * maxCount
+                || (policy.maxQueueBytes > 0 && bytes > 2L * policy.maxQueueBytes);
+    }
+
+    /**
+     * Evicts the elements the policy picks to make room for a new element with the given header
+     * and length, see {@link #victim}. The caller marks them in the queue.
+     *
+     * @return how many elements were evicted, or {@link #DROP} if the new element should be
+     *     dropped instead, in which case nothing is evicted.
+     */
+    int evict(RecordHeader header, int length) {
+        victimCount = 0;
+        int value = policy.value(header.type, header.priority, header.nameHash);
+        Integer quota = header.nameHash == 0 ? null : policy.quotas.get(header.nameHash);
+        if (quota != null) {
+            // Replaces the oldest events with the same name, whether or not the queue is full.
+            int queued = 0;
+            for (int i = 0; i < count; i++) {
+                int slot = slot(i);
+                if (!isEvicted(slot) && nameHashes[slot] == header.nameHash) {
+                    queued++;
+                }
+            }
+            for (int i = 0; i < count && queued >= quota; i++) {
+                int slot = slot(i);
+                if (!isEvicted(slot) && nameHashes[slot] == header.nameHash && isEvictable(i)) {
+                    markEvicted(i);
+                    queued--;
+                }
+            }
+        }
+        if (!isFull(length)) {
+            // Sampling starts over the next time the queue fills up.
+            sampledValue = -1;
+            return victimCount;
+        }
+        if (policy.strategy == EvictionPolicy.Strategy.SAMPLED && !keepSample(value)) {
+            restoreVictims();
+            return DROP;
+        }
+        while (isFull(length)) {
+            int i = pickVictim(value);
+            if (i < 0) {
+                restoreVictims();
+                return DROP;
+            }
+            markEvicted(i);
+        }
+        return victimCount;
+    }
+
+    /** Sequence number of the {@code i}th element evicted by the last call to {@link #evict}. */
+    long victim(int i) {
+        return victims[i];
+    }
+
+    /**
+     * Flags stored in the header of the element, or {@link #NO_HEADER}. Evicted elements are
+     * marked in the queue with {@link RecordHeader#FLAG_EVICTED} added to these.
+     */
+    int flags(long sequence) {
+        return flags[slot((int) (sequence - first))];
+    }
+
+    /** Whether another element of the given length would put the queue over its limits. */
+    private boolean isFull(int length) {
+        return liveCount() >= maxCount
+                || (policy.maxQueueBytes > 0 && liveBytes() + length > policy.maxQueueBytes);
+    }
+
+    /**
+     * Decides whether a new element that is worth the least is kept in the sample, with a
+     * probability of the number of them in the queue over the number offered since it filled up.
+     */
+    private boolean keepSample(int value) {
+        int lowest = lowestValue();
+        if (lowest < 0 || value != lowest) {
+            return true;
+        }
+        int queued = countLive(value);
+        if (sampledValue != value) {
+            sampledValue = value;
+            sampled = queued;
+        }
+        sampled++;
+        return random.nextInt(sampled) < queued;
+    }
+
+    /**
+     * Picks the next element to evict for a new element worth {@code value}: the oldest element,
+     * or for the other strategies one of the elements worth the least, the oldest one or one at
+     * random. Returns its index from the first element, or {@code -1} if the new element is worth
+     * less than everything in the queue, or nothing can be evicted.
+     */
+    private int pickVictim(int value) {
+        if (policy.strategy == EvictionPolicy.Strategy.OLDEST_FIRST) {
+            for (int i = 0; i < count; i++) {
+                if (!isEvicted(slot(i)) && isEvictable(i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int lowest = lowestValue();
+        if (lowest < 0 || value < lowest) {
+            return -1;
+        }
+        int candidates = policy.strategy == EvictionPolicy.Strategy.SAMPLED ? countLive(lowest) : 1;
+        int pick = candidates > 1 ? random.nextInt(candidates) : 0;
+        for (int i = 0; i < count; i++) {
+            int slot = slot(i);
+            if (!isEvicted(slot) && isEvictable(i) && values[slot] == lowest && pick-- == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Lowest value of an element that can be evicted, or {@code -1} if there is none. */
+    private int lowestValue() {
+        int lowest = -1;
+        for (int i = 0; i < count; i++) {
+            int slot = slot(i);
+            if (!isEvicted(slot) && isEvictable(i) && (lowest < 0 || values[slot] < lowest)) {
+                lowest = values[slot];
+            }
+        }
+        return lowest;
+    }
+
+    /** Number of elements with the given value that can be evicted. */
+    private int countLive(int value) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = slot(i);
+            if (!isEvicted(slot) && isEvictable(i) && values[slot] == value) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Whether the {@code i}th element can be evicted. Elements without a header can't be marked,
+     * so they're only evicted from the head of the queue, where they can be removed.
+     */
+    private boolean isEvictable(int i) {
+        return i == 0 || flags[slot(i)] != NO_HEADER;
+    }
+
+    private boolean isEvicted(int slot) {
+        return evicted[slot];
+    }
+
+    private void markEvicted(int i) {
+        int slot = slot(i);
+        evicted[slot] = true;
+        evictedCount++;
+        evictedBytes += lengths[slot];
+        if (victimCount == victims.length) {
+            victims = Arrays.copyOf(victims, victimCount * 2);
+        }
+        victims[victimCount++] = first + i;
+    }
+
+    /** Takes back the evictions of the last call to {@link #evict}. */
+    private void restoreVictims() {
+        for (int v = 0; v < victimCount; v++) {
+            int slot = slot((int) (victims[v] - first));
+            evicted[slot] = false;
+            evictedCount--;
+            evictedBytes -= lengths[slot];
+        }
+        victimCount = 0;
+    }
+
+    private int slot(int i) {
+        return (head + i) & (values.length - 1);
+    }
+}
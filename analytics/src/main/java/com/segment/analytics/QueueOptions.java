@@ -0,0 +1,62 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+/**
+ * How the Segment integration queues events on disk, as configured on {@link Analytics.Builder}.
+ * Grouped so that adding an option doesn't change the signature of every constructor it passes
+ * through.
+ */
+final class QueueOptions {
+
+    /** The options of a builder that wasn't told otherwise. */
+    static final QueueOptions DEFAULT =
+            new QueueOptions(
+                    QueueDurability.everyWrite(),
+                    EvictionPolicy.oldestFirst(),
+                    QueueFormat.FILE,
+                    false,
+                    false);
+
+    final QueueDurability durability;
+    final EvictionPolicy evictionPolicy;
+    final QueueFormat format;
+    /** Queue payloads as {@link BinaryJson} instead of JSON text. */
+    final boolean binaryEncoding;
+    /** Queue payloads deflated, ready to be spliced into a gzipped batch. */
+    final boolean compressed;
+
+    QueueOptions(
+            QueueDurability durability,
+            EvictionPolicy evictionPolicy,
+            QueueFormat format,
+            boolean binaryEncoding,
+            boolean compressed) {
+        this.durability = durability;
+        this.evictionPolicy = evictionPolicy;
+        this.format = format;
+        this.binaryEncoding = binaryEncoding;
+        this.compressed = compressed;
+    }
+}
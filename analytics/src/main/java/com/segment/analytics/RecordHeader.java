@@ -0,0 +1,375 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata stored in front of each payload in the disk queue, so payloads can be filtered, expired
+ * and prioritized without decrypting and parsing them. Instances are mutable so one can be reused
+ * for every element that is read or written.
+ *
+ * <pre>
+ *   Format:
+ *     Magic           (3 bytes, 0xFE 'S' 'R')
+ *     Version         (1 byte)
+ *     Header Length   (1 byte)
+ *     Type            (1 byte, 0 if unknown)
+ *     Priority        (1 byte)
+ *     Flags           (1 byte)
+ *     Timestamp       (8 bytes, when the payload was queued in milliseconds since the epoch)
+ *     Message ID Hash (4 bytes)
+ *     Context ID      (8 bytes, since version 2, 0 if the payload has its own context)
+ *     Name Hash       (4 bytes, since version 3, hash of a track event's name, 0 otherwise)
+ *     Checksum        (4 bytes, since version 4, CRC-32 of the payload as stored)
+ *     Payload         (Element Length - Header Length bytes)
+ * </pre>
+ *
+ * The magic can't start a JSON payload, since 0xFE never appears in UTF-8. Later versions may add
+ * fields at the end of the header, and readers skip whatever they don't know using the header
+ * length. Version 1 headers are {@link #MIN_LENGTH} bytes long.
+ *
+ * <p>The checksum covers the payload but not the header, whose flags are updated in place. It lets
+ * {@link QueueFile#recover} tell intact payloads from garbage when a queue file is corrupted.
+ *
+ * <p>Elements queued before headers were introduced are only a payload. They are read as version
+ * {@code 0}, with an unknown type and no timestamp, so existing queue files are migrated as they
+ * are uploaded instead of being rewritten.
+ */
+final class RecordHeader {
+    /** Length of the header written by this version. */
+    static final int LENGTH = 36;
+
+    /** Length of the shortest header, written by version 1. */
+    static final int MIN_LENGTH = 20;
+
+    static final int VERSION = 4;
+
+    static final int PRIORITY_NORMAL = 0;
+
+    /** The payload was enqueued with {@link BasePayload.Priority#HIGH}. */
+    static final int PRIORITY_HIGH = 1;
+
+    /** The payload was passed through {@link Crypto#encrypt}. */
+    static final int FLAG_ENCRYPTED = 1;
+
+    /**
+     * The payload was queued without its {@code context}, which is kept in a {@link ContextStore}
+     * under {@link #contextId}.
+     */
+    static final int FLAG_SHARED_CONTEXT = 2;
+
+    /** The payload is encoded by {@link BinaryJson}, and is decoded before it's uploaded. */
+    static final int FLAG_BINARY = 4;
+
+    /**
+     * The payload was compressed by {@link PayloadDeflater}, and is spliced into the upload as it
+     * is.
+     */
+    static final int FLAG_DEFLATED = 8;
+
+    /**
+     * The payload was evicted from a full queue, and is left out of the upload. Set in place on
+     * payloads that can't be removed yet because they aren't at the head of the queue.
+     */
+    static final int FLAG_EVICTED = 16;
+
+    /** Offset of the flags within the header, so they can be updated in place. */
+    static final int FLAGS_OFFSET = 7;
+
+    /** Offset of the name hash, which is also where version 2 headers end. */
+    private static final int NAME_HASH_OFFSET = 28;
+
+    /** Offset of the checksum, which is also where version 3 headers end. */
+    private static final int CHECKSUM_OFFSET = 32;
+
+    private static final int MAGIC_0 = 0xFE;
+    private static final int MAGIC_1 = 'S';
+    private static final int MAGIC_2 = 'R';
+
+    /** Header version, or {@code 0} if the element has no header. */
+    int version;
+    /** Code of the payload type, see {@link #typeCode}. */
+    int type;
+
+    int priority;
+    int flags;
+    /** When the payload was queued, in milliseconds since the epoch, or {@code 0} if unknown. */
+    long timestamp;
+
+    int messageIdHash;
+    /** Id of the payload's context in a {@link ContextStore}, or {@code 0} if it has its own. */
+    long contextId;
+    /** {@link String#hashCode} of a track event's name, or {@code 0} for other payloads. */
+    int nameHash;
+    /** CRC-32 of the payload as stored, valid if {@link #headerLength} covers it. */
+    int checksum;
+    /** Length of the header in the element, or {@code 0} if it has none. */
+    int headerLength;
+    /** Length of the payload that follows the header, as stored. */
+    int payloadLength;
+
+    private final byte[] buffer = new byte[LENGTH];
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Describes a payload that is about to be queued. If {@code contextId} isn't {@code 0}, it is
+     * queued without its context, see {@link #FLAG_SHARED_CONTEXT}.
+     */
+    RecordHeader set(
+            BasePayload payload, long timestamp, int priority, int flags, long contextId) {
+        this.version = VERSION;
+        this.type = typeCode(payload.type());
+        this.priority = priority;
+        this.flags = contextId == 0 ? flags : flags | FLAG_SHARED_CONTEXT;
+        this.timestamp = timestamp;
+        this.contextId = contextId;
+        String messageId = payload.messageId();
+        this.messageIdHash = messageId == null ? 0 : messageId.hashCode();
+        this.nameHash = nameHash(payload);
+        this.headerLength = LENGTH;
+        return this;
+    }
+
+    /**
+     * Writes this header into {@code dest} at {@code offset}, in {@link #LENGTH} bytes. Set the
+     * {@link #checksum} first.
+     */
+    void writeTo(byte[] dest, int offset) {
+        dest[offset] = (byte) MAGIC_0;
+        dest[offset + 1] = (byte) MAGIC_1;
+        dest[offset + 2] = (byte) MAGIC_2;
+        dest[offset + 3] = (byte) VERSION;
+        dest[offset + 4] = (byte) LENGTH;
+        dest[offset + 5] = (byte) type;
+        dest[offset + 6] = (byte) priority;
+        dest[offset + FLAGS_OFFSET] = (byte) flags;
+        for (int i = 0; i < 8; i++) {
+            dest[offset + 8 + i] = (byte) (timestamp >> (56 - 8 * i));
+        }
+        writeInt(dest, offset + 16, messageIdHash);
+        for (int i = 0; i < 8; i++) {
+            dest[offset + 20 + i] = (byte) (contextId >> (56 - 8 * i));
+        }
+        writeInt(dest, offset + NAME_HASH_OFFSET, nameHash);
+        writeInt(dest, offset + CHECKSUM_OFFSET, checksum);
+    }
+
+    /** Returns the CRC-32 of {@code count} bytes of {@code data}, to store as {@link #checksum}. */
+    int checksum(byte[] data, int offset, int count) {
+        crc.reset();
+        crc.update(data, offset, count);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns whether the element in the first {@code length} bytes of {@code data} looks intact.
+     * Payloads are checked against their checksum. Older ones can only be checked for a header
+     * that makes sense. Those queued without a header, maybe encrypted by {@link Crypto}, can't
+     * be checked at all, and are taken as they are.
+     */
+    boolean isIntact(byte[] data, int length) {
+        if (!parse(data, 0, Math.min(length, LENGTH), length)) {
+            return true;
+        }
+        return headerLength < LENGTH || checksum == checksum(data, headerLength, payloadLength);
+    }
+
+    private static void writeInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) (value >> 24);
+        dest[offset + 1] = (byte) (value >> 16);
+        dest[offset + 2] = (byte) (value >> 8);
+        dest[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Reads the header of an element from {@code data}, which holds the first {@code count} bytes
+     * of an element that is {@code length} bytes long. {@code count} must cover the header, up to
+     * {@link #LENGTH} bytes of it.
+     *
+     * @return whether the element has a header. If not, this describes a payload without metadata.
+     */
+    boolean parse(byte[] data, int offset, int count, int length) {
+        if (!isHeader(data, offset, count, length)) {
+            version = 0;
+            type = 0;
+            priority = PRIORITY_NORMAL;
+            flags = 0;
+            timestamp = 0;
+            messageIdHash = 0;
+            contextId = 0;
+            nameHash = 0;
+            checksum = 0;
+            headerLength = 0;
+            payloadLength = length;
+            return false;
+        }
+        version = data[offset + 3] & 0xff;
+        headerLength = data[offset + 4] & 0xff;
+        type = data[offset + 5] & 0xff;
+        priority = data[offset + 6] & 0xff;
+        flags = data[offset + FLAGS_OFFSET] & 0xff;
+        timestamp = readLong(data, offset + 8);
+        messageIdHash = readInt(data, offset + 16);
+        contextId =
+                headerLength >= NAME_HASH_OFFSET && count >= NAME_HASH_OFFSET
+                        ? readLong(data, offset + 20)
+                        : 0;
+        nameHash =
+                headerLength >= CHECKSUM_OFFSET && count >= CHECKSUM_OFFSET
+                        ? readInt(data, offset + NAME_HASH_OFFSET)
+                        : 0;
+        checksum =
+                headerLength >= LENGTH && count >= LENGTH
+                        ? readInt(data, offset + CHECKSUM_OFFSET)
+                        : 0;
+        if (contextId == 0) {
+            flags &= ~FLAG_SHARED_CONTEXT;
+        }
+        payloadLength = length - headerLength;
+        return true;
+    }
+
+    /** Returns whether the first {@code count} bytes of an element start with a header. */
+    private static boolean isHeader(byte[] data, int offset, int count, int length) {
+        if (count < MIN_LENGTH) {
+            return false;
+        }
+        int headerLength = data[offset + 4] & 0xff;
+        return (data[offset] & 0xff) == MAGIC_0
+                && data[offset + 1] == MAGIC_1
+                && data[offset + 2] == MAGIC_2
+                && data[offset + 3] != 0
+                && headerLength >= MIN_LENGTH
+                && headerLength <= length;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the header at the start of an element that is {@code length} bytes long.
+     *
+     * @return a stream of the payload after the header, {@link #payloadLength} bytes long.
+     */
+    InputStream read(InputStream in, int length) throws IOException {
+        int count = read(in, 0, Math.min(MIN_LENGTH, length));
+        if (!isHeader(buffer, 0, count, length)) {
+            parse(buffer, 0, count, length);
+            // No header, what was read is the start of the payload.
+            return new SequenceInputStream(
+                    new ByteArrayInputStream(Arrays.copyOf(buffer, count)), in);
+        }
+        int headerLength = buffer[4] & 0xff;
+        count += read(in, count, Math.min(headerLength, LENGTH) - count);
+        parse(buffer, 0, count, length);
+        // Skip fields added by later versions.
+        for (long skip = headerLength - count; skip > 0; ) {
+            long n = in.skip(skip);
+            if (n <= 0) {
+                throw new IOException("Element ended within its header.");
+            }
+            skip -= n;
+        }
+        return in;
+    }
+
+    /** Reads up to {@code max} bytes into {@link #buffer} at {@code offset}. */
+    private int read(InputStream in, int offset, int max) throws IOException {
+        int count = 0;
+        while (count < max) {
+            int n = in.read(buffer, offset + count, max - count);
+            if (n == -1) break;
+            count += n;
+        }
+        return count;
+    }
+
+    /** Returns the hash stored for the name of the given payload, see {@link #nameHash}. */
+    static int nameHash(BasePayload payload) {
+        if (!(payload instanceof TrackPayload)) {
+            return 0;
+        }
+        String event = ((TrackPayload) payload).event();
+        return event == null ? 0 : event.hashCode();
+    }
+
+    /** Returns the code stored for the given payload type. */
+    static int typeCode(BasePayload.Type type) {
+        if (type == null) {
+            return 0;
+        }
+        switch (type) {
+            case alias:
+                return 1;
+            case group:
+                return 2;
+            case identify:
+                return 3;
+            case screen:
+                return 4;
+            case track:
+                return 5;
+            default:
+                return 0;
+        }
+    }
+
+    /** Returns the payload type for a code stored in a header, or null if it is unknown. */
+    static BasePayload.Type type(int code) {
+        switch (code) {
+            case 1:
+                return BasePayload.Type.alias;
+            case 2:
+                return BasePayload.Type.group;
+            case 3:
+                return BasePayload.Type.identify;
+            case 4:
+                return BasePayload.Type.screen;
+            case 5:
+                return BasePayload.Type.track;
+            default:
+                return null;
+        }
+    }
+}
@@ -28,14 +28,25 @@ import static com.segment.analytics.internal.Utils.THREAD_PREFIX;
 import static com.segment.analytics.internal.Utils.closeQuietly;
 import static com.segment.analytics.internal.Utils.createDirectory;
 import static com.segment.analytics.internal.Utils.isConnected;
+import static com.segment.analytics.internal.Utils.isUnmetered;
 import static com.segment.analytics.internal.Utils.toISO8601Date;
 
+import android.app.Activity;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.util.JsonWriter;
+import androidx.annotation.NonNull;
+import com.segment.analytics.BatchOutputStream.Prefix;
 import com.segment.analytics.integrations.AliasPayload;
 import com.segment.analytics.integrations.BasePayload;
 import com.segment.analytics.integrations.GroupPayload;
@@ -46,22 +57,28 @@ import com.segment.analytics.integrations.ScreenPayload;
 import com.segment.analytics.integrations.TrackPayload;
 import com.segment.analytics.internal.Private;
 import com.segment.analytics.internal.Utils.AnalyticsThreadFactory;
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /** Entity that queues payloads on disks and uploads them periodically. */
@@ -83,6 +100,7 @@ class SegmentIntegration extends Integration<Void> {
                             analytics.flushQueueSize,
                             analytics.getLogger(),
                             analytics.crypto,
+                            analytics.queueOptions,
                             settings);
                 }
 
@@ -106,14 +124,27 @@ class SegmentIntegration extends Integration<Void> {
      * integrations} and other json tokens.
      */
     @Private static final int MAX_BATCH_SIZE = 475000; // 475KB.
+    /**
+     * Maximum number of batches that are reserved at once. Matches the number of concurrent
+     * requests the default network executor allows.
+     */
+    static final int MAX_IN_FLIGHT_BATCHES = 2;
+    /** Most payloads uploaded in one request from the {@link #expressQueue}. */
+    static final int MAX_EXPRESS_BATCH_SIZE = 10;
+    /**
+     * High priority payloads beyond this many, e.g. while offline, are queued with all others
+     * instead, so the express queue stays small enough to upload within a few requests.
+     */
+    static final int MAX_EXPRESS_QUEUE_SIZE = 100;
 
     @Private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final String SEGMENT_THREAD_NAME = THREAD_PREFIX + "SegmentDispatcher";
     static final String SEGMENT_KEY = "Segment.io";
+    /** Key of the context in a payload. */
+    private static final String CONTEXT_KEY = "context";
     private final Context context;
     private final PayloadQueue payloadQueue;
     private final Client client;
-    private final int flushQueueSize;
     private final Stats stats;
     private final Handler handler;
     private final HandlerThread segmentThread;
@@ -121,8 +152,40 @@ class SegmentIntegration extends Integration<Void> {
     private final Map<String, Boolean> bundledIntegrations;
     private final Cartographer cartographer;
     private final ExecutorService networkExecutor;
-    private final ScheduledExecutorService flushScheduler;
+    /** Decides when to upload, instead of a fixed interval and queue size. */
+    final FlushScheduler flushScheduler;
+    /**
+     * Payloads enqueued with {@link BasePayload.Priority#HIGH}. They are uploaded as soon as they
+     * are added, by the {@link #expressExecutor}, without waiting for the {@link #payloadQueue}.
+     */
+    private final PayloadQueue expressQueue;
+    /**
+     * Uploads the {@link #expressQueue} on a thread of its own, so that it doesn't wait for the
+     * batches in flight on the {@link #networkExecutor}. A single thread uploads one batch at a
+     * time, which keeps the payloads in order.
+     */
+    private final ExecutorService expressExecutor;
+    /** Backs off the {@link #expressQueue} after failed uploads, separately from the others. */
+    private final FlushScheduler expressScheduler;
+    private final BroadcastReceiver connectivityReceiver;
+    /** Commits buffered events when the system is low on memory, and may kill the process. */
+    private final ComponentCallbacks2 memoryCallbacks;
     private final String apiHost;
+    private final QueueDurability queueDurability;
+    private final EvictionPolicy evictionPolicy;
+    /**
+     * Metadata of the queued payloads for the {@link #evictionPolicy}, loaded on the first enqueue
+     * that needs it. Null for the default policy, which only needs the size of the queue. Only
+     * used on the dispatcher thread, so payloads that uploads removed are only dropped from it
+     * there, see {@link #makeRoom(int)}.
+     */
+    private QueueIndex queueIndex;
+    /** Flags written in place to mark a payload as evicted. */
+    private final byte[] evictedFlags = new byte[1];
+    /** Whether a {@link SegmentDispatcherHandler#REQUEST_COMMIT} message is waiting to run. */
+    private boolean commitScheduled;
+    /** Number of started activities, only updated on the thread integrations run on. */
+    private int startedActivities;
     /**
      * We don't want to stop adding payloads to our disk queue when we're uploading payloads. So we
      * upload payloads on a network executor instead.
@@ -142,30 +205,306 @@ class SegmentIntegration extends Integration<Void> {
      * uploaded.
      *
      * <p>This lock is used ensure that the Dispatcher thread doesn't remove payloads when we're
-     * uploading.
+     * uploading. It guards the batch reservations below, and is only held while they're updated,
+     * so that up to {@link #MAX_IN_FLIGHT_BATCHES} uploads can be in flight at once. The
+     * Dispatcher never waits for an upload to evict payloads, see {@link #evictionDebt}.
      */
     @Private final Object flushLock = new Object();
+    /**
+     * Batches that have been read from the queue and not removed yet, in queue order. Each covers
+     * the elements right after the previous one, and the first starts at the head of the queue.
+     */
+    private final LinkedList<Batch> batches = new LinkedList<>();
+    /** Number of elements ever removed from the head of the queue. */
+    private long headSequence;
+    /** Sequence number of the first element not reserved by a batch. */
+    private long reservedSequence;
+    /**
+     * Number of {@link #performFlush()} calls running. The claim on a queue shared with other
+     * processes is given up once none are, and no batches are in flight.
+     */
+    private int flushing;
+    /**
+     * Whether an upload failed. No new batches are reserved until all in-flight batches are done,
+     * and batches behind the failed one are released to be retried too.
+     */
+    private boolean uploadFailed;
+    /**
+     * Number of the oldest payloads that were evicted from the full queue, but are still in it
+     * because an upload in flight has them reserved. They're removed along with the batch if the
+     * upload succeeds, and otherwise once the reservation is released. Never more than the number
+     * of reserved payloads.
+     */
+    private int evictionDebt;
 
     private final Crypto crypto;
+    /** Reused by {@link #performEnqueue}, which only runs on the dispatcher thread. */
+    private final JsonEncoder encoder = new JsonEncoder();
+
+    private final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    /** Reused by {@link #performEnqueue}, which only runs on the dispatcher thread. */
+    private final JsonEncoder contextEncoder = new JsonEncoder();
+    /** Contexts of queued payloads, or null if payloads are queued with their context. */
+    private final ContextStore contextStore;
+    /**
+     * Encodes payloads in the compact binary form before they are queued, or null if they are
+     * queued as JSON. Only used by {@link #performEnqueue}, which runs on the dispatcher thread.
+     */
+    private final BinaryJson binaryEncoder;
+    /**
+     * Compresses payloads before they are queued, or null if they are queued uncompressed. Only
+     * used by {@link #performEnqueue}, which runs on the dispatcher thread.
+     */
+    private final PayloadDeflater payloadDeflater;
+    /** Reused by {@link #performEnqueue}, which only runs on the dispatcher thread. */
+    private final RecordHeader recordHeader = new RecordHeader();
+    /** Body of the last batch that failed to upload, or null if the queue isn't on disk. */
+    private final BatchCache batchCache;
 
     /**
      * Create a {@link QueueFile} in the given folder with the given name. If the underlying file is
-     * somehow corrupted, we'll delete it, and try to recreate the file. This method will throw an
-     * {@link IOException} if the directory doesn't exist and could not be created.
+     * somehow corrupted, it is rebuilt from the intact payloads at its start, see {@link
+     * #recoverQueueFile}. If even that fails, we'll delete it, and try to recreate the file. This
+     * method will throw an {@link IOException} if the directory doesn't exist and could not be
+     * created.
+     */
+    static QueueFile createQueueFile(File folder, String name, Stats stats) throws IOException {
+        return createQueueFile(folder, name, 0, stats);
+    }
+
+    /**
+     * Same as {@link #createQueueFile(File, String, Stats)}, but opens the file in group commit
+     * mode if {@code maxPendingElements} is positive.
+     */
+    static QueueFile createQueueFile(
+            File folder, String name, final int maxPendingElements, Stats stats)
+            throws IOException {
+        return openOrRecover(
+                folder,
+                name,
+                stats,
+                new QueueOpener<QueueFile>() {
+                    @Override
+                    QueueFile open(File file) throws IOException {
+                        return new QueueFile(file, maxPendingElements);
+                    }
+                });
+    }
+
+    /**
+     * Same as {@link #createQueueFile(File, String, int, Stats)}, but opens the file to be shared
+     * with other processes.
+     */
+    static SharedQueue createSharedQueue(
+            File folder, String name, final int maxPendingElements, Stats stats)
+            throws IOException {
+        return openOrRecover(
+                folder,
+                name,
+                stats,
+                new QueueOpener<SharedQueue>() {
+                    @Override
+                    SharedQueue open(File file) throws IOException {
+                        return new SharedQueue(file, maxPendingElements);
+                    }
+
+                    @Override
+                    boolean repair(final File file, final Stats stats) throws IOException {
+                        // Other processes may have the file open, so it is only rebuilt or
+                        // deleted while they can't write to it.
+                        return SharedQueue.whileLocked(
+                                file,
+                                new SharedQueue.LockedTask() {
+                                    @Override
+                                    public boolean run() {
+                                        return repairQueueFile(file, stats);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /** Opens one kind of queue file, see {@link #openOrRecover}. */
+    abstract static class QueueOpener<T> {
+        abstract T open(File file) throws IOException;
+
+        /**
+         * Makes a file that couldn't be opened usable again, see {@link #repairQueueFile}.
+         *
+         * @return false if it couldn't be
+         */
+        boolean repair(File file, Stats stats) throws IOException {
+            return repairQueueFile(file, stats);
+        }
+    }
+
+    /**
+     * Opens the queue file {@code name} in {@code folder} with {@code opener}. A file that can't
+     * be opened is repaired, and opened again.
      */
-    static QueueFile createQueueFile(File folder, String name) throws IOException {
+    static <T> T openOrRecover(File folder, String name, Stats stats, QueueOpener<T> opener)
+            throws IOException {
         createDirectory(folder);
         File file = new File(folder, name);
         try {
-            return new QueueFile(file);
+            return opener.open(file);
+        } catch (IOException e) {
+            if (opener.repair(file, stats)) {
+                return opener.open(file);
+            }
+            throw new IOException("Could not create queue file (" + name + ") in " + folder + ".");
+        }
+    }
+
+    /**
+     * Rebuilds a queue file from its intact payloads, see {@link #recoverQueueFile}. If even that
+     * fails, the file is deleted, so that it can be created again.
+     *
+     * @return false if the file could neither be rebuilt nor deleted
+     */
+    static boolean repairQueueFile(File file, Stats stats) {
+        return recoverQueueFile(file, stats) || file.delete();
+    }
+
+    /**
+     * Rebuilds a queue file that couldn't be opened from the longest run of intact payloads at
+     * its start, as told by their {@link RecordHeader#checksum}, and records how many payloads
+     * were salvaged and lost.
+     *
+     * @return false if the file couldn't be rebuilt
+     */
+    private static boolean recoverQueueFile(File file, Stats stats) {
+        final RecordHeader header = new RecordHeader();
+        try {
+            QueueFile.Recovery recovery =
+                    QueueFile.recover(
+                            file,
+                            new QueueFile.ElementValidator() {
+                                @Override
+                                public boolean isValid(byte[] data, int length) {
+                                    return header.isIntact(data, length);
+                                }
+                            });
+            stats.recordQueueRecovery(recovery.salvaged, recovery.lost);
+            return true;
         } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the name of this process, which is the package name for the main process. Falls
+     * back to the package name if it can't be read.
+     */
+    static String processName(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return Application.getProcessName();
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/cmdline"));
+            String name = reader.readLine();
+            if (name != null) {
+                // Arguments are separated by NUL, the first one is the process name.
+                int end = name.indexOf('\0');
+                name = (end >= 0 ? name.substring(0, end) : name).trim();
+                if (!name.isEmpty()) {
+                    return name;
+                }
+            }
+        } catch (IOException ignored) {
+            // Fall back to the package name.
+        } finally {
+            closeQuietly(reader);
+        }
+        return context.getPackageName();
+    }
+
+    /**
+     * Opens the segmented queue for {@code name} in {@code folder}. Events still queued in the
+     * single file used by {@link #createQueueFile(File, String, Stats)} are moved into it first.
+     */
+    static SegmentedQueue createSegmentedQueue(
+            File folder, String name, boolean synchronous, Stats stats) throws IOException {
+        createDirectory(folder);
+        SegmentedQueue queue =
+                new SegmentedQueue(new File(folder, name + "-segments"), synchronous);
+        File legacy = new File(folder, name);
+        if (!legacy.exists()) {
+            return queue;
+        }
+        try {
+            if (!moveLegacyEvents(legacy, queue) && recoverQueueFile(legacy, stats)) {
+                // Move what could be salvaged, the unreadable rest is lost either way.
+                moveLegacyEvents(legacy, queue);
+            }
             //noinspection ResultOfMethodCallIgnored
-            if (file.delete()) {
-                return new QueueFile(file);
-            } else {
-                throw new IOException(
-                        "Could not create queue file (" + name + ") in " + folder + ".");
+            legacy.delete();
+        } catch (IOException e) {
+            // The queue couldn't be written to, e.g. because the disk is full. The events that
+            // weren't moved stay in the legacy file, and are moved the next time the queue opens.
+        }
+        return queue;
+    }
+
+    /**
+     * Moves the events in the {@code legacy} queue file into {@code queue}. Events are only
+     * removed from the file once they're committed to the queue, so a failure never loses them.
+     * Returns false if the file couldn't be read, and throws if the queue couldn't be written.
+     */
+    static boolean moveLegacyEvents(File legacy, PayloadQueue queue) throws IOException {
+        QueueFile queueFile;
+        try {
+            queueFile = new QueueFile(legacy);
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            LegacyEventMover mover = new LegacyEventMover(queue);
+            boolean readable = true;
+            try {
+                queueFile.forEach(mover);
+            } catch (IOException e) {
+                readable = false;
+            }
+            if (mover.count > 0) {
+                queue.commit();
+                queueFile.remove(mover.count);
             }
+            if (mover.writeFailure != null) {
+                throw mover.writeFailure;
+            }
+            return readable;
+        } finally {
+            queueFile.close();
+        }
+    }
+
+    /** Copies elements into a queue, until one can't be added to it. */
+    static class LegacyEventMover implements PayloadQueue.ElementVisitor {
+
+        private final PayloadQueue queue;
+        /** Number of elements added to the queue. */
+        int count;
+        /** Why the last element couldn't be added, or null if all of them were. */
+        IOException writeFailure;
+
+        LegacyEventMover(PayloadQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean read(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            new DataInputStream(in).readFully(data);
+            try {
+                queue.add(data);
+            } catch (IOException e) {
+                writeFailure = e;
+                return false;
+            }
+            count++;
+            return true;
         }
     }
 
@@ -181,15 +520,74 @@ class SegmentIntegration extends Integration<Void> {
             int flushQueueSize,
             Logger logger,
             Crypto crypto,
+            QueueOptions queueOptions,
             ValueMap settings) {
-        PayloadQueue payloadQueue;
+        QueueDurability queueDurability = queueOptions.durability;
+        EvictionPolicy evictionPolicy = queueOptions.evictionPolicy;
+        PayloadQueue payloadQueue = null;
+        PayloadQueue expressQueue = null;
+        BatchCache batchCache = null;
+        ContextStore contextStore = null;
+        BinaryJson binaryEncoder = null;
+        PayloadDeflater payloadDeflater = null;
         try {
             File folder = context.getDir("segment-disk-queue", Context.MODE_PRIVATE);
-            QueueFile queueFile = createQueueFile(folder, tag);
-            payloadQueue = new PayloadQueue.PersistentQueue(queueFile);
+            boolean synchronous = queueDurability.mode == QueueDurability.Mode.EVERY_WRITE;
+            switch (queueOptions.format) {
+                case SEGMENTED:
+                    payloadQueue = createSegmentedQueue(folder, tag, synchronous, stats);
+                    break;
+                case SHARED:
+                    payloadQueue =
+                            createSharedQueue(
+                                    folder, tag, queueDurability.maxPendingEvents, stats);
+                    break;
+                default:
+                    QueueFile queueFile =
+                            createQueueFile(
+                                    folder, tag, queueDurability.maxPendingEvents, stats);
+                    payloadQueue = new PayloadQueue.PersistentQueue(queueFile);
+                    break;
+            }
+            // Few events go through the express queue, and each is uploaded right away, so it is
+            // always a plain queue file that commits every write. Each process uploads its own.
+            boolean shared = queueOptions.format == QueueFormat.SHARED;
+            String expressName = tag + "-express";
+            if (shared) {
+                String processName = processName(context);
+                if (!processName.equals(context.getPackageName())) {
+                    expressName += "-" + processName;
+                }
+            }
+            expressQueue =
+                    new PayloadQueue.PersistentQueue(createQueueFile(folder, expressName, stats));
+            // Splitting a compressed body needs Deflater#SYNC_FLUSH, and so does splicing in
+            // payloads that were compressed ahead of time.
+            boolean syncFlush = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+            // Other processes would write the cache and the context store at the same time.
+            if (syncFlush && !shared) {
+                batchCache = new BatchCache(new File(folder, tag + "-batch"), crypto);
+            }
+            if (!shared) {
+                contextStore = createContextStore(folder, tag, crypto, payloadQueue);
+            }
+            if (shared && !evictionPolicy.isDefault()) {
+                // The index it needs would only see what this process queued.
+                logger.info("%s is not supported by the multi-process queue.", evictionPolicy);
+                evictionPolicy = evictionPolicy.expiryOnly();
+            }
+            if (queueOptions.compressed && syncFlush) {
+                payloadDeflater = new PayloadDeflater();
+            } else if (queueOptions.binaryEncoding) {
+                binaryEncoder = new BinaryJson();
+            }
         } catch (IOException e) {
             logger.error(e, "Could not create disk queue. Falling back to memory queue.");
+            // The queues that were opened before the failure aren't used.
+            closeQuietly(payloadQueue);
+            closeQuietly(expressQueue);
             payloadQueue = new PayloadQueue.MemoryQueue();
+            expressQueue = new PayloadQueue.MemoryQueue();
         }
         String apiHost = settings.getString("apiHost");
         return new SegmentIntegration(
@@ -204,7 +602,66 @@ class SegmentIntegration extends Integration<Void> {
                 flushQueueSize,
                 logger,
                 crypto,
-                apiHost);
+                apiHost,
+                queueDurability,
+                evictionPolicy,
+                batchCache,
+                contextStore,
+                binaryEncoder,
+                payloadDeflater,
+                expressQueue,
+                createExpressExecutor());
+    }
+
+    /** A single thread for {@link #expressExecutor}, which stops while there's nothing to do. */
+    static ExecutorService createExpressExecutor() {
+        //noinspection Convert2Diamond
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new AnalyticsThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Opens the context store for {@code name} in {@code folder}, and deletes the contexts that no
+     * payload in the queue refers to. Returns null if it can't be opened, then payloads are queued
+     * with their context.
+     */
+    static ContextStore createContextStore(
+            File folder, String name, Crypto crypto, PayloadQueue payloadQueue) {
+        ContextStore contextStore;
+        try {
+            contextStore = new ContextStore(new File(folder, name + "-contexts"), crypto);
+        } catch (IOException e) {
+            return null;
+        }
+        final Set<Long> referenced = new HashSet<>();
+        try {
+            payloadQueue.forEach(
+                    new PayloadQueue.ElementVisitor() {
+                        final RecordHeader header = new RecordHeader();
+
+                        @Override
+                        public boolean read(InputStream in, int length) throws IOException {
+                            header.read(in, length);
+                            if (header.contextId != 0) {
+                                referenced.add(header.contextId);
+                            }
+                            return true;
+                        }
+                    });
+        } catch (IOException e) {
+            // Keep everything, the contexts are cleaned up once the queue is empty.
+            return contextStore;
+        }
+        contextStore.retainOnly(referenced);
+        return contextStore;
     }
 
     SegmentIntegration(
@@ -220,6 +677,50 @@ class SegmentIntegration extends Integration<Void> {
             Logger logger,
             Crypto crypto,
             String apiHost) {
+        this(
+                context,
+                client,
+                cartographer,
+                networkExecutor,
+                payloadQueue,
+                stats,
+                bundledIntegrations,
+                flushIntervalInMillis,
+                flushQueueSize,
+                logger,
+                crypto,
+                apiHost,
+                QueueDurability.everyWrite(),
+                EvictionPolicy.oldestFirst(),
+                null,
+                null,
+                null,
+                null,
+                new PayloadQueue.MemoryQueue(),
+                createExpressExecutor());
+    }
+
+    SegmentIntegration(
+            Context context,
+            Client client,
+            Cartographer cartographer,
+            ExecutorService networkExecutor,
+            PayloadQueue payloadQueue,
+            Stats stats,
+            Map<String, Boolean> bundledIntegrations,
+            long flushIntervalInMillis,
+            int flushQueueSize,
+            Logger logger,
+            Crypto crypto,
+            String apiHost,
+            QueueDurability queueDurability,
+            EvictionPolicy evictionPolicy,
+            BatchCache batchCache,
+            ContextStore contextStore,
+            BinaryJson binaryEncoder,
+            PayloadDeflater payloadDeflater,
+            PayloadQueue expressQueue,
+            ExecutorService expressExecutor) {
         this.context = context;
         this.client = client;
         this.networkExecutor = networkExecutor;
@@ -228,26 +729,110 @@ class SegmentIntegration extends Integration<Void> {
         this.logger = logger;
         this.bundledIntegrations = bundledIntegrations;
         this.cartographer = cartographer;
-        this.flushQueueSize = flushQueueSize;
-        this.flushScheduler = Executors.newScheduledThreadPool(1, new AnalyticsThreadFactory());
+        this.flushScheduler =
+                new FlushScheduler(
+                        flushIntervalInMillis,
+                        flushQueueSize,
+                        isConnected(context),
+                        isUnmetered(context),
+                        new Random());
+        stats.flushScheduler = flushScheduler;
+        // A queue size of one, so that every payload is uploaded right away.
+        this.expressScheduler =
+                new FlushScheduler(
+                        flushIntervalInMillis,
+                        1,
+                        flushScheduler.isConnected(),
+                        isUnmetered(context),
+                        new Random());
+        this.expressQueue = expressQueue;
+        this.expressExecutor = expressExecutor;
         this.crypto = crypto;
         this.apiHost = apiHost;
+        this.queueDurability = queueDurability;
+        this.evictionPolicy = evictionPolicy;
+        this.batchCache = batchCache;
+        this.contextStore = contextStore;
+        this.binaryEncoder = binaryEncoder;
+        this.payloadDeflater = payloadDeflater;
 
         segmentThread = new HandlerThread(SEGMENT_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
         segmentThread.start();
         handler = new SegmentDispatcherHandler(segmentThread.getLooper(), this);
 
-        long initialDelay = payloadQueue.size() >= flushQueueSize ? 0L : flushIntervalInMillis;
-        flushScheduler.scheduleAtFixedRate(
-                new Runnable() {
+        connectivityReceiver =
+                new BroadcastReceiver() {
                     @Override
-                    public void run() {
-                        flush();
+                    public void onReceive(Context context, Intent intent) {
+                        performNetworkChange();
                     }
-                },
-                initialDelay,
-                flushIntervalInMillis,
-                TimeUnit.MILLISECONDS);
+                };
+        // Delivered on the dispatcher thread.
+        context.registerReceiver(
+                connectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION),
+                null,
+                handler);
+
+        memoryCallbacks =
+                new ComponentCallbacks2() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        requestCommit();
+                    }
+
+                    @Override
+                    public void onLowMemory() {
+                        requestCommit();
+                    }
+
+                    @Override
+                    public void onConfigurationChanged(@NonNull Configuration newConfig) {}
+                };
+        context.registerComponentCallbacks(memoryCallbacks);
+
+        int queueSize = payloadQueue.size();
+        if (flushScheduler.shouldFlush(queueSize)) {
+            flush();
+        } else {
+            scheduleFlush(queueSize);
+        }
+        if (expressQueue.size() > 0) {
+            // Upload what was left in the express queue last time.
+            handler.sendMessage(
+                    handler.obtainMessage(SegmentDispatcherHandler.REQUEST_EXPRESS_FLUSH));
+        }
+    }
+
+    /** Every call is handed off to {@link #segmentThread}, so this doesn't need the main thread. */
+    @NonNull
+    @Override
+    public ThreadMode threadMode() {
+        return ThreadMode.ANY;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        startedActivities++;
+        flushScheduler.setBackgrounded(false);
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        if (startedActivities > 0) {
+            startedActivities--;
+        }
+        if (startedActivities == 0) {
+            if (queueDurability.mode == QueueDurability.Mode.ON_BACKGROUND
+                    || queueDurability.mode == QueueDurability.Mode.INTERVAL) {
+                // The app has been backgrounded, and may be killed at any time.
+                requestCommit();
+            }
+            if (flushScheduler.setBackgrounded(true)) {
+                // Upload while the process is still likely to be around.
+                flush();
+            }
+        }
     }
 
     @Override
@@ -281,117 +866,726 @@ class SegmentIntegration extends Integration<Void> {
     }
 
     void performEnqueue(BasePayload original) {
-        // Override any user provided values with anything that was bundled.
-        // e.g. If user did Mixpanel: true and it was bundled, this would correctly override it with
-        // false so that the server doesn't send that event as well.
-        ValueMap providedIntegrations = original.integrations();
-        LinkedHashMap<String, Object> combinedIntegrations =
-                new LinkedHashMap<>(providedIntegrations.size() + bundledIntegrations.size());
-        combinedIntegrations.putAll(providedIntegrations);
-        combinedIntegrations.putAll(bundledIntegrations);
-        combinedIntegrations.remove("Segment.io"); // don't include the Segment integration.
-        // Make a copy of the payload so we don't mutate the original.
-        ValueMap payload = new ValueMap();
-        payload.putAll(original);
-        payload.put("integrations", combinedIntegrations);
-
-        if (payloadQueue.size() >= MAX_QUEUE_SIZE) {
-            synchronized (flushLock) {
-                // Double checked locking, the network executor could have removed payload from the
-                // queue
-                // to bring it below our capacity while we were waiting.
-                if (payloadQueue.size() >= MAX_QUEUE_SIZE) {
-                    logger.info(
-                            "Queue is at max capacity (%s), removing oldest payload.",
-                            payloadQueue.size());
-                    try {
-                        payloadQueue.remove(1);
-                    } catch (IOException e) {
-                        logger.error(e, "Unable to remove oldest payload from queue.");
-                        return;
-                    }
-                }
-            }
+        boolean highPriority = original.priority() == BasePayload.Priority.HIGH;
+        boolean express = highPriority && expressQueue.size() < MAX_EXPRESS_QUEUE_SIZE;
+        if (!express
+                && evictionPolicy.isDefault()
+                && payloadQueue.size() >= MAX_QUEUE_SIZE
+                && !makeRoom()) {
+            logger.info("Queue is at max capacity, dropping payload %s.", original);
+            stats.recordEviction(1);
+            return;
         }
 
+        long startTime = System.nanoTime();
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            OutputStream cos = crypto.encrypt(bos);
-            cartographer.toJson(payload, new OutputStreamWriter(cos));
-            byte[] bytes = bos.toByteArray();
-            if (bytes == null || bytes.length == 0 || bytes.length > MAX_PAYLOAD_SIZE) {
-                throw new IOException("Could not serialize payload " + payload);
+            // Override any user provided values with anything that was bundled.
+            // e.g. If user did Mixpanel: true and it was bundled, this would correctly override it
+            // with false so that the server doesn't send that event as well. The payload itself is
+            // not mutated, and the Segment integration is not included.
+            encoder.reset();
+            long contextId = 0;
+            int contextLength = 0;
+            Object context = original.get(CONTEXT_KEY);
+            if (contextStore != null
+                    && payloadDeflater == null
+                    && !express
+                    && context instanceof Map) {
+                // Queue the payload without its context, which is stored once for all payloads
+                // that share it. Compressed payloads keep theirs, so they can be spliced into the
+                // upload whole, and so do express payloads, as the store is only kept in step
+                // with the regular queue.
+                contextEncoder.reset();
+                contextEncoder.encode((Map<?, ?>) context);
+                contextId = contextStore.put(contextEncoder);
+                contextLength = contextEncoder.size();
+                cartographer.toJson(
+                        original, bundledIntegrations, SEGMENT_KEY, CONTEXT_KEY, encoder);
+            } else {
+                cartographer.toJson(original, bundledIntegrations, SEGMENT_KEY, encoder);
+            }
+            // Payloads that can't be encoded exactly, or don't compress well, are queued as JSON.
+            boolean deflated =
+                    payloadDeflater != null
+                            && payloadDeflater.deflate(encoder.buffer(), 0, encoder.size());
+            boolean binary =
+                    !deflated
+                            && binaryEncoder != null
+                            && binaryEncoder.encode(encoder.buffer(), 0, encoder.size());
+            int flags = deflated ? RecordHeader.FLAG_DEFLATED : 0;
+            if (binary) {
+                flags = RecordHeader.FLAG_BINARY;
+            }
+            byte[] bytes;
+            encrypted.reset();
+            OutputStream cos = crypto.encrypt(encrypted);
+            if (cos == encrypted) {
+                // Nothing to encrypt, copy the payload straight in behind the header.
+                if (deflated) {
+                    bytes = new byte[RecordHeader.LENGTH + payloadDeflater.size()];
+                    payloadDeflater.writeTo(bytes, RecordHeader.LENGTH);
+                } else if (binary) {
+                    bytes = new byte[RecordHeader.LENGTH + binaryEncoder.size()];
+                    binaryEncoder.writeTo(bytes, RecordHeader.LENGTH);
+                } else {
+                    bytes = new byte[RecordHeader.LENGTH + encoder.size()];
+                    encoder.writeTo(bytes, RecordHeader.LENGTH);
+                }
+            } else {
+                if (deflated) {
+                    payloadDeflater.writeTo(cos);
+                } else if (binary) {
+                    binaryEncoder.writeTo(cos);
+                } else {
+                    encoder.writeTo(cos);
+                }
+                cos.close();
+                bytes = new byte[RecordHeader.LENGTH + encrypted.size()];
+                byte[] payload = encrypted.toByteArray();
+                System.arraycopy(payload, 0, bytes, RecordHeader.LENGTH, payload.length);
+                flags |= RecordHeader.FLAG_ENCRYPTED;
+            }
+            recordHeader.set(
+                    original,
+                    System.currentTimeMillis(),
+                    highPriority ? RecordHeader.PRIORITY_HIGH : RecordHeader.PRIORITY_NORMAL,
+                    flags,
+                    contextId);
+            int payloadLength = bytes.length - RecordHeader.LENGTH;
+            // The limit applies to what is uploaded as well as to what is stored.
+            if (encoder.size() == 0
+                    || payloadLength == 0
+                    || Math.max(payloadLength, encoder.size()) + contextLength
+                            > MAX_PAYLOAD_SIZE) {
+                throw new IOException("Could not serialize payload " + original);
+            }
+            recordHeader.checksum =
+                    recordHeader.checksum(bytes, RecordHeader.LENGTH, payloadLength);
+            recordHeader.writeTo(bytes, 0);
+            if (express) {
+                expressQueue.add(bytes);
+                logger.verbose(
+                        "Enqueued %s payload. %s elements in the express queue.",
+                        original, expressQueue.size());
+                stats.recordEnqueue(System.nanoTime() - startTime);
+                submitExpressFlush();
+                return;
+            }
+            if (!evictionPolicy.isDefault() && !makeRoom(bytes.length)) {
+                logger.info("Queue is at max capacity, dropping payload %s.", original);
+                stats.recordEviction(1);
+                return;
             }
             payloadQueue.add(bytes);
+            if (queueIndex != null) {
+                queueIndex.add(recordHeader, bytes.length);
+            }
         } catch (IOException e) {
-            logger.error(e, "Could not add payload %s to queue: %s.", payload, payloadQueue);
+            logger.error(e, "Could not add payload %s to queue: %s.", original, payloadQueue);
             return;
         }
+        stats.recordEnqueue(System.nanoTime() - startTime);
 
         logger.verbose(
                 "Enqueued %s payload. %s elements in the queue.", original, payloadQueue.size());
-        if (payloadQueue.size() >= flushQueueSize) {
+        if (queueDurability.mode == QueueDurability.Mode.INTERVAL && !commitScheduled) {
+            // Commit everything enqueued within the window together.
+            commitScheduled = true;
+            handler.sendMessageDelayed(
+                    handler.obtainMessage(SegmentDispatcherHandler.REQUEST_COMMIT),
+                    queueDurability.intervalInMillis);
+        }
+        int queueSize = payloadQueue.size();
+        if (flushScheduler.shouldFlush(queueSize)) {
             submitFlush();
+        } else if (!handler.hasMessages(SegmentDispatcherHandler.REQUEST_SCHEDULED_FLUSH)) {
+            // Nothing is scheduled while the queue is empty.
+            scheduleFlush(queueSize);
         }
     }
 
-    /** Enqueues a flush message to the handler. */
-    @Override
-    public void flush() {
-        handler.sendMessage(handler.obtainMessage(SegmentDispatcherHandler.REQUEST_FLUSH));
-    }
-
-    /** Submits a flush message to the network executor. */
-    void submitFlush() {
-        if (!shouldFlush()) {
-            return;
+    /**
+     * Evicts the oldest payload to make room for a new one, without waiting for uploads. If the
+     * oldest payloads are reserved by an upload in flight, the next one of them is added to the
+     * {@link #evictionDebt} instead.
+     *
+     * @return false if no room could be made, because the oldest payload couldn't be removed or
+     *     all reserved payloads are evicted already
+     */
+    private boolean makeRoom() {
+        synchronized (flushLock) {
+            int size = payloadQueue.size();
+            // Uploads could have removed payloads since the caller checked.
+            if (size - evictionDebt < MAX_QUEUE_SIZE) {
+                return true;
+            }
+            int reserved = (int) (reservedSequence - headSequence);
+            if (reserved == 0) {
+                if (!payloadQueue.claimUploads()) {
+                    // Another process is uploading the oldest payloads, only it may remove them.
+                    return false;
+                }
+                logger.info("Queue is at max capacity (%s), removing oldest payload.", size);
+                try {
+                    payloadQueue.remove(1);
+                } catch (IOException e) {
+                    logger.error(e, "Unable to remove oldest payload from queue.");
+                    return false;
+                } finally {
+                    releaseUploadsIfIdle();
+                }
+                headSequence++;
+                reservedSequence = headSequence;
+                stats.recordEviction(1);
+                return true;
+            }
+            if (evictionDebt < reserved) {
+                logger.info(
+                        "Queue is at max capacity (%s), evicting oldest payload once its upload is"
+                                + " done.",
+                        size);
+                evictionDebt++;
+                return true;
+            }
+            return false;
         }
+    }
 
-        if (networkExecutor.isShutdown()) {
-            logger.info(
-                    "A call to flush() was made after shutdown() has been called.  In-flight events may not be uploaded right away.");
-            return;
+    /**
+     * Evicts the payloads the {@link #evictionPolicy} picks to make room for a new one of the
+     * given length, described by {@link #recordHeader}, if the queue is full or the new payload is
+     * over its quota. Evicted payloads are marked in place, and left out of uploads until they
+     * can be removed from the head of the queue.
+     *
+     * @return false if the new payload should be dropped instead
+     */
+    private boolean makeRoom(int length) throws IOException {
+        synchronized (flushLock) {
+            if (queueIndex == null) {
+                queueIndex = loadQueueIndex();
+            }
+            queueIndex.removeTo(headSequence);
+            int evicted = queueIndex.evict(recordHeader, length);
+            if (evicted == QueueIndex.DROP) {
+                return false;
+            }
+            for (int i = 0; i < evicted; i++) {
+                long sequence = queueIndex.victim(i);
+                int flags = queueIndex.flags(sequence);
+                if (flags == QueueIndex.NO_HEADER) {
+                    // Can't be marked, but it's at the head of the queue and removed below.
+                    continue;
+                }
+                evictedFlags[0] = (byte) (flags | RecordHeader.FLAG_EVICTED);
+                try {
+                    payloadQueue.overwrite(
+                            (int) (sequence - headSequence),
+                            RecordHeader.FLAGS_OFFSET,
+                            evictedFlags,
+                            1);
+                } catch (IOException e) {
+                    // It's uploaded after all.
+                    logger.error(e, "Unable to mark evicted payload in queue.");
+                }
+            }
+            if (evicted > 0) {
+                logger.info("Queue is at max capacity, evicted %s payload(s).", evicted);
+                stats.recordEviction(evicted);
+            }
+            removeEvictedHead();
+            return true;
         }
+    }
 
-        networkExecutor.submit(
-                new Runnable() {
+    /** Reads the headers of all queued payloads into a new {@link QueueIndex}. */
+    private QueueIndex loadQueueIndex() throws IOException {
+        final QueueIndex index =
+                new QueueIndex(evictionPolicy, MAX_QUEUE_SIZE, headSequence, new Random());
+        final RecordHeader header = new RecordHeader();
+        payloadQueue.forEach(
+                new PayloadQueue.ElementVisitor() {
                     @Override
-                    public void run() {
-                        synchronized (flushLock) {
-                            performFlush();
-                        }
+                    public boolean read(InputStream in, int length) throws IOException {
+                        header.read(in, length);
+                        index.add(header, length);
+                        return true;
                     }
                 });
+        return index;
     }
 
-    private boolean shouldFlush() {
-        return payloadQueue.size() > 0 && isConnected(context);
-    }
-
-    /** Upload payloads to our servers and remove them from the queue file. */
-    void performFlush() {
-        // Conditions could have changed between enqueuing the task and when it is run.
-        if (!shouldFlush()) {
+    /**
+     * Removes evicted payloads from the head of the queue while no upload has any reserved. If
+     * the queue is oversized, see {@link QueueIndex#isOversized()}, the oldest payloads are
+     * removed too.
+     */
+    private void removeEvictedHead() {
+        if (reservedSequence != headSequence) {
             return;
         }
+        try {
+            while (true) {
+                int n = queueIndex.evictedHead();
+                boolean oversized = n == 0 && queueIndex.size() > 0 && queueIndex.isOversized();
+                if (oversized) {
+                    n = 1;
+                } else if (n == 0) {
+                    return;
+                }
+                payloadQueue.remove(n);
+                headSequence += n;
+                reservedSequence = headSequence;
+                queueIndex.removeTo(headSequence);
+                if (oversized) {
+                    stats.recordEviction(1);
+                }
+            }
+        } catch (IOException e) {
+            logger.error(e, "Unable to remove evicted payloads from queue.");
+        }
+    }
 
-        logger.verbose("Uploading payloads in queue to Segment.");
-        int payloadsUploaded = 0;
+    /**
+     * Removes the payloads at the head of the queue that expired, see {@link
+     * EvictionPolicy#expireAfter}, while no upload has any reserved. Only their headers are read.
+     * Must be called while holding the {@link #flushLock}.
+     */
+    private void removeExpiredHead() {
+        if (reservedSequence != headSequence || !evictionPolicy.expires()) {
+            return;
+        }
+        ExpiredHeadCounter counter =
+                new ExpiredHeadCounter(evictionPolicy, System.currentTimeMillis());
+        try {
+            payloadQueue.forEach(counter);
+            if (counter.count == 0) {
+                return;
+            }
+            payloadQueue.remove(counter.count);
+        } catch (IOException e) {
+            logger.error(e, "Unable to remove expired payloads from queue.");
+            return;
+        }
+        // The queue index catches up on the dispatcher thread, same as after uploads.
+        headSequence += counter.count;
+        reservedSequence = headSequence;
+        logger.verbose("Removed %s expired payloads from queue.", counter.count);
+        stats.recordExpiry(counter.count);
+    }
+
+    /** Removes the payloads in the {@link #evictionDebt}, once no upload has them reserved. */
+    private void payEvictionDebt() {
+        if (evictionDebt == 0) {
+            return;
+        }
+        try {
+            payloadQueue.remove(evictionDebt);
+            headSequence += evictionDebt;
+            reservedSequence = headSequence;
+            stats.recordEviction(evictionDebt);
+        } catch (IOException e) {
+            logger.error(e, "Unable to remove %s evicted payload(s) from queue.", evictionDebt);
+        }
+        evictionDebt = 0;
+    }
+
+    /** Enqueues a commit message to the handler, unless every event is committed anyway. */
+    private void requestCommit() {
+        if (queueDurability.mode != QueueDurability.Mode.EVERY_WRITE) {
+            handler.sendMessage(handler.obtainMessage(SegmentDispatcherHandler.REQUEST_COMMIT));
+        }
+    }
+
+    /** Writes any events buffered by the queue to disk. */
+    void performCommit() {
+        commitScheduled = false;
+        try {
+            payloadQueue.commit();
+        } catch (IOException e) {
+            logger.error(e, "Unable to commit payloads to disk.");
+        }
+    }
+
+    /**
+     * Overwrites uploaded payloads that removing them left on disk. Once the queue is empty, also
+     * deletes the contexts that only uploaded payloads referred to.
+     */
+    void performErase() {
+        try {
+            payloadQueue.eraseRemoved();
+        } catch (IOException e) {
+            logger.error(e, "Unable to erase uploaded payloads from disk.");
+        }
+        if (contextStore != null && payloadQueue.size() == 0) {
+            contextStore.retainLast();
+        }
+    }
+
+    /** Enqueues a flush message to the handler. */
+    @Override
+    public void flush() {
+        handler.sendMessage(handler.obtainMessage(SegmentDispatcherHandler.REQUEST_FLUSH));
+    }
+
+    /** Submits a flush message to the network executor. */
+    void submitFlush() {
+        if (!shouldFlush()) {
+            return;
+        }
+
+        if (networkExecutor.isShutdown()) {
+            logger.info(
+                    "A call to flush() was made after shutdown() has been called.  In-flight events may not be uploaded right away.");
+            return;
+        }
+
+        networkExecutor.submit(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        performFlush();
+                    }
+                });
+    }
+
+    private boolean shouldFlush() {
+        return payloadQueue.size() > 0 && flushScheduler.isConnected();
+    }
+
+    /** Uploads if the schedule allows it, and schedules the next one. */
+    void performScheduledFlush() {
+        if (flushScheduler.shouldFlushScheduled(payloadQueue.size())) {
+            submitFlush();
+        }
+        scheduleFlush(payloadQueue.size());
+    }
+
+    /** Reads the state of the network after it changed. */
+    void performNetworkChange() {
+        boolean connected = isConnected(context);
+        boolean unmetered = isUnmetered(context);
+        if (flushScheduler.setNetwork(connected, unmetered)) {
+            submitFlush();
+        }
+        scheduleFlush(payloadQueue.size());
+        if (expressScheduler.setNetwork(connected, unmetered)) {
+            submitExpressFlush();
+        }
+    }
+
+    /** Replaces the pending scheduled flush with one at the time the scheduler asks for. */
+    private void scheduleFlush(int queueSize) {
+        synchronized (flushScheduler) {
+            handler.removeMessages(SegmentDispatcherHandler.REQUEST_SCHEDULED_FLUSH);
+            long delay = flushScheduler.nextFlushDelay(queueSize);
+            if (delay >= 0) {
+                handler.sendEmptyMessageDelayed(
+                        SegmentDispatcherHandler.REQUEST_SCHEDULED_FLUSH, delay);
+            }
+        }
+    }
+
+    /**
+     * Submits an upload of the {@link #expressQueue} to the {@link #expressExecutor}. While backing
+     * off after a failed upload, schedules it for when the backoff ends instead.
+     */
+    void submitExpressFlush() {
+        int queueSize = expressQueue.size();
+        if (!expressScheduler.shouldFlushScheduled(queueSize)) {
+            scheduleExpressFlush(queueSize);
+            return;
+        }
+        if (expressExecutor.isShutdown()) {
+            return;
+        }
+        try {
+            expressExecutor.submit(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            performExpressFlush();
+                        }
+                    });
+        } catch (RejectedExecutionException ignored) {
+            // The executor was shut down, the payloads are uploaded once the app starts again.
+        }
+    }
+
+    /** Replaces the pending express flush with one after the current backoff, if there is one. */
+    private void scheduleExpressFlush(int queueSize) {
+        synchronized (expressScheduler) {
+            handler.removeMessages(SegmentDispatcherHandler.REQUEST_EXPRESS_FLUSH);
+            long delay = expressScheduler.nextFlushDelay(queueSize);
+            if (delay >= 0) {
+                handler.sendEmptyMessageDelayed(
+                        SegmentDispatcherHandler.REQUEST_EXPRESS_FLUSH, delay);
+            }
+        }
+    }
+
+    /** Uploads the {@link #expressQueue} until it's drained, or an upload fails. */
+    void performExpressFlush() {
+        //noinspection StatementWithEmptyBody
+        while (uploadExpressBatch()) {
+            // Upload the next batch.
+        }
+    }
+
+    /**
+     * Uploads the oldest payloads in the {@link #expressQueue}, at most {@link
+     * #MAX_EXPRESS_BATCH_SIZE} of them, and removes them once the server has them. Only runs on
+     * the {@link #expressExecutor}, so there is only ever one batch to keep track of.
+     *
+     * @return whether there may be more to upload
+     */
+    private boolean uploadExpressBatch() {
+        if (!expressScheduler.shouldFlushScheduled(expressQueue.size())) {
+            return false;
+        }
+        int count = 0;
         Client.Connection connection = null;
+        long startTime = System.nanoTime();
         try {
-            // Open a connection.
+            PayloadQueue.Snapshot snapshot = expressQueue.snapshot(0, MAX_BATCH_SIZE);
             connection = client.upload(apiHost);
-
-            // Write the payloads into the OutputStream.
             BatchPayloadWriter writer =
                     new BatchPayloadWriter(connection.os) //
                             .beginObject() //
                             .beginBatchArray();
-            PayloadWriter payloadWriter = new PayloadWriter(writer, crypto);
-            payloadQueue.forEach(payloadWriter);
-            writer.endBatchArray().endObject(client.writeKey).close();
-            // Don't use the result of QueueFiles#forEach, since we may not upload the last element.
-            payloadsUploaded = payloadWriter.payloadCount;
+            final PayloadWriter payloadWriter = new PayloadWriter(writer, crypto, contextStore);
+            snapshot.forEach(
+                    new PayloadQueue.ElementVisitor() {
+                        @Override
+                        public boolean read(InputStream in, int length) throws IOException {
+                            return payloadWriter.payloadCount < MAX_EXPRESS_BATCH_SIZE
+                                    && payloadWriter.read(in, length);
+                        }
+                    });
+            count = payloadWriter.payloadCount;
+            if (writer.isEmpty()) {
+                // Every payload was left out, so there is nothing to send, only to remove.
+                writer.discard();
+                abandon(connection);
+                connection = null;
+            } else {
+                writer.endBatchArray().endObject(client.writeKey).close();
+
+                // Upload the payloads.
+                connection.close();
+            }
+        } catch (Client.HTTPException e) {
+            if (!e.is4xx() || e.responseCode == 429) {
+                logger.error(e, "Error while uploading express payloads");
+                onExpressUploadFailed();
+                return false;
+            }
+            // Simply log and proceed to remove the rejected payloads from the queue.
+            logger.error(e, "Express payloads were rejected by server. Marked for removal.");
+        } catch (IOException e) {
+            logger.error(e, "Error while uploading express payloads");
+            onExpressUploadFailed();
+            return false;
+        } finally {
+            closeQuietly(connection);
+        }
+
+        if (connection != null && connection.os instanceof BatchOutputStream) {
+            long bytes = ((BatchOutputStream) connection.os).bytesWritten();
+            stats.recordUpload(count, bytes, System.nanoTime() - startTime);
+        }
+        try {
+            if (count > 0) {
+                expressQueue.remove(count);
+            }
+        } catch (IOException e) {
+            logger.error(e, "Unable to remove " + count + " payload(s) from express queue.");
+            return false;
+        }
+        logger.verbose(
+                "Uploaded %s express payloads. %s remain in the express queue.",
+                count, expressQueue.size());
+        stats.recordFlush(count);
+        expressScheduler.onUploadSucceeded(expressQueue.size());
+        return count > 0;
+    }
+
+    /** Backs off the express queue, and retries it when the backoff ends. */
+    private void onExpressUploadFailed() {
+        expressScheduler.onUploadFailed();
+        scheduleExpressFlush(expressQueue.size());
+    }
+
+    /**
+     * Upload payloads to our servers and remove them from the queue file. Keeps uploading batches
+     * until the queue is drained, an upload fails, or the maximum number of batches is in flight.
+     */
+    void performFlush() {
+        // Conditions could have changed between enqueuing the task and when it is run.
+        if (!shouldFlush()) {
+            return;
+        }
+
+        logger.verbose("Uploading payloads in queue to Segment.");
+        synchronized (flushLock) {
+            flushing++;
+        }
+        try {
+            //noinspection StatementWithEmptyBody
+            while (uploadBatch()) {
+                // Upload the next batch.
+            }
+        } finally {
+            synchronized (flushLock) {
+                flushing--;
+                releaseUploadsIfIdle();
+            }
+        }
+    }
+
+    /**
+     * Lets another process upload the payloads in a shared queue, once this one isn't uploading
+     * any. Must be called while holding the {@link #flushLock}.
+     */
+    private void releaseUploadsIfIdle() {
+        if (flushing == 0 && batches.isEmpty()) {
+            payloadQueue.releaseUploads();
+        }
+    }
+
+    /**
+     * Reserves the elements after the last reserved batch, writes them into a new request and
+     * uploads it. Only the reservation is made while holding the {@link #flushLock}. Once the
+     * connection is open, another upload is submitted, so that the next batch can connect, be
+     * written and wait for the server while this one is.
+     *
+     * @return whether the caller should go on to upload the next batch
+     */
+    private boolean uploadBatch() {
+        Batch batch = null;
+        boolean cacheable;
+        PayloadQueue.Snapshot snapshot = null;
+        BatchCache.Entry cached = null;
+        Client.Connection connection = null;
+        BatchCache.Range range = null;
+        Prefix prefix = null;
+        long startTime;
+        try {
+            long head;
+            synchronized (flushLock) {
+                if (uploadFailed || uploadsInFlight() >= MAX_IN_FLIGHT_BATCHES) {
+                    return false;
+                }
+                if (!payloadQueue.claimUploads()) {
+                    logger.verbose("Another process is uploading payloads in queue.");
+                    return false;
+                }
+                removeExpiredHead();
+                head = headSequence;
+                batch = takeWaitingBatch();
+                if (batch != null) {
+                    snapshot = payloadQueue.snapshot((int) (batch.start - head), MAX_BATCH_SIZE);
+                } else if (reservedSequence - head >= payloadQueue.size()) {
+                    return false;
+                }
+                // Only batches at the head of the queue are cached, since that's where the next
+                // flush starts after a failure.
+                long start = batch != null ? batch.start : reservedSequence;
+                cacheable = batchCache != null && start == head;
+            }
+            if (batch == null) {
+                if (cacheable) {
+                    cached =
+                            batchCache.get(
+                                    payloadQueue, evictionPolicy, System.currentTimeMillis());
+                }
+                synchronized (flushLock) {
+                    // The head of the queue could have been removed or reserved during the lookup.
+                    cacheable &= headSequence == head && reservedSequence == head;
+                    if (cached != null && cacheable) {
+                        batch = reserve(cached.range.count);
+                    } else {
+                        cached = null;
+                        int skip = (int) (reservedSequence - headSequence);
+                        snapshot = payloadQueue.snapshot(skip, MAX_BATCH_SIZE);
+                        if (snapshot.size() == 0) {
+                            return false;
+                        }
+                        batch = reserve(snapshot.size());
+                    }
+                }
+            }
+
+            // Open a connection.
+            startTime = System.nanoTime();
+            connection = client.upload(apiHost);
+            submitPipelinedFlush();
+
+            BatchOutputStream body = null;
+            if (cacheable && connection.os instanceof BatchOutputStream) {
+                body = (BatchOutputStream) connection.os;
+            }
+            if (cached != null && body != null && cached.prefix.gzip == body.gzip) {
+                logger.verbose("Uploading %s cached payloads.", cached.range.count);
+                body.writePrefix(cached.prefix);
+                BatchPayloadWriter.endCachedBatch(body, client.writeKey);
+                body.close();
+                // Already on disk, so there's no prefix to save if this fails again.
+                range = cached.range;
+            } else {
+                if (snapshot == null) {
+                    // The cached body can't be sent on this connection, so the batch is written
+                    // from the queue after all.
+                    synchronized (flushLock) {
+                        snapshot =
+                                payloadQueue.snapshot(
+                                        (int) (batch.start - headSequence), MAX_BATCH_SIZE);
+                    }
+                }
+                if (body != null) {
+                    body.beginPrefix();
+                }
+                // Write the payloads into the OutputStream. The reservation keeps them from being
+                // removed in the meantime.
+                BatchPayloadWriter writer =
+                        new BatchPayloadWriter(connection.os) //
+                                .beginObject() //
+                                .beginBatchArray();
+                PayloadWriter payloadWriter =
+                        new PayloadWriter(
+                                writer,
+                                crypto,
+                                contextStore,
+                                evictionPolicy,
+                                System.currentTimeMillis());
+                payloadWriter.maxCount = batch.count;
+                if (body != null) {
+                    payloadWriter.trackRange();
+                }
+                snapshot.forEach(payloadWriter);
+                int unwritten = batch.count - payloadWriter.payloadCount;
+                synchronized (flushLock) {
+                    batch.expired = payloadWriter.expiredCount;
+                    // The snapshot only counts stored bytes. Payloads that didn't fit once
+                    // decoded, or with their contexts put back, are released for the next batch.
+                    release(batch, unwritten);
+                }
+                if (unwritten > 0) {
+                    submitPipelinedFlush();
+                }
+                if (writer.isEmpty()) {
+                    // Every payload was left out, so there is nothing to send, only to remove.
+                    writer.discard();
+                    abandon(connection);
+                    connection = null;
+                    return complete(batch, true) && batch.count > 0;
+                }
+                if (body != null) {
+                    writer.flush();
+                    prefix = body.endPrefix();
+                    range = payloadWriter.range();
+                }
+                writer.endBatchArray().endObject(client.writeKey).close();
+            }
 
             // Upload the payloads.
             connection.close();
@@ -399,122 +1593,622 @@ class SegmentIntegration extends Integration<Void> {
             if (e.is4xx() && e.responseCode != 429) {
                 // Simply log and proceed to remove the rejected payloads from the queue.
                 logger.error(e, "Payloads were rejected by server. Marked for removal.");
-                try {
-                    payloadQueue.remove(payloadsUploaded);
-                } catch (IOException e1) {
-                    logger.error(
-                            e, "Unable to remove " + payloadsUploaded + " payload(s) from queue.");
-                }
-                return;
+                clearCache(range);
+                complete(batch, true);
+                flushScheduler.onUploadSucceeded(payloadQueue.size());
             } else {
                 logger.error(e, "Error while uploading payloads");
-                return;
+                cache(batch, range, prefix);
+                complete(batch, false);
+                onUploadFailed();
             }
+            return false;
         } catch (IOException e) {
             logger.error(e, "Error while uploading payloads");
-            return;
+            cache(batch, range, prefix);
+            complete(batch, false);
+            onUploadFailed();
+            return false;
         } finally {
             closeQuietly(connection);
         }
 
+        if (connection.os instanceof BatchOutputStream) {
+            long bytes = ((BatchOutputStream) connection.os).bytesWritten();
+            stats.recordUpload(batch.count, bytes, System.nanoTime() - startTime);
+        }
+        clearCache(range);
+        boolean proceed = complete(batch, true) && batch.count > 0;
+        flushScheduler.onUploadSucceeded(payloadQueue.size());
+        return proceed;
+    }
+
+    /**
+     * Drops a request without sending it. The body is never finished, and the response never
+     * read, so the server doesn't process it.
+     */
+    private static void abandon(Client.Connection connection) {
+        if (connection.os instanceof BatchOutputStream) {
+            ((BatchOutputStream) connection.os).abandon();
+        }
+        connection.connection.disconnect();
+    }
+
+    /** Backs off, and moves the scheduled flush to when the backoff ends. */
+    private void onUploadFailed() {
+        flushScheduler.onUploadFailed();
+        scheduleFlush(payloadQueue.size());
+    }
+
+    /** Saves the body of a batch at the head of the queue that failed, so a retry can reuse it. */
+    private void cache(Batch batch, BatchCache.Range range, Prefix prefix) {
+        if (batch == null || prefix == null) {
+            return;
+        }
         try {
-            payloadQueue.remove(payloadsUploaded);
+            batchCache.put(range, prefix);
         } catch (IOException e) {
-            logger.error(e, "Unable to remove " + payloadsUploaded + " payload(s) from queue.");
+            logger.error(e, "Unable to cache batch of %s payloads.", range.count);
+            batchCache.clear();
+        }
+    }
+
+    /** Drops the cached body once the batch at the head of the queue is done with. */
+    private void clearCache(BatchCache.Range range) {
+        if (range != null) {
+            batchCache.clear();
+        }
+    }
+
+    /** Records a batch of the given size, right after the last reserved one. */
+    private Batch reserve(int count) {
+        synchronized (flushLock) {
+            Batch batch = new Batch(reservedSequence, count);
+            batches.addLast(batch);
+            reservedSequence += count;
+            return batch;
+        }
+    }
+
+    /**
+     * Gives up the last {@code count} payloads of a batch that is being written. They're simply
+     * unreserved if no batch was reserved after it, otherwise they wait in a batch of their own
+     * for the next upload, see {@link Batch#WAITING}. Must be called while holding the {@link
+     * #flushLock}.
+     */
+    private void release(Batch batch, int count) {
+        if (count <= 0) {
+            return;
+        }
+        batch.count -= count;
+        if (batches.peekLast() == batch) {
+            reservedSequence -= count;
             return;
         }
+        Batch waiting = new Batch(batch.start + batch.count, count);
+        waiting.state = Batch.WAITING;
+        batches.add(batches.indexOf(batch) + 1, waiting);
+    }
 
-        logger.verbose(
-                "Uploaded %s payloads. %s remain in the queue.",
-                payloadsUploaded, payloadQueue.size());
-        stats.dispatchFlush(payloadsUploaded);
-        if (payloadQueue.size() > 0) {
-            performFlush(); // Flush any remaining items.
+    /**
+     * Returns the first batch that is waiting to be uploaded, now in flight, or null if there is
+     * none. Must be called while holding the {@link #flushLock}.
+     */
+    private Batch takeWaitingBatch() {
+        for (Batch batch : batches) {
+            if (batch.state == Batch.WAITING) {
+                batch.state = Batch.IN_FLIGHT;
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /** Number of batches being uploaded. Must be called while holding the {@link #flushLock}. */
+    private int uploadsInFlight() {
+        int count = 0;
+        for (Batch batch : batches) {
+            if (batch.state == Batch.IN_FLIGHT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Lets another thread upload the next batch while this one waits for the server. */
+    private void submitPipelinedFlush() {
+        synchronized (flushLock) {
+            if (uploadFailed || uploadsInFlight() >= MAX_IN_FLIGHT_BATCHES) {
+                return;
+            }
+        }
+        if (networkExecutor.isShutdown()) {
+            return;
+        }
+        try {
+            networkExecutor.submit(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            performFlush();
+                        }
+                    });
+        } catch (RejectedExecutionException ignored) {
+            // The executor was shut down, the remaining payloads are uploaded on the next flush.
+        }
+    }
+
+    /**
+     * Marks a batch as done, and removes all batches at the head of the queue that have been
+     * acknowledged. Batches are only removed in queue order, so a batch acknowledged before the
+     * ones ahead of it waits for them. If an earlier batch failed, it is kept to be uploaded again,
+     * as are all batches behind it.
+     *
+     * @return whether uploads should go on
+     */
+    private boolean complete(Batch batch, boolean acknowledged) {
+        synchronized (flushLock) {
+            if (batch == null) {
+                // Failed before anything was reserved, nothing to release.
+                return false;
+            }
+            batch.state = acknowledged ? Batch.ACKNOWLEDGED : Batch.FAILED;
+            if (!acknowledged) {
+                uploadFailed = true;
+            }
+
+            boolean removed = false;
+            while (!batches.isEmpty() && batches.peekFirst().state == Batch.ACKNOWLEDGED) {
+                Batch head = batches.peekFirst();
+                try {
+                    if (head.count > 0) {
+                        payloadQueue.remove(head.count);
+                    }
+                } catch (IOException e) {
+                    logger.error(
+                            e, "Unable to remove " + head.count + " payload(s) from queue.");
+                    // Upload it again along with the rest.
+                    head.state = Batch.FAILED;
+                    uploadFailed = true;
+                    break;
+                }
+                batches.removeFirst();
+                removed |= head.count > 0;
+                headSequence += head.count;
+                // Evicted payloads that were uploaded anyway are gone now.
+                evictionDebt -= Math.min(evictionDebt, head.count);
+                logger.verbose(
+                        "Uploaded %s payloads. %s remain in the queue.",
+                        head.count, payloadQueue.size());
+                stats.recordFlush(head.count);
+                if (head.expired > 0) {
+                    stats.recordExpiry(head.expired);
+                }
+            }
+
+            boolean failed = uploadFailed;
+            if (failed) {
+                // Wait for the uploads still in flight, then release everything that wasn't
+                // removed so the next flush starts from the head again.
+                if (uploadsInFlight() == 0) {
+                    batches.clear();
+                    uploadFailed = false;
+                }
+            }
+
+            if (batches.isEmpty()) {
+                reservedSequence = headSequence;
+                payEvictionDebt();
+                // Erase what was uploaded once nothing is in flight, off the upload path.
+                if (removed && !handler.hasMessages(SegmentDispatcherHandler.REQUEST_ERASE)) {
+                    handler.sendMessage(
+                            handler.obtainMessage(SegmentDispatcherHandler.REQUEST_ERASE));
+                }
+            }
+            return !failed;
         }
     }
 
     void shutdown() {
-        flushScheduler.shutdownNow();
+        context.unregisterReceiver(connectivityReceiver);
+        context.unregisterComponentCallbacks(memoryCallbacks);
         segmentThread.quit();
+        expressExecutor.shutdown();
         closeQuietly(payloadQueue);
+        closeQuietly(expressQueue);
+    }
+
+    /** A range of elements in the queue that is being uploaded. */
+    private static class Batch {
+        static final int IN_FLIGHT = 0;
+        static final int ACKNOWLEDGED = 1;
+        static final int FAILED = 2;
+        /**
+         * Payloads that the batch before didn't have room for once it was written, after the
+         * next batch was reserved already. Uploaded by the next upload that starts.
+         */
+        static final int WAITING = 3;
+
+        /** Sequence number of the first payload. */
+        final long start;
+        /** Number of payloads, only reduced while the batch is being written. */
+        int count;
+
+        int state = IN_FLIGHT;
+        /** Number of expired payloads that were left out of the upload. */
+        int expired;
+
+        Batch(long start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    /** Counts the expired payloads at the head of a queue, reading only their headers. */
+    static class ExpiredHeadCounter implements PayloadQueue.ElementVisitor {
+
+        private final RecordHeader header = new RecordHeader();
+        private final EvictionPolicy evictionPolicy;
+        private final long now;
+        int count;
+
+        ExpiredHeadCounter(EvictionPolicy evictionPolicy, long now) {
+            this.evictionPolicy = evictionPolicy;
+            this.now = now;
+        }
+
+        @Override
+        public boolean read(InputStream in, int length) throws IOException {
+            header.read(in, length);
+            if (!evictionPolicy.isExpired(header, now)) {
+                return false;
+            }
+            count++;
+            return true;
+        }
     }
 
     static class PayloadWriter implements PayloadQueue.ElementVisitor {
 
         final BatchPayloadWriter writer;
         final Crypto crypto;
+        /** Bytes the batch takes up once uploaded, see {@link #add}. */
         int size;
         int payloadCount;
+        /** Number of elements the batch may take, as many as were reserved for it. */
+        int maxCount = Integer.MAX_VALUE;
+        /** Header of the element being read. */
+        final RecordHeader header = new RecordHeader();
+        /** Where payloads queued without their context find it, or null. */
+        final ContextStore contextStore;
+        /** Decides which payloads expired, or null if none do. */
+        private final EvictionPolicy evictionPolicy;
+        /** When the batch is written, in milliseconds since the epoch. */
+        private final long now;
+        /** Number of expired payloads left out of the batch. */
+        int expiredCount;
+        /** Reused across elements, so a batch doesn't allocate one array per payload. */
+        private byte[] data = new byte[0];
+        /** Decodes binary payloads, created once the batch has one. */
+        private BinaryJson binaryDecoder;
+
+        /** The elements written so far, or null unless {@link #trackRange} was called. */
+        private BatchCache.RangeBuilder range;
+        /** The last payload written, once {@link #data} is read into again. */
+        private byte[] last = new byte[0];
+        /** Length of the last payload written. */
+        private int lastRead;
+        /** Whether {@link #data} still holds the last payload written. */
+        private boolean dataIsLast;
 
         PayloadWriter(BatchPayloadWriter writer, Crypto crypto) {
+            this(writer, crypto, null);
+        }
+
+        PayloadWriter(BatchPayloadWriter writer, Crypto crypto, ContextStore contextStore) {
+            this(writer, crypto, contextStore, null, 0);
+        }
+
+        /** Leaves out payloads that expired by {@code now}, see {@link #expiredCount}. */
+        PayloadWriter(
+                BatchPayloadWriter writer,
+                Crypto crypto,
+                ContextStore contextStore,
+                EvictionPolicy evictionPolicy,
+                long now) {
             this.writer = writer;
             this.crypto = crypto;
+            this.contextStore = contextStore;
+            this.evictionPolicy = evictionPolicy;
+            this.now = now;
+        }
+
+        /** Computes the {@link #range} of the batch, so that it can be cached. */
+        void trackRange() {
+            range = new BatchCache.RangeBuilder();
         }
 
         @Override
         public boolean read(InputStream in, int length) throws IOException {
-            InputStream is = crypto.decrypt(in);
-            final int newSize = size + length;
+            if (payloadCount == maxCount) {
+                return false;
+            }
+            if (dataIsLast) {
+                // Keeps the last payload written, in case this one doesn't fit.
+                byte[] free = last;
+                last = data;
+                data = free;
+                dataIsLast = false;
+            }
+            InputStream is = crypto.decrypt(header.read(in, length));
+            int payloadLength = header.payloadLength;
+            if (data.length < payloadLength) {
+                data = new byte[Math.max(payloadLength, data.length * 2)];
+            }
+            int read = 0;
+            while (read < payloadLength) {
+                int count = is.read(data, read, payloadLength - read);
+                if (count == -1) break;
+                read += count;
+            }
+            if ((header.flags & RecordHeader.FLAG_EVICTED) != 0) {
+                // Left out of the batch, and removed along with it.
+                return add(read, length, 0);
+            }
+            if (evictionPolicy != null && evictionPolicy.isExpired(header, now)) {
+                // Same as evicted payloads.
+                expiredCount++;
+                return add(read, length, 0);
+            }
+            if ((header.flags & RecordHeader.FLAG_DEFLATED) != 0) {
+                int uncompressedLength =
+                        read > PayloadDeflater.PREFIX_LENGTH ? PayloadDeflater.length(data, 0) : 0;
+                if (uncompressedLength <= 0 || uncompressedLength > MAX_PAYLOAD_SIZE) {
+                    // Left out of the batch, and removed along with it.
+                    return add(read, length, 0);
+                }
+                // The opening brace isn't part of the compressed payload.
+                if (!add(read, length, uncompressedLength + 2)) {
+                    return false;
+                }
+                writer.emitDeflatedPayloadObject(data, 0, read);
+                return true;
+            }
+            byte[] context = null;
+            if ((header.flags & RecordHeader.FLAG_SHARED_CONTEXT) != 0 && contextStore != null) {
+                try {
+                    context = contextStore.get(header.contextId);
+                } catch (IOException e) {
+                    // Better to upload the event without its context than not at all.
+                }
+            }
+            byte[] json = data;
+            int start = 0;
+            int end = read;
+            if ((header.flags & RecordHeader.FLAG_BINARY) != 0) {
+                if (binaryDecoder == null) {
+                    binaryDecoder = new BinaryJson();
+                }
+                try {
+                    binaryDecoder.decode(data, 0, read);
+                } catch (IOException e) {
+                    // Left out of the batch, and removed along with it.
+                    return add(read, length, 0);
+                }
+                json = binaryDecoder.buffer();
+                end = binaryDecoder.size();
+            } else {
+                // Remove surrounding whitespace, same as String#trim does.
+                while (start < end && (data[start] & 0xff) <= ' ') {
+                    start++;
+                }
+                while (end > start && (data[end - 1] & 0xff) <= ' ') {
+                    end--;
+                }
+            }
+            int uploadLength = end - start + 1;
+            if (context != null) {
+                uploadLength += BatchPayloadWriter.CONTEXT_START.length + context.length;
+            }
+            if (!add(read, length, uploadLength)) {
+                return false;
+            }
+            if (context == null) {
+                writer.emitPayloadObject(json, start, end - start);
+            } else {
+                writer.emitPayloadObject(json, start, end - start, context);
+            }
+            return true;
+        }
+
+        /**
+         * Counts the element that was just read into the batch, unless uploading it would take the
+         * batch past {@link #MAX_BATCH_SIZE}. That's measured as it is uploaded, with the context
+         * put back and binary payloads decoded, including the comma that separates payloads.
+         *
+         * @return whether the element was counted, otherwise the batch ends before it
+         */
+        private boolean add(int read, int length, int uploadLength) {
+            int newSize = size + uploadLength;
             if (newSize > MAX_BATCH_SIZE) {
                 return false;
             }
             size = newSize;
-            byte[] data = new byte[length];
-            //noinspection ResultOfMethodCallIgnored
-            is.read(data, 0, length);
-            // Remove trailing whitespace.
-            writer.emitPayloadObject(new String(data, UTF_8).trim());
+            if (range != null) {
+                // Only the first and the last payload are checksummed, and the last one is only
+                // known once the batch ends.
+                if (payloadCount == 0) {
+                    range.add(data, read, length);
+                } else {
+                    range.add(length);
+                }
+                lastRead = read;
+                dataIsLast = true;
+            }
             payloadCount++;
             return true;
         }
+
+        /**
+         * The elements written so far, to look the batch up in a {@link BatchCache}. Requires
+         * {@link #trackRange}.
+         */
+        BatchCache.Range range() {
+            if (range.count > 1) {
+                range.setLast(dataIsLast ? data : last, lastRead);
+            }
+            return range.build();
+        }
     }
 
-    /** A wrapper that emits a JSON formatted batch payload to the underlying writer. */
+    /**
+     * Emits a JSON formatted batch payload to the underlying stream. Payloads are copied in as the
+     * UTF-8 bytes they were stored as, only the envelope around them is encoded here.
+     */
     static class BatchPayloadWriter implements Closeable {
 
-        private final JsonWriter jsonWriter;
-        /** Keep around for writing payloads as Strings. */
-        private final BufferedWriter bufferedWriter;
+        private static final byte[] BATCH_ARRAY_START = "\"batch\":[".getBytes(UTF_8);
+        private static final byte[] CONTEXT_START = ("{\"" + CONTEXT_KEY + "\":").getBytes(UTF_8);
+        private static final int BUFFER_SIZE = 8192;
+        /** Buffers of closed writers. At most {@link #MAX_IN_FLIGHT_BATCHES} are used at once. */
+        private static final ArrayDeque<byte[]> BUFFER_POOL = new ArrayDeque<>();
+
+        private final OutputStream stream;
+        private byte[] buffer;
+        private int count;
 
         private boolean needsComma = false;
 
         BatchPayloadWriter(OutputStream stream) {
-            bufferedWriter = new BufferedWriter(new OutputStreamWriter(stream));
-            jsonWriter = new JsonWriter(bufferedWriter);
+            this.stream = stream;
+            this.buffer = obtainBuffer();
         }
 
         BatchPayloadWriter beginObject() throws IOException {
-            jsonWriter.beginObject();
+            write('{');
             return this;
         }
 
         BatchPayloadWriter beginBatchArray() throws IOException {
-            jsonWriter.name("batch").beginArray();
+            write(BATCH_ARRAY_START, 0, BATCH_ARRAY_START.length);
             needsComma = false;
             return this;
         }
 
         BatchPayloadWriter emitPayloadObject(String payload) throws IOException {
+            byte[] bytes = payload.getBytes(UTF_8);
+            return emitPayloadObject(bytes, 0, bytes.length);
+        }
+
+        BatchPayloadWriter emitPayloadObject(byte[] payload, int offset, int length)
+                throws IOException {
             // Payloads already serialized into json when storing on disk. No need to waste cycles
             // deserializing them.
             if (needsComma) {
-                bufferedWriter.write(',');
+                write(',');
+            } else {
+                needsComma = true;
+            }
+            write(payload, offset, length);
+            return this;
+        }
+
+        /**
+         * Emits a payload that was compressed by {@link PayloadDeflater}. The compressed blocks
+         * are spliced into a gzipped body as they are, and decompressed for anything else. A
+         * payload that can't be decompressed is left out.
+         */
+        BatchPayloadWriter emitDeflatedPayloadObject(byte[] data, int offset, int length)
+                throws IOException {
+            int uncompressedLength = PayloadDeflater.length(data, offset);
+            if (!(stream instanceof BatchOutputStream) || !((BatchOutputStream) stream).gzip) {
+                byte[] rest = PayloadDeflater.inflate(data, offset, length);
+                if (rest == null) {
+                    return this;
+                }
+                byte[] payload = new byte[rest.length + 1];
+                payload[0] = '{';
+                System.arraycopy(rest, 0, payload, 1, rest.length);
+                return emitPayloadObject(payload, 0, payload.length);
+            }
+            if (needsComma) {
+                write(',');
             } else {
                 needsComma = true;
             }
-            bufferedWriter.write(payload);
+            write('{');
+            flushBuffer();
+            ((BatchOutputStream) stream)
+                    .writeDeflated(
+                            data,
+                            offset + PayloadDeflater.PREFIX_LENGTH,
+                            length - PayloadDeflater.PREFIX_LENGTH,
+                            PayloadDeflater.crc(data, offset),
+                            uncompressedLength);
             return this;
         }
 
+        /**
+         * Emits a payload that was stored without its context, with the given context put back as
+         * its first key.
+         */
+        BatchPayloadWriter emitPayloadObject(
+                byte[] payload, int offset, int length, byte[] context) throws IOException {
+            if (length < 2 || payload[offset] != '{') {
+                return emitPayloadObject(payload, offset, length);
+            }
+            if (needsComma) {
+                write(',');
+            } else {
+                needsComma = true;
+            }
+            write(CONTEXT_START, 0, CONTEXT_START.length);
+            write(context, 0, context.length);
+            // Unless the rest of the payload is empty, i.e. "{}".
+            if (length > 2) {
+                write(',');
+            }
+            write(payload, offset + 1, length - 1);
+            return this;
+        }
+
+        /** Whether no payload was emitted yet, in which case the batch can't be ended. */
+        boolean isEmpty() {
+            return !needsComma;
+        }
+
         BatchPayloadWriter endBatchArray() throws IOException {
             if (!needsComma) {
                 throw new IOException("At least one payload must be provided.");
             }
-            jsonWriter.endArray();
+            write(']');
             return this;
         }
 
         BatchPayloadWriter endObject(String writeKey) throws IOException {
+            flushBuffer();
+            metadata(writeKey).writeTo(stream);
+            return this;
+        }
+
+        /** Writes out everything emitted so far, without closing the stream. */
+        void flush() throws IOException {
+            flushBuffer();
+            stream.flush();
+        }
+
+        /**
+         * Writes what {@link #endBatchArray()} and {@link #endObject(String)} would, after payloads
+         * written by an earlier writer.
+         */
+        static void endCachedBatch(OutputStream stream, String writeKey) throws IOException {
+            stream.write(']');
+            metadata(writeKey).writeTo(stream);
+            stream.flush();
+        }
+
+        /** Encodes the fields that follow the batch array, and the end of the object. */
+        private static JsonEncoder metadata(String writeKey) {
             /**
              * The sent timestamp is an ISO-8601-formatted string that, if present on a message, can
              * be used to correct the original timestamp in situations where the local clock cannot
@@ -522,15 +2216,87 @@ class SegmentIntegration extends Integration<Void> {
              * will be assumed to have occurred at the same time, and therefore the difference is
              * the local clock skew.
              */
-            jsonWriter.name("sentAt").value(toISO8601Date(new Date()))
-                    .name("writeKey").value(writeKey)
-                    .endObject();
-            return this;
+            JsonEncoder encoder = new JsonEncoder(128);
+            encoder.writeRaw(",\"sentAt\":");
+            encoder.encodeString(toISO8601Date(new Date()));
+            encoder.writeRaw(",\"writeKey\":");
+            if (writeKey == null) {
+                encoder.writeRaw("null");
+            } else {
+                encoder.encodeString(writeKey);
+            }
+            encoder.writeRaw("}");
+            return encoder;
+        }
+
+        private void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - count) {
+                flushBuffer();
+                if (length >= buffer.length) {
+                    // Too big to be worth buffering.
+                    stream.write(bytes, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                stream.write(buffer, 0, count);
+                count = 0;
+            }
         }
 
         @Override
         public void close() throws IOException {
-            jsonWriter.close();
+            if (buffer == null) {
+                return;
+            }
+            try {
+                flushBuffer();
+                stream.close();
+            } finally {
+                recycleBuffer(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * Releases this writer without writing anything more, for a batch that won't be sent. The
+         * underlying stream is left open.
+         */
+        void discard() {
+            if (buffer != null) {
+                recycleBuffer(buffer);
+                buffer = null;
+            }
+        }
+
+        private static byte[] obtainBuffer() {
+            synchronized (BUFFER_POOL) {
+                byte[] buffer = BUFFER_POOL.poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return new byte[BUFFER_SIZE];
+        }
+
+        private static void recycleBuffer(byte[] buffer) {
+            synchronized (BUFFER_POOL) {
+                if (BUFFER_POOL.size() < MAX_IN_FLIGHT_BATCHES) {
+                    BUFFER_POOL.push(buffer);
+                }
+            }
         }
     }
 
@@ -538,6 +2304,10 @@ class SegmentIntegration extends Integration<Void> {
 
         static final int REQUEST_FLUSH = 1;
         @Private static final int REQUEST_ENQUEUE = 0;
+        static final int REQUEST_COMMIT = 2;
+        static final int REQUEST_SCHEDULED_FLUSH = 3;
+        static final int REQUEST_ERASE = 4;
+        static final int REQUEST_EXPRESS_FLUSH = 5;
         private final SegmentIntegration segmentIntegration;
 
         SegmentDispatcherHandler(Looper looper, SegmentIntegration segmentIntegration) {
@@ -554,6 +2324,19 @@ class SegmentIntegration extends Integration<Void> {
                     break;
                 case REQUEST_FLUSH:
                     segmentIntegration.submitFlush();
+                    segmentIntegration.submitExpressFlush();
+                    break;
+                case REQUEST_COMMIT:
+                    segmentIntegration.performCommit();
+                    break;
+                case REQUEST_SCHEDULED_FLUSH:
+                    segmentIntegration.performScheduledFlush();
+                    break;
+                case REQUEST_ERASE:
+                    segmentIntegration.performErase();
+                    break;
+                case REQUEST_EXPRESS_FLUSH:
+                    segmentIntegration.submitExpressFlush();
                     break;
                 default:
                     throw new AssertionError("Unknown dispatcher message: " + msg.what);
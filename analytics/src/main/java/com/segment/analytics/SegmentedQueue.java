@@ -0,0 +1,573 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link PayloadQueue} stored as a log of fixed-size, append-only segment files, plus a small
+ * manifest that records where the head of the queue is.
+ *
+ * <p>Elements are appended to the newest segment until the next one doesn't fit, at which point a
+ * new segment is started. Growing never copies data. Removing elements only rewrites the
+ * manifest, and a segment is deleted as soon as all of its elements are removed, so space is
+ * reclaimed without compacting anything.
+ *
+ * <p>Each element is stored as its length followed by its data. When the queue is opened, every
+ * segment is scanned. A torn or corrupt record truncates that segment and only that segment. If
+ * the manifest can't be read, the queue starts over from the oldest segment, so elements may be
+ * uploaded twice but are never lost.
+ *
+ * <p>In synchronous mode every addition is forced to storage before returning. Otherwise additions
+ * are only forced by {@link #commit}, and a system crash may lose additions since the last commit.
+ *
+ * <p>All operations are synchronized. Only one instance should access a given directory at a time.
+ */
+class SegmentedQueue extends PayloadQueue {
+    private static final Logger LOGGER = Logger.getLogger(SegmentedQueue.class.getName());
+
+    /** Default size of a segment file in bytes. */
+    static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String MANIFEST = "manifest";
+    private static final int MANIFEST_VERSION = 1;
+    /** Length of a record header, which holds the length of the element. */
+    private static final int RECORD_HEADER_LENGTH = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean synchronous;
+
+    /** Segments that still hold elements, oldest first. The last one is appended to. */
+    private final List<Segment> segments = new ArrayList<>();
+    /** Number of elements already removed from the first segment. */
+    private int headIndex;
+    /** Number of elements in the queue. */
+    private int size;
+    /** Number of elements ever removed, so a {@link Snapshot} can tell if its elements are gone. */
+    private long removedCount;
+
+    /** Open for writing to the last segment. */
+    private RandomAccessFile tail;
+    /** Open for reading a segment other than the last one, or null. */
+    private RandomAccessFile reader;
+
+    private Segment readerSegment;
+    private final byte[] header = new byte[RECORD_HEADER_LENGTH];
+
+    SegmentedQueue(File directory, boolean synchronous) throws IOException {
+        this(directory, synchronous, DEFAULT_SEGMENT_SIZE);
+    }
+
+    SegmentedQueue(File directory, boolean synchronous, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("segmentSize <= " + RECORD_HEADER_LENGTH);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.directory = directory;
+        this.synchronous = synchronous;
+        this.segmentSize = segmentSize;
+        load();
+    }
+
+    /** Scans the segments on disk and finds the head of the queue from the manifest. */
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        long[] ids = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Ignoring unknown file " + file, e);
+                continue;
+            }
+            ids[count++] = id;
+        }
+        Arrays.sort(ids, 0, count);
+
+        // Without a manifest nothing was removed yet, so start from the oldest segment.
+        long headId = -1;
+        int index = 0;
+        if (manifest().exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(manifest()));
+                try {
+                    if (in.readInt() == MANIFEST_VERSION) {
+                        headId = in.readLong();
+                        index = in.readInt();
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read manifest, starting from oldest.", e);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment(ids[i], segmentFile(ids[i]));
+            if (segment.id < headId) {
+                // Fully removed, but not deleted before the process died.
+                deleteSegmentFile(segment);
+                continue;
+            }
+            scan(segment);
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(createSegment(Math.max(headId, 0)));
+            index = 0;
+        }
+        Segment first = segments.get(0);
+        headIndex = first.id == headId ? Math.max(0, Math.min(index, first.count)) : 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        size -= headIndex;
+        tail = new RandomAccessFile(last().file, "rw");
+    }
+
+    /** Reads the records of a segment, and truncates it at the first one that isn't intact. */
+    private void scan(Segment segment) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        try {
+            long fileLength = raf.length();
+            int position = 0;
+            while (position + RECORD_HEADER_LENGTH <= fileLength) {
+                raf.seek(position);
+                int length = raf.readInt();
+                int end = position + RECORD_HEADER_LENGTH + length;
+                if (length <= 0 || end > fileLength || end < 0) {
+                    break;
+                }
+                segment.append(position + RECORD_HEADER_LENGTH, length);
+                position = end;
+            }
+            if (position != fileLength) {
+                LOGGER.warning(
+                        "Truncating segment "
+                                + segment.file
+                                + " from "
+                                + fileLength
+                                + " to "
+                                + position
+                                + " bytes.");
+                raf.setLength(position);
+            }
+            segment.length = position;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    synchronized int size() {
+        return size;
+    }
+
+    @Override
+    synchronized void add(byte[] data) throws IOException {
+        int recordLength = RECORD_HEADER_LENGTH + data.length;
+        Segment segment = last();
+        if (segment.length > 0 && segment.length + recordLength > segmentSize) {
+            segment = roll();
+        }
+        int position = segment.length;
+        header[0] = (byte) (data.length >> 24);
+        header[1] = (byte) (data.length >> 16);
+        header[2] = (byte) (data.length >> 8);
+        header[3] = (byte) data.length;
+        tail.seek(position);
+        tail.write(header);
+        tail.write(data);
+        if (synchronous) {
+            tail.getChannel().force(false);
+        }
+        segment.append(position + RECORD_HEADER_LENGTH, data.length);
+        segment.length = position + recordLength;
+        size++;
+    }
+
+    /** Starts a new segment after the last one, which is forced to storage first. */
+    private Segment roll() throws IOException {
+        if (!synchronous) {
+            tail.getChannel().force(false);
+        }
+        tail.close();
+        Segment segment = createSegment(last().id + 1);
+        segments.add(segment);
+        tail = new RandomAccessFile(segment.file, "rw");
+        return segment;
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        File file = segmentFile(id);
+        if (!file.createNewFile() && file.length() != 0) {
+            throw new IOException("Segment " + file + " already exists.");
+        }
+        return new Segment(id, file);
+    }
+
+    @Override
+    synchronized void remove(int n) throws IOException {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        if (n < 0) {
+            throw new IllegalArgumentException(
+                    "Cannot remove negative (" + n + ") number of elements.");
+        }
+        if (n > size) {
+            throw new IllegalArgumentException(
+                    "Cannot remove more elements ("
+                            + n
+                            + ") than present in queue ("
+                            + size
+                            + ").");
+        }
+        if (n == 0) {
+            return;
+        }
+        int index = headIndex + n;
+        int drop = 0;
+        while (drop < segments.size() - 1 && index >= segments.get(drop).count) {
+            index -= segments.get(drop).count;
+            drop++;
+        }
+        // Commit the new head before deleting anything, so a crash in between only leaves files
+        // that are deleted the next time the queue is opened.
+        writeManifest(segments.get(drop).id, index);
+        for (int i = 0; i < drop; i++) {
+            deleteSegmentFile(segments.remove(0));
+        }
+        headIndex = index;
+        size -= n;
+        removedCount += n;
+    }
+
+    private void writeManifest(long headId, int index) throws IOException {
+        File tmp = new File(directory, MANIFEST + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeLong(headId);
+            out.writeInt(index);
+            out.flush();
+            if (synchronous) {
+                fos.getFD().sync();
+            }
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(manifest())) {
+            throw new IOException("Could not update " + manifest());
+        }
+    }
+
+    private void deleteSegmentFile(Segment segment) throws IOException {
+        if (segment == readerSegment) {
+            reader.close();
+            reader = null;
+            readerSegment = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        segment.file.delete();
+    }
+
+    @Override
+    synchronized void forEach(ElementVisitor visitor) throws IOException {
+        int index = headIndex;
+        for (Segment segment : segments) {
+            for (; index < segment.count; index++) {
+                int length = segment.lengths[index];
+                InputStream in = new RecordInputStream(segment, segment.positions[index], length);
+                if (!visitor.read(in, length)) {
+                    return;
+                }
+            }
+            index = 0;
+        }
+    }
+
+    @Override
+    synchronized Snapshot snapshot(int skip, int maxBytes) {
+        List<Segment> snapshotSegments = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        int bytes = 0;
+        int skipped = 0;
+        int index = headIndex;
+        outer:
+        for (Segment segment : segments) {
+            for (; index < segment.count; index++) {
+                if (skipped < skip) {
+                    skipped++;
+                    continue;
+                }
+                bytes += segment.lengths[index];
+                if (bytes > maxBytes) {
+                    break outer;
+                }
+                snapshotSegments.add(segment);
+                indexes.add(index);
+            }
+            index = 0;
+        }
+        return new SegmentSnapshot(removedCount + skip, snapshotSegments, indexes);
+    }
+
+    @Override
+    synchronized void overwrite(int index, int offset, byte[] data, int count)
+            throws IOException {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException(
+                    "Element " + index + " isn't in a queue of " + size + ".");
+        }
+        int i = headIndex + index;
+        for (Segment segment : segments) {
+            if (i >= segment.count) {
+                i -= segment.count;
+                continue;
+            }
+            if (offset < 0 || count < 0 || offset + count > segment.lengths[i]) {
+                throw new IllegalArgumentException("Write is outside of element " + index + ".");
+            }
+            RandomAccessFile raf =
+                    segment == last() ? tail : new RandomAccessFile(segment.file, "rw");
+            try {
+                raf.seek(segment.positions[i] + offset);
+                raf.write(data, 0, count);
+                if (synchronous) {
+                    raf.getChannel().force(false);
+                }
+            } finally {
+                if (raf != tail) {
+                    raf.close();
+                }
+            }
+            return;
+        }
+    }
+
+    @Override
+    synchronized void commit() throws IOException {
+        if (!synchronous) {
+            tail.getChannel().force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            tail.close();
+            if (reader != null) {
+                reader.close();
+                reader = null;
+                readerSegment = null;
+            }
+        }
+    }
+
+    /** Number of segment files, visible for testing. */
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, id + SEGMENT_SUFFIX);
+    }
+
+    private File manifest() {
+        return new File(directory, MANIFEST);
+    }
+
+    /** Reads {@code count} bytes at {@code position} in the given segment. */
+    private void read(Segment segment, int position, byte[] buffer, int offset, int count)
+            throws IOException {
+        RandomAccessFile raf;
+        if (segment == last()) {
+            raf = tail;
+        } else {
+            if (segment != readerSegment) {
+                if (reader != null) {
+                    reader.close();
+                }
+                reader = null;
+                readerSegment = null;
+                reader = new RandomAccessFile(segment.file, "r");
+                readerSegment = segment;
+            }
+            raf = reader;
+        }
+        raf.seek(position);
+        raf.readFully(buffer, offset, count);
+    }
+
+    /** A segment file, and where its elements are. */
+    private static final class Segment {
+        final long id;
+        final File file;
+        /** Positions of the elements' data. */
+        int[] positions = new int[16];
+
+        int[] lengths = new int[16];
+        int count;
+        /** Number of bytes used. */
+        int length;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        void append(int position, int length) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            positions[count] = position;
+            lengths[count] = length;
+            count++;
+        }
+    }
+
+    /** Elements found by {@link #snapshot}. Segments never move their data, only go away. */
+    private final class SegmentSnapshot implements Snapshot {
+        private final long firstIndex;
+        private final List<Segment> segments;
+        private final List<Integer> indexes;
+
+        SegmentSnapshot(long firstIndex, List<Segment> segments, List<Integer> indexes) {
+            this.firstIndex = firstIndex;
+            this.segments = segments;
+            this.indexes = indexes;
+        }
+
+        @Override
+        public int size() {
+            return segments.size();
+        }
+
+        @Override
+        public void forEach(ElementVisitor visitor) throws IOException {
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                int index = indexes.get(i);
+                int length = segment.lengths[index];
+                InputStream in =
+                        new RecordInputStream(segment, segment.positions[index], length) {
+                            @Override
+                            void checkRemoved() throws IOException {
+                                if (firstIndex < removedCount) {
+                                    throw new IOException(
+                                            "Element "
+                                                    + firstIndex
+                                                    + " was removed while being read.");
+                                }
+                            }
+                        };
+                if (!visitor.read(in, length)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Streams an element out of its segment, holding the lock only while copying. */
+    private class RecordInputStream extends InputStream {
+        private final Segment segment;
+        private final int position;
+        private final int length;
+        private int offset;
+
+        RecordInputStream(Segment segment, int position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        /** Throws if the element is no longer in the queue. */
+        void checkRemoved() throws IOException {}
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if ((offset | count) < 0 || count > buffer.length - offset) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            int remaining = length - this.offset;
+            if (remaining == 0) {
+                return -1;
+            }
+            if (count > remaining) count = remaining;
+            synchronized (SegmentedQueue.this) {
+                checkRemoved();
+                SegmentedQueue.this.read(segment, position + this.offset, buffer, offset, count);
+            }
+            this.offset += count;
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int available() {
+            return length - offset;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link QueueFile} that all processes of an app may read and write at the same time.
+ *
+ * <p>Every operation holds an exclusive {@link FileLock} on a lock file next to the queue, and
+ * reloads the queue's header first, since another process may have changed the file in the
+ * meantime. Elements in a {@link Snapshot} are copied while holding the lock, so they can be read
+ * afterwards whatever other processes do.
+ *
+ * <p>A second lock file is held by the process that uploads. It is taken by {@link
+ * #claimUploads()} and held until {@link #releaseUploads()}, so that only one process uploads and
+ * removes the eldest elements at a time. If that process dies, the system releases its locks, and
+ * the next process to flush takes over.
+ *
+ * <p>File locks are held on behalf of the whole process, so instances within a process also
+ * synchronize on a monitor per file.
+ *
+ * <p>{@link #size()} is called for every event added, so it doesn't lock the file. It returns the
+ * size as of the last time this instance locked it, which picks up what other processes added
+ * once this one adds an element or claims the uploads.
+ */
+class SharedQueue extends PayloadQueue {
+    /** Monitors for the files opened by this process, by path. Guarded by itself. */
+    static final Map<String, Monitor> MONITORS = new HashMap<>();
+
+    private final String path;
+    private final QueueFile queueFile;
+    private final Monitor monitor;
+    private final RandomAccessFile lockFile;
+    private final RandomAccessFile uploadFile;
+    /** Held while this process uploads, null otherwise. Guarded by the {@link #monitor}. */
+    private FileLock uploadLock;
+    /** Size of the queue when it was last locked. Guarded by the {@link #monitor}. */
+    private int size;
+
+    /** Synchronizes the instances that have a file open, and is dropped once they're closed. */
+    static final class Monitor {
+        /** Number of open instances. Guarded by {@link #MONITORS}. */
+        int references;
+    }
+
+    /**
+     * Opens the queue in {@code file}, creating it if it doesn't exist. See {@link
+     * QueueFile#QueueFile(File, int)} for {@code maxPendingElements}.
+     */
+    SharedQueue(File file, int maxPendingElements) throws IOException {
+        path = file.getCanonicalPath();
+        monitor = acquireMonitor(path);
+        RandomAccessFile lockFile = null;
+        RandomAccessFile uploadFile = null;
+        try {
+            lockFile = new RandomAccessFile(path + ".lock", "rw");
+            uploadFile = new RandomAccessFile(path + ".upload", "rw");
+            synchronized (monitor) {
+                FileLock lock = lock(lockFile);
+                try {
+                    queueFile = new QueueFile(file, maxPendingElements);
+                    size = queueFile.size();
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            if (lockFile != null) {
+                lockFile.close();
+            }
+            if (uploadFile != null) {
+                uploadFile.close();
+            }
+            releaseMonitor(path, monitor);
+            throw e;
+        }
+        this.lockFile = lockFile;
+        this.uploadFile = uploadFile;
+    }
+
+    /** Work done on a queue file that isn't open, see {@link #whileLocked}. */
+    interface LockedTask {
+        boolean run() throws IOException;
+    }
+
+    /**
+     * Runs {@code task} while holding the lock that every operation on the queue in {@code file}
+     * holds. Changes to a file that can't be opened, like recovering or deleting it, are made
+     * this way, since other processes may still have it open.
+     *
+     * @throws IOException if the lock can't be taken
+     */
+    static boolean whileLocked(File file, LockedTask task) throws IOException {
+        String path = file.getCanonicalPath();
+        Monitor monitor = acquireMonitor(path);
+        try {
+            synchronized (monitor) {
+                RandomAccessFile lockFile = new RandomAccessFile(path + ".lock", "rw");
+                try {
+                    FileLock lock = lock(lockFile);
+                    try {
+                        return task.run();
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    lockFile.close();
+                }
+            }
+        } finally {
+            releaseMonitor(path, monitor);
+        }
+    }
+
+    /**
+     * Waits for the lock on {@code lockFile}. Instances in this process take turns through their
+     * {@link Monitor}, so if this process holds the lock already, it can't be taken.
+     */
+    private static FileLock lock(RandomAccessFile lockFile) throws IOException {
+        try {
+            return lockFile.getChannel().lock();
+        } catch (OverlappingFileLockException e) {
+            throw new IOException("Queue is locked by this process.", e);
+        }
+    }
+
+    /** Returns the monitor for {@code path}, and counts a reference to it. */
+    private static Monitor acquireMonitor(String path) {
+        synchronized (MONITORS) {
+            Monitor monitor = MONITORS.get(path);
+            if (monitor == null) {
+                monitor = new Monitor();
+                MONITORS.put(path, monitor);
+            }
+            monitor.references++;
+            return monitor;
+        }
+    }
+
+    /** Drops a reference to the {@code monitor} for {@code path}. */
+    private static void releaseMonitor(String path, Monitor monitor) {
+        synchronized (MONITORS) {
+            if (--monitor.references == 0) {
+                MONITORS.remove(path);
+            }
+        }
+    }
+
+    /** Locks the queue against other processes, and reads what they changed. */
+    private FileLock lock() throws IOException {
+        FileLock lock = lock(lockFile);
+        try {
+            queueFile.reload();
+        } catch (IOException e) {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    /** Unlocks the queue, noting its size for {@link #size()}. */
+    private void unlock(FileLock lock) throws IOException {
+        size = queueFile.size();
+        lock.release();
+    }
+
+    @Override
+    int size() {
+        synchronized (monitor) {
+            return size;
+        }
+    }
+
+    @Override
+    void remove(int n) throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.remove(n);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    void add(byte[] data) throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.add(data);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    void forEach(ElementVisitor visitor) throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.forEach(visitor);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    void forEach(int skip, ElementVisitor visitor) throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.forEach(skip, visitor);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    Snapshot snapshot(int skip, final int maxBytes) throws IOException {
+        final MemoryQueue copy = new MemoryQueue();
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.forEach(
+                        skip,
+                        new ElementVisitor() {
+                            int bytes;
+
+                            @Override
+                            public boolean read(InputStream in, int length) throws IOException {
+                                bytes += length;
+                                if (bytes > maxBytes) {
+                                    return false;
+                                }
+                                byte[] data = new byte[length];
+                                new DataInputStream(in).readFully(data);
+                                copy.add(data);
+                                return true;
+                            }
+                        });
+            } finally {
+                unlock(lock);
+            }
+        }
+        return copy.snapshot(0, maxBytes);
+    }
+
+    @Override
+    void overwrite(int index, int offset, byte[] data, int count) throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.overwrite(index, offset, data, count);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    void commit() throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.commit();
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    void eraseRemoved() throws IOException {
+        synchronized (monitor) {
+            FileLock lock = lock();
+            try {
+                queueFile.eraseFreeSpace();
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    @Override
+    boolean claimUploads() {
+        synchronized (monitor) {
+            if (uploadLock == null) {
+                try {
+                    uploadLock = uploadFile.getChannel().tryLock();
+                } catch (IOException | OverlappingFileLockException e) {
+                    // Held by another instance in this process, or can't be taken at all.
+                    uploadLock = null;
+                }
+                if (uploadLock == null) {
+                    return false;
+                }
+            }
+            try {
+                // Uploads go by the size, so pick up what other processes added since.
+                unlock(lock());
+            } catch (IOException ignored) {
+                // Go by what was in the queue the last time it could be read.
+            }
+            return true;
+        }
+    }
+
+    @Override
+    void releaseUploads() {
+        synchronized (monitor) {
+            if (uploadLock == null) {
+                return;
+            }
+            try {
+                uploadLock.release();
+            } catch (IOException ignored) {
+                // Released anyway once the file is closed.
+            }
+            uploadLock = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (monitor) {
+            releaseUploads();
+            try {
+                FileLock lock;
+                try {
+                    lock = lock();
+                } catch (IOException e) {
+                    // Pending additions can't be committed without knowing where the queue ends.
+                    queueFile.raf.close();
+                    throw e;
+                }
+                try {
+                    queueFile.close();
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+                uploadFile.close();
+                releaseMonitor(path, monitor);
+            }
+        }
+    }
+}
@@ -23,108 +23,116 @@
  */
 package com.segment.analytics;
 
-import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
-
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
-import android.util.Pair;
-import com.segment.analytics.internal.Private;
-import com.segment.analytics.internal.Utils;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Records stats from whichever thread does the work. Nothing here locks or hops threads, and
+ * after the first operation for an integration, nothing allocates either.
+ */
 class Stats {
 
-    private static final String STATS_THREAD_NAME = Utils.THREAD_PREFIX + "Stats";
-
-    final HandlerThread statsThread;
-    final StatsHandler handler;
-
-    long flushCount;
-    long flushEventCount;
-    long integrationOperationCount;
-    long integrationOperationDuration;
-    Map<String, Long> integrationOperationDurationByIntegration = new HashMap<>();
+    final StripedCounter flushCount = new StripedCounter();
+    final StripedCounter flushEventCount = new StripedCounter();
+    final StripedCounter evictedEventCount = new StripedCounter();
+    final StripedCounter recoveredEventCount = new StripedCounter();
+    final StripedCounter lostEventCount = new StripedCounter();
+    final StripedCounter expiredEventCount = new StripedCounter();
+    final StripedCounter integrationOperationCount = new StripedCounter();
+    final StripedCounter integrationOperationDuration = new StripedCounter();
+    final ConcurrentMap<String, Histogram> integrationOperationLatency =
+            new ConcurrentHashMap<>();
+    final Histogram enqueueLatency = new Histogram();
+    final Histogram batchSize = new Histogram();
+    final Histogram uploadLatency = new Histogram();
+    final Histogram uploadBytes = new Histogram();
+    /** Set by the Segment integration once it is created. */
+    volatile FlushScheduler flushScheduler;
+
+    /** Records that events were uploaded and removed from the queue. */
+    void recordFlush(int eventCount) {
+        flushCount.increment();
+        flushEventCount.add(eventCount);
+    }
 
-    Stats() {
-        statsThread = new HandlerThread(STATS_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
-        statsThread.start();
-        handler = new StatsHandler(statsThread.getLooper(), this);
+    /** Records that events were dropped from a full queue without being uploaded. */
+    void recordEviction(int eventCount) {
+        evictedEventCount.add(eventCount);
     }
 
-    void shutdown() {
-        statsThread.quit();
+    /**
+     * Records that a corrupt queue file was rebuilt, keeping {@code salvaged} events and losing
+     * {@code lost} events.
+     */
+    void recordQueueRecovery(int salvaged, int lost) {
+        recoveredEventCount.add(salvaged);
+        lostEventCount.add(lost);
     }
 
-    void dispatchFlush(int eventCount) {
-        handler.sendMessage(
-                handler //
-                        .obtainMessage(StatsHandler.TRACK_FLUSH, eventCount, 0));
+    /** Records that events were dropped without being uploaded because they were too old. */
+    void recordExpiry(int eventCount) {
+        expiredEventCount.add(eventCount);
     }
 
-    void performFlush(int eventCount) {
-        flushCount++;
-        flushEventCount += eventCount;
+    /** Records the time taken to run an operation on the integration with the given key. */
+    void recordIntegrationOperation(String key, long durationNanos) {
+        integrationOperationCount.increment();
+        integrationOperationDuration.add(durationNanos);
+        Histogram latency = integrationOperationLatency.get(key);
+        if (latency == null) {
+            Histogram created = new Histogram();
+            latency = integrationOperationLatency.putIfAbsent(key, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        latency.record(durationNanos);
     }
 
-    void dispatchIntegrationOperation(String key, long duration) {
-        handler.sendMessage(
-                handler //
-                        .obtainMessage(
-                        StatsHandler.TRACK_INTEGRATION_OPERATION, new Pair<>(key, duration)));
+    /** Records the time taken to serialize an event and add it to the queue. */
+    void recordEnqueue(long durationNanos) {
+        enqueueLatency.record(durationNanos);
     }
 
-    void performIntegrationOperation(Pair<String, Long> durationForIntegration) {
-        integrationOperationCount++;
-        integrationOperationDuration += durationForIntegration.second;
-        Long duration = integrationOperationDurationByIntegration.get(durationForIntegration.first);
-        if (duration == null) {
-            integrationOperationDurationByIntegration.put(
-                    durationForIntegration.first, durationForIntegration.second);
-        } else {
-            integrationOperationDurationByIntegration.put(
-                    durationForIntegration.first, duration + durationForIntegration.second);
-        }
+    /** Records a batch of events that was accepted by the server. */
+    void recordUpload(int eventCount, long bytes, long durationNanos) {
+        batchSize.record(eventCount);
+        uploadBytes.record(bytes);
+        uploadLatency.record(durationNanos);
     }
 
     StatsSnapshot createSnapshot() {
+        FlushScheduler flushScheduler = this.flushScheduler;
+        Map<String, Long> durationByIntegration = new LinkedHashMap<>();
+        Map<String, StatsSnapshot.Distribution> latencyByIntegration = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> entry : integrationOperationLatency.entrySet()) {
+            durationByIntegration.put(entry.getKey(), millis(entry.getValue().sum()));
+            latencyByIntegration.put(entry.getKey(), entry.getValue().snapshot());
+        }
         return new StatsSnapshot(
                 System.currentTimeMillis(),
-                flushCount,
-                flushEventCount,
-                integrationOperationCount,
-                integrationOperationDuration,
-                Collections.unmodifiableMap(integrationOperationDurationByIntegration));
+                flushCount.sum(),
+                flushEventCount.sum(),
+                integrationOperationCount.sum(),
+                millis(integrationOperationDuration.sum()),
+                Collections.unmodifiableMap(durationByIntegration),
+                Collections.unmodifiableMap(latencyByIntegration),
+                enqueueLatency.snapshot(),
+                batchSize.snapshot(),
+                uploadLatency.snapshot(),
+                uploadBytes.snapshot(),
+                flushScheduler == null ? null : flushScheduler.snapshot(),
+                evictedEventCount.sum(),
+                recoveredEventCount.sum(),
+                lostEventCount.sum(),
+                expiredEventCount.sum());
     }
 
-    private static class StatsHandler extends Handler {
-
-        @Private static final int TRACK_FLUSH = 1;
-        @Private static final int TRACK_INTEGRATION_OPERATION = 2;
-
-        private final Stats stats;
-
-        StatsHandler(Looper looper, Stats stats) {
-            super(looper);
-            this.stats = stats;
-        }
-
-        @Override
-        public void handleMessage(final Message msg) {
-            switch (msg.what) {
-                case TRACK_FLUSH:
-                    stats.performFlush(msg.arg1);
-                    break;
-                case TRACK_INTEGRATION_OPERATION:
-                    //noinspection unchecked
-                    stats.performIntegrationOperation((Pair<String, Long>) msg.obj);
-                    break;
-                default:
-                    throw new AssertionError("Unknown Stats handler message: " + msg);
-            }
-        }
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
     }
 }
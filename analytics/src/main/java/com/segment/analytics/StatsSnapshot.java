@@ -23,6 +23,7 @@
  */
 package com.segment.analytics;
 
+import java.util.Collections;
 import java.util.Map;
 
 /** Represents all stats for a {@link Analytics} instance at a single point in time. */
@@ -34,6 +35,14 @@ public class StatsSnapshot {
     public final long flushCount;
     /** Number of events we've flushed to our servers. */
     public final long flushEventCount;
+    /** Number of events dropped without being uploaded because the queue was full. */
+    public final long evictedEventCount;
+    /** Number of events kept when a corrupt queue file was rebuilt. */
+    public final long recoveredEventCount;
+    /** Number of events lost to a corrupt queue file, as far as could be told. */
+    public final long lostEventCount;
+    /** Number of events dropped without being uploaded because they were too old. */
+    public final long expiredEventCount;
     /**
      * Number of operations sent to all bundled integrations, including lifecycle events and
      * flushes.
@@ -51,6 +60,21 @@ public class StatsSnapshot {
     public final float integrationOperationAverageDuration;
     /** Total time to run operations, including lifecycle events and flushes, by integration. */
     public final Map<String, Long> integrationOperationDurationByIntegration;
+    /**
+     * Time in nanoseconds to run an operation, including lifecycle events and flushes, by
+     * integration.
+     */
+    public final Map<String, Distribution> integrationOperationLatencyByIntegration;
+    /** Time in nanoseconds to serialize an event and add it to the queue. */
+    public final Distribution enqueueLatency;
+    /** Number of events in each batch uploaded to our servers. */
+    public final Distribution batchSize;
+    /** Time in nanoseconds to upload a batch to our servers, from connecting to the response. */
+    public final Distribution uploadLatency;
+    /** Number of bytes sent to our servers for each batch, after compression. */
+    public final Distribution uploadBytes;
+    /** How uploads are currently scheduled, or null if the Segment integration isn't set up. */
+    public final FlushSchedule flushSchedule;
 
     public StatsSnapshot(
             long timestamp,
@@ -59,9 +83,79 @@ public class StatsSnapshot {
             long integrationOperationCount,
             long integrationOperationDuration,
             Map<String, Long> integrationOperationDurationByIntegration) {
+        this(
+                timestamp,
+                flushCount,
+                flushEventCount,
+                integrationOperationCount,
+                integrationOperationDuration,
+                integrationOperationDurationByIntegration,
+                Collections.<String, Distribution>emptyMap(),
+                Distribution.EMPTY,
+                Distribution.EMPTY,
+                Distribution.EMPTY,
+                Distribution.EMPTY,
+                null,
+                0);
+    }
+
+    public StatsSnapshot(
+            long timestamp,
+            long flushCount,
+            long flushEventCount,
+            long integrationOperationCount,
+            long integrationOperationDuration,
+            Map<String, Long> integrationOperationDurationByIntegration,
+            Map<String, Distribution> integrationOperationLatencyByIntegration,
+            Distribution enqueueLatency,
+            Distribution batchSize,
+            Distribution uploadLatency,
+            Distribution uploadBytes,
+            FlushSchedule flushSchedule,
+            long evictedEventCount) {
+        this(
+                timestamp,
+                flushCount,
+                flushEventCount,
+                integrationOperationCount,
+                integrationOperationDuration,
+                integrationOperationDurationByIntegration,
+                integrationOperationLatencyByIntegration,
+                enqueueLatency,
+                batchSize,
+                uploadLatency,
+                uploadBytes,
+                flushSchedule,
+                evictedEventCount,
+                0,
+                0,
+                0);
+    }
+
+    public StatsSnapshot(
+            long timestamp,
+            long flushCount,
+            long flushEventCount,
+            long integrationOperationCount,
+            long integrationOperationDuration,
+            Map<String, Long> integrationOperationDurationByIntegration,
+            Map<String, Distribution> integrationOperationLatencyByIntegration,
+            Distribution enqueueLatency,
+            Distribution batchSize,
+            Distribution uploadLatency,
+            Distribution uploadBytes,
+            FlushSchedule flushSchedule,
+            long evictedEventCount,
+            long recoveredEventCount,
+            long lostEventCount,
+            long expiredEventCount) {
         this.timestamp = timestamp;
         this.flushCount = flushCount;
         this.flushEventCount = flushEventCount;
+        this.evictedEventCount = evictedEventCount;
+        this.recoveredEventCount = recoveredEventCount;
+        this.lostEventCount = lostEventCount;
+        this.expiredEventCount = expiredEventCount;
         this.integrationOperationCount = integrationOperationCount;
         this.integrationOperationDuration = integrationOperationDuration;
         this.integrationOperationAverageDuration =
@@ -69,6 +163,12 @@ public class StatsSnapshot {
                         ? 0
                         : ((float) integrationOperationDuration / integrationOperationCount);
         this.integrationOperationDurationByIntegration = integrationOperationDurationByIntegration;
+        this.integrationOperationLatencyByIntegration = integrationOperationLatencyByIntegration;
+        this.enqueueLatency = enqueueLatency;
+        this.batchSize = batchSize;
+        this.uploadLatency = uploadLatency;
+        this.uploadBytes = uploadBytes;
+        this.flushSchedule = flushSchedule;
     }
 
     @Override
@@ -80,6 +180,14 @@ public class StatsSnapshot {
                 + flushCount
                 + ", flushEventCount="
                 + flushEventCount
+                + ", evictedEventCount="
+                + evictedEventCount
+                + ", recoveredEventCount="
+                + recoveredEventCount
+                + ", lostEventCount="
+                + lostEventCount
+                + ", expiredEventCount="
+                + expiredEventCount
                 + ", integrationOperationCount="
                 + integrationOperationCount
                 + ", integrationOperationDuration="
@@ -88,6 +196,123 @@ public class StatsSnapshot {
                 + integrationOperationAverageDuration
                 + ", integrationOperationDurationByIntegration="
                 + integrationOperationDurationByIntegration
+                + ", integrationOperationLatencyByIntegration="
+                + integrationOperationLatencyByIntegration
+                + ", enqueueLatency="
+                + enqueueLatency
+                + ", batchSize="
+                + batchSize
+                + ", uploadLatency="
+                + uploadLatency
+                + ", uploadBytes="
+                + uploadBytes
+                + ", flushSchedule="
+                + flushSchedule
                 + '}';
     }
+
+    /**
+     * Summarizes recorded values. Percentiles are accurate to within 12.5%, and never more than
+     * {@link #max}.
+     */
+    public static class Distribution {
+
+        static final Distribution EMPTY = new Distribution(0, 0, 0, 0, 0, 0);
+
+        /** Number of values recorded. */
+        public final long count;
+        /** Average of the values recorded. */
+        public final double mean;
+        /** Median of the values recorded. */
+        public final long p50;
+        /** 95th percentile of the values recorded. */
+        public final long p95;
+        /** 99th percentile of the values recorded. */
+        public final long p99;
+        /** Largest value recorded. */
+        public final long max;
+
+        public Distribution(long count, double mean, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "Distribution{"
+                    + "count="
+                    + count
+                    + ", mean="
+                    + mean
+                    + ", p50="
+                    + p50
+                    + ", p95="
+                    + p95
+                    + ", p99="
+                    + p99
+                    + ", max="
+                    + max
+                    + '}';
+        }
+    }
+
+    /** The state behind the decisions of when to upload events. */
+    public static class FlushSchedule {
+
+        /** Whether uploads are suspended, because there is no connectivity. */
+        public final boolean suspended;
+        /** Whether the active network is unmetered, in which case events are uploaded sooner. */
+        public final boolean unmetered;
+        /** Whether the app is in the background. */
+        public final boolean backgrounded;
+        /** Number of uploads that failed in a row. */
+        public final int consecutiveFailures;
+        /** Milliseconds left before uploads are retried after a failure, or zero. */
+        public final long backoffMillis;
+        /** Number of queued events that triggers an upload right away. */
+        public final int flushQueueSize;
+        /** Milliseconds between scheduled uploads. */
+        public final long flushIntervalMillis;
+
+        public FlushSchedule(
+                boolean suspended,
+                boolean unmetered,
+                boolean backgrounded,
+                int consecutiveFailures,
+                long backoffMillis,
+                int flushQueueSize,
+                long flushIntervalMillis) {
+            this.suspended = suspended;
+            this.unmetered = unmetered;
+            this.backgrounded = backgrounded;
+            this.consecutiveFailures = consecutiveFailures;
+            this.backoffMillis = backoffMillis;
+            this.flushQueueSize = flushQueueSize;
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "FlushSchedule{"
+                    + "suspended="
+                    + suspended
+                    + ", unmetered="
+                    + unmetered
+                    + ", backgrounded="
+                    + backgrounded
+                    + ", consecutiveFailures="
+                    + consecutiveFailures
+                    + ", backoffMillis="
+                    + backoffMillis
+                    + ", flushQueueSize="
+                    + flushQueueSize
+                    + ", flushIntervalMillis="
+                    + flushIntervalMillis
+                    + '}';
+        }
+    }
 }
@@ -61,6 +61,9 @@ public abstract class BasePayload extends ValueMap {
     static final String TIMESTAMP_KEY = "timestamp";
     static final String USER_ID_KEY = "userId";
 
+    /** How urgently this payload is uploaded. Kept out of the map, so it isn't sent. */
+    private Priority priority = Priority.NORMAL;
+
     BasePayload(
             @NonNull Type type,
             @NonNull String messageId,
@@ -157,6 +160,15 @@ public abstract class BasePayload extends ValueMap {
         return getValueMap(CONTEXT_KEY, AnalyticsContext.class);
     }
 
+    /**
+     * How urgently the message is uploaded, as set by {@link
+     * com.segment.analytics.Options#setPriority(Priority)}. This is not part of the message itself.
+     */
+    @NonNull
+    public Priority priority() {
+        return priority;
+    }
+
     @Override
     public BasePayload putValue(String key, Object value) {
         super.putValue(key, value);
@@ -187,6 +199,15 @@ public abstract class BasePayload extends ValueMap {
         server
     }
 
+    /**
+     * How urgently a message is uploaded. {@link Priority#HIGH} messages skip the queue that
+     * everything else waits in, and are uploaded as soon as they are enqueued.
+     */
+    public enum Priority {
+        NORMAL,
+        HIGH
+    }
+
     public abstract static class Builder<P extends BasePayload, B extends Builder> {
 
         private String messageId;
@@ -196,6 +217,7 @@ public abstract class BasePayload extends ValueMap {
         private String userId;
         private String anonymousId;
         private boolean nanosecondTimestamps = false;
+        private Priority priority = Priority.NORMAL;
 
         Builder() {
             // Empty constructor.
@@ -213,6 +235,7 @@ public abstract class BasePayload extends ValueMap {
             integrationsBuilder = new LinkedHashMap<>(payload.integrations());
             userId = payload.userId();
             anonymousId = payload.anonymousId();
+            priority = payload.priority;
         }
 
         /**
@@ -346,6 +369,19 @@ public abstract class BasePayload extends ValueMap {
             return self();
         }
 
+        /**
+         * Set how urgently the message is uploaded. By default, messages are batched with others
+         * and uploaded when the queue is flushed.
+         *
+         * @see com.segment.analytics.Options#setPriority(Priority)
+         */
+        @NonNull
+        public B priority(@NonNull Priority priority) {
+            assertNotNull(priority, "priority");
+            this.priority = priority;
+            return self();
+        }
+
         abstract P realBuild(
                 @NonNull String messageId,
                 @NonNull Date timestamp,
@@ -386,14 +422,17 @@ public abstract class BasePayload extends ValueMap {
                 context = Collections.emptyMap();
             }
 
-            return realBuild(
-                    messageId,
-                    timestamp,
-                    context,
-                    integrations,
-                    userId,
-                    anonymousId,
-                    nanosecondTimestamps);
+            P payload =
+                    realBuild(
+                            messageId,
+                            timestamp,
+                            context,
+                            integrations,
+                            userId,
+                            anonymousId,
+                            nanosecondTimestamps);
+            ((BasePayload) payload).priority = priority;
+            return payload;
         }
     }
 }
@@ -51,6 +51,32 @@ public abstract class Integration<T> {
         String key();
     }
 
+    /** The thread an {@link Integration} expects its methods to be called on. */
+    public enum ThreadMode {
+        /** Called on the main thread. Use this if the SDK touches views or isn't thread safe. */
+        MAIN,
+        /**
+         * Called on a background thread shared by all such integrations, one call at a time and
+         * in order. Use this for SDKs that may block.
+         */
+        BACKGROUND,
+        /**
+         * Called on a thread shared by all such integrations, one call at a time and in order,
+         * without waiting on the main thread. Calls must return quickly, such as by handing work
+         * off to the SDK's own thread.
+         */
+        ANY
+    }
+
+    /**
+     * The thread this integration expects its methods to be called on, checked once when the
+     * integration is created. Defaults to {@link ThreadMode#MAIN}.
+     */
+    @NonNull
+    public ThreadMode threadMode() {
+        return ThreadMode.MAIN;
+    }
+
     /** @see android.app.Application.ActivityLifecycleCallbacks */
     public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
 
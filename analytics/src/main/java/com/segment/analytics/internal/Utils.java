@@ -329,6 +329,23 @@ public final class Utils {
         return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
     }
 
+    /**
+     * Returns {@code true} if the active network is unmetered, such as Wi-Fi. Returns {@code false}
+     * if it is metered, or if we don't have enough permissions to tell.
+     */
+    @SuppressLint("MissingPermission")
+    public static boolean isUnmetered(Context context) {
+        if (!hasPermission(context, ACCESS_NETWORK_STATE)) {
+            return false;
+        }
+        ConnectivityManager cm = getSystemService(context, CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return !cm.isActiveNetworkMetered();
+        }
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
     /** Return {@code true} if a class with the given name is found. */
     public static boolean isOnClassPath(String className) {
         try {
@@ -562,8 +579,9 @@ public final class Utils {
      */
     public static class AnalyticsNetworkExecutorService extends ThreadPoolExecutor {
 
-        private static final int DEFAULT_THREAD_COUNT = 1;
-        // At most we perform two network requests concurrently
+        // At most we perform two network requests concurrently. Tasks are queued without bound, so
+        // the pool never grows past its core size; keep both threads as core threads.
+        private static final int DEFAULT_THREAD_COUNT = 2;
         private static final int MAX_THREAD_COUNT = 2;
 
         public AnalyticsNetworkExecutorService() {
@@ -217,6 +217,24 @@ class AnalyticsBuilderTest {
         }
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun invalidMainThreadDispatchBudgetThrowsException() {
+        try {
+            Builder(context, "foo").mainThreadDispatchBudget(-1, TimeUnit.MILLISECONDS)
+            fail("budget < 0 should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("budget must not be negative.")
+        }
+
+        try {
+            Builder(context, "foo").dispatchInBackground("")
+            fail("empty key should throw exception.")
+        } catch (expected: IllegalArgumentException) {
+            assertThat(expected).hasMessage("key must not be null or empty.")
+        }
+    }
+
     @Test
     @Throws(Exception::class)
     fun invalidOptionsThrowsException() {
@@ -207,7 +207,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         // Used by singleton tests.
@@ -711,7 +714,6 @@ open class AnalyticsTest {
         assertThat(analytics.shutdown).isFalse()
         analytics.shutdown()
         verify(application).unregisterActivityLifecycleCallbacks(analytics.activityLifecycleCallback)
-        verify(stats).shutdown()
         verify(networkExecutor).shutdown()
         assertThat(analytics.shutdown).isTrue()
         try {
@@ -734,7 +736,7 @@ open class AnalyticsTest {
         assertThat(analytics.shutdown).isFalse()
         analytics.shutdown()
         analytics.shutdown()
-        verify(stats).shutdown()
+        verify(networkExecutor).shutdown()
         assertThat(analytics.shutdown).isTrue()
     }
 
@@ -875,7 +877,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         callback.get().onCreate(mockLifecycleOwner)
@@ -964,7 +969,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         callback.get().onCreate(mockLifecycleOwner)
@@ -1034,7 +1042,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -1107,7 +1118,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val expectedURL = "app://track.com/open?utm_id=12345&gclid=abcd&nope="
@@ -1185,7 +1199,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val expectedURL = "app://track.com/open?utm_id=12345&gclid=abcd&nope="
@@ -1263,7 +1280,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val expectedURL = "app://track.com/open?utm_id=12345&gclid=abcd&nope="
@@ -1338,7 +1358,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val expectedURL = "wc:foo-bar-jk@1bridge=https%3A%2F%2Fbridge.walletconnect.org&key=1234"
@@ -1409,7 +1432,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -1475,7 +1501,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -1545,7 +1574,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -1624,7 +1656,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         callback.get().onCreate(mockLifecycleOwner)
@@ -1693,7 +1728,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val backgroundedActivity = Mockito.mock(Activity::class.java)
@@ -1764,7 +1802,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         callback.get().onCreate(mockLifecycleOwner)
@@ -1844,7 +1885,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             false,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -1915,7 +1959,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             false,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -1986,7 +2033,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             false,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         val activity = Mockito.mock(Activity::class.java)
@@ -2077,7 +2127,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         assertThat(analytics.shutdown).isFalse()
@@ -2174,7 +2227,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         assertThat(analytics.shutdown).isFalse()
@@ -2245,7 +2301,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         assertThat(analytics.projectSettings).hasSize(2)
@@ -2291,7 +2350,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         assertThat(analytics.projectSettings).hasSize(2)
@@ -2346,7 +2408,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         assertThat(analytics.projectSettings).hasSize(2)
@@ -2415,7 +2480,10 @@ open class AnalyticsTest {
             lifecycle,
             true,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         analytics.track("event")
@@ -2456,7 +2524,10 @@ open class AnalyticsTest {
             lifecycle,
             false,
             true,
-            DEFAULT_API_HOST
+            DEFAULT_API_HOST,
+            QueueOptions.DEFAULT,
+            IntegrationDispatcher.DEFAULT_BUDGET_MILLIS,
+            emptySet()
         )
 
         analytics.track("event")
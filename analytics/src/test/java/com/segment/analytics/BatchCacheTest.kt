@@ -0,0 +1,163 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import com.segment.analytics.TestUtils.TRACK_PAYLOAD
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPInputStream
+import kotlin.jvm.Throws
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class BatchCacheTest {
+    @Rule @JvmField val folder = TemporaryFolder()
+    private lateinit var queue: PayloadQueue
+    private lateinit var cache: BatchCache
+    private lateinit var cacheFile: File
+
+    @Before
+    @Throws(IOException::class)
+    fun setUp() {
+        queue = PayloadQueue.PersistentQueue(QueueFile(File(folder.root, "queue-file")))
+        cacheFile = File(folder.root, "queue-file-batch")
+        cache = BatchCache(cacheFile, Crypto.none())
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun prefixCanBeFollowedByAnotherEnding() {
+        val prefix = BatchOutputStream(ByteArrayOutputStream(), true)
+        prefix.beginPrefix()
+        prefix.write("{\"batch\":[1,2,3".toByteArray())
+        val recorded = prefix.endPrefix()
+        prefix.write("],\"first\":true}".toByteArray())
+        prefix.close()
+
+        val out = ByteArrayOutputStream()
+        val resumed = BatchOutputStream(out, true)
+        resumed.writePrefix(recorded)
+        resumed.write("],\"second\":true}".toByteArray())
+        resumed.close()
+
+        // GZIPInputStream checks the CRC and length in the trailer.
+        val body = GZIPInputStream(ByteArrayInputStream(out.toByteArray())).readBytes()
+        assertThat(String(body)).isEqualTo("{\"batch\":[1,2,3],\"second\":true}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun getReturnsEntryForHeadOfQueue() {
+        for (i in 0 until 5) {
+            queue.add(payload(i))
+        }
+        cache.put(range(0, 3), prefix())
+
+        val entry = cache.get(queue)
+        assertThat(entry).isNotNull()
+        assertThat(entry!!.range).isEqualTo(range(0, 3))
+        assertThat(entry.prefix.body).isEqualTo(prefix().body)
+
+        // Survives a restart.
+        assertThat(BatchCache(cacheFile, Crypto.none()).get(queue)).isNotNull()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun getReturnsNullIfHeadOfQueueChanged() {
+        for (i in 0 until 5) {
+            queue.add(payload(i))
+        }
+        cache.put(range(0, 3), prefix())
+        queue.remove(1)
+        assertThat(cache.get(queue)).isNull()
+
+        cache.put(range(1, 10), prefix())
+        assertThat(cache.get(queue)).isNull()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun corruptEntryIsDeleted() {
+        queue.add(payload(0))
+        cache.put(range(0, 1), prefix())
+        val bytes = cacheFile.readBytes()
+        bytes[bytes.size - 6] = (bytes[bytes.size - 6] + 1).toByte()
+        cacheFile.writeBytes(bytes)
+
+        assertThat(cache.get(queue)).isNull()
+        assertThat(cacheFile).doesNotExist()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun getReturnsNullIfPayloadsWereEvictedOrExpired() {
+        val queuedAt = 1_000_000L
+        val builder = BatchCache.RangeBuilder()
+        for (i in 0 until 3) {
+            val payload = payload(i)
+            val element = ByteArray(RecordHeader.LENGTH + payload.size)
+            payload.copyInto(element, RecordHeader.LENGTH)
+            RecordHeader().set(TRACK_PAYLOAD, queuedAt, RecordHeader.PRIORITY_NORMAL, 0, 0)
+                .writeTo(element, 0)
+            queue.add(element)
+            builder.add(payload, payload.size, element.size)
+        }
+        cache.put(builder.build(), prefix())
+        val policy = EvictionPolicy.oldestFirst().expireAfter(1, TimeUnit.DAYS)
+
+        assertThat(cache.get(queue, policy, queuedAt)).isNotNull()
+        assertThat(cache.get(queue, policy, queuedAt + TimeUnit.DAYS.toMillis(2))).isNull()
+
+        val flags = byteArrayOf(RecordHeader.FLAG_EVICTED.toByte())
+        queue.overwrite(1, RecordHeader.FLAGS_OFFSET, flags, 1)
+        assertThat(cache.get(queue, policy, queuedAt)).isNull()
+    }
+
+    private fun payload(i: Int): ByteArray {
+        return "{\"index\":$i}".toByteArray()
+    }
+
+    private fun range(from: Int, count: Int): BatchCache.Range {
+        val builder = BatchCache.RangeBuilder()
+        for (i in from until from + count) {
+            val payload = payload(i)
+            builder.add(payload, payload.size, payload.size)
+        }
+        return builder.build()
+    }
+
+    private fun prefix(): BatchOutputStream.Prefix {
+        val stream = BatchOutputStream(ByteArrayOutputStream(), true)
+        stream.beginPrefix()
+        stream.write("{\"batch\":[{}".toByteArray())
+        return stream.endPrefix()
+    }
+}
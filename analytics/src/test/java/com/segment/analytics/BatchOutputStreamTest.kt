@@ -0,0 +1,147 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.Random
+import java.util.zip.CRC32
+import java.util.zip.GZIPInputStream
+import kotlin.jvm.Throws
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class BatchOutputStreamTest {
+    private val deflater = PayloadDeflater()
+    /** Doesn't compress as well as a repeated string, which would be queued uncompressed. */
+    private val numbers = (0 until 200).joinToString(",")
+
+    @Test
+    @Throws(IOException::class)
+    fun splicedPayloadsDecompressWithTheRest() {
+        val first = "{\"event\":\"first\",\"properties\":{\"values\":[$numbers]}}"
+        val second = "{\"event\":\"second\",\"properties\":{\"values\":[$numbers,1]}}"
+        val out = ByteArrayOutputStream()
+        val stream = BatchOutputStream(out, true)
+        stream.write("{\"batch\":[{".toByteArray())
+        splice(stream, first)
+        stream.write(",{\"context\":{\"locale\":\"en-US\"},".toByteArray())
+        splice(stream, second)
+        stream.write("],\"sentAt\":\"${"x".repeat(100)}\"}".toByteArray())
+        stream.close()
+
+        // GZIPInputStream checks the CRC and length in the trailer.
+        val body = GZIPInputStream(ByteArrayInputStream(out.toByteArray())).readBytes()
+        assertThat(String(body)).isEqualTo(
+            "{\"batch\":[$first,{\"context\":{\"locale\":\"en-US\"}," + second.substring(1) +
+                "],\"sentAt\":\"${"x".repeat(100)}\"}"
+        )
+        assertThat(stream.bytesWritten()).isEqualTo(out.size().toLong())
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun splicedPayloadsCanBePartOfAPrefix() {
+        val payload = "{\"values\":[$numbers]}"
+        val prefix = BatchOutputStream(ByteArrayOutputStream(), true)
+        prefix.beginPrefix()
+        prefix.write("{\"batch\":[{".toByteArray())
+        splice(prefix, payload)
+        val recorded = prefix.endPrefix()
+
+        val out = ByteArrayOutputStream()
+        val resumed = BatchOutputStream(out, true)
+        resumed.writePrefix(recorded)
+        resumed.write("]}".toByteArray())
+        resumed.close()
+
+        val body = GZIPInputStream(ByteArrayInputStream(out.toByteArray())).readBytes()
+        assertThat(String(body)).isEqualTo("{\"batch\":[$payload]}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun smallWritesBetweenSplicedPayloadsAreStored() {
+        val payload = "{\"values\":[$numbers]}"
+        val out = ByteArrayOutputStream()
+        val stream = BatchOutputStream(out, true)
+        stream.write("[{".toByteArray())
+        splice(stream, payload)
+        val before = stream.bytesWritten()
+        stream.write(",{".toByteArray())
+
+        // A five byte block header, and the two bytes as they are.
+        assertThat(stream.bytesWritten() - before).isEqualTo(7)
+        splice(stream, payload)
+        stream.write("]".toByteArray())
+        stream.close()
+        val body = GZIPInputStream(ByteArrayInputStream(out.toByteArray())).readBytes()
+        assertThat(String(body)).isEqualTo("[$payload,$payload]")
+    }
+
+    @Test
+    fun combineCrcMatchesCrcOfBoth() {
+        val random = Random(42)
+        for (length in intArrayOf(0, 1, 7, 1000, 65536)) {
+            val first = ByteArray(random.nextInt(100))
+            val second = ByteArray(length)
+            random.nextBytes(first)
+            random.nextBytes(second)
+            val both = CRC32()
+            both.update(first)
+            both.update(second)
+
+            assertThat(BatchOutputStream.combineCrc(crc(first), crc(second), length.toLong()))
+                .isEqualTo(both.value.toInt())
+        }
+    }
+
+    @Test
+    fun payloadsThatDoNotShrinkAreNotDeflated() {
+        val json = "{\"a\":1}".toByteArray()
+
+        assertThat(deflater.deflate(json, 0, json.size)).isFalse()
+    }
+
+    private fun splice(stream: BatchOutputStream, payload: String) {
+        val json = payload.toByteArray()
+        assertThat(deflater.deflate(json, 0, json.size)).isTrue()
+        val data = ByteArray(deflater.size())
+        deflater.writeTo(data, 0)
+        stream.writeDeflated(
+            data,
+            PayloadDeflater.PREFIX_LENGTH,
+            data.size - PayloadDeflater.PREFIX_LENGTH,
+            PayloadDeflater.crc(data, 0),
+            PayloadDeflater.length(data, 0)
+        )
+    }
+
+    private fun crc(bytes: ByteArray): Int {
+        val crc = CRC32()
+        crc.update(bytes)
+        return crc.value.toInt()
+    }
+}
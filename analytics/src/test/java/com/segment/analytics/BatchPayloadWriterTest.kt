@@ -24,6 +24,8 @@
 package com.segment.analytics
 
 import com.segment.analytics.SegmentIntegration.BatchPayloadWriter
+import com.segment.analytics.SegmentIntegration.PayloadWriter
+import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.IOException
 import kotlin.jvm.Throws
@@ -91,4 +93,68 @@ class BatchPayloadWriterTest {
             assertThat(exception).hasMessage("At least one payload must be provided.")
         }
     }
+
+    @Test
+    @Throws(IOException::class)
+    fun copiesPayloadBytes() {
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        // Larger than the writer's buffer, along with one that isn't.
+        val large = "{\"padding\":\"" + "ü".repeat(10000) + "\"}"
+        BatchPayloadWriter(byteArrayOutputStream)
+            .beginObject()
+            .beginBatchArray()
+            .emitPayloadObject("{\"emoji\":\"\uD83D\uDE00\"}")
+            .emitPayloadObject(large)
+            .endBatchArray()
+            .endObject("wr\"ite\nkey")
+            .close()
+
+        val json = byteArrayOutputStream.toString("UTF-8")
+        assertThat(json)
+            .startsWith("{\"batch\":[{\"emoji\":\"\uD83D\uDE00\"},$large],\"sentAt\":\"")
+        assertThat(json).endsWith(",\"writeKey\":\"wr\\\"ite\\nkey\"}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun payloadWriterTrimsWhitespace() {
+        val byteArrayOutputStream = ByteArrayOutputStream()
+        val writer = BatchPayloadWriter(byteArrayOutputStream).beginObject().beginBatchArray()
+        val payloadWriter = PayloadWriter(writer, Crypto.none())
+        val bytes = " \n{\"name\":\"é\"}\n ".toByteArray(Charsets.UTF_8)
+        payloadWriter.read(ByteArrayInputStream(bytes), bytes.size)
+        writer.endBatchArray().endObject("test").close()
+
+        assertThat(byteArrayOutputStream.toString("UTF-8"))
+            .startsWith("{\"batch\":[{\"name\":\"é\"}],")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun deflatedPayloadsAreInflatedForPlainBodies() {
+        val deflater = PayloadDeflater()
+        val values = (0 until 50).joinToString(",")
+        val json = "{\"values\":[$values]}".toByteArray(Charsets.UTF_8)
+        assertThat(deflater.deflate(json, 0, json.size)).isTrue()
+        val data = ByteArray(deflater.size())
+        deflater.writeTo(data, 0)
+        val corrupt = data.copyOf()
+        // Claims to be longer than it is.
+        corrupt[7] = (corrupt[7] + 1).toByte()
+        val byteArrayOutputStream = ByteArrayOutputStream()
+
+        BatchPayloadWriter(byteArrayOutputStream)
+            .beginObject()
+            .beginBatchArray()
+            .emitDeflatedPayloadObject(data, 0, data.size)
+            .emitDeflatedPayloadObject(corrupt, 0, corrupt.size)
+            .emitDeflatedPayloadObject(data, 0, data.size)
+            .endBatchArray()
+            .endObject("test")
+            .close()
+
+        val payload = String(json, Charsets.UTF_8)
+        assertThat(byteArrayOutputStream.toString("UTF-8"))
+            .startsWith("{\"batch\":[$payload,$payload],")
+    }
 }
@@ -0,0 +1,168 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import com.segment.analytics.SegmentIntegration.UTF_8
+import com.segment.analytics.integrations.TrackPayload
+import java.io.IOException
+import java.util.Date
+import java.util.UUID
+import kotlin.jvm.Throws
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.fail
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class BinaryJsonTest {
+    private val binary = BinaryJson(16)
+
+    @Test
+    @Throws(IOException::class)
+    fun roundTripsPayloads() {
+        val properties = LinkedHashMap<String, Any?>()
+        properties["price"] = 18.99
+        properties["quantity"] = 1
+        properties["long"] = Long.MIN_VALUE
+        properties["negative"] = -42
+        properties["nan"] = Double.NaN
+        properties["categories"] = listOf("Games", listOf<Any>(), mapOf<String, Any>())
+        properties["ints"] = intArrayOf(0, 1, -1)
+        properties["gift"] = false
+        properties["note"] = null
+        properties["escaped"] = "quote \" backslash \\ \n   😀 lone \ud83d"
+        properties["upperUuid"] = UUID.randomUUID().toString().toUpperCase()
+        properties["date"] = "2010-01-01T12:00:00Z"
+        val payload = TrackPayload.Builder()
+            .messageId(UUID.randomUUID().toString())
+            .anonymousId("anonymousId")
+            .timestamp(Date(1500000000123L))
+            .event("Product Added")
+            .properties(properties)
+            .context(mapOf("app" to mapOf("name" to "Shop"), "\"screen\"" to 1))
+            .integration("Mixpanel", true)
+            .build()
+        val json = Cartographer.INSTANCE.toJson(payload).toByteArray(UTF_8)
+
+        assertThat(binary.encode(json, 0, json.size)).isTrue()
+        assertThat(binary.size()).isLessThan(json.size)
+
+        assertThat(decode(binary.buffer().copyOf(binary.size()))).isEqualTo(String(json, UTF_8))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun roundTripsTimestamps() {
+        for (timestamp in listOf(
+            "2017-07-14T02:40:00.123Z",
+            "2017-07-14T02:40:00.123456789Z",
+            "2017-07-14T02:40:00.000000001Z",
+            "9999-12-31T23:59:59.9Z",
+            "0000-00-00T00:00:00.000Z"
+        )) {
+            assertRoundTrip("{\"timestamp\":\"$timestamp\"}")
+        }
+        // Anything else is kept as a string.
+        assertRoundTrip("[\"2017-07-14T02:40:00Z\",\"2017-07-14T02:40:00.1234567890Z\"]")
+        assertRoundTrip("[\"2017-07-14 02:40:00.123Z\",\"2017-07-14T02:40:00.123+01:00\"]")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun roundTripsNumbersAsWritten() {
+        assertRoundTrip("[0,-1,123456789012345678,1234567890123456789012,1.50,1e5,-0,007,-]")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun roundTripsDictionaryEntriesAsValuesAndKeys() {
+        assertRoundTrip("{\"type\":\"track\",\"track\":\"type\",\"context\":{\"os\":\"Android\"}}")
+    }
+
+    @Test
+    fun refusesJsonItCannotGiveBack() {
+        for (json in listOf(
+            "{ \"a\":1}",
+            "{\"a\":1}\n",
+            "{\"a\" :1}",
+            "{\"a\":1,}",
+            "[1,]",
+            "{\"a\"}",
+            "{\"a\":1",
+            "{\"a\":1]}",
+            "[1 2]",
+            "\"unterminated",
+            "tru",
+            "1,2",
+            ""
+        )) {
+            val bytes = json.toByteArray(UTF_8)
+            assertThat(binary.encode(bytes, 0, bytes.size)).describedAs(json).isFalse()
+        }
+    }
+
+    @Test
+    fun refusesPayloadsThatWouldGrowTooMuch() {
+        val json = List(100) { "\"track\"" }.joinToString(",", "[", "]").toByteArray(UTF_8)
+
+        assertThat(binary.encode(json, 0, json.size)).isFalse()
+    }
+
+    @Test
+    fun corruptDataThrows() {
+        val json = "{\"messageId\":\"${UUID.randomUUID()}\",\"name\":\"value\"}".toByteArray(UTF_8)
+        assertThat(binary.encode(json, 0, json.size)).isTrue()
+        val encoded = binary.buffer().copyOf(binary.size())
+
+        for (length in listOf(3, encoded.size - 3, encoded.size - 1)) {
+            try {
+                binary.decode(encoded, 0, length)
+                fail("Expected IOException")
+            } catch (expected: IOException) {
+            }
+        }
+        try {
+            binary.decode(byteArrayOf(0x3f), 0, 1)
+            fail("Expected IOException")
+        } catch (expected: IOException) {
+        }
+    }
+
+    private fun assertRoundTrip(value: String) {
+        // Along with a string that doesn't shrink, since small values shrink too much to be encoded.
+        val json = "[$value,\"${"x".repeat(64)}\"]"
+        val bytes = json.toByteArray(UTF_8)
+        assertThat(binary.encode(bytes, 0, bytes.size)).describedAs(json).isTrue()
+        assertThat(decode(binary.buffer().copyOf(binary.size()))).isEqualTo(json)
+    }
+
+    private fun decode(encoded: ByteArray): String {
+        val decoder = BinaryJson(16)
+        decoder.decode(encoded, 0, encoded.size)
+        return String(decoder.buffer(), 0, decoder.size(), UTF_8)
+    }
+}
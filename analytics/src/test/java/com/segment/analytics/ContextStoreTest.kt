@@ -0,0 +1,143 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.fail
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class ContextStoreTest {
+    @Rule @JvmField val folder = TemporaryFolder()
+    private lateinit var directory: File
+    private lateinit var store: ContextStore
+
+    @Before
+    fun setUp() {
+        directory = File(folder.root, "contexts")
+        store = ContextStore(directory, Crypto.none())
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun sameContextIsStoredOnce() {
+        val first = store.put(encode(mapOf("locale" to "en-US")))
+        val second = store.put(encode(mapOf("locale" to "en-US")))
+        val other = store.put(encode(mapOf("locale" to "fr-FR")))
+
+        assertThat(first).isEqualTo(second).isNotEqualTo(other)
+        assertThat(directory.listFiles()).hasSize(2)
+        // The same content gets the same id in a new store.
+        assertThat(ContextStore(directory, Crypto.none()).put(encode(mapOf("locale" to "en-US"))))
+            .isEqualTo(first)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun getReadsFromDisk() {
+        val id = store.put(encode(mapOf("locale" to "en-US")))
+
+        val reopened = ContextStore(directory, Crypto.none())
+
+        assertThat(String(reopened.get(id))).isEqualTo("{\"locale\":\"en-US\"}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun contextsAreEncrypted() {
+        val crypto = object : Crypto() {
+            override fun decrypt(input: InputStream): InputStream {
+                return object : InputStream() {
+                    override fun read(): Int {
+                        val b = input.read()
+                        return if (b == -1) -1 else b xor 0x5a
+                    }
+                }
+            }
+
+            override fun encrypt(output: OutputStream): OutputStream {
+                return object : OutputStream() {
+                    override fun write(b: Int) {
+                        output.write(b xor 0x5a)
+                    }
+                }
+            }
+        }
+        val id = ContextStore(directory, crypto).put(encode(mapOf("locale" to "en-US")))
+
+        assertThat(directory.listFiles()!![0].readText()).doesNotContain("en-US")
+        assertThat(String(ContextStore(directory, crypto).get(id)))
+            .isEqualTo("{\"locale\":\"en-US\"}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun retainDeletesUnreferencedContexts() {
+        val first = store.put(encode(mapOf("locale" to "en-US")))
+        val second = store.put(encode(mapOf("locale" to "fr-FR")))
+        val third = store.put(encode(mapOf("locale" to "de-DE")))
+
+        store.retainOnly(setOf(first, third))
+        assertThat(directory.list()).containsOnly(
+            java.lang.Long.toHexString(first), java.lang.Long.toHexString(third)
+        )
+        try {
+            store.get(second)
+            fail("Expected IOException")
+        } catch (expected: IOException) {
+        }
+
+        store.retainLast()
+        assertThat(directory.list()).containsOnly(java.lang.Long.toHexString(third))
+        assertThat(String(store.get(third))).isEqualTo("{\"locale\":\"de-DE\"}")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun corruptContextThrows() {
+        val id = store.put(encode(mapOf("locale" to "en-US")))
+        val file = directory.listFiles()!![0]
+        val bytes = file.readBytes()
+        bytes[bytes.size - 1] = (bytes[bytes.size - 1] + 1).toByte()
+        file.writeBytes(bytes)
+
+        try {
+            ContextStore(directory, Crypto.none()).get(id)
+            fail("Expected IOException")
+        } catch (expected: IOException) {
+        }
+    }
+
+    private fun encode(context: Map<String, Any>): JsonEncoder {
+        val encoder = JsonEncoder()
+        encoder.encode(context)
+        return encoder
+    }
+}
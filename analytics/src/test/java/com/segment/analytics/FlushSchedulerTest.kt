@@ -0,0 +1,162 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import java.time.Duration
+import java.util.Random
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowSystemClock
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class FlushSchedulerTest {
+
+    /** Always picks the longest wait, so delays are predictable. */
+    private val random = object : Random() {
+        override fun nextDouble() = 1.0
+    }
+
+    private fun scheduler(connected: Boolean = true, unmetered: Boolean = false) =
+        FlushScheduler(30000, 20, connected, unmetered, random)
+
+    @Test
+    fun flushesOnIntervalOrQueueSize() {
+        val scheduler = scheduler()
+        assertThat(scheduler.nextFlushDelay(1)).isEqualTo(30000)
+        assertThat(scheduler.shouldFlush(19)).isFalse()
+        assertThat(scheduler.shouldFlush(20)).isTrue()
+        assertThat(scheduler.shouldFlushScheduled(1)).isTrue()
+    }
+
+    @Test
+    fun nothingScheduledWhileQueueIsEmpty() {
+        val scheduler = scheduler()
+        assertThat(scheduler.nextFlushDelay(0)).isEqualTo(-1)
+        assertThat(scheduler.shouldFlushScheduled(0)).isFalse()
+    }
+
+    @Test
+    fun suspendedWhileDisconnected() {
+        val scheduler = scheduler(connected = false)
+        assertThat(scheduler.isConnected()).isFalse()
+        assertThat(scheduler.nextFlushDelay(100)).isEqualTo(-1)
+        assertThat(scheduler.shouldFlush(100)).isFalse()
+        assertThat(scheduler.snapshot().suspended).isTrue()
+
+        assertThat(scheduler.setNetwork(true, false)).isTrue()
+        assertThat(scheduler.nextFlushDelay(100)).isEqualTo(30000)
+        assertThat(scheduler.setNetwork(true, false)).isFalse()
+    }
+
+    @Test
+    fun flushesEarlierOnUnmeteredNetworks() {
+        val scheduler = scheduler()
+        assertThat(scheduler.setNetwork(true, true)).isTrue()
+        assertThat(scheduler.nextFlushDelay(1)).isEqualTo(15000)
+        assertThat(scheduler.shouldFlush(10)).isTrue()
+        assertThat(scheduler.setNetwork(true, true)).isFalse()
+    }
+
+    @Test
+    fun flushesWhenBackgrounded() {
+        val scheduler = scheduler()
+        assertThat(scheduler.setBackgrounded(true)).isTrue()
+        assertThat(scheduler.setBackgrounded(true)).isFalse()
+        assertThat(scheduler.snapshot().backgrounded).isTrue()
+        assertThat(scheduler.setBackgrounded(false)).isFalse()
+    }
+
+    @Test
+    fun backsOffExponentiallyAfterFailures() {
+        val scheduler = scheduler()
+        scheduler.onUploadFailed()
+        assertThat(scheduler.nextFlushDelay(100)).isEqualTo(FlushScheduler.MIN_BACKOFF_MILLIS)
+        assertThat(scheduler.shouldFlush(100)).isFalse()
+        assertThat(scheduler.shouldFlushScheduled(100)).isFalse()
+
+        scheduler.onUploadFailed()
+        assertThat(scheduler.nextFlushDelay(100)).isEqualTo(2 * FlushScheduler.MIN_BACKOFF_MILLIS)
+        assertThat(scheduler.snapshot().consecutiveFailures).isEqualTo(2)
+
+        repeat(40) { scheduler.onUploadFailed() }
+        assertThat(scheduler.nextFlushDelay(100)).isEqualTo(FlushScheduler.MAX_BACKOFF_MILLIS)
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(FlushScheduler.MAX_BACKOFF_MILLIS))
+        assertThat(scheduler.shouldFlush(100)).isTrue()
+        assertThat(scheduler.nextFlushDelay(100)).isEqualTo(30000)
+    }
+
+    @Test
+    fun backoffIsJittered() {
+        val delays = (0 until 20).map {
+            val scheduler = FlushScheduler(30000, 20, true, false, Random(it.toLong()))
+            scheduler.onUploadFailed()
+            scheduler.nextFlushDelay(1)
+        }
+        for (delay in delays) {
+            assertThat(delay)
+                .isBetween(FlushScheduler.MIN_BACKOFF_MILLIS / 2, FlushScheduler.MIN_BACKOFF_MILLIS)
+        }
+        assertThat(delays.distinct().size).isGreaterThan(1)
+    }
+
+    @Test
+    fun successResetsBackoff() {
+        val scheduler = scheduler()
+        scheduler.onUploadFailed()
+        scheduler.onUploadSucceeded(0)
+        assertThat(scheduler.shouldFlush(20)).isTrue()
+        assertThat(scheduler.snapshot().consecutiveFailures).isZero()
+        assertThat(scheduler.snapshot().backoffMillis).isZero()
+    }
+
+    @Test
+    fun growsFlushQueueSizeWhileQueueIsDeep() {
+        val scheduler = scheduler()
+        scheduler.onUploadSucceeded(40)
+        assertThat(scheduler.snapshot().flushQueueSize).isEqualTo(40)
+        assertThat(scheduler.shouldFlush(39)).isFalse()
+
+        repeat(10) { scheduler.onUploadSucceeded(1000) }
+        assertThat(scheduler.snapshot().flushQueueSize)
+            .isEqualTo(FlushScheduler.MAX_FLUSH_QUEUE_SIZE)
+
+        scheduler.onUploadSucceeded(0)
+        assertThat(scheduler.snapshot().flushQueueSize).isEqualTo(20)
+    }
+
+    @Test
+    fun snapshot() {
+        val scheduler = scheduler(unmetered = true)
+        val snapshot = scheduler.snapshot()
+        assertThat(snapshot.suspended).isFalse()
+        assertThat(snapshot.unmetered).isTrue()
+        assertThat(snapshot.flushQueueSize).isEqualTo(10)
+        assertThat(snapshot.flushIntervalMillis).isEqualTo(15000)
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import android.os.Handler
+import android.os.Looper
+import java.time.Duration
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowSystemClock
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class IntegrationDispatcherTest {
+    private val looper = shadowOf(Looper.getMainLooper())
+    private val performed = mutableListOf<IntegrationOperation>()
+
+    private fun dispatcher(budgetMillis: Long, costMillis: Long = 0): IntegrationDispatcher {
+        return IntegrationDispatcher(Handler(Looper.getMainLooper()), budgetMillis) { operation ->
+            performed.add(operation)
+            ShadowSystemClock.advanceBy(Duration.ofMillis(costMillis))
+        }
+    }
+
+    @Test
+    fun coalescesOperationsIntoOneMessage() {
+        val dispatcher = dispatcher(IntegrationDispatcher.DEFAULT_BUDGET_MILLIS)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        dispatcher.dispatch(IntegrationOperation.RESET)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        assertThat(performed).isEmpty()
+
+        looper.runOneTask()
+        assertThat(performed)
+            .containsExactly(
+                IntegrationOperation.FLUSH,
+                IntegrationOperation.RESET,
+                IntegrationOperation.FLUSH
+            )
+        assertThat(looper.isIdle).isTrue()
+    }
+
+    @Test
+    fun yieldsOnceBudgetIsSpent() {
+        val dispatcher = dispatcher(10, 6)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        dispatcher.dispatch(IntegrationOperation.RESET)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+
+        looper.runOneTask()
+        assertThat(performed)
+            .containsExactly(IntegrationOperation.FLUSH, IntegrationOperation.RESET)
+        assertThat(looper.isIdle).isFalse()
+
+        looper.runOneTask()
+        assertThat(performed).hasSize(3)
+        assertThat(looper.isIdle).isTrue()
+    }
+
+    @Test
+    fun zeroBudgetRunsOneOperationPerMessage() {
+        val dispatcher = dispatcher(0)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        dispatcher.dispatch(IntegrationOperation.RESET)
+
+        looper.runOneTask()
+        assertThat(performed).containsExactly(IntegrationOperation.FLUSH)
+
+        looper.runOneTask()
+        assertThat(performed)
+            .containsExactly(IntegrationOperation.FLUSH, IntegrationOperation.RESET)
+    }
+
+    @Test
+    fun skipsHandlerWhenRouterRunsEverything() {
+        val routed = mutableListOf<IntegrationOperation>()
+        val dispatcher = dispatcher(IntegrationDispatcher.DEFAULT_BUDGET_MILLIS)
+        dispatcher.start { operation ->
+            routed.add(operation)
+            false
+        }
+
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        assertThat(routed).containsExactly(IntegrationOperation.FLUSH)
+        assertThat(looper.isIdle).isTrue()
+        assertThat(performed).isEmpty()
+    }
+
+    @Test
+    fun routesOperationsQueuedBeforeStartInOrder() {
+        val routed = mutableListOf<IntegrationOperation>()
+        val dispatcher = dispatcher(IntegrationDispatcher.DEFAULT_BUDGET_MILLIS)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        dispatcher.start { operation ->
+            routed.add(operation)
+            true
+        }
+
+        // The queued flush hasn't been routed yet, so the reset has to wait behind it.
+        dispatcher.dispatch(IntegrationOperation.RESET)
+        assertThat(routed).isEmpty()
+
+        looper.idle()
+        assertThat(routed).containsExactly(IntegrationOperation.FLUSH, IntegrationOperation.RESET)
+        assertThat(performed)
+            .containsExactly(IntegrationOperation.FLUSH, IntegrationOperation.RESET)
+
+        // Once drained, operations are routed as they are dispatched.
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        assertThat(routed).hasSize(3)
+        assertThat(performed).hasSize(2)
+        looper.idle()
+        assertThat(performed).hasSize(3)
+    }
+
+    @Test
+    fun schedulesAgainAfterDraining() {
+        val dispatcher = dispatcher(IntegrationDispatcher.DEFAULT_BUDGET_MILLIS)
+        dispatcher.dispatch(IntegrationOperation.FLUSH)
+        looper.idle()
+        assertThat(performed).hasSize(1)
+
+        dispatcher.dispatch(IntegrationOperation.RESET)
+        looper.idle()
+        assertThat(performed)
+            .containsExactly(IntegrationOperation.FLUSH, IntegrationOperation.RESET)
+    }
+}
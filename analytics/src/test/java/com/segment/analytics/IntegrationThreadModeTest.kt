@@ -0,0 +1,132 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import android.Manifest
+import android.os.Looper
+import com.google.common.util.concurrent.MoreExecutors
+import com.segment.analytics.integrations.Integration
+import com.segment.analytics.integrations.TrackPayload
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class IntegrationThreadModeTest {
+    private lateinit var analytics: Analytics
+
+    private class RecordingIntegration(val mode: ThreadMode?) : Integration<Void>() {
+        val tracked = CountDownLatch(1)
+        @Volatile var thread: Thread? = null
+
+        override fun threadMode(): ThreadMode = mode ?: super.threadMode()
+
+        override fun track(track: TrackPayload) {
+            thread = Thread.currentThread()
+            tracked.countDown()
+        }
+    }
+
+    private fun factory(key: String, integration: Integration<*>) = object : Integration.Factory {
+        override fun create(settings: ValueMap, analytics: Analytics) = integration
+
+        override fun key() = key
+    }
+
+    private val main = RecordingIntegration(null)
+    private val background = RecordingIntegration(Integration.ThreadMode.BACKGROUND)
+    private val any = RecordingIntegration(Integration.ThreadMode.ANY)
+    private val overridden = RecordingIntegration(Integration.ThreadMode.MAIN)
+
+    @Before
+    fun setUp() {
+        Analytics.INSTANCES.clear()
+        TestUtils.grantPermission(RuntimeEnvironment.application, Manifest.permission.INTERNET)
+        val settings = ValueMap()
+        for (key in listOf("main", "background", "any", "overridden")) {
+            settings.putValue(key, ValueMap().putValue("apiKey", key))
+        }
+        analytics = Analytics.Builder(RuntimeEnvironment.application, "write_key")
+            .defaultProjectSettings(ValueMap().putValue("integrations", settings))
+            .use(factory("main", main))
+            .use(factory("background", background))
+            .use(factory("any", any))
+            .use(factory("overridden", overridden))
+            .dispatchInBackground("overridden")
+            .executor(MoreExecutors.newDirectExecutorService())
+            .build()
+        shadowOf(Looper.getMainLooper()).idle()
+    }
+
+    @After
+    fun tearDown() {
+        analytics.shutdown()
+    }
+
+    @Test
+    fun runsEachIntegrationOnItsThread() {
+        analytics.track("foo")
+        shadowOf(Looper.getMainLooper()).idle()
+        for (integration in listOf(main, background, any, overridden)) {
+            assertThat(integration.tracked.await(5, TimeUnit.SECONDS)).isTrue()
+        }
+
+        val mainThread = Looper.getMainLooper().thread
+        assertThat(main.thread).isEqualTo(mainThread)
+        assertThat(background.thread).isNotEqualTo(mainThread)
+        assertThat(overridden.thread).isEqualTo(background.thread)
+        assertThat(any.thread).isNotIn(mainThread, background.thread)
+    }
+
+    @Test
+    fun routesOperationsBeforeTheMainThreadRuns() {
+        analytics.track("foo")
+
+        // Nothing has run on the main thread yet.
+        assertThat(background.tracked.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(any.tracked.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(main.tracked.count).isEqualTo(1)
+
+        shadowOf(Looper.getMainLooper()).idle()
+        assertThat(main.tracked.count).isEqualTo(0)
+    }
+
+    @Test
+    fun runsOperationsForAnyIntegrationsThatArriveAfterShutdown() {
+        analytics.track("foo")
+        analytics.shutdown()
+        shadowOf(Looper.getMainLooper()).idle()
+
+        assertThat(any.tracked.await(5, TimeUnit.SECONDS)).isTrue()
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import com.segment.analytics.integrations.TrackPayload
+import java.io.ByteArrayOutputStream
+import java.io.OutputStreamWriter
+import java.util.Date
+import kotlin.jvm.Throws
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE)
+class JsonEncoderTest {
+    private val encoder = JsonEncoder(16)
+
+    @Test
+    fun encodesValuesLikeCartographer() {
+        val nested = LinkedHashMap<String, Any?>()
+        nested["list"] = listOf(1, "two", null, listOf(3.5f), mapOf("k" to 'c'))
+        nested["ints"] = intArrayOf(1, 2, 3)
+        nested["strings"] = arrayOf("a", "b")
+        val map = LinkedHashMap<Any?, Any?>()
+        map["byte"] = 32.toByte()
+        map["short"] = 100.toShort()
+        map["int"] = Int.MIN_VALUE
+        map["long"] = Long.MAX_VALUE
+        map["float"] = 1.5f
+        map["double"] = 1.0E-20
+        map["nan"] = Double.NaN
+        map["infinity"] = Float.POSITIVE_INFINITY
+        map["boolean"] = true
+        map["null"] = null
+        map["date"] = Date(0)
+        map[null] = "null key"
+        map[42] = "int key"
+        map["nested"] = nested
+
+        assertSameAsCartographer(map)
+    }
+
+    @Test
+    fun escapesStringsLikeCartographer() {
+        val chars = StringBuilder()
+        for (c in 0 until 0x3000) {
+            chars.append(c.toChar())
+        }
+        val map = LinkedHashMap<String, Any>()
+        map["ascii"] = "quote \" backslash \\ slash / tab \t newline \n \r \b \u000c"
+        map["control"] = chars.toString()
+        map["surrogates"] = "😀 emoji, lone \ud83d high, lone \ude00 low, trailing \ud83d"
+        map["key \"\n "] = "value"
+
+        assertSameAsCartographer(map)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun encodePayloadMergesIntegrations() {
+        val payload = TrackPayload.Builder()
+            .messageId("a161304c-498c-4830-9291-fcfb8498877b")
+            .timestamp(Date(0))
+            .event("foo")
+            .userId("userId")
+            .integrations(mapOf("Mixpanel" to true, "Segment.io" to true, "Amplitude" to false))
+            .build()
+        val overrides = LinkedHashMap<String, Any>()
+        overrides["Segment.io"] = false
+        overrides["Mixpanel"] = false
+        overrides["foo"] = true
+
+        encoder.encodePayload(payload, overrides, "Segment.io")
+
+        val integrations = LinkedHashMap<String, Any>(payload.integrations())
+        integrations.putAll(overrides)
+        integrations.remove("Segment.io")
+        val copy = ValueMap()
+        copy.putAll(payload)
+        copy["integrations"] = integrations
+        assertThat(String(encoder.toByteArray(), Charsets.UTF_8))
+            .isEqualTo(Cartographer.INSTANCE.toJson(copy))
+            .contains("\"integrations\":{\"Mixpanel\":false,\"Amplitude\":false,\"foo\":true}")
+    }
+
+    @Test
+    fun encodePayloadAddsMissingIntegrations() {
+        val payload = LinkedHashMap<String, Any>()
+        payload["type"] = "track"
+
+        encoder.encodePayload(payload, mapOf("foo" to true), "Segment.io")
+
+        assertThat(String(encoder.toByteArray(), Charsets.UTF_8))
+            .isEqualTo("{\"type\":\"track\",\"integrations\":{\"foo\":true}}")
+    }
+
+    @Test
+    fun resetReusesBuffer() {
+        encoder.encode(mapOf("a" to "x".repeat(100)))
+        encoder.reset()
+        encoder.encode(mapOf("b" to 1))
+
+        assertThat(encoder.size()).isEqualTo(7)
+        assertThat(String(encoder.toByteArray(), Charsets.UTF_8)).isEqualTo("{\"b\":1}")
+    }
+
+    private fun assertSameAsCartographer(map: Map<*, *>) {
+        val expected = ByteArrayOutputStream()
+        Cartographer.INSTANCE.toJson(map, OutputStreamWriter(expected, Charsets.UTF_8))
+        encoder.reset()
+        encoder.encode(map)
+        assertThat(encoder.toByteArray()).isEqualTo(expected.toByteArray())
+    }
+}
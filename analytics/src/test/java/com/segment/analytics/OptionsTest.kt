@@ -24,6 +24,7 @@
 package com.segment.analytics
 
 import com.google.common.collect.ImmutableMap
+import com.segment.analytics.integrations.BasePayload
 import kotlin.jvm.Throws
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.fail
@@ -105,4 +106,13 @@ class OptionsTest {
                 .build()
         )
     }
+
+    @Test
+    fun setPriority() {
+        assertThat(options.priority()).isEqualTo(BasePayload.Priority.NORMAL)
+
+        options.setPriority(BasePayload.Priority.HIGH)
+
+        assertThat(options.priority()).isEqualTo(BasePayload.Priority.HIGH)
+    }
 }
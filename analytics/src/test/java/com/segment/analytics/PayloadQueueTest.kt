@@ -43,18 +43,31 @@ class PayloadQueueTest {
     private enum class QueueFactory {
         FILE {
             @Throws(IOException::class)
-            override fun create(queueFile: QueueFile?): PayloadQueue {
-                return PayloadQueue.PersistentQueue(queueFile)
+            override fun create(file: File): PayloadQueue {
+                return PayloadQueue.PersistentQueue(QueueFile(file))
+            }
+        },
+        SEGMENTED {
+            @Throws(IOException::class)
+            override fun create(file: File): PayloadQueue {
+                // Small enough that the queue spans several segments.
+                return SegmentedQueue(file, true, 16)
+            }
+        },
+        SHARED {
+            @Throws(IOException::class)
+            override fun create(file: File): PayloadQueue {
+                return SharedQueue(file, 0)
             }
         },
         MEMORY {
-            override fun create(queueFile: QueueFile?): PayloadQueue {
+            override fun create(file: File): PayloadQueue {
                 return PayloadQueue.MemoryQueue()
             }
         };
 
         @Throws(IOException::class)
-        abstract fun create(queueFile: QueueFile?): PayloadQueue?
+        abstract fun create(file: File): PayloadQueue?
     }
 
     @Rule
@@ -69,9 +82,8 @@ class PayloadQueueTest {
     fun setUp() {
         val parent = folder.root
         val file = File(parent, "payload-queue")
-        val queueFile = QueueFile(file)
 
-        queue = factory.create(queueFile)!!
+        queue = factory.create(file)!!
         queue.add(bytes("one"))
         queue.add(bytes("two"))
         queue.add(bytes("three"))
@@ -98,6 +110,57 @@ class PayloadQueueTest {
         assertThat(seen).containsExactly(bytes("one"), bytes("two"))
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun forEachSkipsEldest() {
+        val seen: MutableList<ByteArray> = ArrayList()
+        queue.forEach(
+            2,
+            object : PayloadQueue.ElementVisitor {
+                @Throws(IOException::class)
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    assertThat(input.read(data)).isEqualTo(length)
+                    seen.add(data)
+                    return true
+                }
+            })
+        assertThat(seen).containsExactly(bytes("three"))
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun addWhileAnotherThreadReadsAndRemoves() {
+        // Same as uploads, which read and remove elements while the dispatcher adds more.
+        val adder = Thread {
+            for (i in 0 until 200) {
+                queue.add(bytes("element $i"))
+            }
+        }
+        adder.start()
+        var removed = 0
+        while (true) {
+            val adding = adder.isAlive
+            val snapshot = queue.snapshot(0, 64)
+            snapshot.forEach(
+                object : PayloadQueue.ElementVisitor {
+                    @Throws(IOException::class)
+                    override fun read(input: InputStream, length: Int): Boolean {
+                        assertThat(input.read(ByteArray(length))).isEqualTo(length)
+                        return true
+                    }
+                })
+            queue.remove(snapshot.size())
+            removed += snapshot.size()
+            if (!adding && queue.size() == 0) {
+                break
+            }
+        }
+        adder.join()
+
+        assertThat(removed).isEqualTo(203)
+    }
+
     @Test
     @Throws(IOException::class)
     fun remove() {
@@ -108,6 +171,49 @@ class PayloadQueueTest {
         assertThat(seen).containsExactly(bytes("three"))
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun overwriteChangesElementsInPlace() {
+        queue.remove(1)
+        queue.overwrite(0, 0, bytes("T"), 1)
+        queue.overwrite(1, 1, bytes("HRx"), 2)
+
+        val seen = readQueue(2)
+        assertThat(seen).containsExactly(bytes("Two"), bytes("tHRee"))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun snapshotSkipsEldestAndStopsAtMaxBytes() {
+        assertThat(readSnapshot(queue.snapshot(1, 8)))
+            .containsExactly(bytes("two"), bytes("three"))
+        assertThat(readSnapshot(queue.snapshot(0, 7)))
+            .containsExactly(bytes("one"), bytes("two"))
+        assertThat(queue.snapshot(3, 100).size()).isZero()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun snapshotIsUnaffectedByAdditions() {
+        val snapshot = queue.snapshot(0, 100)
+        queue.add(bytes("four"))
+        val seen: MutableList<ByteArray> = ArrayList()
+        snapshot.forEach(
+            object : PayloadQueue.ElementVisitor {
+                @Throws(IOException::class)
+                override fun read(input: InputStream, length: Int): Boolean {
+                    // Additions go ahead while the snapshot is being read.
+                    queue.add(bytes("five"))
+                    val data = ByteArray(length)
+                    assertThat(input.read(data)).isEqualTo(length)
+                    seen.add(data)
+                    return true
+                }
+            })
+        assertThat(seen).containsExactly(bytes("one"), bytes("two"), bytes("three"))
+        assertThat(queue.size()).isEqualTo(7)
+    }
+
     private fun bytes(s: String): ByteArray {
         return ByteString.encodeUtf8(s).toByteArray()
     }
@@ -129,4 +235,21 @@ class PayloadQueueTest {
             })
         return seen
     }
+
+    @Throws(IOException::class)
+    private fun readSnapshot(snapshot: PayloadQueue.Snapshot): List<ByteArray> {
+        val seen: MutableList<ByteArray> = ArrayList()
+        snapshot.forEach(
+            object : PayloadQueue.ElementVisitor {
+                @Throws(IOException::class)
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    assertThat(input.read(data)).isEqualTo(length)
+                    seen.add(data)
+                    return true
+                }
+            })
+        assertThat(seen).hasSize(snapshot.size())
+        return seen
+    }
 }
@@ -0,0 +1,348 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.ArrayList
+import java.util.Random
+import kotlin.jvm.Throws
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * Simulates a crash at every single write a workload makes to a [QueueFile], including the copy
+ * made when the file expands, then reopens the file and verifies that no acknowledged element was
+ * lost, and that the queue is either in the state before or after the interrupted operation.
+ */
+class QueueFileCrashTest {
+    @Rule @JvmField val folder = TemporaryFolder()
+    private lateinit var file: File
+
+    @Before
+    fun setUp() {
+        file = File(folder.root, "queue-file")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun synchronousWritesSurviveCrashAtEveryWrite() {
+        crashAtEveryWrite(maxPendingElements = 0, tornWrites = false)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun synchronousWritesSurviveTornWrites() {
+        crashAtEveryWrite(maxPendingElements = 0, tornWrites = true)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun groupCommitSurvivesCrashAtEveryWrite() {
+        crashAtEveryWrite(maxPendingElements = 5, tornWrites = false)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun groupCommitSurvivesTornWrites() {
+        crashAtEveryWrite(maxPendingElements = 5, tornWrites = true)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun groupCommitSurvivesLosingUnforcedWrites() {
+        crashAtEveryWrite(maxPendingElements = 5, tornWrites = true, loseUnforcedWrites = true)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun uncommittedElementsAreNotVisibleAfterCrash() {
+        var queueFile = QueueFile(file, 10)
+        queueFile.add(byteArrayOf(1))
+        queueFile.add(byteArrayOf(2))
+        queueFile.commit()
+        queueFile.add(byteArrayOf(3))
+        assertThat(queueFile.size()).isEqualTo(3)
+        // Simulate a crash by dropping the instance without closing it.
+        queueFile.raf.close()
+
+        queueFile = QueueFile(file)
+        assertThat(readAll(queueFile)).containsExactly(byteArrayOf(1), byteArrayOf(2))
+    }
+
+    private fun crashAtEveryWrite(
+        maxPendingElements: Int,
+        tornWrites: Boolean,
+        loseUnforcedWrites: Boolean = false
+    ) {
+        // Dry run to find out how many writes the workload makes.
+        val dryRun =
+            CrashingRandomAccessFile(newFile(), Int.MAX_VALUE, tornWrites, loseUnforcedWrites)
+        runWorkload(queueFile(dryRun, maxPendingElements), Model())
+        val totalWrites = dryRun.writes
+        assertThat(totalWrites).isGreaterThan(50)
+        assertThat(dryRun.copies).isGreaterThan(0)
+
+        for (crashAt in 0 until totalWrites) {
+            val raf = CrashingRandomAccessFile(newFile(), crashAt, tornWrites, loseUnforcedWrites)
+            val model = Model()
+            try {
+                runWorkload(queueFile(raf, maxPendingElements), model)
+                throw AssertionError("Expected a crash at write $crashAt")
+            } catch (expected: IOException) {
+                // The process died.
+            }
+            raf.crash()
+
+            val recovered = readAll(QueueFile(file))
+            if (model.outcomes.none { sameElements(recovered, it) }) {
+                throw AssertionError(
+                    "Crash at write $crashAt recovered ${recovered.size} elements, expected one " +
+                        "of ${model.outcomes.map { it.size }}."
+                )
+            }
+        }
+    }
+
+    /**
+     * A mix of additions, commits, removals and erases that grows the file a few times and makes the ring
+     * buffer wrap around.
+     */
+    private fun runWorkload(queueFile: QueueFile, model: Model) {
+        val random = Random(42)
+        var counter = 0
+        for (i in 0 until 60) {
+            val operation = random.nextInt(10)
+            if (operation < 7) {
+                val element = ByteArray(1 + random.nextInt(900)) { counter.toByte() }
+                counter++
+                model.pending.add(element)
+                // Adding may commit all pending elements.
+                model.outcomes = listOf(model.committed, model.committed + model.pending)
+                queueFile.add(element)
+                if (queueFile.pendingCount() == 0) {
+                    model.commitPending()
+                }
+            } else if (operation < 8) {
+                model.outcomes = listOf(model.committed, model.committed + model.pending)
+                queueFile.commit()
+                model.commitPending()
+            } else if (queueFile.size() > 0) {
+                // Removing commits pending elements first.
+                val all = model.committed + model.pending
+                val n = 1 + random.nextInt(all.size)
+                model.outcomes = listOf(model.committed, all, all.subList(n, all.size))
+                queueFile.remove(n)
+                model.pending.clear()
+                model.committed = all.subList(n, all.size)
+                // Erasing the removed elements must not touch the rest.
+                model.outcomes = listOf(model.committed)
+                queueFile.eraseFreeSpace()
+            }
+        }
+        model.outcomes = listOf(model.committed, model.committed + model.pending)
+        queueFile.close()
+        model.commitPending()
+    }
+
+    /** A queue whose expansion copies and forces go through [crashingFile]. */
+    private fun queueFile(
+        crashingFile: CrashingRandomAccessFile,
+        maxPendingElements: Int
+    ): QueueFile {
+        return object : QueueFile(crashingFile, maxPendingElements) {
+            override fun force(metaData: Boolean) {
+                super.force(metaData)
+                crashingFile.forced()
+            }
+
+            override fun copy(position: Int, count: Int, target: Int) {
+                crashingFile.copy(position, count, target)
+            }
+        }
+    }
+
+    private fun newFile(): File {
+        file.delete()
+        QueueFile(file).close()
+        return file
+    }
+
+    private fun readAll(queueFile: QueueFile): List<ByteArray> {
+        val elements = ArrayList<ByteArray>()
+        queueFile.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    input.read(data, 0, length)
+                    elements.add(data)
+                    return true
+                }
+            })
+        queueFile.close()
+        return elements
+    }
+
+    private fun sameElements(a: List<ByteArray>, b: List<ByteArray>): Boolean {
+        if (a.size != b.size) return false
+        for (i in a.indices) {
+            if (!a[i].contentEquals(b[i])) return false
+        }
+        return true
+    }
+
+    private class Model {
+        /** Elements that are acknowledged as durable. */
+        var committed: List<ByteArray> = emptyList()
+        /** Elements added since the last commit. */
+        val pending = ArrayList<ByteArray>()
+        /** Acceptable queue contents if the operation in progress is interrupted. */
+        var outcomes: List<List<ByteArray>> = emptyList()
+
+        fun commitPending() {
+            committed = committed + pending
+            pending.clear()
+        }
+    }
+
+    /**
+     * A RandomAccessFile that crashes on the write with the given index. Copies within the file
+     * count as writes. Every subsequent write fails too, as if the process had died. The crashing
+     * write is optionally torn, i.e. only partially persisted. The header is assumed to be written
+     * atomically, as documented by [QueueFile].
+     *
+     * If [loseUnforcedWrites] is set, the file isn't opened for synchronous writes, and [crash]
+     * undoes every write that wasn't followed by a force, like a power loss would.
+     */
+    internal class CrashingRandomAccessFile(
+        file: File,
+        private val crashAt: Int,
+        private val tornWrites: Boolean,
+        private val loseUnforcedWrites: Boolean = false
+    ) : RandomAccessFile(file, if (loseUnforcedWrites) "rw" else "rwd") {
+        var writes = 0
+        var copies = 0
+        /** Restores what unforced writes overwrote, oldest first. */
+        private val undo = ArrayList<() -> Unit>()
+
+        @Throws(IOException::class)
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray) {
+            write(b, 0, b.size)
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            countWrite {
+                if (filePointer != 0L && len > 1) {
+                    persist(b, off, len / 2)
+                }
+            }
+            persist(b, off, len)
+        }
+
+        @Throws(IOException::class)
+        override fun setLength(newLength: Long) {
+            if (writes > crashAt) {
+                throw IOException("Crashed at write $crashAt")
+            }
+            if (loseUnforcedWrites) {
+                val oldLength = length()
+                undo.add { restoreLength(oldLength) }
+            }
+            super.setLength(newLength)
+        }
+
+        /** Copies within the file, like [QueueFile.copy]. */
+        @Throws(IOException::class)
+        fun copy(position: Int, count: Int, target: Int) {
+            copies++
+            countWrite { transfer(position, count / 2, target) }
+            transfer(position, count, target)
+        }
+
+        /** Called once everything written so far is on storage. */
+        fun forced() {
+            undo.clear()
+        }
+
+        /** Drops writes that weren't forced, then closes the file. */
+        @Throws(IOException::class)
+        fun crash() {
+            for (action in undo.asReversed()) {
+                action()
+            }
+            undo.clear()
+            close()
+        }
+
+        /**
+         * Counts a write, and throws if the process is meant to have died by then. [tear] persists
+         * part of the crashing write, if it should be torn.
+         */
+        private fun countWrite(tear: () -> Unit) {
+            if (writes >= crashAt) {
+                if (writes++ == crashAt && tornWrites) {
+                    tear()
+                }
+                throw IOException("Crashed at write $crashAt")
+            }
+            writes++
+        }
+
+        private fun persist(b: ByteArray, off: Int, len: Int) {
+            remember(filePointer, len)
+            super.write(b, off, len)
+        }
+
+        private fun transfer(position: Int, count: Int, target: Int) {
+            remember(target.toLong(), count)
+            channel.position(target.toLong())
+            channel.transferTo(position.toLong(), count.toLong(), channel)
+        }
+
+        /** Keeps the bytes a write is about to overwrite, until they are forced. */
+        private fun remember(position: Long, length: Int) {
+            if (!loseUnforcedWrites) return
+            val old = ByteBuffer.allocate(length)
+            channel.read(old, position)
+            old.flip()
+            undo.add { channel.write(old, position) }
+        }
+
+        private fun restoreLength(length: Long) {
+            super.setLength(length)
+        }
+    }
+}
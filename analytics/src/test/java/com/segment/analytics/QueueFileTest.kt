@@ -28,7 +28,9 @@ import com.segment.analytics.QueueFile.HEADER_LENGTH
 import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.IOException
+import java.io.InputStream
 import java.io.RandomAccessFile
+import java.util.ArrayList
 import java.util.LinkedList
 import java.util.Queue
 import java.util.concurrent.atomic.AtomicInteger
@@ -127,7 +129,7 @@ class QueueFileTest {
 
     @Test
     @Throws(IOException::class)
-    fun removeErasesEagerly() {
+    fun removeLeavesDataUntilErased() {
         val queue = QueueFile(file)
 
         val firstStuff = values[127]
@@ -147,6 +149,14 @@ class QueueFileTest {
         // Next record is intact
         assertThat(queue.peek()).isEqualTo(secondStuff)
 
+        // Removing only updates the header.
+        queue.raf.seek((HEADER_LENGTH + Element.HEADER_LENGTH).toLong())
+        queue.raf.readFully(data, 0, firstStuff.size)
+        assertThat(data).isEqualTo(firstStuff)
+
+        queue.eraseFreeSpace()
+        assertThat(queue.peek()).isEqualTo(secondStuff)
+
         // First should have been erased.
         queue.raf.seek((HEADER_LENGTH + Element.HEADER_LENGTH).toLong())
         queue.raf.readFully(data, 0, firstStuff.size)
@@ -294,6 +304,61 @@ class QueueFileTest {
         assertThat(queue.peek()).isNull()
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun removeAndSkipDoNotReadElements() {
+        var queue = QueueFile(file)
+        for (i in 0 until 100) {
+            queue.add(values[i])
+        }
+        queue.close()
+
+        // The index is built when the file is opened. After that, elements are only read when
+        // their data is.
+        val raf = ReadCountingRandomAccessFile(file, "rwd")
+        queue = QueueFile(raf)
+        raf.reads = 0
+        queue.remove(40)
+        assertThat(raf.reads).isEqualTo(0)
+
+        val seen = ArrayList<ByteArray>()
+        queue.forEach(
+            50,
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    seen.add(ByteArray(length).also { input.read(it) })
+                    return seen.size < 2
+                }
+            })
+        assertThat(seen).containsExactly(values[90], values[91])
+        assertThat(raf.reads).isEqualTo(2)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun eraseFreeSpaceAfterWrapping() {
+        val queue = QueueFile(file)
+        val values = Array(5) { block -> ByteArray(1000) { (block + 10).toByte() } }
+        queue.add(values[0])
+        queue.add(values[1])
+        queue.add(values[2])
+        queue.remove(2)
+        // Wraps around to the start of the buffer, over part of the removed data.
+        queue.add(values[3])
+        queue.add(values[4])
+        queue.eraseFreeSpace()
+
+        assertThat(queue.fileLength).isEqualTo(4096)
+        val data = ByteArray(queue.fileLength)
+        queue.raf.seek(0)
+        queue.raf.readFully(data)
+        // Only the remaining elements and their headers are left.
+        assertThat(data.count { it == 10.toByte() || it == 11.toByte() }).isEqualTo(0)
+        assertThat(data.count { it == 12.toByte() }).isEqualTo(1000)
+        assertThat(queue.peek()).isEqualTo(values[2])
+        assertThat(QueueFile(file).size()).isEqualTo(3)
+    }
+
     @Test
     @Throws(IOException::class)
     fun removeDoesNotCorrupt() {
@@ -384,6 +449,7 @@ class QueueFileTest {
         assertThat(data).isEqualTo(bigBoy)
 
         queue.remove()
+        queue.eraseFreeSpace()
 
         // Next record is intact
         assertThat(queue.peek()).isEqualTo(secondStuff)
@@ -674,6 +740,162 @@ class QueueFileTest {
         assertThat(iteration.get()).isEqualTo(1)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun snapshotFollowsElementsMovedByExpansion() {
+        val queue = QueueFile(file)
+        val values = Array(5) { block -> ByteArray(1024) { (block + 1).toByte() } }
+        queue.add(values[0])
+        queue.add(values[1])
+        queue.remove()
+        // Block "4" wraps around to the start of the buffer.
+        queue.add(values[2])
+        queue.add(values[3])
+        val snapshot = queue.snapshot(0, Int.MAX_VALUE)
+
+        // Expanding the file moves the wrapped part of block "4" past the old end.
+        queue.add(values[4])
+
+        val seen = ArrayList<ByteArray>()
+        snapshot.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    assertThat(input.read(data)).isEqualTo(length)
+                    seen.add(data)
+                    return true
+                }
+            })
+        assertThat(seen).containsExactly(values[1], values[2], values[3])
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun snapshotFailsIfElementsAreRemoved() {
+        val queue = QueueFile(file)
+        queue.add(values[10])
+        queue.add(values[20])
+        val snapshot = queue.snapshot(0, Int.MAX_VALUE)
+        queue.remove()
+        try {
+            snapshot.forEach(
+                object : PayloadQueue.ElementVisitor {
+                    override fun read(input: InputStream, length: Int): Boolean {
+                        input.read(ByteArray(length))
+                        return true
+                    }
+                })
+            fail("Expected IOException")
+        } catch (expected: IOException) {
+            assertThat(expected).hasMessage("Element 0 was removed while being read.")
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun elementCountThatDoesNotLeadToLastPositionThrows() {
+        val queue = QueueFile(file)
+        queue.add(values[10])
+        queue.add(values[20])
+        queue.close()
+        val raf = RandomAccessFile(file, "rwd")
+        raf.seek(4)
+        raf.writeInt(1)
+        raf.close()
+
+        try {
+            QueueFile(file)
+            fail("Should have thrown about the element count")
+        } catch (e: IOException) {
+            assertThat(e).hasMessageStartingWith("File is corrupt; element count stored in header (1)")
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun recoverKeepsElementsUpToTheFirstCorruptOne() {
+        val queue = QueueFile(file)
+        for (i in 10 until 20) {
+            queue.add(values[i])
+        }
+        queue.remove(2)
+        queue.close()
+        val raf = RandomAccessFile(file, "rwd")
+        // Garble the last position, and the data of the 16th value.
+        raf.seek(12)
+        raf.writeInt(10000)
+        raf.seek((HEADER_LENGTH + (10 until 16).sumBy { Element.HEADER_LENGTH + it }).toLong())
+        raf.writeInt(16)
+        raf.write(0)
+        raf.close()
+
+        val recovery = QueueFile.recover(file) { data, length -> data[0].toInt() == length }
+
+        assertThat(recovery.salvaged).isEqualTo(4)
+        assertThat(recovery.lost).isEqualTo(4)
+        val recovered = QueueFile(file)
+        assertThat(recovered.size()).isEqualTo(4)
+        assertThat(recovered.peek()).isEqualTo(values[12])
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun recoverScansFromTheStartWithoutAHeader() {
+        val queue = QueueFile(file)
+        for (i in 1 until 6) {
+            queue.add(values[i])
+        }
+        queue.close()
+        val raf = RandomAccessFile(file, "rwd")
+        raf.seek(0)
+        raf.write(ByteArray(HEADER_LENGTH))
+        raf.close()
+
+        val recovery = QueueFile.recover(file) { data, length -> data[0].toInt() == length }
+
+        assertThat(recovery.salvaged).isEqualTo(5)
+        assertThat(recovery.lost).isEqualTo(0)
+        val recovered = QueueFile(file)
+        assertThat(recovered.size()).isEqualTo(5)
+        recovered.remove(4)
+        assertThat(recovered.peek()).isEqualTo(values[5])
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun reloadSeesChangesMadeByAnotherInstance() {
+        val queue = QueueFile(file)
+        val other = QueueFile(file)
+        queue.add(values[10])
+
+        // Additions are indexed on top of what was there.
+        other.reload()
+        other.add(values[20])
+        other.add(values[30])
+        queue.reload()
+        assertThat(queue.size()).isEqualTo(3)
+
+        // Removals, and growing the file, start over.
+        queue.remove(2)
+        for (i in 100 until N) {
+            queue.add(values[i])
+        }
+        other.reload()
+        val seen = ArrayList<ByteArray>()
+        other.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    input.read(data)
+                    seen.add(data)
+                    return true
+                }
+            })
+        assertThat(seen).hasSize(1 + N - 100)
+        assertThat(seen[0]).isEqualTo(values[30])
+        assertThat(seen[seen.size - 1]).isEqualTo(values[N - 1])
+    }
+
     /**
      * Exercise a bug where wrapped elements were getting corrupted when the QueueFile was forced to
      * expand in size and a portion of the final Element had been wrapped into space at the beginning
@@ -826,6 +1048,7 @@ class QueueFileTest {
         // contained the tail end of block "4", and garbage was copied after the tail
         // end of the last element.
         queue.add(values[4])
+        queue.eraseFreeSpace()
 
         // Read from header to first element and make sure it's zeroed.
         val firstElementPadding = 1028
@@ -937,6 +1160,18 @@ class QueueFileTest {
     }
   }
   */
+    /** A RandomAccessFile that counts reads.  */
+    internal class ReadCountingRandomAccessFile(file: File, mode: String) :
+        RandomAccessFile(file, mode) {
+        var reads = 0
+
+        @Throws(IOException::class)
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            reads++
+            return super.read(b, off, len)
+        }
+    }
+
     /** A RandomAccessFile that can break when you go to write the COMMITTED status.  */
     internal class BrokenRandomAccessFile(file: File, mode: String) : RandomAccessFile(file, mode) {
         var rejectCommit = true
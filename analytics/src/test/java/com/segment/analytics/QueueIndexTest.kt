@@ -0,0 +1,155 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import com.segment.analytics.integrations.BasePayload
+import com.segment.analytics.integrations.IdentifyPayload
+import com.segment.analytics.integrations.TrackPayload
+import java.util.Random
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class QueueIndexTest {
+
+    private fun index(policy: EvictionPolicy, maxCount: Int = 3) =
+        QueueIndex(policy, maxCount, 0, Random(1))
+
+    private fun track(event: String) = header(
+        TrackPayload.Builder().event(event).userId("user").build()
+    )
+
+    private fun identify() = header(IdentifyPayload.Builder().userId("user").build())
+
+    private fun header(payload: BasePayload) =
+        RecordHeader().set(payload, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0)
+
+    /** Sequence numbers evicted by the last call to evict. */
+    private fun victims(index: QueueIndex, count: Int) = (0 until count).map { index.victim(it) }
+
+    @Test
+    fun oldestFirstCountsEventsAndBytes() {
+        val index = index(EvictionPolicy.oldestFirst().maxQueueBytes(100))
+        index.add(track("a"), 40)
+        index.add(track("b"), 40)
+
+        assertThat(index.evict(track("c"), 20)).isEqualTo(0)
+        val evicted = index.evict(track("c"), 70)
+        assertThat(victims(index, evicted)).containsExactly(0L, 1L)
+        assertThat(index.liveCount()).isEqualTo(0)
+        assertThat(index.evictedHead()).isEqualTo(2)
+    }
+
+    @Test
+    fun lowestPriorityFirstEvictsTracksBeforeIdentifies() {
+        val index = index(EvictionPolicy.lowestPriorityFirst())
+        index.add(identify(), 10)
+        index.add(track("a"), 10)
+        index.add(track("b"), 10)
+
+        val evicted = index.evict(track("c"), 10)
+
+        assertThat(victims(index, evicted)).containsExactly(1L)
+        assertThat(index.flags(1)).isEqualTo(0)
+        assertThat(index.evictedHead()).isEqualTo(0)
+    }
+
+    @Test
+    fun eventsWorthLessThanTheQueueAreDropped() {
+        val index = index(EvictionPolicy.lowestPriorityFirst().lowValue("Scroll Depth"))
+        index.add(identify(), 10)
+        index.add(track("a"), 10)
+        index.add(identify(), 10)
+
+        assertThat(index.evict(track("Scroll Depth"), 10)).isEqualTo(QueueIndex.DROP)
+        assertThat(index.liveCount()).isEqualTo(3)
+        val evicted = index.evict(identify(), 10)
+        assertThat(victims(index, evicted)).containsExactly(1L)
+    }
+
+    @Test
+    fun quotasEvictTheOldestEventsWithTheSameName() {
+        val index = index(EvictionPolicy.oldestFirst().quota("Scroll Depth", 2), maxCount = 10)
+        index.add(track("Scroll Depth"), 10)
+        index.add(track("a"), 10)
+        index.add(track("Scroll Depth"), 10)
+
+        assertThat(index.evict(track("a"), 10)).isEqualTo(0)
+        val evicted = index.evict(track("Scroll Depth"), 10)
+        assertThat(victims(index, evicted)).containsExactly(0L)
+    }
+
+    @Test
+    fun droppedEventsEvictNothing() {
+        val index = index(EvictionPolicy.lowestPriorityFirst().quota("a", 1), maxCount = 2)
+        index.add(identify(), 10)
+        index.add(track("a"), 10)
+        index.evict(identify(), 10)
+        index.add(identify(), 10)
+
+        // The identifies are worth more, so the quota doesn't get to replace the old one.
+        assertThat(index.evict(track("a"), 10)).isEqualTo(QueueIndex.DROP)
+        assertThat(index.liveCount()).isEqualTo(2)
+        assertThat(index.liveBytes()).isEqualTo(20)
+    }
+
+    @Test
+    fun sampledKeepsEventsFromTheWholePeriod() {
+        val index = QueueIndex(EvictionPolicy.sampled(), 10, 0, Random(42))
+        val queued = mutableMapOf<Long, Int>()
+        var sequence = 0L
+        for (i in 0 until 1000) {
+            val header = track("a")
+            val evicted = index.evict(header, 10)
+            if (evicted == QueueIndex.DROP) {
+                continue
+            }
+            for (v in victims(index, evicted)) {
+                queued.remove(v)
+            }
+            index.add(header, 10)
+            queued[sequence++] = i
+        }
+
+        assertThat(index.liveCount()).isEqualTo(10)
+        assertThat(queued.values).hasSize(10)
+        assertThat(queued.values.filter { it < 500 }).isNotEmpty()
+        assertThat(queued.values.filter { it >= 500 }).isNotEmpty()
+    }
+
+    @Test
+    fun removeToForgetsRemovedElements() {
+        val index = index(EvictionPolicy.oldestFirst().maxQueueBytes(100))
+        index.add(track("a"), 40)
+        index.add(track("b"), 40)
+        index.evict(track("c"), 40)
+
+        index.removeTo(1)
+
+        assertThat(index.size()).isEqualTo(1)
+        assertThat(index.bytes()).isEqualTo(40)
+        assertThat(index.liveCount()).isEqualTo(1)
+        assertThat(index.evictedHead()).isEqualTo(0)
+        assertThat(index.isOversized()).isFalse()
+    }
+}
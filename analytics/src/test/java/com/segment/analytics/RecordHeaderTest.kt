@@ -0,0 +1,159 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import com.segment.analytics.integrations.BasePayload
+import com.segment.analytics.integrations.TrackPayload
+import java.io.ByteArrayInputStream
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+
+class RecordHeaderTest {
+    private val payload = """{"type":"track"}""".toByteArray()
+
+    @Test
+    fun roundTrip() {
+        val track =
+            TrackPayload.Builder().messageId("message-id").event("foo").userId("user").build()
+        val element = ByteArray(RecordHeader.LENGTH + payload.size)
+        RecordHeader()
+            .set(
+                track,
+                1234567890123L,
+                RecordHeader.PRIORITY_NORMAL,
+                RecordHeader.FLAG_ENCRYPTED,
+                42L
+            )
+            .writeTo(element, 0)
+        payload.copyInto(element, RecordHeader.LENGTH)
+
+        val header = RecordHeader()
+        val stream = header.read(ByteArrayInputStream(element), element.size)
+
+        assertThat(header.version).isEqualTo(RecordHeader.VERSION)
+        assertThat(RecordHeader.type(header.type)).isEqualTo(BasePayload.Type.track)
+        assertThat(header.priority).isEqualTo(RecordHeader.PRIORITY_NORMAL)
+        assertThat(header.flags)
+            .isEqualTo(RecordHeader.FLAG_ENCRYPTED or RecordHeader.FLAG_SHARED_CONTEXT)
+        assertThat(header.contextId).isEqualTo(42L)
+        assertThat(header.timestamp).isEqualTo(1234567890123L)
+        assertThat(header.messageIdHash).isEqualTo("message-id".hashCode())
+        assertThat(header.nameHash).isEqualTo("foo".hashCode())
+        assertThat(header.payloadLength).isEqualTo(payload.size)
+        assertThat(stream.readBytes()).isEqualTo(payload)
+    }
+
+    @Test
+    fun elementsWithoutHeaderAreAllPayload() {
+        val header = RecordHeader()
+        val stream = header.read(ByteArrayInputStream(payload), payload.size)
+
+        assertThat(header.version).isEqualTo(0)
+        assertThat(RecordHeader.type(header.type)).isNull()
+        assertThat(header.timestamp).isEqualTo(0)
+        assertThat(header.payloadLength).isEqualTo(payload.size)
+        assertThat(stream.readBytes()).isEqualTo(payload)
+    }
+
+    @Test
+    fun shortElementsWithoutHeader() {
+        val header = RecordHeader()
+        val stream = header.read(ByteArrayInputStream(byteArrayOf(1, 2)), 2)
+
+        assertThat(header.version).isEqualTo(0)
+        assertThat(stream.readBytes()).isEqualTo(byteArrayOf(1, 2))
+    }
+
+    @Test
+    fun skipsFieldsAddedByLaterVersions() {
+        val track = TrackPayload.Builder().event("foo").userId("user").build()
+        val headerLength = RecordHeader.LENGTH + 6
+        val element = ByteArray(headerLength + payload.size)
+        RecordHeader().set(track, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0).writeTo(element, 0)
+        element[3] = 5 // version
+        element[4] = headerLength.toByte()
+        payload.copyInto(element, headerLength)
+
+        val header = RecordHeader()
+        val stream = header.read(ByteArrayInputStream(element), element.size)
+
+        assertThat(header.version).isEqualTo(5)
+        assertThat(header.timestamp).isEqualTo(1L)
+        assertThat(header.payloadLength).isEqualTo(payload.size)
+        assertThat(stream.readBytes()).isEqualTo(payload)
+    }
+
+    @Test
+    fun readsVersion1Headers() {
+        val track = TrackPayload.Builder().event("foo").userId("user").build()
+        val header = ByteArray(RecordHeader.LENGTH)
+        RecordHeader().set(track, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0).writeTo(header, 0)
+        // Version 1 headers end before the context id.
+        val element = header.copyOf(RecordHeader.MIN_LENGTH) + payload
+        element[3] = 1
+        element[4] = RecordHeader.MIN_LENGTH.toByte()
+
+        val parsed = RecordHeader()
+        val stream = parsed.read(ByteArrayInputStream(element), element.size)
+
+        assertThat(parsed.version).isEqualTo(1)
+        assertThat(parsed.contextId).isEqualTo(0)
+        assertThat(parsed.nameHash).isEqualTo(0)
+        assertThat(parsed.payloadLength).isEqualTo(payload.size)
+        assertThat(stream.readBytes()).isEqualTo(payload)
+    }
+
+    @Test
+    fun isIntactChecksThePayloadChecksum() {
+        val track = TrackPayload.Builder().event("foo").userId("user").build()
+        val element = ByteArray(RecordHeader.LENGTH + payload.size)
+        payload.copyInto(element, RecordHeader.LENGTH)
+        val header = RecordHeader().set(track, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0)
+        header.checksum = header.checksum(element, RecordHeader.LENGTH, payload.size)
+        header.writeTo(element, 0)
+
+        assertThat(RecordHeader().isIntact(element, element.size)).isTrue()
+        // Flags are updated in place, and aren't covered.
+        element[RecordHeader.FLAGS_OFFSET] = RecordHeader.FLAG_EVICTED.toByte()
+        assertThat(RecordHeader().isIntact(element, element.size)).isTrue()
+        element[element.size - 1] = 0
+        assertThat(RecordHeader().isIntact(element, element.size)).isFalse()
+    }
+
+    @Test
+    fun isIntactAcceptsPayloadsQueuedWithoutChecksum() {
+        val track = TrackPayload.Builder().event("foo").userId("user").build()
+        val header = ByteArray(RecordHeader.LENGTH)
+        RecordHeader().set(track, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0).writeTo(header, 0)
+        // Version 3 headers end before the checksum.
+        val element = header.copyOf(32) + payload
+        element[3] = 3
+        element[4] = 32
+
+        assertThat(RecordHeader().isIntact(element, element.size)).isTrue()
+        assertThat(RecordHeader().isIntact(payload, payload.size)).isTrue()
+        // Or encrypted, before headers were added.
+        assertThat(RecordHeader().isIntact(byteArrayOf(0, 0, 0, 0), 4)).isTrue()
+    }
+}
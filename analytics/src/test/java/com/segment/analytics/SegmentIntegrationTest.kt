@@ -24,6 +24,8 @@
 package com.segment.analytics
 
 import android.Manifest.permission.ACCESS_NETWORK_STATE
+import android.content.ComponentCallbacks2
+import android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
 import android.content.Context
 import android.content.pm.PackageManager.PERMISSION_DENIED
 import android.net.ConnectivityManager
@@ -32,6 +34,7 @@ import com.nhaarman.mockitokotlin2.verifyZeroInteractions
 import com.nhaarman.mockitokotlin2.whenever
 import com.segment.analytics.PayloadQueue.PersistentQueue
 import com.segment.analytics.SegmentIntegration.BatchPayloadWriter
+import com.segment.analytics.SegmentIntegration.MAX_IN_FLIGHT_BATCHES
 import com.segment.analytics.SegmentIntegration.MAX_PAYLOAD_SIZE
 import com.segment.analytics.SegmentIntegration.MAX_QUEUE_SIZE
 import com.segment.analytics.SegmentIntegration.PayloadWriter
@@ -40,19 +43,33 @@ import com.segment.analytics.TestUtils.SynchronousExecutor
 import com.segment.analytics.TestUtils.TRACK_PAYLOAD
 import com.segment.analytics.TestUtils.TRACK_PAYLOAD_JSON
 import com.segment.analytics.TestUtils.mockApplication
+import com.segment.analytics.integrations.BasePayload
+import com.segment.analytics.integrations.IdentifyPayload
 import com.segment.analytics.integrations.Logger
 import com.segment.analytics.integrations.Logger.with
 import com.segment.analytics.integrations.TrackPayload.Builder
 import com.segment.analytics.internal.Utils.DEFAULT_FLUSH_INTERVAL
 import com.segment.analytics.internal.Utils.DEFAULT_FLUSH_QUEUE_SIZE
 import com.segment.analytics.internal.Utils.parseISO8601Date
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.IOError
 import java.io.IOException
 import java.io.InputStream
+import java.io.InputStreamReader
 import java.io.OutputStream
+import java.io.RandomAccessFile
 import java.net.HttpURLConnection
+import java.util.ArrayList
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPInputStream
 import kotlin.jvm.Throws
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.fail
@@ -64,10 +81,12 @@ import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
 import org.mockito.ArgumentCaptor.forClass
 import org.mockito.Matchers.any
+import org.mockito.Mockito.clearInvocations
 import org.mockito.Mockito.doThrow
 import org.mockito.Mockito.mock
 import org.mockito.Mockito.never
 import org.mockito.Mockito.spy
+import org.mockito.Mockito.timeout
 import org.mockito.Mockito.times
 import org.mockito.MockitoAnnotations.initMocks
 import org.robolectric.RobolectricTestRunner
@@ -86,19 +105,26 @@ class SegmentIntegrationTest {
     val folder = TemporaryFolder()
     private lateinit var queueFile: QueueFile
 
-    private fun mockConnection(): Client.Connection {
-        return mockConnection(mock(HttpURLConnection::class.java))
-    }
-
-    private fun mockConnection(connection: HttpURLConnection): Client.Connection {
+    /**
+     * Returns a connection whose request body is written to {@code body}. The upload happens when
+     * it is closed, with {@code beforeClose} and {@code afterClose} run around it.
+     */
+    private fun mockConnection(
+        connection: HttpURLConnection = mock(HttpURLConnection::class.java),
+        body: OutputStream = mock(OutputStream::class.java),
+        beforeClose: () -> Unit = {},
+        afterClose: () -> Unit = {}
+    ): Client.Connection {
         return object : Client.Connection(
             connection,
             mock(InputStream::class.java),
-            mock(OutputStream::class.java)
+            body
         ) {
             @Throws(IOException::class)
             override fun close() {
+                beforeClose()
                 super.close()
+                afterClose()
             }
         }
     }
@@ -168,7 +194,14 @@ class SegmentIntegrationTest {
                 )
         val captor = forClass(ByteArray::class.java)
         verify(payloadQueue).add(captor.capture())
-        val got = String(captor.value, UTF_8)
+        val element = captor.value
+        val header = RecordHeader()
+        assertThat(header.parse(element, 0, element.size, element.size)).isTrue()
+        assertThat(header.type).isEqualTo(RecordHeader.typeCode(BasePayload.Type.track))
+        assertThat(header.messageIdHash)
+            .isEqualTo("a161304c-498c-4830-9291-fcfb8498877b".hashCode())
+        assertThat(header.flags).isEqualTo(0)
+        val got = String(element, header.headerLength, header.payloadLength, UTF_8)
         assertThat(got).isEqualTo(expected)
     }
 
@@ -178,6 +211,7 @@ class SegmentIntegrationTest {
         val payloadQueue = mock(PayloadQueue::class.java)
         // We want to trigger a remove, but not a flush.
         whenever(payloadQueue.size()).thenReturn(0, MAX_QUEUE_SIZE, MAX_QUEUE_SIZE, 0)
+        whenever(payloadQueue.claimUploads()).thenReturn(true)
         val segmentIntegration = SegmentBuilder().payloadQueue(payloadQueue).build()
 
         segmentIntegration.performEnqueue(TRACK_PAYLOAD)
@@ -247,6 +281,603 @@ class SegmentIntegrationTest {
         assertThat(queueFile.size()).isEqualTo(0)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun flushErasesUploadedPayloadsAfterwards() {
+        val payloadQueue = spy(PersistentQueue(queueFile))
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(mockConnection())
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .build()
+        queueFile.add(TRACK_PAYLOAD_JSON.toByteArray())
+
+        segmentIntegration.submitFlush()
+
+        verify(payloadQueue, timeout(1000)).eraseRemoved()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun flushRecordsUploadStats() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(
+            mockConnection(body = BatchOutputStream(body, true))
+        )
+        val stats = Stats()
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .stats(stats)
+                .payloadQueue(PersistentQueue(queueFile))
+                .build()
+        for (i in 0 until 3) {
+            segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        }
+
+        segmentIntegration.submitFlush()
+
+        val snapshot = stats.createSnapshot()
+        assertThat(snapshot.enqueueLatency.count).isEqualTo(3)
+        assertThat(snapshot.flushEventCount).isEqualTo(3)
+        assertThat(snapshot.batchSize.max).isEqualTo(3)
+        assertThat(snapshot.uploadBytes.max).isEqualTo(body.size().toLong())
+        assertThat(snapshot.uploadLatency.count).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun flushUploadsPayloadsQueuedWithAndWithoutHeaders() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(
+            mockConnection(body = BatchOutputStream(body, true))
+        )
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(PersistentQueue(queueFile))
+                .build()
+        // Queued by a version that didn't write headers.
+        queueFile.add(TRACK_PAYLOAD_JSON.toByteArray())
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+
+        segmentIntegration.submitFlush()
+
+        val batch = gunzipJson(body)["batch"] as List<*>
+        assertThat(batch).hasSize(2)
+        for (payload in batch) {
+            assertThat((payload as Map<*, *>)["type"]).isEqualTo("track")
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun sharedContextIsQueuedOnceAndUploadedWithEachPayload() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(
+            mockConnection(body = BatchOutputStream(body, true))
+        )
+        val contexts = File(folder.root, "contexts")
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(PersistentQueue(queueFile))
+                .contextStore(ContextStore(contexts, Crypto.none()))
+                .build()
+        val context = mapOf("app" to mapOf("name" to "demo"), "locale" to "en-US")
+        for (i in 0 until 3) {
+            segmentIntegration.performEnqueue(
+                Builder().event("event $i").userId("userId").context(context).build()
+            )
+        }
+
+        assertThat(contexts.listFiles()).hasSize(1)
+        queueFile.forEach { input, length ->
+            val element = String(input.readBytes(), UTF_8)
+            assertThat(element).doesNotContain("demo")
+            length > 0
+        }
+
+        segmentIntegration.submitFlush()
+
+        val batch = gunzipJson(body)["batch"] as List<*>
+        assertThat(batch).hasSize(3)
+        for (payload in batch) {
+            val uploaded = (payload as Map<*, *>)["context"] as Map<*, *>
+            assertThat(uploaded["locale"]).isEqualTo("en-US")
+            assertThat(uploaded["app"]).isEqualTo(mapOf("name" to "demo"))
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun binaryPayloadsAreUploadedAsJson() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(
+            mockConnection(body = BatchOutputStream(body, true))
+        )
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(PersistentQueue(queueFile))
+                .binaryEncoder(BinaryJson())
+                .build()
+        // Queued as JSON before the binary encoding was enabled.
+        queueFile.add(TRACK_PAYLOAD_JSON.toByteArray())
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        val encoder = JsonEncoder()
+        Cartographer.INSTANCE.toJson(
+            TRACK_PAYLOAD, emptyMap<String, Boolean>(), SegmentIntegration.SEGMENT_KEY, encoder
+        )
+        val json = String(encoder.toByteArray(), UTF_8)
+
+        val header = RecordHeader()
+        queueFile.forEach(1) { input, length ->
+            header.read(input, length)
+            assertThat(header.flags and RecordHeader.FLAG_BINARY).isNotZero()
+            assertThat(header.payloadLength).isLessThan(json.length)
+            true
+        }
+
+        segmentIntegration.submitFlush()
+
+        val uploaded = String(GZIPInputStream(ByteArrayInputStream(body.toByteArray())).readBytes(), UTF_8)
+        assertThat(uploaded).startsWith("{\"batch\":[$TRACK_PAYLOAD_JSON,$json]")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun binaryBatchesAreLimitedByTheirUploadedSize() {
+        val bodies = ArrayList<ByteArrayOutputStream>()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val body = ByteArrayOutputStream()
+            bodies.add(body)
+            mockConnection(body = body)
+        }
+        val payloadQueue = PersistentQueue(queueFile)
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .binaryEncoder(BinaryJson())
+                .flushSize(1000)
+                .build()
+        // About 150KB stored, and a little more once uploaded.
+        val properties = mapOf("padding" to "x".repeat(1400))
+        for (i in 0 until 100) {
+            segmentIntegration.performEnqueue(
+                Builder().event("event $i").userId("userId").properties(properties).build()
+            )
+        }
+
+        segmentIntegration.submitFlush()
+
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        assertThat(bodies).hasSize(1)
+        val batch = Cartographer.INSTANCE.fromJson(bodies[0].toString("UTF-8"))["batch"] as List<*>
+        assertThat(batch).hasSize(100)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun deflatedPayloadsAreSplicedIntoTheUpload() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(
+            mockConnection(body = BatchOutputStream(body, true))
+        )
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(PersistentQueue(queueFile))
+                .contextStore(ContextStore(File(folder.root, "contexts"), Crypto.none()))
+                .payloadDeflater(PayloadDeflater())
+                .build()
+        queueFile.add(TRACK_PAYLOAD_JSON.toByteArray())
+        val properties = mapOf("description" to "a long description ".repeat(20))
+        val payloads = (0 until 3).map { i ->
+            Builder().event("event $i").userId("userId").properties(properties)
+                .context(mapOf("locale" to "en-US")).build()
+        }
+        for (payload in payloads) {
+            segmentIntegration.performEnqueue(payload)
+        }
+
+        val header = RecordHeader()
+        queueFile.forEach(1) { input, length ->
+            header.read(input, length)
+            assertThat(header.flags and RecordHeader.FLAG_DEFLATED).isNotZero()
+            assertThat(header.payloadLength).isLessThan(properties["description"]!!.length)
+            true
+        }
+
+        segmentIntegration.submitFlush()
+
+        val batch = gunzipJson(body)["batch"] as List<*>
+        assertThat(batch).hasSize(4)
+        assertThat((batch[0] as Map<*, *>)["type"]).isEqualTo("track")
+        for (i in 0 until 3) {
+            val uploaded = batch[i + 1] as Map<*, *>
+            assertThat(uploaded["event"]).isEqualTo("event $i")
+            assertThat(uploaded["context"]).isEqualTo(mapOf("locale" to "en-US"))
+            assertThat(uploaded["properties"]).isEqualTo(properties)
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun batchesWithSharedContextsStayUnderTheSizeLimit() {
+        val bodies = ArrayList<ByteArrayOutputStream>()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val body = ByteArrayOutputStream()
+            bodies.add(body)
+            mockConnection(body = body)
+        }
+        val payloadQueue = PersistentQueue(queueFile)
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .contextStore(ContextStore(File(folder.root, "contexts"), Crypto.none()))
+                .flushSize(1000)
+                .build()
+        // Each payload is stored in a few hundred bytes, and uploaded in about 30KB.
+        val context = mapOf("description" to "x".repeat(MAX_PAYLOAD_SIZE - 2000))
+        for (i in 0 until 60) {
+            segmentIntegration.performEnqueue(
+                Builder().event("event $i").userId("userId").context(context).build()
+            )
+        }
+
+        segmentIntegration.submitFlush()
+
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        assertThat(bodies.size).isGreaterThan(3)
+        var uploaded = 0
+        for (body in bodies) {
+            assertThat(body.size()).isLessThan(SegmentIntegration.MAX_BATCH_SIZE)
+            val batch = Cartographer.INSTANCE.fromJson(body.toString("UTF-8"))["batch"] as List<*>
+            assertThat((batch[0] as Map<*, *>)["context"]).isEqualTo(context)
+            uploaded += batch.size
+        }
+        assertThat(uploaded).isEqualTo(60)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun evictedPayloadsAreLeftOutOfUploads() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(mockConnection(body = body))
+        val payloadQueue = PersistentQueue(queueFile)
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .evictionPolicy(EvictionPolicy.lowestPriorityFirst().quota("Scroll Depth", 1))
+                .build()
+        segmentIntegration.performEnqueue(IdentifyPayload.Builder().userId("userId").build())
+        for (event in listOf("Scroll Depth", "Signed Up", "Scroll Depth")) {
+            segmentIntegration.performEnqueue(Builder().event(event).userId("userId").build())
+        }
+        // The first scroll isn't at the head, so it's only marked.
+        assertThat(payloadQueue.size()).isEqualTo(4)
+
+        segmentIntegration.submitFlush()
+
+        val batch = Cartographer.INSTANCE.fromJson(body.toString("UTF-8"))["batch"] as List<*>
+        assertThat(batch.map { (it as Map<*, *>)["event"] })
+            .containsExactly(null, "Signed Up", "Scroll Depth")
+        assertThat(payloadQueue.size()).isEqualTo(0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun expiredPayloadsAreRemovedAndLeftOutOfUploads() {
+        val body = ByteArrayOutputStream()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(mockConnection(body = body))
+        val payloadQueue = PersistentQueue(queueFile)
+        val stats = Stats()
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .stats(stats)
+                .evictionPolicy(
+                    EvictionPolicy.oldestFirst()
+                        .expireAfter(1, TimeUnit.DAYS)
+                        .expireAfter(BasePayload.Type.identify, 30, TimeUnit.DAYS)
+                )
+                .build()
+        val twoDaysAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)
+        val identify = IdentifyPayload.Builder().userId("userId").build()
+        payloadQueue.add(element(Builder().event("Old").userId("userId").build(), twoDaysAgo))
+        payloadQueue.add(element(identify, twoDaysAgo))
+        payloadQueue.add(element(Builder().event("Old").userId("userId").build(), twoDaysAgo))
+        segmentIntegration.performEnqueue(Builder().event("New").userId("userId").build())
+
+        segmentIntegration.submitFlush()
+
+        val batch = Cartographer.INSTANCE.fromJson(body.toString("UTF-8"))["batch"] as List<*>
+        assertThat(batch.map { (it as Map<*, *>)["event"] }).containsExactly(null, "New")
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        assertThat(stats.createSnapshot().expiredEventCount).isEqualTo(2)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun payloadsCanBeEnqueuedWhileExpiredPayloadsAreRemoved() {
+        val bodies = ArrayList<ByteArrayOutputStream>()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val body = ByteArrayOutputStream()
+            synchronized(bodies) { bodies.add(body) }
+            mockConnection(body = body)
+        }
+        val payloadQueue = PersistentQueue(queueFile)
+        val stats = Stats()
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .stats(stats)
+                .flushSize(MAX_QUEUE_SIZE)
+                .evictionPolicy(
+                    EvictionPolicy.oldestFirst()
+                        .quota("Scroll Depth", 1)
+                        .expireAfter(1, TimeUnit.DAYS)
+                )
+                .build()
+        val twoDaysAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)
+        for (i in 0 until 200) {
+            payloadQueue.add(element(Builder().event("Old").userId("userId").build(), twoDaysAgo))
+        }
+        val start = CountDownLatch(1)
+        val flush = Thread {
+            start.await()
+            segmentIntegration.submitFlush()
+        }
+        flush.start()
+
+        // Each scroll evicts the one before it, as long as it's still queued.
+        start.countDown()
+        for (i in 0 until 100) {
+            for (event in listOf("Signed Up", "Scroll Depth")) {
+                segmentIntegration.performEnqueue(
+                    Builder().event(event).userId("userId").properties(mapOf("index" to i)).build()
+                )
+            }
+        }
+        flush.join(TimeUnit.SECONDS.toMillis(5))
+        segmentIntegration.submitFlush()
+
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        val uploaded = bodies.flatMap { body ->
+            (Cartographer.INSTANCE.fromJson(body.toString("UTF-8"))["batch"] as List<*>)
+                .map { it as Map<*, *> }
+        }
+        // Evictions only ever hit scrolls.
+        val signedUp = uploaded.filter { it["event"] == "Signed Up" }
+            .map { ((it["properties"] as Map<*, *>)["index"] as Double).toInt() }
+        assertThat(signedUp).containsExactlyElementsOf(0 until 100)
+        assertThat(uploaded.last()["event"]).isEqualTo("Scroll Depth")
+        assertThat(uploaded.map { it["event"] }).doesNotContain("Old")
+        assertThat(stats.createSnapshot().expiredEventCount).isEqualTo(200)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun batchesWithOnlyEvictedPayloadsAreRemovedWithoutUploading() {
+        val body = ByteArrayOutputStream()
+        var sent = 0
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(
+            mockConnection(body = body, beforeClose = { sent++ })
+        )
+        val payloadQueue = PersistentQueue(queueFile)
+        val segmentIntegration =
+            SegmentBuilder().client(client).payloadQueue(payloadQueue).build()
+        val now = System.currentTimeMillis()
+        for (i in 1..3) {
+            val payload = Builder().event("Scroll Depth").userId("userId").build()
+            payloadQueue.add(element(payload, now, RecordHeader.FLAG_EVICTED))
+        }
+
+        segmentIntegration.submitFlush()
+
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        assertThat(body.size()).isEqualTo(0)
+        assertThat(sent).isEqualTo(0)
+
+        // The queue isn't backed off, so the next payload is uploaded right away.
+        segmentIntegration.performEnqueue(Builder().event("New").userId("userId").build())
+        segmentIntegration.submitFlush()
+
+        val batch = Cartographer.INSTANCE.fromJson(body.toString("UTF-8"))["batch"] as List<*>
+        assertThat(batch.map { (it as Map<*, *>)["event"] }).containsExactly("New")
+        assertThat(sent).isGreaterThan(0)
+    }
+
+    /** Returns a queue element for the given payload, as if it was queued at {@code timestamp}. */
+    private fun element(payload: BasePayload, timestamp: Long, flags: Int = 0): ByteArray {
+        val json = Cartographer.INSTANCE.toJson(payload).toByteArray()
+        val element = ByteArray(RecordHeader.LENGTH + json.size)
+        json.copyInto(element, RecordHeader.LENGTH)
+        val header = RecordHeader().set(payload, timestamp, RecordHeader.PRIORITY_NORMAL, flags, 0)
+        header.checksum = header.checksum(element, RecordHeader.LENGTH, json.size)
+        header.writeTo(element, 0)
+        return element
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun lowMemoryCommitsBufferedPayloads() {
+        val context = mockApplication()
+        whenever(context.checkCallingOrSelfPermission(ACCESS_NETWORK_STATE))
+            .thenReturn(PERMISSION_DENIED)
+        val payloadQueue = mock(PayloadQueue::class.java)
+        SegmentBuilder()
+            .context(context)
+            .payloadQueue(payloadQueue)
+            .queueDurability(QueueDurability.onFlush())
+            .build()
+        val captor = forClass(ComponentCallbacks2::class.java)
+        verify(context).registerComponentCallbacks(captor.capture())
+
+        captor.value.onTrimMemory(TRIM_MEMORY_RUNNING_LOW)
+
+        verify(payloadQueue, timeout(1000)).commit()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun highPriorityPayloadsAreUploadedRightAway() {
+        val bodies = ArrayList<ByteArrayOutputStream>()
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val body = ByteArrayOutputStream()
+            bodies.add(body)
+            mockConnection(body = body)
+        }
+        val payloadQueue = PersistentQueue(queueFile)
+        val expressQueue = PayloadQueue.MemoryQueue()
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .expressQueue(expressQueue)
+                .build()
+
+        segmentIntegration.performEnqueue(Builder().event("Viewed").userId("userId").build())
+        for (event in listOf("Order Completed", "Refunded")) {
+            segmentIntegration.performEnqueue(
+                Builder().event(event).userId("userId")
+                    .priority(BasePayload.Priority.HIGH)
+                    .build()
+            )
+        }
+
+        assertThat(bodies).hasSize(2)
+        val events = bodies.map {
+            val batch = Cartographer.INSTANCE.fromJson(it.toString("UTF-8"))["batch"] as List<*>
+            batch.map { payload -> (payload as Map<*, *>)["event"] }
+        }
+        assertThat(events).containsExactly(listOf("Order Completed"), listOf("Refunded"))
+        assertThat(expressQueue.size()).isEqualTo(0)
+        assertThat(payloadQueue.size()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun failedExpressUploadKeepsPayloadsAndBacksOff() {
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenThrow(IOException("offline"))
+        val payloadQueue = PersistentQueue(queueFile)
+        val expressQueue = PayloadQueue.MemoryQueue()
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .expressQueue(expressQueue)
+                .build()
+        val payload = Builder().event("Order Completed").userId("userId")
+            .priority(BasePayload.Priority.HIGH)
+            .build()
+
+        segmentIntegration.performEnqueue(payload)
+        verify(client).upload(DEFAULT_API_HOST)
+
+        // Still backing off, so the next one waits along with the first.
+        segmentIntegration.performEnqueue(payload)
+        verify(client).upload(DEFAULT_API_HOST)
+        assertThat(expressQueue.size()).isEqualTo(2)
+        assertThat(payloadQueue.size()).isEqualTo(0)
+        // The regular queue doesn't back off because of it.
+        assertThat(segmentIntegration.flushScheduler.snapshot().consecutiveFailures).isEqualTo(0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun sharedQueueIsUploadedByOneProcessAtATime() {
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(mockConnection())
+        val file = File(folder.root, "shared-queue")
+        val payloadQueue = SharedQueue(file, 0)
+        // Stands in for another process, which is uploading right now.
+        val otherProcess = SharedQueue(file, 0)
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .build()
+        otherProcess.add(TRACK_PAYLOAD_JSON.toByteArray())
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        assertThat(otherProcess.claimUploads()).isTrue()
+
+        segmentIntegration.submitFlush()
+        verify(client, never()).upload(DEFAULT_API_HOST)
+        assertThat(payloadQueue.size()).isEqualTo(2)
+
+        otherProcess.releaseUploads()
+        segmentIntegration.submitFlush()
+        verify(client).upload(DEFAULT_API_HOST)
+        // Released once the upload is done, and claiming picks up the removals.
+        assertThat(otherProcess.claimUploads()).isTrue()
+        assertThat(otherProcess.size()).isEqualTo(0)
+        otherProcess.close()
+        payloadQueue.close()
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun uploadDoesNotBlockAdditions() {
+        val payloadQueue = PersistentQueue(queueFile)
+        // More than fits in the writer's buffer, so the body is written while the queue is read.
+        for (i in 0 until 100) {
+            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        }
+        val blocked = AtomicInteger(-1)
+        val body = object : OutputStream() {
+            override fun write(b: Int) {
+                write(byteArrayOf(b.toByte()), 0, 1)
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                if (blocked.get() == -1) {
+                    // Stands in for a slow network, the queue must stay free to add to.
+                    val thread = Thread { payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray()) }
+                    thread.start()
+                    thread.join(TimeUnit.SECONDS.toMillis(5))
+                    blocked.set(if (thread.isAlive) 1 else 0)
+                }
+            }
+        }
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST))
+            .thenReturn(
+                mockConnection(body = body))
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .build()
+
+        segmentIntegration.submitFlush()
+
+        assertThat(blocked.get()).isZero()
+        // The payload added during the upload went out in the next batch.
+        verify(client, times(2)).upload(DEFAULT_API_HOST)
+        assertThat(queueFile.size()).isZero()
+    }
+
     @Test
     @Throws(IOException::class)
     fun flushSubmitsToExecutor() {
@@ -296,141 +927,566 @@ class SegmentIntegrationTest {
 
         segmentIntegration.submitFlush()
 
-        verify(client, never()).upload(DEFAULT_API_HOST)
+        verify(client, never()).upload(DEFAULT_API_HOST)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun flushWhenQueueSizeIsLessThanOneSkipsUpload() {
+        val payloadQueue = mock(PayloadQueue::class.java)
+        whenever(payloadQueue.size()).thenReturn(0)
+        val context: Context = mockApplication()
+        whenever(context.checkCallingOrSelfPermission(ACCESS_NETWORK_STATE))
+            .thenReturn(PERMISSION_DENIED)
+        val client = mock(Client::class.java)
+        val segmentIntegration = SegmentBuilder()
+            .payloadQueue(payloadQueue)
+            .context(context)
+            .client(client)
+            .build()
+        // Connectivity is read once when created, and then only when it changes.
+        clearInvocations(context)
+
+        segmentIntegration.submitFlush()
+
+        verifyZeroInteractions(context)
+        verify(client, never()).upload(DEFAULT_API_HOST)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun flushDisconnectsConnection() {
+        val client = mock(Client::class.java)
+        val payloadQueue = PersistentQueue(queueFile)
+        queueFile.add(TRACK_PAYLOAD_JSON.toByteArray())
+        val urlConnection = mock(HttpURLConnection::class.java)
+        val connection = mockConnection(urlConnection)
+        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(connection)
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .build()
+
+        segmentIntegration.submitFlush()
+
+        verify(urlConnection, times(2)).disconnect()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun removesRejectedPayloads() {
+        // todo: rewrite using mockwebserver.
+        val client = mock(Client::class.java)
+        val payloadQueue = PersistentQueue(queueFile)
+        whenever(client.upload(DEFAULT_API_HOST))
+            .thenReturn(
+                object : Client.Connection(
+                    mock(HttpURLConnection::class.java), mock(InputStream::class.java), mock(OutputStream::class.java)
+                ) {
+                    @Throws(IOException::class)
+                    override fun close() {
+                        throw Client.HTTPException(400, "Bad Request", "bad request")
+                    }
+                })
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .payloadQueue(payloadQueue)
+                .build()
+        for (i in 0..3) {
+            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        }
+
+        segmentIntegration.submitFlush()
+
+        assertThat(queueFile.size()).isEqualTo(0)
+        verify(client).upload(DEFAULT_API_HOST)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun ignoresServerError() {
+        // todo: rewrite using mockwebserver.
+        val payloadQueue: PayloadQueue = PersistentQueue(queueFile)
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST))
+            .thenReturn(
+                object : Client.Connection(
+                    mock(HttpURLConnection::class.java), mock(InputStream::class.java), mock(OutputStream::class.java)
+                ) {
+                    @Throws(IOException::class)
+                    override fun close() {
+                        throw Client.HTTPException(
+                            500, "Internal Server Error", "internal server error"
+                        )
+                    }
+                })
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .build()
+        for (i in 0..3) {
+            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        }
+        segmentIntegration.submitFlush()
+        assertThat(queueFile.size()).isEqualTo(4)
+        verify(client).upload(DEFAULT_API_HOST)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun serverErrorBacksOffEnqueueTriggeredFlushes() {
+        val payloadQueue = PersistentQueue(queueFile)
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenThrow(IOException("offline"))
+        val segmentIntegration =
+            SegmentBuilder()
+                .client(client)
+                .flushSize(2)
+                .payloadQueue(payloadQueue)
+                .build()
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        verify(client).upload(DEFAULT_API_HOST)
+
+        // Still backing off, so filling the queue again must not retry right away.
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        verify(client).upload(DEFAULT_API_HOST)
+        assertThat(segmentIntegration.flushScheduler.snapshot().consecutiveFailures).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun ignoresHTTP429Error() {
+        // todo: rewrite using mockwebserver.
+        val payloadQueue: PayloadQueue = PersistentQueue(queueFile)
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST))
+            .thenReturn(
+                object : Client.Connection(
+                    mock(
+                        HttpURLConnection::class.java
+                    ),
+                    mock(InputStream::class.java),
+                    mock(OutputStream::class.java)
+                ) {
+                    @Throws(IOException::class)
+                    override fun close() {
+                        throw Client.HTTPException(429, "Too Many Requests", "too many requests")
+                    }
+                })
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .build()
+        for (i in 0..3) {
+            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        }
+        segmentIntegration.submitFlush()
+
+        // Verify that messages were not removed from the queue when server returned a 429.
+        assertThat(queueFile.size()).isEqualTo(4)
+        verify(client).upload(DEFAULT_API_HOST)
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun flushKeepsMultipleBatchesInFlight() {
+        val payloadQueue = PersistentQueue(queueFile)
+        val client = mock(Client::class.java)
+        val uploading = CountDownLatch(MAX_IN_FLIGHT_BATCHES)
+        val acknowledge = CountDownLatch(1)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            mockConnection(
+                beforeClose = {
+                    uploading.countDown()
+                    acknowledge.await()
+                }
+            )
+        }
+        val executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT_BATCHES)
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .networkExecutor(executor)
+            .build()
+        // Three batches worth of payloads.
+        for (i in 0 until 700) {
+            payloadQueue.add(largePayload(i))
+        }
+
+        segmentIntegration.submitFlush()
+
+        // Both batches are uploaded before the first is acknowledged.
+        assertThat(uploading.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(queueFile.size()).isEqualTo(700)
+        acknowledge.countDown()
+        awaitQueueSize(0)
+        executor.shutdown()
+        verify(client, times(3)).upload(DEFAULT_API_HOST)
     }
 
     @Test
-    @Throws(IOException::class)
-    fun flushWhenQueueSizeIsLessThanOneSkipsUpload() {
-        val payloadQueue = mock(PayloadQueue::class.java)
-        whenever(payloadQueue.size()).thenReturn(0)
-        val context: Context = mockApplication()
+    @Throws(Exception::class)
+    fun nextBatchIsReservedWhileBatchIsWritten() {
+        val payloadQueue = PersistentQueue(queueFile)
         val client = mock(Client::class.java)
+        val secondOpened = CountDownLatch(1)
+        val overlapped = AtomicBoolean()
+        val uploads = AtomicInteger()
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            if (uploads.getAndIncrement() == 0) {
+                mockConnection(body = object : OutputStream() {
+                    override fun write(b: Int) {
+                        if (secondOpened.count > 0) {
+                            overlapped.set(secondOpened.await(5, TimeUnit.SECONDS))
+                        }
+                    }
+                })
+            } else {
+                secondOpened.countDown()
+                mockConnection()
+            }
+        }
+        val executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT_BATCHES)
         val segmentIntegration = SegmentBuilder()
-            .payloadQueue(payloadQueue)
-            .context(context)
             .client(client)
+            .payloadQueue(payloadQueue)
+            .networkExecutor(executor)
             .build()
+        for (i in 0 until 700) {
+            payloadQueue.add(largePayload(i))
+        }
 
         segmentIntegration.submitFlush()
 
-        verifyZeroInteractions(context)
-        verify(client, never()).upload(DEFAULT_API_HOST)
+        // The first body isn't written until the second batch connects.
+        awaitQueueSize(0)
+        executor.shutdown()
+        assertThat(overlapped.get()).isTrue()
     }
 
     @Test
-    @Throws(IOException::class)
-    fun flushDisconnectsConnection() {
+    @Throws(Exception::class)
+    fun payloadsThatDidNotFitWaitBehindTheNextBatch() {
+        val bodies = Collections.synchronizedList(ArrayList<ByteArrayOutputStream>())
         val client = mock(Client::class.java)
+        val secondOpened = CountDownLatch(1)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val body = if (bodies.isEmpty()) {
+                object : ByteArrayOutputStream() {
+                    override fun write(b: ByteArray, off: Int, len: Int) {
+                        // The next batch is reserved before this one finds out how much fits.
+                        secondOpened.await(5, TimeUnit.SECONDS)
+                        super.write(b, off, len)
+                    }
+                }
+            } else {
+                secondOpened.countDown()
+                ByteArrayOutputStream()
+            }
+            bodies.add(body)
+            mockConnection(body = body)
+        }
+        val executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT_BATCHES)
         val payloadQueue = PersistentQueue(queueFile)
-        queueFile.add(TRACK_PAYLOAD_JSON.toByteArray())
-        val urlConnection = mock(HttpURLConnection::class.java)
-        val connection = mockConnection(urlConnection)
-        whenever(client.upload(DEFAULT_API_HOST)).thenReturn(connection)
         val segmentIntegration =
             SegmentBuilder()
                 .client(client)
                 .payloadQueue(payloadQueue)
+                .contextStore(ContextStore(File(folder.root, "contexts"), Crypto.none()))
+                .networkExecutor(executor)
+                .flushSize(1000)
                 .build()
+        // Each payload is stored in about 9KB, and uploaded in about 29KB.
+        val context = mapOf("description" to "x".repeat(20000))
+        val properties = mapOf("padding" to "y".repeat(9000))
+        for (i in 0 until 120) {
+            segmentIntegration.performEnqueue(
+                Builder().event("event $i").userId("userId").context(context)
+                    .properties(properties).build()
+            )
+        }
 
         segmentIntegration.submitFlush()
 
-        verify(urlConnection, times(2)).disconnect()
+        awaitQueueSize(0)
+        executor.shutdown()
+        val uploaded = ArrayList<Int>()
+        for (body in bodies) {
+            assertThat(body.size()).isLessThan(SegmentIntegration.MAX_BATCH_SIZE)
+            val batch = Cartographer.INSTANCE.fromJson(body.toString("UTF-8"))["batch"] as List<*>
+            batch.mapTo(uploaded) {
+                ((it as Map<*, *>)["event"] as String).removePrefix("event ").toInt()
+            }
+        }
+        assertThat(uploaded.sorted()).containsExactlyElementsOf(0 until 120)
     }
 
     @Test
-    @Throws(IOException::class)
-    fun removesRejectedPayloads() {
-        // todo: rewrite using mockwebserver.
-        val client = mock(Client::class.java)
+    @Throws(Exception::class)
+    fun failedBatchKeepsLaterBatchesInQueue() {
         val payloadQueue = PersistentQueue(queueFile)
-        whenever(client.upload(DEFAULT_API_HOST))
-            .thenReturn(
-                object : Client.Connection(
-                    mock(HttpURLConnection::class.java), mock(InputStream::class.java), mock(OutputStream::class.java)
-                ) {
-                    @Throws(IOException::class)
-                    override fun close() {
-                        throw Client.HTTPException(400, "Bad Request", "bad request")
+        val client = mock(Client::class.java)
+        val uploads = AtomicInteger()
+        val secondAcknowledged = CountDownLatch(1)
+        val firstFailed = CountDownLatch(1)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val upload = uploads.getAndIncrement()
+            mockConnection(
+                afterClose = {
+                    if (upload == 0) {
+                        // Fail the first batch after the second has been acknowledged.
+                        secondAcknowledged.await()
+                        firstFailed.countDown()
+                        throw Client.HTTPException(500, "Internal Server Error", "internal server error")
+                    } else if (upload == 1) {
+                        secondAcknowledged.countDown()
                     }
-                })
-        val segmentIntegration =
-            SegmentBuilder()
-                .client(client)
-                .payloadQueue(payloadQueue)
-                .build()
-        for (i in 0..3) {
-            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+                }
+            )
+        }
+        val executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT_BATCHES)
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .networkExecutor(executor)
+            .build()
+        for (i in 0 until 500) {
+            payloadQueue.add(largePayload(i))
         }
 
         segmentIntegration.submitFlush()
-
-        assertThat(queueFile.size()).isEqualTo(0)
-        verify(client).upload(DEFAULT_API_HOST)
+        assertThat(firstFailed.await(5, TimeUnit.SECONDS)).isTrue()
+        executor.shutdown()
+        assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue()
+
+        // Only the head of the queue can be removed, so the second batch is kept to be retried.
+        assertThat(uploads.get()).isEqualTo(2)
+        assertThat(queueFile.size()).isEqualTo(500)
+        val first = ArrayList<String>()
+        payloadQueue.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    input.read(data, 0, length)
+                    first.add(String(data, UTF_8))
+                    return false
+                }
+            })
+        assertThat(first).containsExactly(String(largePayload(0), UTF_8))
     }
 
     @Test
     @Throws(IOException::class)
-    fun ignoresServerError() {
-        // todo: rewrite using mockwebserver.
-        val payloadQueue: PayloadQueue = PersistentQueue(queueFile)
-        val client = mock(Client::class.java)
-        whenever(client.upload(DEFAULT_API_HOST))
-            .thenReturn(
-                object : Client.Connection(
-                    mock(HttpURLConnection::class.java), mock(InputStream::class.java), mock(OutputStream::class.java)
-                ) {
-                    @Throws(IOException::class)
-                    override fun close() {
-                        throw Client.HTTPException(
-                            500, "Internal Server Error", "internal server error"
-                        )
-                    }
-                })
+    fun retryUploadsCachedBatch() {
+        val payloadQueue = PersistentQueue(queueFile)
+        val decrypted = AtomicInteger()
+        val bodies = ArrayList<ByteArrayOutputStream>()
+        val client = failingOnceClient(bodies)
+        val crypto = countingCrypto(decrypted)
         val segmentIntegration = SegmentBuilder()
             .client(client)
             .payloadQueue(payloadQueue)
+            .crypto(crypto)
+            .batchCache(BatchCache(File(folder.root, "queue-file-batch"), crypto))
             .build()
-        for (i in 0..3) {
-            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        for (i in 0 until 4) {
+            payloadQueue.add(largePayload(i))
         }
+
         segmentIntegration.submitFlush()
         assertThat(queueFile.size()).isEqualTo(4)
-        verify(client).upload(DEFAULT_API_HOST)
+        assertThat(decrypted.get()).isEqualTo(4)
+
+        segmentIntegration.submitFlush()
+        assertThat(queueFile.size()).isEqualTo(0)
+        // Only the cached body is read, along with the first and last payloads to check that it is
+        // still current.
+        assertThat(decrypted.get()).isEqualTo(7)
+        val failed = gunzipJson(bodies[0])
+        val retried = gunzipJson(bodies[1])
+        assertThat(retried["batch"]).isEqualTo(failed["batch"])
+        assertThat(retried.keys).containsExactly("batch", "sentAt", "writeKey")
+        assertThat(File(folder.root, "queue-file-batch")).doesNotExist()
     }
 
     @Test
     @Throws(IOException::class)
-    fun ignoresHTTP429Error() {
-        // todo: rewrite using mockwebserver.
-        val payloadQueue: PayloadQueue = PersistentQueue(queueFile)
+    fun retryIgnoresCachedBatchIfQueueChanged() {
+        val payloadQueue = PersistentQueue(queueFile)
+        val decrypted = AtomicInteger()
+        val bodies = ArrayList<ByteArrayOutputStream>()
+        val client = failingOnceClient(bodies)
+        val crypto = countingCrypto(decrypted)
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .crypto(crypto)
+            .batchCache(BatchCache(File(folder.root, "queue-file-batch"), crypto))
+            .build()
+        for (i in 0 until 4) {
+            payloadQueue.add(largePayload(i))
+        }
+
+        segmentIntegration.submitFlush()
+        payloadQueue.remove(1)
+        segmentIntegration.submitFlush()
+
+        assertThat(queueFile.size()).isEqualTo(0)
+        val retried = gunzipJson(bodies[1])["batch"] as List<*>
+        assertThat(retried).hasSize(3)
+        assertThat((retried[0] as Map<*, *>)["index"]).isEqualTo(1.0)
+    }
+
+    /** A client whose first upload fails with a server error, and whose bodies are gzipped. */
+    private fun failingOnceClient(bodies: MutableList<ByteArrayOutputStream>): Client {
         val client = mock(Client::class.java)
-        whenever(client.upload(DEFAULT_API_HOST))
-            .thenReturn(
-                object : Client.Connection(
-                    mock(
-                        HttpURLConnection::class.java
-                    ),
-                    mock(InputStream::class.java),
-                    mock(OutputStream::class.java)
-                ) {
-                    @Throws(IOException::class)
-                    override fun close() {
-                        throw Client.HTTPException(429, "Too Many Requests", "too many requests")
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            val body = ByteArrayOutputStream()
+            bodies.add(body)
+            val upload = bodies.size
+            mockConnection(
+                body = BatchOutputStream(body, true),
+                afterClose = {
+                    if (upload == 1) {
+                        throw Client.HTTPException(500, "Internal Server Error", "internal server error")
                     }
-                })
+                }
+            )
+        }
+        return client
+    }
+
+    private fun countingCrypto(decrypted: AtomicInteger): Crypto {
+        return object : Crypto() {
+            override fun decrypt(`is`: InputStream): InputStream {
+                decrypted.incrementAndGet()
+                return `is`
+            }
+
+            override fun encrypt(os: OutputStream): OutputStream = os
+        }
+    }
+
+    private fun gunzipJson(body: ByteArrayOutputStream): Map<String, Any> {
+        val input = GZIPInputStream(ByteArrayInputStream(body.toByteArray()))
+        return Cartographer.INSTANCE.fromJson(InputStreamReader(input, UTF_8))
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun fullQueueEvictsWithoutWaitingForUploads() {
+        val payloadQueue = PersistentQueue(queueFile)
+        val stats = Stats()
+        val uploading = CountDownLatch(1)
+        val acknowledge = CountDownLatch(1)
+        val client = blockingClient(uploading, acknowledge, fail = false)
+        val executor = Executors.newSingleThreadExecutor()
         val segmentIntegration = SegmentBuilder()
             .client(client)
             .payloadQueue(payloadQueue)
+            .networkExecutor(executor)
+            .stats(stats)
             .build()
-        for (i in 0..3) {
-            payloadQueue.add(TRACK_PAYLOAD_JSON.toByteArray())
+        for (i in 0 until MAX_QUEUE_SIZE) {
+            payloadQueue.add(largePayload(i))
         }
         segmentIntegration.submitFlush()
+        assertThat(uploading.await(5, TimeUnit.SECONDS)).isTrue()
 
-        // Verify that messages were not removed from the queue when server returned a 429.
-        assertThat(queueFile.size()).isEqualTo(4)
-        verify(client).upload(DEFAULT_API_HOST)
+        // The oldest payloads are reserved by the upload, so they're only marked as evicted.
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        assertThat(queueFile.size()).isEqualTo(MAX_QUEUE_SIZE + 2)
+
+        acknowledge.countDown()
+        awaitQueueSize(0)
+        executor.shutdown()
+        // They were uploaded anyway, so nothing was lost.
+        assertThat(stats.createSnapshot().evictedEventCount).isZero()
+    }
+
+    @Test
+    @Throws(Exception::class)
+    fun fullQueueRemovesEvictedPayloadsWhenUploadFails() {
+        val payloadQueue = PersistentQueue(queueFile)
+        val stats = Stats()
+        val uploading = CountDownLatch(1)
+        val acknowledge = CountDownLatch(1)
+        val client = blockingClient(uploading, acknowledge, fail = true)
+        val executor = Executors.newSingleThreadExecutor()
+        val segmentIntegration = SegmentBuilder()
+            .client(client)
+            .payloadQueue(payloadQueue)
+            .networkExecutor(executor)
+            .stats(stats)
+            .build()
+        for (i in 0 until MAX_QUEUE_SIZE) {
+            payloadQueue.add(largePayload(i))
+        }
+        segmentIntegration.submitFlush()
+        assertThat(uploading.await(5, TimeUnit.SECONDS)).isTrue()
+
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        segmentIntegration.performEnqueue(TRACK_PAYLOAD)
+        assertThat(queueFile.size()).isEqualTo(MAX_QUEUE_SIZE + 2)
+
+        acknowledge.countDown()
+        awaitQueueSize(MAX_QUEUE_SIZE)
+        executor.shutdown()
+        assertThat(stats.createSnapshot().evictedEventCount).isEqualTo(2)
+        val remaining = ArrayList<String>()
+        payloadQueue.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    input.read(data)
+                    remaining.add(String(data, UTF_8))
+                    return remaining.size < 1
+                }
+            })
+        // The two oldest payloads are gone.
+        assertThat(remaining[0]).startsWith("{\"index\":2,")
+    }
+
+    /** A client whose uploads wait for {@code acknowledge}, and then succeed or fail. */
+    private fun blockingClient(
+        uploading: CountDownLatch,
+        acknowledge: CountDownLatch,
+        fail: Boolean
+    ): Client {
+        val client = mock(Client::class.java)
+        whenever(client.upload(DEFAULT_API_HOST)).thenAnswer {
+            mockConnection(
+                beforeClose = {
+                    uploading.countDown()
+                    acknowledge.await()
+                },
+                afterClose = {
+                    if (fail) {
+                        throw IOException("offline")
+                    }
+                }
+            )
+        }
+        return client
+    }
+
+    /** A ~1.4KB payload, so that a batch holds a few hundred of them. */
+    private fun largePayload(i: Int): ByteArray {
+        val padding = "x".repeat(1400)
+        return "{\"index\":$i,\"padding\":\"$padding\"}".toByteArray(UTF_8)
+    }
+
+    private fun awaitQueueSize(size: Int) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (queueFile.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assertThat(queueFile.size()).isEqualTo(size)
     }
 
     @Test
@@ -464,6 +1520,206 @@ class SegmentIntegrationTest {
         verify(payloadQueue, never()).add(any<Any>() as ByteArray?)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun createSegmentedQueueMovesLegacyEvents() {
+        val legacy = QueueFile(File(folder.root, "tag"))
+        for (i in 0 until 5) {
+            legacy.add("event $i".toByteArray())
+        }
+        legacy.remove(2)
+        legacy.close()
+
+        val queue = SegmentIntegration.createSegmentedQueue(folder.root, "tag", true, Stats())
+
+        assertThat(File(folder.root, "tag").exists()).isFalse()
+        val seen = ArrayList<String>()
+        queue.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    seen.add(String(input.readBytes()))
+                    return true
+                }
+            })
+        assertThat(seen).containsExactly("event 2", "event 3", "event 4")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun createSegmentedQueueKeepsLegacyEventsThatCouldNotBeMoved() {
+        val file = File(folder.root, "tag")
+        val legacy = QueueFile(file)
+        for (i in 0 until 5) {
+            legacy.add("event $i".toByteArray())
+        }
+        legacy.close()
+        // The disk fills up after two events.
+        val full = object : PayloadQueue.MemoryQueue() {
+            override fun add(data: ByteArray) {
+                if (size() == 2) {
+                    throw IOException("No space left on device")
+                }
+                super.add(data)
+            }
+        }
+
+        try {
+            SegmentIntegration.moveLegacyEvents(file, full)
+            fail("Expected an IOException")
+        } catch (expected: IOException) {
+        }
+
+        assertThat(full.size()).isEqualTo(2)
+        val remaining = QueueFile(file)
+        assertThat(remaining.size()).isEqualTo(3)
+        remaining.close()
+
+        // The rest is moved the next time the queue opens.
+        val queue = SegmentIntegration.createSegmentedQueue(folder.root, "tag", true, Stats())
+        assertThat(file.exists()).isFalse()
+        assertThat(queue.size()).isEqualTo(3)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun createSegmentedQueueRecoversCorruptLegacyFile() {
+        val header = RecordHeader()
+        val payload = TRACK_PAYLOAD_JSON.toByteArray()
+        val element = ByteArray(RecordHeader.LENGTH + payload.size)
+        payload.copyInto(element, RecordHeader.LENGTH)
+        header.set(TRACK_PAYLOAD, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0)
+        header.checksum = header.checksum(element, RecordHeader.LENGTH, payload.size)
+        header.writeTo(element, 0)
+        val legacy = QueueFile(File(folder.root, "tag"))
+        legacy.add(element)
+        legacy.add(element)
+        legacy.raf.seek(12)
+        legacy.raf.writeInt(-1)
+        legacy.close()
+        val stats = Stats()
+
+        val queue = SegmentIntegration.createSegmentedQueue(folder.root, "tag", true, stats)
+
+        assertThat(File(folder.root, "tag").exists()).isFalse()
+        assertThat(queue.size()).isEqualTo(2)
+        assertThat(stats.recoveredEventCount.sum()).isEqualTo(2)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun createClosesTheQueueIfTheExpressQueueCannotBeOpened() {
+        val context = mockApplication()
+        whenever(context.checkCallingOrSelfPermission(ACCESS_NETWORK_STATE))
+            .thenReturn(PERMISSION_DENIED)
+        whenever(context.getDir("segment-disk-queue", Context.MODE_PRIVATE)).thenReturn(folder.root)
+        whenever(context.packageName).thenReturn("com.example")
+        var expressName = "tag-express"
+        val processName = SegmentIntegration.processName(context)
+        if (processName != "com.example") {
+            expressName += "-$processName"
+        }
+        // A directory with something in it can't be opened, recovered or replaced.
+        val blocker = File(folder.root, expressName)
+        assertThat(blocker.mkdir()).isTrue()
+        assertThat(File(blocker, "file").createNewFile()).isTrue()
+
+        val segmentIntegration =
+            SegmentIntegration.create(
+                context,
+                mock(Client::class.java),
+                Cartographer.INSTANCE,
+                SynchronousExecutor(),
+                Stats(),
+                emptyMap(),
+                "tag",
+                DEFAULT_FLUSH_INTERVAL.toLong(),
+                DEFAULT_FLUSH_QUEUE_SIZE,
+                with(Analytics.LogLevel.NONE),
+                Crypto.none(),
+                QueueOptions(
+                    QueueDurability.everyWrite(),
+                    EvictionPolicy.oldestFirst(),
+                    QueueFormat.SHARED,
+                    false,
+                    false
+                ),
+                ValueMap())
+
+        assertThat(SharedQueue.MONITORS).doesNotContainKey(File(folder.root, "tag").canonicalPath)
+        segmentIntegration.shutdown()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun createQueueFileRecoversIntactPayloadsOfCorruptFile() {
+        val header = RecordHeader()
+        val payload = TRACK_PAYLOAD_JSON.toByteArray()
+        val element = ByteArray(RecordHeader.LENGTH + payload.size)
+        payload.copyInto(element, RecordHeader.LENGTH)
+        header.set(TRACK_PAYLOAD, 1L, RecordHeader.PRIORITY_NORMAL, 0, 0)
+        header.checksum = header.checksum(element, RecordHeader.LENGTH, payload.size)
+        header.writeTo(element, 0)
+        val queueFile = QueueFile(File(folder.root, "tag"))
+        queueFile.add(element)
+        queueFile.add(element)
+        // A payload torn by a crash, and a header that is off.
+        element[element.size - 1] = 0
+        queueFile.add(element)
+        queueFile.raf.seek(12)
+        queueFile.raf.writeInt(-1)
+        queueFile.close()
+        val stats = Stats()
+
+        val recovered = SegmentIntegration.createQueueFile(folder.root, "tag", stats)
+
+        assertThat(recovered.size()).isEqualTo(2)
+        assertThat(stats.recoveredEventCount.sum()).isEqualTo(2)
+        assertThat(stats.lostEventCount.sum()).isEqualTo(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun createQueueFileKeepsEncryptedLegacyPayloadsOfCorruptFile() {
+        // Encrypted before payloads had headers, so nothing in them can be checked.
+        val ciphertext = byteArrayOf(0x13, 0x37, 0, -1, 42)
+        val queueFile = QueueFile(File(folder.root, "tag"))
+        queueFile.add(ciphertext)
+        queueFile.add(ciphertext)
+        queueFile.raf.seek(12)
+        queueFile.raf.writeInt(-1)
+        queueFile.close()
+        val stats = Stats()
+
+        val recovered = SegmentIntegration.createQueueFile(folder.root, "tag", stats)
+
+        assertThat(recovered.size()).isEqualTo(2)
+        assertThat(recovered.peek()).isEqualTo(ciphertext)
+        assertThat(stats.lostEventCount.sum()).isEqualTo(0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun createSharedQueueOnlyRepairsFileWhileHoldingItsLock() {
+        val file = File(folder.root, "tag")
+        val corrupt = ByteArray(32) { -1 }
+        file.writeBytes(corrupt)
+        // The lock is held, and can't be taken.
+        val lockFile = RandomAccessFile(file.canonicalPath + ".lock", "rw")
+        val lock = lockFile.channel.lock()
+
+        try {
+            SegmentIntegration.createSharedQueue(folder.root, "tag", 0, Stats())
+            fail("Expected an IOException")
+        } catch (expected: IOException) {
+        } finally {
+            lock.release()
+            lockFile.close()
+        }
+
+        assertThat(file.readBytes()).isEqualTo(corrupt)
+        assertThat(SharedQueue.MONITORS).doesNotContainKey(file.canonicalPath)
+    }
+
     @Test
     @Throws(IOException::class)
     fun shutDown() {
@@ -549,6 +1805,25 @@ class SegmentIntegrationTest {
         assertThat(payloadWriter.payloadCount).isEqualTo(331)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun payloadWriterRangeEndsAtLastPayloadThatFit() {
+        val payloadWriter = PayloadWriter(mock(BatchPayloadWriter::class.java), Crypto.none())
+        payloadWriter.trackRange()
+        val payloads = (0 until 500).map { i ->
+            """{"index":$i,"padding":"${"x".repeat(1400)}"}""".toByteArray()
+        }
+        payloads.forEach { queueFile.add(it) }
+
+        queueFile.forEach(payloadWriter)
+
+        // The payload that didn't fit was read last, but isn't part of the range.
+        val expected = BatchCache.RangeBuilder()
+        payloads.take(payloadWriter.payloadCount).forEach { expected.add(it, it.size, it.size) }
+        assertThat(payloadWriter.payloadCount).isLessThan(500)
+        assertThat(payloadWriter.range()).isEqualTo(expected.build())
+    }
+
     internal class SegmentBuilder() {
         var client: Client? = null
         var stats: Stats? = null
@@ -560,6 +1835,15 @@ class SegmentIntegrationTest {
         var flushSize = DEFAULT_FLUSH_QUEUE_SIZE
         var logger = with(Analytics.LogLevel.NONE)
         var networkExecutor: ExecutorService? = null
+        var crypto = Crypto.none()
+        var batchCache: BatchCache? = null
+        var contextStore: ContextStore? = null
+        var binaryEncoder: BinaryJson? = null
+        var payloadDeflater: PayloadDeflater? = null
+        var queueDurability = QueueDurability.everyWrite()
+        var evictionPolicy = EvictionPolicy.oldestFirst()
+        var expressQueue: PayloadQueue = PayloadQueue.MemoryQueue()
+        var expressExecutor: ExecutorService = SynchronousExecutor()
 
         fun SegmentBuilder() {
             initMocks(this)
@@ -619,6 +1903,51 @@ class SegmentIntegrationTest {
             return this
         }
 
+        fun crypto(crypto: Crypto): SegmentBuilder {
+            this.crypto = crypto
+            return this
+        }
+
+        fun batchCache(batchCache: BatchCache): SegmentBuilder {
+            this.batchCache = batchCache
+            return this
+        }
+
+        fun contextStore(contextStore: ContextStore): SegmentBuilder {
+            this.contextStore = contextStore
+            return this
+        }
+
+        fun binaryEncoder(binaryEncoder: BinaryJson): SegmentBuilder {
+            this.binaryEncoder = binaryEncoder
+            return this
+        }
+
+        fun payloadDeflater(payloadDeflater: PayloadDeflater): SegmentBuilder {
+            this.payloadDeflater = payloadDeflater
+            return this
+        }
+
+        fun queueDurability(queueDurability: QueueDurability): SegmentBuilder {
+            this.queueDurability = queueDurability
+            return this
+        }
+
+        fun evictionPolicy(evictionPolicy: EvictionPolicy): SegmentBuilder {
+            this.evictionPolicy = evictionPolicy
+            return this
+        }
+
+        fun expressQueue(expressQueue: PayloadQueue): SegmentBuilder {
+            this.expressQueue = expressQueue
+            return this
+        }
+
+        fun expressExecutor(expressExecutor: ExecutorService): SegmentBuilder {
+            this.expressExecutor = expressExecutor
+            return this
+        }
+
         fun build(): SegmentIntegration {
             if (context == null) {
                 context = mockApplication()
@@ -654,8 +1983,16 @@ class SegmentIntegrationTest {
                 flushInterval.toLong(),
                 flushSize,
                 logger,
-                Crypto.none(),
-                DEFAULT_API_HOST
+                crypto,
+                DEFAULT_API_HOST,
+                queueDurability,
+                evictionPolicy,
+                batchCache,
+                contextStore,
+                binaryEncoder,
+                payloadDeflater,
+                expressQueue,
+                expressExecutor
             )
         }
     }
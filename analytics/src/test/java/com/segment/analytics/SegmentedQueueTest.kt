@@ -0,0 +1,205 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.util.ArrayList
+import java.util.LinkedList
+import java.util.Random
+import kotlin.jvm.Throws
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class SegmentedQueueTest {
+    @Rule @JvmField val folder = TemporaryFolder()
+    private lateinit var directory: File
+
+    @Before
+    fun setUp() {
+        directory = File(folder.root, "segments")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun addAndRemoveMatchesExpected() {
+        val queue = SegmentedQueue(directory, false, 1024)
+        val expected = LinkedList<ByteArray>()
+        val random = Random(7)
+        for (i in 0 until 500) {
+            if (expected.isEmpty() || random.nextInt(4) != 0) {
+                // Some elements are larger than a segment, and get one to themselves.
+                val element = ByteArray(1 + random.nextInt(1200)) { i.toByte() }
+                queue.add(element)
+                expected.add(element)
+            } else {
+                val n = 1 + random.nextInt((expected.size + 1) / 2)
+                queue.remove(n)
+                repeat(n) { expected.remove() }
+            }
+            assertThat(queue.size()).isEqualTo(expected.size)
+        }
+        assertThat(readAll(queue)).containsExactlyElementsOf(expected)
+
+        queue.close()
+        assertThat(readAll(SegmentedQueue(directory, false, 1024)))
+            .containsExactlyElementsOf(expected)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun deletesSegmentsOnceRemoved() {
+        val queue = SegmentedQueue(directory, true, 100)
+        for (i in 0 until 10) {
+            queue.add(ByteArray(46) { i.toByte() })
+        }
+        // Two elements per segment.
+        assertThat(queue.segmentCount()).isEqualTo(5)
+        assertThat(segmentFiles()).hasSize(5)
+
+        queue.remove(3)
+        assertThat(queue.segmentCount()).isEqualTo(4)
+        assertThat(segmentFiles()).hasSize(4)
+        assertThat(readAll(queue)[0]).isEqualTo(ByteArray(46) { 3 })
+
+        queue.remove(7)
+        assertThat(queue.size()).isEqualTo(0)
+        // The last segment is kept to append to.
+        assertThat(segmentFiles()).hasSize(1)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun reopenResumesFromHead() {
+        val queue = SegmentedQueue(directory, true, 100)
+        for (i in 0 until 10) {
+            queue.add(ByteArray(46) { i.toByte() })
+        }
+        queue.remove(5)
+        queue.close()
+
+        val reopened = SegmentedQueue(directory, true, 100)
+        assertThat(reopened.size()).isEqualTo(5)
+        assertThat(readAll(reopened)[0]).isEqualTo(ByteArray(46) { 5 })
+        reopened.add(ByteArray(46) { 10 })
+        assertThat(readAll(reopened).last()).isEqualTo(ByteArray(46) { 10 })
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun truncatesTornRecord() {
+        val queue = SegmentedQueue(directory, true, 1024)
+        queue.add(bytes("one"))
+        queue.add(bytes("two"))
+        queue.close()
+        // Simulate a crash in the middle of writing the second record.
+        val file = segmentFiles()[0]
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 1) }
+
+        val reopened = SegmentedQueue(directory, true, 1024)
+        assertThat(readAll(reopened)).containsExactly(bytes("one"))
+        reopened.add(bytes("three"))
+        reopened.close()
+        assertThat(readAll(SegmentedQueue(directory, true, 1024)))
+            .containsExactly(bytes("one"), bytes("three"))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun corruptSegmentOnlyLosesItsOwnElements() {
+        val queue = SegmentedQueue(directory, true, 100)
+        for (i in 0 until 6) {
+            queue.add(ByteArray(46) { i.toByte() })
+        }
+        queue.close()
+        // Corrupt the length of the first record in the middle segment.
+        RandomAccessFile(segmentFiles()[1], "rw").use { it.writeInt(-1) }
+
+        val reopened = SegmentedQueue(directory, true, 100)
+        assertThat(readAll(reopened).map { it[0].toInt() }).containsExactly(0, 1, 4, 5)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun corruptManifestKeepsElements() {
+        val queue = SegmentedQueue(directory, true, 100)
+        for (i in 0 until 6) {
+            queue.add(ByteArray(46) { i.toByte() })
+        }
+        queue.remove(3)
+        queue.close()
+        File(directory, "manifest").writeBytes(ByteArray(3))
+
+        // The head is lost, so the removed elements still in a segment come back.
+        val reopened = SegmentedQueue(directory, true, 100)
+        assertThat(readAll(reopened).map { it[0].toInt() }).containsExactly(2, 3, 4, 5)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun ignoresUnknownSegmentFiles() {
+        val queue = SegmentedQueue(directory, true, 100)
+        for (i in 0 until 6) {
+            queue.add(ByteArray(46) { i.toByte() })
+        }
+        queue.remove(4)
+        queue.close()
+        File(directory, "manifest").delete()
+        File(directory, "backup.seg").writeBytes(ByteArray(3))
+
+        val reopened = SegmentedQueue(directory, true, 100)
+        assertThat(readAll(reopened).map { it[0].toInt() }).containsExactly(4, 5)
+        assertThat(File(directory, "0.seg")).doesNotExist()
+    }
+
+    private fun segmentFiles(): List<File> {
+        return directory.listFiles { _, name -> name.endsWith(".seg") }!!
+            .sortedBy { it.name.removeSuffix(".seg").toLong() }
+    }
+
+    private fun bytes(s: String): ByteArray {
+        return s.toByteArray()
+    }
+
+    @Throws(IOException::class)
+    private fun readAll(queue: SegmentedQueue): List<ByteArray> {
+        val elements = ArrayList<ByteArray>()
+        queue.forEach(
+            object : PayloadQueue.ElementVisitor {
+                override fun read(input: InputStream, length: Int): Boolean {
+                    val data = ByteArray(length)
+                    assertThat(input.read(data, 0, length)).isEqualTo(length)
+                    assertThat(input.read()).isEqualTo(-1)
+                    elements.add(data)
+                    return true
+                }
+            })
+        return elements
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.segment.analytics
+
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.util.ArrayList
+import kotlin.jvm.Throws
+import okio.ByteString
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/** Each instance stands in for a different process. */
+class SharedQueueTest {
+    @Rule @JvmField val folder = TemporaryFolder()
+    private lateinit var queue: SharedQueue
+    private lateinit var other: SharedQueue
+
+    @Before
+    @Throws(IOException::class)
+    fun setUp() {
+        val file = File(folder.root, "shared-queue")
+        queue = SharedQueue(file, 0)
+        other = SharedQueue(file, 0)
+    }
+
+    @After
+    @Throws(IOException::class)
+    fun tearDown() {
+        queue.close()
+        other.close()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun additionsFromEveryInstanceAreKeptInOrder() {
+        queue.add(bytes("one"))
+        other.add(bytes("two"))
+        queue.add(bytes("three"))
+
+        assertThat(readAll(other)).containsExactly("one", "two", "three")
+        queue.remove(1)
+        assertThat(readAll(other)).containsExactly("two", "three")
+        assertThat(other.size()).isEqualTo(2)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun snapshotIsCopiedOut() {
+        queue.add(bytes("one"))
+        queue.add(bytes("two"))
+        val snapshot = queue.snapshot(1, Int.MAX_VALUE)
+
+        other.remove(2)
+        other.add(bytes("three"))
+
+        val seen = ArrayList<String>()
+        snapshot.forEach(collector(seen))
+        assertThat(seen).containsExactly("two")
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun pendingAdditionsAreCommittedAfterTheOthers() {
+        val file = File(folder.root, "group-commit")
+        val buffered = SharedQueue(file, 10)
+        val direct = SharedQueue(file, 0)
+        try {
+            buffered.add(bytes("one"))
+            direct.add(bytes("two"))
+            buffered.commit()
+
+            assertThat(readAll(direct)).containsExactly("two", "one")
+        } finally {
+            buffered.close()
+            direct.close()
+        }
+    }
+
+    @Test
+    fun onlyOneInstanceUploadsAtATime() {
+        assertThat(queue.claimUploads()).isTrue()
+        assertThat(queue.claimUploads()).isTrue()
+        assertThat(other.claimUploads()).isFalse()
+
+        queue.releaseUploads()
+        assertThat(other.claimUploads()).isTrue()
+        assertThat(queue.claimUploads()).isFalse()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun closingReleasesTheClaim() {
+        assertThat(queue.claimUploads()).isTrue()
+        queue.close()
+        assertThat(other.claimUploads()).isTrue()
+        queue = SharedQueue(File(folder.root, "shared-queue"), 0)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun sizePicksUpOtherAdditionsOnceUploadsAreClaimed() {
+        queue.add(bytes("one"))
+        other.add(bytes("two"))
+
+        // Sizes aren't reloaded from the file on every call.
+        assertThat(queue.size()).isEqualTo(1)
+        assertThat(queue.claimUploads()).isTrue()
+        assertThat(queue.size()).isEqualTo(2)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun closingTheLastInstanceDropsTheMonitor() {
+        val file = File(folder.root, "another-queue")
+        val first = SharedQueue(file, 0)
+        val second = SharedQueue(file, 0)
+
+        first.close()
+        assertThat(SharedQueue.MONITORS).containsKey(file.canonicalPath)
+        second.close()
+        assertThat(SharedQueue.MONITORS).doesNotContainKey(file.canonicalPath)
+    }
+
+    private fun bytes(s: String): ByteArray = ByteString.encodeUtf8(s).toByteArray()
+
+    private fun collector(seen: MutableList<String>): PayloadQueue.ElementVisitor {
+        return object : PayloadQueue.ElementVisitor {
+            override fun read(input: InputStream, length: Int): Boolean {
+                val data = ByteArray(length)
+                input.read(data)
+                seen.add(String(data, Charsets.UTF_8))
+                return true
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readAll(queue: PayloadQueue): List<String> {
+        val seen = ArrayList<String>()
+        queue.forEach(collector(seen))
+        return seen
+    }
+}
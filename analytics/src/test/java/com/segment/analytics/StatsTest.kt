@@ -23,12 +23,14 @@
  */
 package com.segment.analytics
 
-import android.util.Pair
 import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.MILLISECONDS
 import kotlin.jvm.Throws
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.fail
 import org.assertj.core.data.MapEntry
+import org.assertj.core.data.Offset
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -47,63 +49,66 @@ class StatsTest {
 
     @Test
     @Throws(IOException::class)
-    fun performFlush() {
-        stats.performFlush(4)
-        assertThat(stats.flushCount).isEqualTo(1)
-        assertThat(stats.flushEventCount).isEqualTo(4)
-
-        stats.performFlush(10)
-        assertThat(stats.flushCount).isEqualTo(2)
-        assertThat(stats.flushEventCount).isEqualTo(14)
+    fun recordFlush() {
+        stats.recordFlush(4)
+        assertThat(stats.flushCount.sum()).isEqualTo(1)
+        assertThat(stats.flushEventCount.sum()).isEqualTo(4)
+
+        stats.recordFlush(10)
+        assertThat(stats.flushCount.sum()).isEqualTo(2)
+        assertThat(stats.flushEventCount.sum()).isEqualTo(14)
+    }
+
+    @Test
+    fun recordEviction() {
+        stats.recordEviction(1)
+        stats.recordEviction(3)
+        assertThat(stats.evictedEventCount.sum()).isEqualTo(4)
+        assertThat(stats.createSnapshot().evictedEventCount).isEqualTo(4)
+    }
+
+    @Test
+    fun recordExpiry() {
+        stats.recordExpiry(2)
+        stats.recordExpiry(5)
+        assertThat(stats.createSnapshot().expiredEventCount).isEqualTo(7)
+    }
+
+    @Test
+    fun recordQueueRecovery() {
+        stats.recordQueueRecovery(12, 3)
+        val snapshot = stats.createSnapshot()
+        assertThat(snapshot.recoveredEventCount).isEqualTo(12)
+        assertThat(snapshot.lostEventCount).isEqualTo(3)
     }
 
     @Test
     @Throws(IOException::class)
-    fun performIntegrationOperation() {
-        stats.performIntegrationOperation(Pair("foo", 43L))
-        assertThat(stats.integrationOperationCount).isEqualTo(1)
-        assertThat(stats.integrationOperationDuration).isEqualTo(43L)
-        assertThat(stats.integrationOperationDurationByIntegration)
-            .containsExactly(MapEntry.entry("foo", 43L))
-
-        stats.performIntegrationOperation(Pair("bar", 2L))
-        assertThat(stats.integrationOperationCount).isEqualTo(2)
-        assertThat(stats.integrationOperationDuration).isEqualTo(45L)
-        assertThat(stats.integrationOperationDurationByIntegration)
-            .hasSize(2)
-            .contains(MapEntry.entry("bar", 2L))
+    fun recordIntegrationOperation() {
+        stats.recordIntegrationOperation("foo", MILLISECONDS.toNanos(43))
+        assertThat(stats.integrationOperationCount.sum()).isEqualTo(1)
+        assertThat(stats.integrationOperationDuration.sum()).isEqualTo(MILLISECONDS.toNanos(43))
+        assertThat(stats.integrationOperationLatency).containsOnlyKeys("foo")
 
-        stats.performIntegrationOperation(Pair("bar", 19L))
-        assertThat(stats.integrationOperationCount).isEqualTo(3)
-        assertThat(stats.integrationOperationDuration).isEqualTo(64L)
-        assertThat(stats.integrationOperationDurationByIntegration)
-            .hasSize(2)
-            .contains(MapEntry.entry("bar", 21L))
+        stats.recordIntegrationOperation("bar", MILLISECONDS.toNanos(2))
+        stats.recordIntegrationOperation("bar", MILLISECONDS.toNanos(19))
+        assertThat(stats.integrationOperationCount.sum()).isEqualTo(3)
+        assertThat(stats.integrationOperationDuration.sum()).isEqualTo(MILLISECONDS.toNanos(64))
+        assertThat(stats.integrationOperationLatency).containsOnlyKeys("foo", "bar")
+        assertThat(stats.integrationOperationLatency["bar"]!!.sum())
+            .isEqualTo(MILLISECONDS.toNanos(21))
     }
 
     @Test
     @Throws(IOException::class)
     fun createSnapshot() {
-        stats.performFlush(1)
-        stats.performFlush(1)
-        stats.performFlush(2)
-        stats.performFlush(3)
-        stats.performFlush(5)
-        stats.performFlush(8)
-        stats.performFlush(13)
-        stats.performFlush(21)
-
-        stats.performIntegrationOperation(Pair("foo", 1L))
-        stats.performIntegrationOperation(Pair("foo", 1L))
-        stats.performIntegrationOperation(Pair("foo", 1L))
-        stats.performIntegrationOperation(Pair("foo", 1L))
-        stats.performIntegrationOperation(Pair("foo", 1L))
-        stats.performIntegrationOperation(Pair("foo", 1L))
-
-        stats.performIntegrationOperation(Pair("bar", 2L))
-        stats.performIntegrationOperation(Pair("bar", 2L))
-        stats.performIntegrationOperation(Pair("bar", 2L))
-        stats.performIntegrationOperation(Pair("bar", 2L))
+        for (count in listOf(1, 1, 2, 3, 5, 8, 13, 21)) {
+            stats.recordFlush(count)
+        }
+        repeat(6) { stats.recordIntegrationOperation("foo", MILLISECONDS.toNanos(1)) }
+        repeat(4) { stats.recordIntegrationOperation("bar", MILLISECONDS.toNanos(2)) }
+        stats.recordEnqueue(1000)
+        stats.recordUpload(20, 512, MILLISECONDS.toNanos(80))
 
         val snapshot = stats.createSnapshot()
         assertThat(snapshot.flushCount).isEqualTo(8)
@@ -115,6 +120,16 @@ class StatsTest {
             .hasSize(2)
             .contains(MapEntry.entry("foo", 6L))
             .contains(MapEntry.entry("bar", 8L))
+        assertThat(snapshot.integrationOperationLatencyByIntegration).containsOnlyKeys("foo", "bar")
+        val foo = snapshot.integrationOperationLatencyByIntegration["foo"]!!
+        assertThat(foo.count).isEqualTo(6)
+        assertThat(foo.p50).isEqualTo(MILLISECONDS.toNanos(1))
+        assertThat(foo.max).isEqualTo(MILLISECONDS.toNanos(1))
+        assertThat(snapshot.enqueueLatency.count).isEqualTo(1)
+        assertThat(snapshot.enqueueLatency.p99).isEqualTo(1000)
+        assertThat(snapshot.batchSize.p50).isEqualTo(20)
+        assertThat(snapshot.uploadBytes.p50).isEqualTo(512)
+        assertThat(snapshot.uploadLatency.max).isEqualTo(MILLISECONDS.toNanos(80))
 
         try {
             snapshot.integrationOperationDurationByIntegration["qaz"] = 10L
@@ -135,5 +150,58 @@ class StatsTest {
         assertThat(snapshot.integrationOperationDuration).isZero()
         assertThat(snapshot.integrationOperationAverageDuration).isZero()
         assertThat(snapshot.integrationOperationDurationByIntegration).isEmpty()
+        assertThat(snapshot.integrationOperationLatencyByIntegration).isEmpty()
+        assertThat(snapshot.enqueueLatency.count).isZero()
+        assertThat(snapshot.uploadLatency.p99).isZero()
+    }
+
+    @Test
+    fun histogramPercentiles() {
+        val histogram = Histogram()
+        for (value in 1..1000L) {
+            histogram.record(value)
+        }
+        val distribution = histogram.snapshot()
+        assertThat(distribution.count).isEqualTo(1000)
+        assertThat(distribution.mean).isEqualTo(500.5, Offset.offset(0.001))
+        assertThat(distribution.p50).isBetween(500L, 563L)
+        assertThat(distribution.p95).isBetween(950L, 1000L)
+        assertThat(distribution.p99).isBetween(990L, 1000L)
+        assertThat(distribution.max).isEqualTo(1000)
+    }
+
+    @Test
+    fun histogramBucketsCoverEveryValue() {
+        var value = 0L
+        while (value >= 0) {
+            val bucket = Histogram.bucket(value)
+            assertThat(Histogram.highestValue(bucket)).isGreaterThanOrEqualTo(value)
+            if (bucket > 0) {
+                assertThat(Histogram.highestValue(bucket - 1)).isLessThan(value)
+            }
+            // Within an eighth of the value.
+            assertThat(Histogram.highestValue(bucket) - value).isLessThanOrEqualTo(value / 8)
+            value = value * 2 + 1
+        }
+        assertThat(Histogram.highestValue(Histogram.bucket(Long.MAX_VALUE)))
+            .isEqualTo(Long.MAX_VALUE)
+    }
+
+    @Test
+    fun countersAreSafeAcrossThreads() {
+        val start = CountDownLatch(1)
+        val threads = (1..4).map {
+            Thread {
+                start.await()
+                repeat(10000) { stats.recordIntegrationOperation("foo", 1) }
+            }.apply { start() }
+        }
+        start.countDown()
+        threads.forEach { it.join() }
+
+        val snapshot = stats.createSnapshot()
+        assertThat(snapshot.integrationOperationCount).isEqualTo(40000)
+        assertThat(snapshot.integrationOperationLatencyByIntegration["foo"]!!.count)
+            .isEqualTo(40000)
     }
 }
@@ -79,6 +79,20 @@ class BasePayloadTest {
         }
     }
 
+    @Test
+    fun priority() {
+        for (builder in builders) {
+            val payload = builder.userId("user_id").build()
+            Assertions.assertThat(payload.priority()).isEqualTo(BasePayload.Priority.NORMAL)
+
+            val highPriority = builder.priority(BasePayload.Priority.HIGH).build()
+            Assertions.assertThat(highPriority.priority()).isEqualTo(BasePayload.Priority.HIGH)
+            Assertions.assertThat(highPriority).doesNotContainKey("priority")
+            Assertions.assertThat(highPriority.toBuilder().build().priority())
+                .isEqualTo(BasePayload.Priority.HIGH)
+        }
+    }
+
     @Test
     fun type() {
         for (builder in builders) {